@@ -0,0 +1,110 @@
+package com.russbucket.networking;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.russbucket.networking.rtp.Fragmenter;
+import com.russbucket.networking.rtp.RtpSocket;
+import com.russbucket.networking.rtp.TextProcessor;
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
+
+/**
+ * Forwarding one media fragment from a client to every other subscriber, as a server shard does for
+ * each datagram it receives.
+ * 
+ * The shard is called directly rather than through its receiving thread. It only queues the datagram
+ * for each subscriber, the server's carrier threads send them in the background to loopback ports
+ * nothing listens on, so the score is the cost the receiving thread pays per datagram. Relay forwards
+ * the datagram as received, otherwise it is decoded into an RtpPacket first as the server does without
+ * --relay.
+ * 
+ * @author Rusty
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RtpServerBenchmark {
+	
+	@Param({"1", "10", "100", "500"})
+	private int subscribers;
+	
+	@Param({"true", "false"})
+	private boolean relay;
+	
+	/**
+	 * First loopback port the subscribers are given
+	 */
+	private static final int SUBSCRIBER_PORT = 40000;
+	
+	private RtpServer server;
+	private RtpServer.Shard shard;
+	private RtpSocket socket;
+	
+	private InetAddress address;
+	private InetSocketAddress sender;
+	private byte[] datagram;
+	private RtpPacketView view;
+	
+	@Setup
+	public void setup() throws Exception {
+		this.server = new RtpServer(0, this.relay, 1, 0);
+		this.shard = this.server.new Shard();
+		this.socket = new RtpSocket();
+		this.shard.setSocket(this.socket);
+		
+		this.address = InetAddress.getLoopbackAddress();
+		this.sender = new InetSocketAddress(this.address, SUBSCRIBER_PORT - 1);
+		
+		//The sender joins too, so the cost of keeping its datagrams and statistics is included
+		RtpPacket join = new TextProcessor().encode("JOIN", 1).get(0);
+		this.join(join, this.sender);
+		for(int i=0; i<this.subscribers; i++)
+			this.join(join, new InetSocketAddress(this.address, SUBSCRIBER_PORT + i));
+		
+		byte[] payload = new byte[Fragmenter.DEFAULT_MTU - RtpHeader.SIZE];
+		this.datagram = new RtpPacket(payload, RtpHeader.PayloadType.TILE, 7, 0, 1).getPacketAsBytes();
+		this.view = new RtpPacketView(ByteBuffer.wrap(this.datagram));
+	}
+	
+	private void join(RtpPacket join, InetSocketAddress client) {
+		RtpPacket packet = new RtpPacket(join.getPayload(), new RtpHeader(RtpHeader.PayloadType.STAT, 1, 0, 1));
+		packet.getHeader().setSenderData(client.getAddress(), client.getPort());
+		this.shard.process(packet);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		this.socket.close();
+		this.server.close();
+	}
+	
+	@Benchmark
+	public void forward() {
+		if(this.relay) {
+			this.view.setReceived(this.datagram.length, this.sender);
+			this.shard.process(this.view);
+		}else {
+			this.shard.process(RtpPacket.createPacket(this.datagram, this.datagram.length, this.address, this.sender.getPort()));
+		}
+	}
+}
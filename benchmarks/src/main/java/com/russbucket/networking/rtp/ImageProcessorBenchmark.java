@@ -0,0 +1,156 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
+
+/**
+ * Encoding screenshots into packets and decoding them again, at 720p, 1080p and 4K.
+ * 
+ * Images are synthetic desktop like content: a gradient background with windows of text like noise.
+ * Encoding alternates between two images that differ in one window, so tile mode sends that window
+ * every frame. Decoding goes through the same views a receiver uses, renumbering the frames each time
+ * so nothing is dropped as a duplicate, and in tile mode decodes a whole keyframe.
+ * 
+ * @author Rusty
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ImageProcessorBenchmark {
+	
+	@Param({"1280x720", "1920x1080", "3840x2160"})
+	private String resolution;
+	
+	@Param({"JPEG", "TILE"})
+	private String mode;
+	
+	private ImageProcessor encoder;
+	private BufferedImage[] images;
+	private int frameNumber;
+	
+	private ImageProcessor decoder;
+	private List<RtpPacketView> views;
+	private int[] frameNumbers;
+	private int frameCount;
+	private int frameOffset;
+	
+	@Setup
+	public void setup() throws Exception {
+		String[] size = this.resolution.split("x");
+		int width = Integer.parseInt(size[0]);
+		int height = Integer.parseInt(size[1]);
+		
+		this.images = new BufferedImage[] {screenshot(width, height, 0), screenshot(width, height, 1)};
+		this.encoder = this.processor();
+		
+		//Packets of a single image to decode
+		List<RtpPacket> packets = this.processor().encode(this.images[0], 0);
+		InetSocketAddress sender = new InetSocketAddress("127.0.0.1", 5000);
+		this.views = new ArrayList<>(packets.size());
+		this.frameNumbers = new int[packets.size()];
+		int firstFrame = packets.get(0).getHeader().getFrameNumber();
+		for(int i=0; i<packets.size(); i++) {
+			byte[] datagram = packets.get(i).getPacketAsBytes();
+			RtpPacketView view = new RtpPacketView(ByteBuffer.wrap(datagram));
+			view.setReceived(datagram.length, sender);
+			this.views.add(view);
+			this.frameNumbers[i] = packets.get(i).getHeader().getFrameNumber() - firstFrame;
+			this.frameCount = Math.max(this.frameCount, this.frameNumbers[i] + 1);
+		}
+		this.decoder = new ImageProcessor();
+	}
+	
+	private ImageProcessor processor() {
+		ImageProcessor processor = new ImageProcessor();
+		if(this.mode.equals("TILE"))
+			processor.setTileMode(TileCodec.DEFAULT_TILE_SIZE, Integer.MAX_VALUE);
+		return processor;
+	}
+	
+	/**
+	 * Creates a synthetic screenshot
+	 * 
+	 * @param width
+	 * @param height
+	 * @param variant Changes the content of the first window
+	 * @return
+	 */
+	static BufferedImage screenshot(int width, int height, int variant) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			for(int y=0; y<height; y+=4) {
+				g.setColor(new Color(30, 60 + y * 100 / height, 120 + y * 80 / height));
+				g.fillRect(0, y, width, 4);
+			}
+			
+			Random random = new Random(42);
+			for(int window=0; window<6; window++) {
+				int x = random.nextInt(width / 2);
+				int y = random.nextInt(height / 2);
+				int w = width / 4 + random.nextInt(width / 4);
+				int h = height / 4 + random.nextInt(height / 4);
+				g.setColor(Color.WHITE);
+				g.fillRect(x, y, w, h);
+				
+				//Lines of text like noise, which differs between variants in the first window
+				Random text = new Random(window == 0 ? variant : window + 100);
+				g.setColor(Color.DARK_GRAY);
+				for(int line=y+8; line<y+h-8; line+=14) {
+					for(int word=x+8; word<x+w-40; word+=8 + text.nextInt(40))
+						g.fillRect(word, line, 4 + text.nextInt(30), 8);
+				}
+			}
+		}finally {
+			g.dispose();
+		}
+		return image;
+	}
+	
+	@Benchmark
+	public List<RtpPacket> encode() throws Exception {
+		return this.encoder.encode(this.images[this.frameNumber & 1], this.frameNumber++ & 0xFFFF);
+	}
+	
+	@Benchmark
+	public BufferedImage decode() {
+		BufferedImage image = null;
+		for(int i=0; i<this.views.size(); i++) {
+			RtpPacketView view = this.views.get(i);
+			view.getBuffer().putShort(1, (short)(this.frameOffset + this.frameNumbers[i]));
+			BufferedImage decoded = this.decoder.decode(view);
+			if(decoded != null)
+				image = decoded;
+		}
+		this.frameOffset = (this.frameOffset + this.frameCount) & 0xFFFF;
+		
+		if(image == null)
+			throw new IllegalStateException("Image was not decoded");
+		return image;
+	}
+}
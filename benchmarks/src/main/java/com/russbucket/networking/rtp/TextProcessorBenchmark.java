@@ -0,0 +1,68 @@
+package com.russbucket.networking.rtp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Text messages encoded into packets and decoded again, from a single control message up to one
+ * needing many fragments.
+ * 
+ * @author Rusty
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TextProcessorBenchmark {
+	
+	@Param({"8", "1000", "100000"})
+	private int length;
+	
+	private TextProcessor sender;
+	private TextProcessor receiver;
+	private String text;
+	private int frameNumber;
+	
+	@Setup
+	public void setup() {
+		this.sender = new TextProcessor();
+		this.receiver = new TextProcessor();
+		
+		char[] characters = new char[this.length];
+		Arrays.fill(characters, 'a');
+		this.text = new String(characters);
+	}
+	
+	@Benchmark
+	public List<RtpPacket> encode() throws Exception {
+		return this.sender.encode(this.text, this.frameNumber++ & 0xFFFF);
+	}
+	
+	@Benchmark
+	public String roundTrip() throws Exception {
+		//Every message gets its own frame number, as it would from a real sender
+		String decoded = null;
+		for(RtpPacket packet : this.sender.encode(this.text, this.frameNumber++ & 0xFFFF))
+			decoded = this.receiver.decode(packet);
+		if(decoded == null)
+			throw new IllegalStateException("Message was not decoded");
+		return decoded;
+	}
+}
@@ -0,0 +1,111 @@
+package com.russbucket.networking.rtp.packet;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of headers and packets, run on every datagram sent and received.
+ * 
+ * The view benchmark reads the same fields as {@link #createPacket()} without copying, for comparison.
+ * 
+ * @author Rusty
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RtpPacketBenchmark {
+	
+	/**
+	 * Payload sizes of a small control message, a fragment at the default MTU and a fragment at the jumbo MTU
+	 */
+	@Param({"64", "1193", "8965"})
+	private int payloadSize;
+	
+	private RtpHeader header;
+	private byte[] headerData;
+	private RtpPacket packet;
+	private byte[] datagram;
+	private ByteBuffer buffer;
+	private RtpPacketView view;
+	private InetAddress address;
+	private InetSocketAddress sender;
+	
+	@Setup
+	public void setup() throws Exception {
+		this.header = new RtpHeader(RtpHeader.PayloadType.TILE, 1234, 5, 20);
+		this.headerData = this.header.encode();
+		
+		byte[] payload = new byte[this.payloadSize];
+		for(int i=0; i<payload.length; i++)
+			payload[i] = (byte)i;
+		this.packet = new RtpPacket(payload, this.header);
+		this.datagram = this.packet.getPacketAsBytes();
+		this.buffer = ByteBuffer.allocate(this.datagram.length);
+		
+		this.address = InetAddress.getLoopbackAddress();
+		this.sender = new InetSocketAddress(this.address, 5000);
+		this.view = new RtpPacketView(ByteBuffer.wrap(this.datagram));
+	}
+	
+	@Benchmark
+	public byte[] encodeHeader() {
+		return this.header.encode();
+	}
+	
+	@Benchmark
+	public ByteBuffer encodeHeaderInto() {
+		this.buffer.clear();
+		this.header.encodeInto(this.buffer);
+		return this.buffer;
+	}
+	
+	@Benchmark
+	public RtpHeader decodeHeader() {
+		return RtpHeader.decode(this.headerData);
+	}
+	
+	@Benchmark
+	public RtpPacket createPacket() {
+		return RtpPacket.createPacket(this.datagram, this.datagram.length, this.address, 5000);
+	}
+	
+	@Benchmark
+	public byte[] getPacketAsBytes() {
+		return this.packet.getPacketAsBytes();
+	}
+	
+	@Benchmark
+	public ByteBuffer writeTo() {
+		this.buffer.clear();
+		this.packet.writeTo(this.buffer);
+		return this.buffer;
+	}
+	
+	@Benchmark
+	public void readView(Blackhole blackhole) {
+		this.view.setReceived(this.datagram.length, this.sender);
+		blackhole.consume(this.view.getType());
+		blackhole.consume(this.view.getFrameNumber());
+		blackhole.consume(this.view.getSequenceNumber());
+		blackhole.consume(this.view.getSequenceLength());
+		blackhole.consume(this.view.getPayload());
+	}
+}
@@ -0,0 +1,357 @@
+package com.russbucket.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.russbucket.networking.rtp.Fragmenter;
+import com.russbucket.networking.rtp.FrameClock;
+import com.russbucket.networking.rtp.FrameReassembler;
+import com.russbucket.networking.rtp.RtpRunnable;
+import com.russbucket.networking.rtp.RtpSocket;
+import com.russbucket.networking.rtp.TextProcessor;
+import com.russbucket.networking.rtp.metrics.LatencyHistogram;
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
+
+/**
+ * Puts a server under load with simulated clients on loopback, for soak tests on machines without a screen.
+ * 
+ * An RtpServer is started in this process and every client joins it, sends synthetic frames at a fixed
+ * rate and receives the frames of every other client. Each client reports the frame rate delivered to it,
+ * the frames lost and the latency from send to reassembly, so the point where the server saturates shows
+ * as falling frame rates and growing latency as clients are added (see --ramp).
+ * 
+ * Every fragment of a synthetic frame starts with the sending client's id and the System.nanoTime the
+ * frame was sent at, so receivers can reassemble each client's frames separately and time them.
+ * 
+ * Options:
+ * --clients n (default 4), --fps n (default 30), --size bytes (default 100000),
+ * --duration seconds (default 0, run until stopped), --ramp seconds between adding clients (default 0),
+ * --report seconds (default 10), --mtu bytes, --relay, --shards n, --pace Mbit/s,
+ * --v2 to send version 2 headers with a stream id per client and 32 bit frame numbers
+ * 
+ * @author Rusty
+ */
+public class LoadGenerator {
+	
+	/**
+	 * Bytes at the start of every fragment, the client id (16 bits) and send time (64 bits)
+	 */
+	public static final int FRAGMENT_HEADER = 10;
+	
+	private RtpServer server;
+	private List<SimulatedClient> clients;
+	private int maxClients;
+	private double fps;
+	private int frameSize;
+	private Fragmenter fragmenter;
+	private LatencyHistogram total;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param server Server to connect the clients to
+	 * @param maxClients Most clients that will be added
+	 * @param fps Frames each client sends per second
+	 * @param frameSize Size of each frame in bytes
+	 * @param fragmenter Fragmenter for the MTU to send at
+	 */
+	public LoadGenerator(RtpServer server, int maxClients, double fps, int frameSize, Fragmenter fragmenter) {
+		if(fragmenter.getPayloadSize() <= FRAGMENT_HEADER)
+			throw new IllegalArgumentException("MTU is too small for the fragment header");
+		else if(maxClients <= 0 || maxClients > 0xFFFF)
+			throw new IllegalArgumentException("Clients must be between 1 and " + 0xFFFF);
+		
+		this.server = server;
+		this.clients = new CopyOnWriteArrayList<>();
+		this.maxClients = maxClients;
+		this.fps = fps;
+		this.frameSize = Math.max(frameSize, FRAGMENT_HEADER);
+		this.fragmenter = fragmenter;
+		this.total = new LatencyHistogram();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int clients = 4;
+		double fps = 30;
+		int size = 100_000;
+		long duration = 0;
+		long ramp = 0;
+		long report = 10;
+		int mtu = Fragmenter.DEFAULT_MTU;
+		boolean relay = false;
+		int shards = 1;
+		long paceRate = 0;
+		boolean v2 = false;
+		for(int i=0; i<args.length; i++) {
+			if(args[i].equals("--relay"))
+				relay = true;
+			else if(args[i].equals("--v2"))
+				v2 = true;
+			else if(i+1 >= args.length)
+				break;
+			else if(args[i].equals("--clients"))
+				clients = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--fps"))
+				fps = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--size"))
+				size = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--duration"))
+				duration = Long.parseLong(args[++i]);
+			else if(args[i].equals("--ramp"))
+				ramp = Long.parseLong(args[++i]);
+			else if(args[i].equals("--report"))
+				report = Long.parseLong(args[++i]);
+			else if(args[i].equals("--mtu"))
+				mtu = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--shards"))
+				shards = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--pace"))
+				paceRate = Long.parseLong(args[++i]) * 1_000_000 / 8;
+		}
+		
+		RtpServer server = new RtpServer(0, relay, shards, paceRate);
+		LoadGenerator load = new LoadGenerator(server, clients, fps, size, new Fragmenter(mtu, v2 ? 1 : 0));
+		load.run(duration * 1000, ramp * 1000, report * 1000);
+		load.close();
+		server.close();
+	}
+	
+	/**
+	 * Adds the clients and prints a report every interval until the duration has passed
+	 * 
+	 * @param durationMillis Time to run for, 0 to run until the thread is interrupted
+	 * @param rampMillis Time between adding each client, 0 to add every client at once
+	 * @param reportMillis Time between reports
+	 * @throws IOException If a client could not connect
+	 */
+	public void run(long durationMillis, long rampMillis, long reportMillis) throws IOException {
+		long start = System.currentTimeMillis();
+		long nextClient = start;
+		long nextReport = start + reportMillis;
+		try {
+			while(durationMillis == 0 || System.currentTimeMillis() - start < durationMillis) {
+				long now = System.currentTimeMillis();
+				while(this.clients.size() < this.maxClients && now >= nextClient) {
+					this.addClient();
+					nextClient += rampMillis;
+				}
+				if(now >= nextReport) {
+					this.report(reportMillis);
+					nextReport += reportMillis;
+				}
+				
+				long wait = nextReport - now;
+				if(this.clients.size() < this.maxClients)
+					wait = Math.min(wait, nextClient - now);
+				if(durationMillis != 0)
+					wait = Math.min(wait, start + durationMillis - now);
+				Thread.sleep(Math.max(1, wait));
+			}
+		}catch(InterruptedException e) {
+			//Stopped early
+		}
+		
+		System.out.printf("Total: %d frames, latency p50 %.2fms p99 %.2fms p99.9 %.2fms max %.2fms%n", this.total.getCount(),
+				this.total.getPercentile(50) / 1e6, this.total.getPercentile(99) / 1e6, this.total.getPercentile(99.9) / 1e6, this.total.getMax() / 1e6);
+	}
+	
+	/**
+	 * Connects another client and starts it sending and receiving
+	 * 
+	 * @throws IOException If the client could not connect
+	 */
+	public void addClient() throws IOException {
+		SimulatedClient client = new SimulatedClient(this.clients.size());
+		this.clients.add(client);
+		client.start();
+	}
+	
+	/**
+	 * Prints the frame rate, loss and latency of every client since the last report
+	 * 
+	 * @param intervalMillis Time since the last report
+	 */
+	private void report(long intervalMillis) {
+		int senders = Math.max(1, this.clients.size() - 1);
+		LatencyHistogram interval = new LatencyHistogram();
+		long completed = 0, expected = 0;
+		
+		System.out.printf("%d clients, %d joined to the server%n", this.clients.size(), this.server.getClientCount());
+		for(SimulatedClient client : this.clients) {
+			long clientCompleted = client.completed.getAndSet(0);
+			long clientExpected = client.expected.getAndSet(0);
+			completed += clientCompleted;
+			expected += clientExpected;
+			interval.add(client.latency);
+			
+			System.out.printf("  client %d: %.1f fps per sender, %.2f%% lost, latency p50 %.2fms p99 %.2fms p99.9 %.2fms%n", client.id,
+					clientCompleted * 1000.0 / intervalMillis / senders, lost(clientCompleted, clientExpected),
+					client.latency.getPercentile(50) / 1e6, client.latency.getPercentile(99) / 1e6, client.latency.getPercentile(99.9) / 1e6);
+			client.latency.reset();
+		}
+		
+		this.total.add(interval);
+		System.out.printf("  all: %.1f fps per sender, %.2f%% lost, latency p50 %.2fms p99 %.2fms p99.9 %.2fms%n",
+				completed * 1000.0 / intervalMillis / senders / Math.max(1, this.clients.size()), lost(completed, expected),
+				interval.getPercentile(50) / 1e6, interval.getPercentile(99) / 1e6, interval.getPercentile(99.9) / 1e6);
+	}
+	
+	private static double lost(long completed, long expected) {
+		return expected <= 0 ? 0 : Math.max(0, expected - completed) * 100.0 / expected;
+	}
+	
+	/**
+	 * Stops every client, leaving the server
+	 */
+	public void close() {
+		for(SimulatedClient client : this.clients)
+			client.close();
+		this.clients.clear();
+	}
+	
+	/**
+	 * Client sending synthetic frames on one thread and receiving everyone else's on another
+	 * 
+	 * @author Rusty
+	 */
+	class SimulatedClient extends RtpRunnable{
+		private int id;
+		private RtpSocket socket;
+		private TextProcessor textProcessor;
+		private Thread sendThread, receiveThread;
+		private volatile boolean running;
+		
+		/**
+		 * Reassembler and newest frame number of each sender, by client id
+		 */
+		private FrameReassembler[] reassemblers;
+		private int[] lastFrame;
+		
+		/**
+		 * Frames that should have arrived and have been completed since the last report
+		 */
+		private AtomicLong expected;
+		private AtomicLong completed;
+		private LatencyHistogram latency;
+		
+		public SimulatedClient(int id) throws IOException {
+			this.id = id;
+			this.textProcessor = new TextProcessor();
+			this.reassemblers = new FrameReassembler[maxClients];
+			this.lastFrame = new int[maxClients];
+			this.expected = new AtomicLong();
+			this.completed = new AtomicLong();
+			this.latency = new LatencyHistogram();
+			
+			this.socket = new RtpSocket();
+			this.socket.connect("127.0.0.1", server.getLocalPort());
+			this.setSocket(this.socket);
+			this.setBufferSize(RtpSocket.SIZE_MAX);
+			this.enableDirectReceive();
+		}
+		
+		private void start() throws IOException {
+			this.running = true;
+			this.receiveThread = new Thread(this, "load-receive-" + this.id);
+			this.receiveThread.start();
+			
+			for(RtpPacket packet : this.textProcessor.encode("JOIN", 1))
+				this.socket.send(packet);
+			
+			this.sendThread = new Thread(this::send, "load-send-" + this.id);
+			this.sendThread.start();
+		}
+		
+		/**
+		 * Sends a frame every frame interval, writing the id and send time at the start of every fragment
+		 */
+		private void send() {
+			byte[] frame = new byte[frameSize];
+			for(int i=0; i<frame.length; i++)
+				frame[i] = (byte)(i * 31 + this.id);
+			ByteBuffer data = ByteBuffer.wrap(frame);
+			int payloadSize = fragmenter.getPayloadSize();
+			int count = fragmenter.count(frame.length);
+			boolean v2 = fragmenter.getSsrc() != 0;
+			
+			FrameClock clock = new FrameClock(fps);
+			int frameNumber = 0;
+			try {
+				while(this.running) {
+					long sent = System.nanoTime();
+					for(int sequence=0; sequence<count; sequence++) {
+						int offset = sequence * payloadSize;
+						int length = Math.min(payloadSize, frame.length - offset);
+						if(length >= FRAGMENT_HEADER) {
+							data.putShort(offset, (short)this.id);
+							data.putLong(offset + 2, sent);
+						}
+						RtpHeader header = v2
+								? new RtpHeader(RtpHeader.PayloadType.JPEG, this.id + 1, frameNumber, sequence, count, RtpHeader.timestamp(sent))
+								: new RtpHeader(RtpHeader.PayloadType.JPEG, frameNumber, sequence, count);
+						this.socket.send(header, data.slice(offset, length));
+					}
+					frameNumber = v2 ? frameNumber + 1 : (frameNumber + 1) & 0xFFFF;
+					clock.await();
+				}
+			}catch(InterruptedException e) {
+				//Stopped
+			}catch(IOException e) {
+				if(!this.socket.isClosed())
+					e.printStackTrace();
+			}
+		}
+		
+		@Override
+		public void process(RtpPacket packet) {
+			//Only direct receive is used
+		}
+		
+		@Override
+		public void process(RtpPacketView view) {
+			ByteBuffer payload = view.getPayload();
+			if(view.getType() != RtpHeader.PayloadType.JPEG || payload.remaining() < 2)
+				return;
+			
+			int sender = payload.getShort(payload.position()) & 0xFFFF;
+			if(sender >= this.reassemblers.length || sender == this.id)
+				return;
+			
+			if(this.reassemblers[sender] == null) {
+				this.reassemblers[sender] = new FrameReassembler(8, fragmenter.count(frameSize) * fragmenter.getPayloadSize(), 1000);
+				this.lastFrame[sender] = view.getFrameNumber();
+				this.expected.incrementAndGet();
+			}else {
+				//Every frame number a sender moves past is a frame that should arrive
+				int ahead = (view.getFrameNumber() - this.lastFrame[sender]) & 0xFFFF;
+				if(ahead != 0 && ahead <= 0x7FFF) {
+					this.lastFrame[sender] = view.getFrameNumber();
+					this.expected.addAndGet(ahead);
+				}
+			}
+			
+			FrameReassembler.Frame frame = this.reassemblers[sender].add(view.getFrameNumber(), view.getSequenceNumber(), view.getSequenceLength(), payload);
+			if(frame != null && frame.getLength() >= FRAGMENT_HEADER) {
+				this.latency.record(System.nanoTime() - ByteBuffer.wrap(frame.getData()).getLong(2));
+				this.completed.incrementAndGet();
+			}
+		}
+		
+		private void close() {
+			this.running = false;
+			this.sendThread.interrupt();
+			try {
+				for(RtpPacket packet : this.textProcessor.encode("LEAVE", 1))
+					this.socket.send(packet);
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+			this.socket.close();
+		}
+	}
+}
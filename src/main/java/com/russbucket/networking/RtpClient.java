@@ -6,19 +6,43 @@ import java.awt.Rectangle;
 import java.awt.Robot;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.ObjectName;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 
+import com.russbucket.networking.rtp.FecEncoder;
+import com.russbucket.networking.rtp.Fragmenter;
+import com.russbucket.networking.rtp.FrameClock;
+import com.russbucket.networking.rtp.FrameRenderer;
 import com.russbucket.networking.rtp.ImageProcessor;
+import com.russbucket.networking.rtp.NackMessage;
+import com.russbucket.networking.rtp.PacedRtpSocket;
+import com.russbucket.networking.rtp.ReceiveRing;
+import com.russbucket.networking.rtp.ReceiverReport;
+import com.russbucket.networking.rtp.ReceptionStats;
+import com.russbucket.networking.rtp.RetransmitRing;
 import com.russbucket.networking.rtp.RtpRunnable;
 import com.russbucket.networking.rtp.RtpSocket;
+import com.russbucket.networking.rtp.SenderReport;
+import com.russbucket.networking.rtp.StatMessage;
+import com.russbucket.networking.rtp.StreamTable;
 import com.russbucket.networking.rtp.TextProcessor;
+import com.russbucket.networking.rtp.TileCodec;
+import com.russbucket.networking.rtp.metrics.Metrics;
+import com.russbucket.networking.rtp.packet.RtpHeader;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 /**
  * Example client implementation for this project.
@@ -34,11 +58,18 @@ public class RtpClient {
 	private TextProcessor textProcessor;
 	private ConnectionReceiver connectionReceiver;
 	private ScreenCapture screenCapture;
-	
-	private BufferedImage displayedImage;
+	/**
+	 * Stream id sent with every capture, kept across Start and Stop so receivers keep decoding it as one stream
+	 */
+	private int ssrc;
+	/**
+	 * Names the connection's metrics were registered under over JMX
+	 */
+	private List<ObjectName> metricNames = new ArrayList<>();
 	
 	private RtpClient() {
 		this.textProcessor = new TextProcessor();
+		this.ssrc = ssrc();
 		
 		this.window = new JFrame("RTP Client");
 		this.window.setSize(600, 500);
@@ -48,8 +79,17 @@ public class RtpClient {
 			@Override
 			public void paintComponent(Graphics g) {
 				super.paintComponent(g);
-				if(displayedImage != null)
-					g.drawImage(displayedImage, 0, 30, this);
+				if(connectionReceiver == null)
+					return;
+				//Every sender's newest image side by side
+				int[] x = new int[1];
+				connectionReceiver.streams.forEach((stream)->{
+					BufferedImage image = stream.renderer.acquire();
+					if(image != null) {
+						g.drawImage(image, x[0], 30, this);
+						x[0] += image.getWidth();
+					}
+				});
 			}
 		};
 		panel.setLayout(null);
@@ -90,10 +130,19 @@ public class RtpClient {
 				e.printStackTrace();
 				return;
 			}
+			if(connectionReceiver != null)
+				connectionReceiver.closeStreams();
 			connectionReceiver = new ConnectionReceiver();
 			connectionReceiver.setSocket(this.socket);
 			connectionReceiver.setBufferSize(RtpSocket.SIZE_MAX);
+			connectionReceiver.enableDirectReceive();
+			//Reassembly is not thread safe, so a single thread processes, always working on the newest datagrams
+			connectionReceiver.enableRing(ConnectionReceiver.RING_CAPACITY, 1, ReceiveRing.FullPolicy.DROP_OLDEST);
 			new Thread(connectionReceiver).start();
+			
+			String name = "client-" + this.socket.getLocalPort();
+			this.metricNames.add(Metrics.register(this.socket.getMetrics(), "Socket", name));
+			this.metricNames.add(Metrics.register(connectionReceiver.getMetrics(), "Receiver", name));
 
 			try {
 				List<RtpPacket> packets = this.textProcessor.encode("JOIN", 1);
@@ -111,8 +160,8 @@ public class RtpClient {
 		});
 
 		btnStart.addActionListener((event)->{
-			//Send screenshot images to others connected over RTP
-			screenCapture = new ScreenCapture();
+			//Send screenshot images to others connected over RTP, numbering frames on from the last capture
+			screenCapture = new ScreenCapture(screenCapture == null ? 0 : screenCapture.getFrameNumber());
 			new Thread(screenCapture).start();
 			
 			btnStart.setEnabled(false);
@@ -142,6 +191,11 @@ public class RtpClient {
 			
 			this.socket.close();
 			this.socket = null;
+			//The last images stay shown
+			this.connectionReceiver.closeStreams();
+			for(ObjectName name : this.metricNames)
+				Metrics.unregister(name);
+			this.metricNames.clear();
 
 			btnDisconnect.setEnabled(false);
 			btnStart.setEnabled(false);
@@ -159,18 +213,164 @@ public class RtpClient {
 	}
 	
 	/**
-	 * Controls while screenshots should be captured on a dedicated thread
+	 * Picks a stream id for this client
+	 * 
+	 * @return Random SSRC, never 0 as that is kept for version 1 headers
+	 */
+	private static int ssrc() {
+		int ssrc;
+		do {
+			ssrc = ThreadLocalRandom.current().nextInt();
+		}while(ssrc == 0);
+		return ssrc;
+	}
+	
+	/**
+	 * Controls while screenshots should be captured, encoded and sent.
+	 * 
+	 * Each step runs on its own thread with bounded hand offs between them, so capturing the next
+	 * frame overlaps with encoding and sending the previous one. If encoding falls behind, only the
+	 * latest capture is kept.
 	 * 
 	 * @author Rusty
 	 */
 	class ScreenCapture implements Runnable{
 		
 		private volatile boolean shouldCapture;
+		private ImageProcessor imageProcessor;
 		
+		/**
+		 * Latest capture waiting to be encoded
+		 */
+		private ArrayBlockingQueue<Capture> captured;
+		/**
+		 * Encoded frames waiting to be sent
+		 */
+		private ArrayBlockingQueue<List<RtpPacket>> encoded;
+		/**
+		 * Number of the next frame encoded
+		 */
+		private volatile int frameNumber;
+		private Thread encodeThread, sendThread;
+		private volatile long dropped;
+		/**
+		 * Spreads each frame's packets across the frame interval
+		 */
+		private PacedRtpSocket pacer;
+		/**
+		 * Packets recently sent, so they can be sent again when receivers ask for them
+		 */
+		private RetransmitRing sent;
+		/**
+		 * Counts for sender reports, only changed by the sending thread
+		 */
+		private long packetsSent, bytesSent, lastReport;
+		/**
+		 * Latest report from the server of how this stream is arriving, and the round trip time it gave
+		 */
+		private volatile ReceiverReport report;
+		private volatile long roundTripTime = -1;
+		
+		/**
+		 * Rate frames are sent at in bytes per second (100Mbit/s)
+		 */
+		public static final long SEND_RATE = 100_000_000 / 8;
+		/**
+		 * Packets that can wait to be sent before encoding has to wait
+		 */
+		public static final int SEND_QUEUE_CAPACITY = 256;
+		/**
+		 * Packets kept for retransmits, enough for several round trips at the send rate
+		 */
+		public static final int RETRANSMIT_CAPACITY = 4096;
+		/**
+		 * Longest the encoding and sending threads wait before checking whether capturing has stopped (milliseconds)
+		 */
+		public static final long STOP_POLL = 100;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param frameNumber Number of the first frame, following on from the last capture of this client's stream
+		 */
+		public ScreenCapture(int frameNumber) {
+			//Only send the parts of the screen that change, encoding rows of tiles across all cores
+			this.imageProcessor = new ImageProcessor();
+			this.imageProcessor.setTileMode(TileCodec.DEFAULT_TILE_SIZE, TileCodec.DEFAULT_KEYFRAME_INTERVAL);
+			this.imageProcessor.setPool(ForkJoinPool.commonPool());
+			//Send version 2 headers, so NACKs for this stream go straight back here
+			this.imageProcessor.setSsrc(ssrc);
+			//Rebuild up to 2 lost fragments in every 16 without waiting for a retransmit
+			this.imageProcessor.setFec(FecEncoder.reedSolomon(16, 2));
+			
+			this.captured = new ArrayBlockingQueue<>(1);
+			this.encoded = new ArrayBlockingQueue<>(2);
+			this.pacer = new PacedRtpSocket(socket, SEND_RATE, Fragmenter.JUMBO_MTU, SEND_QUEUE_CAPACITY);
+			//Retransmits are sent to the server by address, so it is added before any NACK can arrive
+			this.pacer.add(socket.getRemoteSocketAddress());
+			this.sent = new RetransmitRing(RETRANSMIT_CAPACITY);
+			this.frameNumber = frameNumber;
+		}
+		
+		/**
+		 * Stops capturing, the encoding and sending threads stop within {@link #STOP_POLL}.
+		 * 
+		 * The threads are never interrupted, as interrupting a thread in I/O on the socket's channel closes the
+		 * channel, which is also used for receiving.
+		 */
 		public void stop() {
 			this.shouldCapture = false;
+			this.pacer.close();
+		}
+		
+		/**
+		 * Sends every tile with the next frame, for receivers that have missed tiles or just joined
+		 */
+		public void requestKeyframe() {
+			this.imageProcessor.requestKeyframe();
+		}
+		
+		/**
+		 * Sends the packets a receiver has asked for again, if they are still kept. NACKs arriving once capturing has
+		 * stopped are ignored.
+		 * 
+		 * @param nack
+		 */
+		public void retransmit(NackMessage nack) {
+			if(!this.shouldCapture)
+				return;
+			SocketAddress server = socket.getRemoteSocketAddress();
+			this.sent.get(nack, (datagram)->this.pacer.send(datagram, server));
 		}
 		
+		/**
+		 * Keeps the server's report of how this stream is arriving
+		 * 
+		 * @param report
+		 */
+		public void report(ReceiverReport report) {
+			this.report = report;
+			long roundTripTime = report.getRoundTripTime(SenderReport.timestamp(System.nanoTime()));
+			if(roundTripTime >= 0)
+				this.roundTripTime = roundTripTime;
+		}
+		
+		public ReceiverReport getReport() {
+			return this.report;
+		}
+		
+		/**
+		 * Gets the round trip time to the server from the last report
+		 * 
+		 * @return Microseconds, or -1 if not known yet
+		 */
+		public long getRoundTripTime() {
+			return this.roundTripTime;
+		}
+		
+		/**
+		 * Captures the screen at a fixed rate
+		 */
 		@Override
 		public void run() {
 			Robot r = null;
@@ -182,57 +382,377 @@ public class RtpClient {
 			}
 			
 			Rectangle area = new Rectangle(1920, 1080);
-			BufferedImage img;
-			int frameNumber = 0;
-			long fps = 1000/30;
+			FrameClock clock = new FrameClock(30);
 			shouldCapture = true;
-			ImageProcessor imageProcessor = new ImageProcessor();
 			
+			this.encodeThread = new Thread(this::encode, "screen-encode");
+			this.sendThread = new Thread(this::send, "screen-send");
+			this.encodeThread.start();
+			this.sendThread.start();
+			
+			clock.start();
 			while(this.shouldCapture) {
-				long start = System.currentTimeMillis();
+				long time = System.nanoTime();
+				Capture capture = new Capture(r.createScreenCapture(area), time);
 				
-				img = r.createScreenCapture(area);
+				//Latest frame wins, replacing a capture that has not been encoded yet
+				while(!this.captured.offer(capture)) {
+					if(this.captured.poll() != null)
+						this.dropped++;
+				}
 				
 				try {
-					List<RtpPacket> packets = imageProcessor.encode(img, frameNumber);
+					clock.await();
+				}catch(InterruptedException e) {
+					break;
+				}
+			}
+			this.stop();
+		}
+		
+		/**
+		 * Encodes the latest capture, numbering frames as they are encoded so dropped captures leave no gaps.
+		 * In tile mode a capture takes a frame number for each of its messages.
+		 */
+		private void encode() {
+			int frameNumber = this.frameNumber;
+			try {
+				while(this.shouldCapture) {
+					Capture capture = this.captured.poll(STOP_POLL, TimeUnit.MILLISECONDS);
+					if(capture == null)
+						continue;
+					List<RtpPacket> packets = new ArrayList<>();
+					//Stamped with the capture time, so time spent waiting to be encoded counts towards latency
+					int next = this.imageProcessor.encode(capture.image, frameNumber, capture.time, packets);
+					while(!this.encoded.offer(packets, STOP_POLL, TimeUnit.MILLISECONDS)) {
+						if(!this.shouldCapture)
+							return;
+					}
+					frameNumber = next;
+					this.frameNumber = next;
+				}
+			}catch(InterruptedException e) {
+				//Stopped
+			}catch(IOException e) {
+				e.printStackTrace();
+				this.stop();
+			}
+		}
+		
+		/**
+		 * Sends encoded frames in order, waiting while the pacer's queue is full, with a sender report between frames
+		 * every report interval
+		 */
+		private void send() {
+			try {
+				while(this.shouldCapture) {
+					List<RtpPacket> packets = this.encoded.poll(STOP_POLL, TimeUnit.MILLISECONDS);
+					if(packets == null)
+						continue;
 					for(RtpPacket packet : packets) {
-						socket.send(packet);
+						this.sent.add(packet);
+						if(!this.put(packet))
+							return;
+						this.packetsSent++;
+						this.bytesSent += packet.getHeader().getSize() + packet.getPayload().length;
+					}
+					
+					long now = System.nanoTime();
+					if(now - this.lastReport >= ReceptionStats.REPORT_INTERVAL * 1_000_000) {
+						this.lastReport = now;
+						if(!this.put(new SenderReport(SenderReport.timestamp(now), this.packetsSent, this.bytesSent).toPacket()))
+							return;
 					}
-				}catch(IOException e) {
-					e.printStackTrace();
-					return;
 				}
-				frameNumber++;
-				
-				long delay = fps - (System.currentTimeMillis() - start);
-				if(delay<0)
-					delay = 0;
-				try {
-					Thread.sleep(delay);
-				}catch(InterruptedException e) {}
+			}catch(InterruptedException e) {
+				//Stopped
+			}
+		}
+		
+		/**
+		 * Queues a packet on the pacer, waiting while its queue is full
+		 * 
+		 * @param packet
+		 * @return False if capturing stopped while waiting
+		 * @throws InterruptedException
+		 */
+		private boolean put(RtpPacket packet) throws InterruptedException {
+			while(!this.pacer.put(packet, STOP_POLL, TimeUnit.MILLISECONDS)) {
+				if(!this.shouldCapture)
+					return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Gets the number of the next frame, for a later capture to carry on from
+		 * 
+		 * @return
+		 */
+		public int getFrameNumber() {
+			return this.frameNumber;
+		}
+		
+		/**
+		 * Gets the amount of captures dropped because encoding fell behind
+		 * 
+		 * @return
+		 */
+		public long getDropped() {
+			return this.dropped;
+		}
+		
+		/**
+		 * A screenshot and when it was taken
+		 * 
+		 * @author Rusty
+		 */
+		private class Capture {
+			private BufferedImage image;
+			/**
+			 * From System.nanoTime, taken before capturing
+			 */
+			private long time;
+			
+			private Capture(BufferedImage image, long time) {
+				this.image = image;
+				this.time = time;
 			}
 		}
 	}
 	
 	/**
-	 * Dedicated class for processing the received data, assumed to be images
+	 * Dedicated class for processing the received data, assumed to be images or keyframe requests
 	 * 
 	 * @author Rusty
 	 */
 	class ConnectionReceiver extends RtpRunnable{
-		private ImageProcessor imageProcessor;
+		/**
+		 * Datagrams that can wait to be processed, enough for a few full keyframes
+		 */
+		public static final int RING_CAPACITY = 1024;
+		
+		/**
+		 * Most senders decoded at once, media from any more is ignored
+		 */
+		public static final int MAX_STREAMS = 16;
+		/**
+		 * Time without media before a stream stops being decoded, freeing its place for another sender (milliseconds)
+		 */
+		public static final long STREAM_TIMEOUT = 10_000;
+		
+		/**
+		 * Decoders for each sender, by the SSRC of their stream (0 for senders using version 1 headers)
+		 */
+		private StreamTable<Stream> streams;
+		private TextProcessor textProcessor;
+		private long lastKeyframeRequest;
+		private long lastNack;
+		/**
+		 * Whether a stream has lost tiles since the last keyframe request, checked with the NACKs
+		 */
+		private boolean keyframeNeeded;
+		private long lastReport;
 		
 		public ConnectionReceiver() {
-			this.imageProcessor = new ImageProcessor();
+			this.streams = new StreamTable<>();
+			this.textProcessor = new TextProcessor();
+		}
+		
+		/**
+		 * Gets the decoder for a stream, starting one the first time the stream is seen
+		 * 
+		 * @param ssrc
+		 * @return The stream, or null if already decoding {@link #MAX_STREAMS}
+		 */
+		private Stream stream(int ssrc) {
+			Stream stream = this.streams.get(ssrc);
+			if(stream == null && this.streams.size() < MAX_STREAMS) {
+				stream = new Stream(ssrc, "client-" + this.getSocket().getLocalPort() + (ssrc == 0 ? "" : "-" + Integer.toHexString(ssrc)));
+				this.streams.put(ssrc, stream);
+			}
+			return stream;
+		}
+		
+		/**
+		 * Stops decoding streams nothing has arrived on for {@link #STREAM_TIMEOUT}, as their senders have stopped or
+		 * left, and stops showing them
+		 */
+		private void evictIdle() {
+			long now = System.nanoTime();
+			this.streams.forEach((stream)->{
+				if(now - stream.lastReceived >= STREAM_TIMEOUT * 1_000_000 && this.streams.remove(stream.ssrc, stream)) {
+					stream.close();
+					window.repaint();
+				}
+			});
+		}
+		
+		/**
+		 * Stops decoding every stream, the last images decoded can still be painted
+		 */
+		public void closeStreams() {
+			this.streams.forEach(Stream::close);
 		}
 		
 		@Override
 		public void process(RtpPacket packet) {
-			BufferedImage image = this.imageProcessor.decode(packet);
-			if(image != null) {
-				displayedImage = image;
-				window.repaint();
+			if(packet.getHeader().getType().equals(RtpHeader.PayloadType.STAT)) {
+				if(StatMessage.isBinary(packet.getPayload()))
+					this.control(packet.getPayload());
+				else
+					this.control(this.textProcessor.decode(packet));
+			}else {
+				RtpHeader header = packet.getHeader();
+				Stream stream = this.stream(header.getSsrc());
+				if(stream != null) {
+					stream.lastReceived = System.nanoTime();
+					stream.received.received(header.getType(), header.getFrameNumber(), header.getSequenceLength(), header.getSize() + packet.getPayload().length, header.getTimestamp(), stream.lastReceived);
+					stream.imageProcessor.decode(packet);
+				}
+				this.feedback();
+			}
+		}
+		
+		@Override
+		public void process(RtpPacketView view) {
+			if(view.getType().equals(RtpHeader.PayloadType.STAT)) {
+				if(StatMessage.isBinary(view.getPayload()))
+					this.control(view.toPacket().getPayload());
+				else
+					this.control(this.textProcessor.decode(view));
+			}else {
+				Stream stream = this.stream(view.getSsrc());
+				if(stream != null) {
+					stream.lastReceived = System.nanoTime();
+					stream.received.received(view.getType(), view.getFrameNumber(), view.getSequenceLength(), view.getLength(), view.getTimestamp(), stream.lastReceived);
+					stream.imageProcessor.decode(view);
+				}
+				this.feedback();
+			}
+		}
+		
+		/**
+		 * Handles binary control messages
+		 * 
+		 * @param payload
+		 */
+		private void control(byte[] payload) {
+			if(screenCapture == null)
+				return;
+			
+			if(NackMessage.isNack(payload)) {
+				NackMessage nack = NackMessage.decode(payload);
+				if(nack != null)
+					screenCapture.retransmit(nack);
+			}else if(ReceiverReport.isReport(payload)) {
+				ReceiverReport report = ReceiverReport.decode(payload);
+				if(report != null)
+					screenCapture.report(report);
 			}
 		}
+		
+		private void control(String text) {
+			if("KEYFRAME".equals(text) && screenCapture != null)
+				screenCapture.requestKeyframe();
+		}
+		
+		/**
+		 * Tells the senders how their media is arriving, images themselves are decoded and shown by the renderer
+		 */
+		private void feedback() {
+			//Tell the server how each sender's media is arriving
+			if(System.nanoTime() - this.lastReport >= ReceptionStats.REPORT_INTERVAL * 1_000_000) {
+				long now = System.nanoTime();
+				this.lastReport = now;
+				this.streams.forEach((stream)->{
+					try {
+						this.getSocket().send(stream.received.report(now).toPacket());
+					}catch(IOException e) {
+						e.printStackTrace();
+					}
+				});
+			}
+			
+			//Ask the senders for fragments that have stopped arriving
+			if(System.currentTimeMillis() - this.lastNack >= ImageProcessor.NACK_DELAY) {
+				this.lastNack = System.currentTimeMillis();
+				this.streams.forEach((stream)->{
+					try {
+						for(RtpPacket packet : stream.imageProcessor.getNacks()) {
+							this.getSocket().send(packet);
+						}
+					}catch(IOException e) {
+						e.printStackTrace();
+					}
+					this.keyframeNeeded |= stream.imageProcessor.pollKeyframeNeeded();
+				});
+				this.evictIdle();
+			}
+			
+			//Ask the senders for every tile if some were lost, at most once a second
+			if(this.keyframeNeeded && System.currentTimeMillis() - this.lastKeyframeRequest > 1000) {
+				this.keyframeNeeded = false;
+				this.lastKeyframeRequest = System.currentTimeMillis();
+				try {
+					for(RtpPacket packet : textProcessor.encode("KEYFRAME", 1)) {
+						this.getSocket().send(packet);
+					}
+				}catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Decodes one sender's stream, off the receiving thread
+	 * 
+	 * @author Rusty
+	 */
+	class Stream {
+		private int ssrc;
+		private ImageProcessor imageProcessor;
+		/**
+		 * How the stream is arriving, reported to the server every report interval, only used by the receiving thread
+		 */
+		private ReceptionStats received;
+		/**
+		 * Decodes received images off the receiving thread, the panel paints whichever is newest
+		 */
+		private FrameRenderer renderer;
+		private ObjectName metricName;
+		/**
+		 * When media for the stream last arrived, only used by the receiving thread
+		 */
+		private long lastReceived;
+		
+		/**
+		 * Constructor, starts the stream's rendering thread
+		 * 
+		 * @param ssrc Stream to decode
+		 * @param name Name the stream's metrics are registered under
+		 */
+		public Stream(int ssrc, String name) {
+			this.ssrc = ssrc;
+			this.lastReceived = System.nanoTime();
+			this.received = new ReceptionStats(ssrc);
+			this.imageProcessor = new ImageProcessor();
+			this.imageProcessor.setRetransmit(true);
+			this.imageProcessor.setSsrc(ssrc);
+			this.renderer = this.imageProcessor.enableRenderer(window::repaint);
+			Thread render = new Thread(this.renderer, "rtp-render-" + Integer.toHexString(ssrc));
+			render.setDaemon(true);
+			render.start();
+			this.metricName = Metrics.register(this.imageProcessor.getMetrics(), "Processor", name);
+		}
+		
+		/**
+		 * Stops the rendering thread, the last image decoded can still be painted
+		 */
+		public void close() {
+			this.renderer.close();
+			Metrics.unregister(this.metricName);
+		}
 	}
 }
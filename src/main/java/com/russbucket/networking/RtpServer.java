@@ -2,86 +2,662 @@ package com.russbucket.networking;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
+import javax.management.ObjectName;
+
+import com.russbucket.networking.rtp.BufferPool;
+import com.russbucket.networking.rtp.ForwardingTable;
+import com.russbucket.networking.rtp.Fragmenter;
+import com.russbucket.networking.rtp.KeyframeCache;
+import com.russbucket.networking.rtp.NackMessage;
+import com.russbucket.networking.rtp.PacedRtpSocket;
+import com.russbucket.networking.rtp.PooledBuffer;
+import com.russbucket.networking.rtp.ReceiverReport;
+import com.russbucket.networking.rtp.ReceptionStats;
+import com.russbucket.networking.rtp.RetransmitRing;
 import com.russbucket.networking.rtp.RtpRunnable;
 import com.russbucket.networking.rtp.RtpSocket;
+import com.russbucket.networking.rtp.SenderReport;
+import com.russbucket.networking.rtp.ShardedReceiver;
+import com.russbucket.networking.rtp.StatMessage;
+import com.russbucket.networking.rtp.StreamTable;
+import com.russbucket.networking.rtp.SubscriberQueue;
 import com.russbucket.networking.rtp.TextProcessor;
+import com.russbucket.networking.rtp.metrics.Metrics;
+import com.russbucket.networking.rtp.metrics.ServerMetrics;
 import com.russbucket.networking.rtp.packet.RtpHeader;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 /**
  * Example implementation of a server side implementation of this project
  * 
+ * Receiving is split across shards (one per core when SO_REUSEPORT is available),
+ * which share the same connection mapping.
+ * 
+ * Shards never send themselves. Each client has its own bounded queue drained by a small pool of
+ * carrier threads (or the pacer's queue when pacing), so a client that is slow to send to only
+ * loses its own frames instead of holding up every other client and the receive queue.
+ * 
+ * Media forwarded from each client is kept for a short while, so NACKs from receivers are
+ * answered by the server and only what it no longer has is passed on to the senders. Clients sending
+ * version 2 headers are looked up by the SSRC of their stream, so a NACK naming the stream goes
+ * straight to the one client that sent it.
+ * 
+ * Reception from each client is measured and sent back in answer to its sender reports, while
+ * each client's reports of what it receives are kept with the client, one for each sender's stream.
+ * 
+ * Forwarded media is written once into a pooled direct buffer shared by the keyframe cache and every
+ * client's queue or the pacer, so fanning out does not copy each datagram for each client.
+ * 
+ * The last keyframe from each client is kept (see {@link KeyframeCache}), and replayed to clients as they
+ * join at {@link #REPLAY_RATE} before any live media, so a newcomer sees every other client at once rather
+ * than at their next keyframe. Keyframes are dropped when their client leaves or stops sending.
+ * 
+ * Traffic and processing of every shard, membership, buffer pool use, the queue depth, drops and
+ * failed sends of each client and the loss and jitter each client reports on each stream are exported over
+ * JMX under {@link Metrics#DOMAIN}.
+ * 
  * @author Rusty
  */
-public class RtpServer extends RtpRunnable{
+public class RtpServer {
 
-	private RtpSocket socket;
+	private ShardedReceiver receiver;
+	
+	private ForwardingTable<UserInfo> connectionMapping;
+	
+	/**
+	 * Clients by the SSRC of the stream they send, learned from their media
+	 */
+	private StreamTable<UserInfo> streams;
+	
+	/**
+	 * Forward media datagrams as received, without decoding them into RtpPackets
+	 */
+	private boolean relay;
+	
+	/**
+	 * Spreads forwarding to each client over time, null to forward as soon as received
+	 */
+	private PacedRtpSocket pacer;
+	
+	/**
+	 * Buffers datagrams are held in while queued, shared by the shards and pacer
+	 */
+	private BufferPool buffers;
+	
+	/**
+	 * Threads sending each client's queue, null when pacing
+	 */
+	private ExecutorService carriers;
+	
+	/**
+	 * Thread replaying keyframes to clients as they join and dropping keyframes of clients that stop sending
+	 */
+	private ScheduledExecutorService keyframes;
+	
+	/**
+	 * Names the metrics were registered under, to unregister them on close
+	 */
+	private List<ObjectName> metricNames;
+	
+	/**
+	 * Datagrams that can wait to be forwarded to a client before more are dropped
+	 */
+	public static final int PACE_QUEUE_CAPACITY = 4096;
+	
+	/**
+	 * Datagrams that can wait to be sent to a client before whole frames are dropped
+	 */
+	public static final int SEND_QUEUE_CAPACITY = 1024;
+	
+	/**
+	 * Threads sending the clients' queues
+	 */
+	public static final int SEND_CARRIERS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+	
+	/**
+	 * Datagrams kept from each client to answer NACKs
+	 */
+	public static final int RETRANSMIT_CAPACITY = 4096;
+	
+	/**
+	 * Bytes of media kept from each client to start clients joining on
+	 */
+	public static final long KEYFRAME_CACHE_BYTES = 8 * 1024 * 1024;
+	
+	/**
+	 * Time a client can go without sending media before its keyframe is dropped (milliseconds)
+	 */
+	public static final long KEYFRAME_IDLE = 10_000;
+	
+	/**
+	 * Rate keyframes are replayed to a client joining in bytes per second (100Mbit/s), when not pacing
+	 */
+	public static final long REPLAY_RATE = 100_000_000 / 8;
+	
+	/**
+	 * Time between sending each slice of a replay (milliseconds)
+	 */
+	private static final long REPLAY_TICK = 1;
+	
+	/**
+	 * Port the server listens on by default
+	 */
+	public static final int DEFAULT_PORT = 5073;
+	
+	/**
+	 * Constructor, starting the server in this process
+	 * 
+	 * @param port Port to listen on (0 for any available port, see {@link #getLocalPort()})
+	 * @param relay Forward media without decoding it
+	 * @param shards Amount of shards to receive on
+	 * @param paceRate Bytes per second to forward to each client, 0 to not pace
+	 * @throws SocketException If the sockets could not be opened or binded to the port
+	 */
+	public RtpServer(int port, boolean relay, int shards, long paceRate) throws SocketException {
+		this.relay = relay;
+		this.connectionMapping = new ForwardingTable<>();
+		this.streams = new StreamTable<>();
+		this.buffers = new BufferPool();
+		this.receiver = new ShardedReceiver(port, shards, RtpSocket.SIZE_MAX, (shard)->new Shard());
+		
+		//Every shard is bound to the same port, so any shard's socket can send for all of them
+		if(paceRate > 0) {
+			this.pacer = new PacedRtpSocket(this.receiver.getSocket(0), paceRate, Fragmenter.JUMBO_MTU, PACE_QUEUE_CAPACITY);
+			this.pacer.setBufferPool(this.buffers);
+		}else {
+			this.carriers = SubscriberQueue.newCarrierPool(SEND_CARRIERS);
+		}
+		
+		this.keyframes = Executors.newSingleThreadScheduledExecutor((runnable)->{
+			Thread thread = new Thread(runnable, "rtp-keyframes");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.keyframes.scheduleWithFixedDelay(this::expireKeyframes, KEYFRAME_IDLE, KEYFRAME_IDLE / 10, TimeUnit.MILLISECONDS);
+		
+		this.registerMetrics();
+		this.receiver.start();
+	}
+	
+	private void registerMetrics() {
+		String name = "server-" + this.getLocalPort();
+		this.metricNames = new ArrayList<>();
+		this.metricNames.add(Metrics.register(new ServerMetrics(this::getClientCount, this::getSubscriberQueueDepths, this::getSubscriberDrops, this::getSubscriberSendErrors,
+				()->this.perReport(ReceiverReport::getFractionLost), ()->this.perReport(ReceiverReport::getCumulativeLost), ()->this.perReport(ReceiverReport::getJitter)), "Server", name));
+		this.metricNames.add(Metrics.register(this.buffers.getMetrics(), "Buffers", name));
+		for(int i=0; i<this.receiver.getShardCount(); i++) {
+			this.metricNames.add(Metrics.register(this.receiver.getSocket(i).getMetrics(), "Socket", name + "-shard-" + i));
+			this.metricNames.add(Metrics.register(this.receiver.getShard(i).getMetrics(), "Receiver", name + "-shard-" + i));
+		}
+	}
 	
-	private ConcurrentHashMap<String, UserInfo> connectionMapping;
+	/**
+	 * Gets the port the server is listening on
+	 * 
+	 * @return
+	 */
+	public int getLocalPort() {
+		return this.receiver.getLocalPort();
+	}
+	
+	/**
+	 * Gets the amount of clients connected
+	 * 
+	 * @return
+	 */
+	public int getClientCount() {
+		return this.connectionMapping.size();
+	}
 	
-	private TextProcessor textProcessor;
+	/**
+	 * Gets the amount of datagrams waiting to be sent to each client
+	 * 
+	 * @return Queue depth by client address and port
+	 */
+	public Map<String, Long> getSubscriberQueueDepths() {
+		return this.perSubscriber(UserInfo::getQueueDepth);
+	}
 	
-	private RtpServer() {
+	/**
+	 * Gets the amount of datagrams dropped because each client's queue was full
+	 * 
+	 * @return Dropped datagrams by client address and port
+	 */
+	public Map<String, Long> getSubscriberDrops() {
+		return this.perSubscriber(UserInfo::getDropped);
+	}
+	
+	/**
+	 * Gets the amount of failed sends to each client
+	 * 
+	 * @return Failed sends by client address and port
+	 */
+	public Map<String, Long> getSubscriberSendErrors() {
+		return this.perSubscriber(UserInfo::getSendErrors);
+	}
+	
+	private Map<String, Long> perSubscriber(ToLongFunction<UserInfo> value) {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for(ForwardingTable.Entry<UserInfo> connection : this.connectionMapping.snapshot())
+			values.put(connection.getValue().toString(), value.applyAsLong(connection.getValue()));
+		return values;
+	}
+	
+	/**
+	 * Reads a value from the latest report of every client on every stream
+	 * 
+	 * @param value
+	 * @return Values by client address and port, followed by the SSRC of the stream for version 2 streams
+	 */
+	private Map<String, Long> perReport(ToLongFunction<ReceiverReport> value) {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for(ForwardingTable.Entry<UserInfo> connection : this.connectionMapping.snapshot()) {
+			UserInfo user = connection.getValue();
+			user.reports.forEach((report)->{
+				String name = report.getSsrc() == 0 ? user.toString() : user + " " + Integer.toHexString(report.getSsrc());
+				values.put(name, value.applyAsLong(report));
+			});
+		}
+		return values;
+	}
+	
+	/**
+	 * Drops the keyframes of clients that have stopped sending
+	 */
+	private void expireKeyframes() {
+		long now = System.nanoTime();
+		for(ForwardingTable.Entry<UserInfo> connection : this.connectionMapping.snapshot())
+			connection.getValue().getKeyframes().expire(now, KEYFRAME_IDLE * 1_000_000);
+	}
+	
+	/**
+	 * Adds a client joining, starting it on the last keyframe of every other client.
+	 * 
+	 * The client is added to the connection mapping with live media to it held back before the keyframes are
+	 * gathered, so anything forwarded meanwhile is either part of a keyframe or held to follow them. When pacing
+	 * the keyframes are queued on the pacer ahead of what was held, otherwise the client's queue stays paused
+	 * while they are sent at {@link #REPLAY_RATE}.
+	 * 
+	 * A client previously at the same address is closed before the client is added to the pacer, as closing it
+	 * removes the address from the pacer.
+	 * 
+	 * @param user Client joining
+	 */
+	private void join(UserInfo user) {
+		if(this.pacer != null)
+			user.hold();
+		else
+			user.getQueue().pause();
+		UserInfo previous = this.connectionMapping.put(user.getTarget(), user);
+		if(previous != null)
+			previous.close();
+		if(this.pacer != null)
+			this.pacer.add(user.getTarget());
+		
+		List<PooledBuffer> datagrams = new ArrayList<>();
+		for(ForwardingTable.Entry<UserInfo> connection : this.connectionMapping.snapshot()) {
+			if(!connection.getTarget().equals(user.getTarget()))
+				datagrams.addAll(connection.getValue().getKeyframes().snapshot());
+		}
+		
+		if(this.pacer != null) {
+			for(PooledBuffer datagram : datagrams) {
+				this.pacer.send(datagram, user.getTarget());
+				datagram.release();
+			}
+			user.unhold();
+		}else if(datagrams.isEmpty()) {
+			user.getQueue().resume();
+		}else {
+			this.keyframes.execute(new Replay(user, datagrams));
+		}
+	}
+	
+	/**
+	 * Stops receiving and forwarding
+	 */
+	public void close() {
+		this.keyframes.shutdownNow();
+		if(this.pacer != null)
+			this.pacer.close();
+		else
+			this.carriers.shutdownNow();
+		this.receiver.close();
+		for(ForwardingTable.Entry<UserInfo> connection : this.connectionMapping.snapshot())
+			connection.getValue().close();
+		for(ObjectName name : this.metricNames)
+			Metrics.unregister(name);
+	}
+	
+	public static void main(String[] args) {
+		boolean relay = false;
+		int shards = 1;
+		long paceRate = 0;
+		for(int i=0; i<args.length; i++) {
+			if(args[i].equals("--relay"))
+				relay = true;
+			else if(args[i].equals("--shards") && i+1 < args.length)
+				shards = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--pace") && i+1 < args.length)
+				paceRate = Long.parseLong(args[++i]) * 1_000_000 / 8;
+		}
 		try {
-			this.socket = new RtpSocket(5073);
+			new RtpServer(DEFAULT_PORT, relay, shards, paceRate);
 		}catch(SocketException e) {
 			System.out.println("Socket could not be opened/binded to the port");
-			this.closeWithError(e);
+			e.printStackTrace();
+			System.exit(1);
 		}
+	}
+	
+	/**
+	 * Receives and forwards the packets arriving on one shard's socket.
+	 * 
+	 * Every sender is always received by the same shard, so the text processor is kept per shard.
+	 * 
+	 * @author Rusty
+	 */
+	class Shard extends RtpRunnable{
+		private TextProcessor textProcessor;
 		
-		this.connectionMapping = new ConcurrentHashMap<>(0);
-		this.textProcessor = new TextProcessor();
+		public Shard() {
+			this.textProcessor = new TextProcessor();
+			if(relay)
+				this.enableDirectReceive();
+		}
 		
-		this.setSocket(socket);
-		this.setBufferSize(RtpSocket.SIZE_MAX);
+		/**
+		 * Relay path, only the first header byte is read to tell STAT from media.
+		 * 
+		 * Media is copied out of the receive buffer once into a pooled buffer, which is queued to every recipient.
+		 * Datagrams of an unknown type are counted as invalid and dropped before being copied.
+		 */
+		@Override
+		public void process(RtpPacketView view) {
+			if(view.getType().equals(RtpHeader.PayloadType.STAT)) {
+				this.process(view.toPacket());
+				return;
+			}
+			if(view.getType().equals(RtpHeader.PayloadType.INVALID)) {
+				this.getMetrics().invalid();
+				return;
+			}
+			
+			InetSocketAddress sender = (InetSocketAddress)view.getSenderAddress();
+			long senderKey = ForwardingTable.key(sender.getAddress(), sender.getPort());
+			ByteBuffer datagram = view.getDatagram();
+			UserInfo user = connectionMapping.get(sender.getAddress(), sender.getPort());
+			if(user != null) {
+				user.setStream(view.getSsrc());
+				user.getSent().add(datagram);
+				user.getReceived().received(view.getType(), view.getFrameNumber(), view.getSequenceLength(), view.getLength(), view.getTimestamp(), System.nanoTime());
+			}
+			PooledBuffer copy = buffers.copy(datagram);
+			if(user != null)
+				user.getKeyframes().add(copy);
+			for(ForwardingTable.Entry<UserInfo> connection : connectionMapping.snapshot()) {
+				if(connection.matches(senderKey, sender.getAddress()))
+					continue;
+				this.send(copy, connection.getValue());
+			}
+			copy.release();
+		}
 		
-		new Thread(this).start();
+		@Override
+		public void process(RtpPacket packet) {
+			InetAddress senderAddress = packet.getHeader().getSenderAddress();
+			int senderPort = packet.getHeader().getSenderPort();
+			
+			if(packet.getHeader().getType().equals(RtpHeader.PayloadType.STAT) && StatMessage.isBinary(packet.getPayload())) {
+				this.control(packet.getPayload(), senderAddress, senderPort);
+			}else if(packet.getHeader().getType().equals(RtpHeader.PayloadType.STAT)){
+				//Add or remove connections from mapping
+				String text = this.textProcessor.decode(packet);
+				if("JOIN".equals(text)) {
+					join(new UserInfo(senderAddress, senderPort));
+					System.out.println("joined");
+				}else if("LEAVE".equals(text)) {
+					UserInfo user = connectionMapping.remove(senderAddress, senderPort);
+					if(user != null)
+						user.close();
+					System.out.println("left");
+				}else if("KEYFRAME".equals(text)) {
+					//Pass keyframe requests on to the senders
+					this.forward(packet, senderAddress, senderPort);
+				}
+			}else {
+				//Forward data to other clients, encoded once into a buffer shared by the keyframe cache and every client
+				RtpHeader header = packet.getHeader();
+				PooledBuffer datagram = this.encode(packet);
+				UserInfo user = connectionMapping.get(senderAddress, senderPort);
+				if(user != null) {
+					user.setStream(header.getSsrc());
+					user.getSent().add(packet);
+					user.getReceived().received(header.getType(), header.getFrameNumber(), header.getSequenceLength(), datagram.getBuffer().remaining(), header.getTimestamp(), System.nanoTime());
+					user.getKeyframes().add(datagram);
+				}
+				this.forward(datagram, senderAddress, senderPort);
+				datagram.release();
+			}
+		}
+		
+		/**
+		 * Handles binary control messages
+		 * 
+		 * @param payload
+		 * @param senderAddress
+		 * @param senderPort
+		 */
+		private void control(byte[] payload, InetAddress senderAddress, int senderPort) {
+			int kind = StatMessage.getKind(payload);
+			if(kind == StatMessage.NACK || kind == StatMessage.STREAM_NACK) {
+				this.retransmit(NackMessage.decode(payload), senderAddress, senderPort);
+				return;
+			}
+			
+			UserInfo user = connectionMapping.get(senderAddress, senderPort);
+			if(user == null)
+				return;
+			
+			if(kind == StatMessage.SENDER_REPORT) {
+				//Answer with how the client's stream is arriving, which also gives it the round trip time
+				SenderReport senderReport = SenderReport.decode(payload);
+				if(senderReport == null)
+					return;
+				long now = System.nanoTime();
+				user.getReceived().senderReport(senderReport, now);
+				RtpPacket report = user.getReceived().report(now).toPacket();
+				this.send(ByteBuffer.wrap(report.getPacketAsBytes()), user);
+			}else if(ReceiverReport.isReport(payload)) {
+				ReceiverReport report = ReceiverReport.decode(payload);
+				if(report == null)
+					return;
+				user.setReport(report);
+			}
+		}
+		
+		/**
+		 * Answers a NACK from what other clients have sent, passing on anything no longer kept to the senders.
+		 * 
+		 * A NACK naming its stream is answered from the one client sending that stream. Otherwise the fragments
+		 * are not tied to a sender, so every other client's datagrams are searched in turn.
+		 * 
+		 * Only clients that have joined are answered.
+		 * 
+		 * @param nack
+		 * @param senderAddress Address of the client asking
+		 * @param senderPort Port of the client asking
+		 */
+		private void retransmit(NackMessage nack, InetAddress senderAddress, int senderPort) {
+			UserInfo requester = connectionMapping.get(senderAddress, senderPort);
+			if(nack == null || requester == null)
+				return;
+			
+			UserInfo owner = nack.getSsrc() != 0 ? streams.get(nack.getSsrc()) : null;
+			//The owner may have left or rejoined since the stream was learned
+			if(owner != null && owner != requester && connectionMapping.get(owner.getAddress(), owner.getPort()) == owner) {
+				nack = owner.getSent().get(nack, (datagram)->this.send(datagram, requester));
+				if(!nack.isEmpty())
+					this.send(ByteBuffer.wrap(nack.toPacket().getPacketAsBytes()), owner);
+				return;
+			}
+			
+			long senderKey = ForwardingTable.key(senderAddress, senderPort);
+			for(ForwardingTable.Entry<UserInfo> connection : connectionMapping.snapshot()) {
+				if(nack.isEmpty())
+					return;
+				if(connection.matches(senderKey, senderAddress))
+					continue;
+				nack = connection.getValue().getSent().get(nack, (datagram)->this.send(datagram, requester));
+			}
+			
+			if(!nack.isEmpty())
+				this.forward(nack.toPacket(), senderAddress, senderPort);
+		}
+		
+		/**
+		 * Queues a pooled datagram for a client
+		 * 
+		 * @param datagram Datagram which is not changed afterwards, retained by the client's queue or the pacer
+		 * @param user
+		 */
+		private void send(PooledBuffer datagram, UserInfo user) {
+			if(pacer != null)
+				user.pace(datagram);
+			else
+				user.getQueue().offer(datagram);
+		}
+		
+		/**
+		 * Queues a datagram for a client
+		 * 
+		 * @param datagram Datagram which is not changed afterwards, as it is not copied unless pacing
+		 * @param user
+		 */
+		private void send(ByteBuffer datagram, UserInfo user) {
+			if(pacer != null)
+				user.pace(datagram);
+			else
+				user.getQueue().offer(datagram);
+		}
+		
+		/**
+		 * Forwards a packet to every client apart from the sender
+		 * 
+		 * @param packet
+		 * @param senderAddress
+		 * @param senderPort
+		 */
+		private void forward(RtpPacket packet, InetAddress senderAddress, int senderPort) {
+			PooledBuffer datagram = this.encode(packet);
+			this.forward(datagram, senderAddress, senderPort);
+			datagram.release();
+		}
+		
+		/**
+		 * Forwards a pooled datagram to every client apart from the sender, each retaining the same buffer
+		 * 
+		 * @param datagram Datagram which is not changed afterwards
+		 * @param senderAddress
+		 * @param senderPort
+		 */
+		private void forward(PooledBuffer datagram, InetAddress senderAddress, int senderPort) {
+			long senderKey = ForwardingTable.key(senderAddress, senderPort);
+			for(ForwardingTable.Entry<UserInfo> connection : connectionMapping.snapshot()) {
+				if(connection.matches(senderKey, senderAddress))
+					continue;
+				this.send(datagram, connection.getValue());
+			}
+		}
+		
+		/**
+		 * Encodes a packet into a pooled buffer
+		 * 
+		 * @param packet
+		 * @return Buffer holding the datagram, with a single reference
+		 */
+		private PooledBuffer encode(RtpPacket packet) {
+			PooledBuffer datagram = buffers.acquire(packet.getHeader().getSize() + packet.getPayload().length);
+			packet.writeTo(datagram.getBuffer());
+			datagram.getBuffer().flip();
+			return datagram;
+		}
 	}
 	
-	@Override
-	public void process(RtpPacket packet) {
-		InetAddress senderAddress = packet.getHeader().getSenderAddress();
-		int senderPort = packet.getHeader().getSenderPort();
+	/**
+	 * Sends keyframes to a client that has just joined, a slice every {@link RtpServer#REPLAY_TICK} at
+	 * {@link RtpServer#REPLAY_RATE}, then lets its queue send the live media held meanwhile
+	 * 
+	 * @author Rusty
+	 */
+	class Replay implements Runnable {
+		private UserInfo user;
+		private List<PooledBuffer> datagrams;
+		private int next;
 		
-		if(packet.getHeader().getType().equals(RtpHeader.PayloadType.STAT)){
-			//Add or remove connections from mapping
-			String text = this.textProcessor.decode(packet);
-			if(text.equals("JOIN")) {
-				UserInfo user = new UserInfo(senderAddress, senderPort);
-				connectionMapping.put(user.toString(), user);
-				System.out.println("joined");
-			}else if(text.equals("LEAVE")) {
-				connectionMapping.remove(new UserInfo(senderAddress, senderPort).toString());
-				System.out.println("left");
+		/**
+		 * Bytes that can be sent, topped up at the replay rate
+		 */
+		private double tokens;
+		private long refilled;
+		
+		public Replay(UserInfo user, List<PooledBuffer> datagrams) {
+			this.user = user;
+			this.datagrams = datagrams;
+			this.refilled = System.nanoTime();
+		}
+		
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			this.tokens = Math.min(REPLAY_RATE * REPLAY_TICK / 1000.0, this.tokens + (now - this.refilled) * REPLAY_RATE / 1e9);
+			this.refilled = now;
+			
+			RtpSocket socket = receiver.getSocket(0);
+			while(this.next < this.datagrams.size() && this.tokens > 0 && !this.user.getQueue().isClosed()) {
+				PooledBuffer datagram = this.datagrams.get(this.next++);
+				ByteBuffer buffer = datagram.getBuffer().duplicate();
+				this.tokens -= buffer.remaining();
+				try {
+					socket.send(buffer, this.user.getTarget());
+				}catch(IOException e) {
+					if(socket.isClosed())
+						this.user.getQueue().close();
+				}finally {
+					datagram.release();
+				}
 			}
-		}else {
-			//Forward data to other clients
-			for(Map.Entry<String, UserInfo> connection : this.connectionMapping.entrySet()) {
-				if(connection.getKey().equals(senderAddress.getHostAddress() + ":" + senderPort))
-					continue;
+			
+			if(this.next < this.datagrams.size() && !this.user.getQueue().isClosed()) {
 				try {
-					this.socket.send(packet, connection.getValue().getAddress(), connection.getValue().getPort());
-				} catch (IOException e) {
-					e.printStackTrace();
+					keyframes.schedule(this, REPLAY_TICK, TimeUnit.MILLISECONDS);
+					return;
+				}catch(RejectedExecutionException e) {
+					//Server has closed
 				}
 			}
+			
+			while(this.next < this.datagrams.size())
+				this.datagrams.get(this.next++).release();
+			this.user.getQueue().resume();
 		}
 	}
 	
-	private void closeWithError(Exception e) {
-		e.printStackTrace();
-		this.socket.close();
-		System.exit(1);
-	}
-	
-	public static void main(String[] args) {
-		new RtpServer();
-	}
-	
 	/**
 	 * Custom class for managing user connections (even from the same system)
 	 * 
@@ -90,10 +666,46 @@ public class RtpServer extends RtpRunnable{
 	public class UserInfo {
 		private InetAddress address;
 		private int port;
+		private InetSocketAddress target;
+		/**
+		 * Media recently forwarded from this user
+		 */
+		private RetransmitRing sent;
+		/**
+		 * How this user's media is arriving at the server
+		 */
+		private ReceptionStats received;
+		/**
+		 * Latest reports from this user of how media is arriving at it, by the SSRC of the stream reported on
+		 */
+		private StreamTable<ReceiverReport> reports;
+		/**
+		 * Datagrams waiting to be sent to this user, null when pacing
+		 */
+		private SubscriberQueue queue;
+		/**
+		 * Last keyframe from this user, for users joining after
+		 */
+		private KeyframeCache keyframes;
+		/**
+		 * SSRC of the stream this user sends, 0 until media with a version 2 header arrives
+		 */
+		private volatile int ssrc;
+		/**
+		 * Media held back while keyframes are queued on the pacer ahead of it, null when not held
+		 */
+		private volatile List<PooledBuffer> held;
 		
 		public UserInfo(InetAddress address, int port) {
 			this.address = address;
 			this.port = port;
+			this.target = new InetSocketAddress(address, port);
+			this.sent = new RetransmitRing(RETRANSMIT_CAPACITY);
+			this.received = new ReceptionStats();
+			this.reports = new StreamTable<>();
+			this.keyframes = new KeyframeCache(KEYFRAME_CACHE_BYTES);
+			if(carriers != null)
+				this.queue = new SubscriberQueue(this.target, receiver.getSocket(0), SEND_QUEUE_CAPACITY, carriers);
 		}
 		
 		public InetAddress getAddress() {
@@ -104,6 +716,160 @@ public class RtpServer extends RtpRunnable{
 			return port;
 		}
 		
+		public InetSocketAddress getTarget() {
+			return target;
+		}
+		
+		public RetransmitRing getSent() {
+			return sent;
+		}
+		
+		public ReceptionStats getReceived() {
+			return received;
+		}
+		
+		/**
+		 * Gets the latest report from this user on a stream
+		 * 
+		 * @param ssrc Stream reported on, 0 for streams sent with version 1 headers
+		 * @return The report, or null if the user has not reported on the stream
+		 */
+		public ReceiverReport getReport(int ssrc) {
+			return reports.get(ssrc);
+		}
+		
+		/**
+		 * Keeps a report from this user, replacing its last report on the same stream
+		 * 
+		 * @param report
+		 */
+		public void setReport(ReceiverReport report) {
+			this.reports.put(report.getSsrc(), report);
+		}
+		
+		public SubscriberQueue getQueue() {
+			return queue;
+		}
+		
+		public KeyframeCache getKeyframes() {
+			return keyframes;
+		}
+		
+		public int getSsrc() {
+			return ssrc;
+		}
+		
+		/**
+		 * Maps the stream this user sends to the user, once it is seen or if it changes
+		 * 
+		 * @param ssrc SSRC of media from this user, 0 for a version 1 header which is not mapped
+		 */
+		public void setStream(int ssrc) {
+			if(ssrc == 0 || ssrc == this.ssrc)
+				return;
+			synchronized(this) {
+				if(this.ssrc != 0)
+					streams.remove(this.ssrc, this);
+				this.ssrc = ssrc;
+				streams.put(ssrc, this);
+			}
+		}
+		
+		/**
+		 * Holds back media queued with {@link #pace(PooledBuffer)} until {@link #unhold()}
+		 */
+		public synchronized void hold() {
+			this.held = new ArrayList<>();
+		}
+		
+		/**
+		 * Queues a datagram on the pacer for this user, or keeps a copy of it while media is held back
+		 * 
+		 * @param datagram Datagram from its position to its limit (position is not changed)
+		 */
+		public void pace(ByteBuffer datagram) {
+			PooledBuffer copy = buffers.copy(datagram);
+			this.pace(copy);
+			copy.release();
+		}
+		
+		/**
+		 * Queues a pooled datagram on the pacer for this user without copying it, or keeps it while media is held back
+		 * 
+		 * @param datagram Datagram which is not changed afterwards, retained until sent or dropped
+		 */
+		public void pace(PooledBuffer datagram) {
+			if(this.held != null) {
+				synchronized(this) {
+					if(this.held != null) {
+						this.held.add(datagram.retain());
+						return;
+					}
+				}
+			}
+			pacer.send(datagram, this.target);
+		}
+		
+		/**
+		 * Queues the media held back on the pacer, in the order it was held, and stops holding
+		 */
+		public synchronized void unhold() {
+			if(this.held == null)
+				return;
+			for(PooledBuffer datagram : this.held) {
+				pacer.send(datagram, this.target);
+				datagram.release();
+			}
+			this.held = null;
+		}
+		
+		/**
+		 * Gets the amount of datagrams waiting to be sent to this user
+		 * 
+		 * @return
+		 */
+		public long getQueueDepth() {
+			return this.queue != null ? this.queue.getDepth() : pacer.getQueueDepth(this.target);
+		}
+		
+		/**
+		 * Gets the amount of datagrams to this user dropped because its queue was full
+		 * 
+		 * @return
+		 */
+		public long getDropped() {
+			return this.queue != null ? this.queue.getDropped() : pacer.getDropped(this.target);
+		}
+		
+		/**
+		 * Gets the amount of sends to this user that failed
+		 * 
+		 * @return
+		 */
+		public long getSendErrors() {
+			return this.queue != null ? this.queue.getErrors() : pacer.getErrors(this.target);
+		}
+		
+		/**
+		 * Drops anything waiting to be sent to this user, its keyframe and its stream
+		 */
+		public void close() {
+			synchronized(this) {
+				if(this.ssrc != 0)
+					streams.remove(this.ssrc, this);
+				if(this.held != null) {
+					for(PooledBuffer datagram : this.held)
+						datagram.release();
+					this.held = null;
+				}
+			}
+			this.keyframes.clear();
+			if(this.queue != null)
+				this.queue.close();
+			else
+				pacer.remove(this.target);
+		}
+		
 		public String toString() {
 			return this.address.getHostAddress() + ":" + this.port;
 		}
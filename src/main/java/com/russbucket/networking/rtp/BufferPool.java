@@ -0,0 +1,164 @@
+package com.russbucket.networking.rtp;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.russbucket.networking.rtp.metrics.BufferPoolMetrics;
+
+/**
+ * Pool of direct buffers in power of two size classes, so datagrams on the forwarding and sending paths
+ * are held off the heap in buffers that are reused instead of being allocated and collected for every datagram.
+ * 
+ * Buffers are reference counted (see {@link PooledBuffer}) and return to the pool when the last reference is
+ * released. Each size class keeps a bounded amount of free buffers, anything beyond that is left to be freed
+ * by the collector, as are buffers larger than {@link #MAX_SIZE}.
+ * 
+ * With leak detection on (or the {@value #LEAK_DETECTION_PROPERTY} system property set to true), where each
+ * buffer was acquired is recorded, and buffers that become unreachable without being released are counted and
+ * their acquisition printed. This costs a stack trace per buffer so is only meant for debugging.
+ * 
+ * @author Rusty
+ */
+public class BufferPool {
+	
+	/**
+	 * Size of the smallest buffers
+	 */
+	public static final int MIN_SIZE = 256;
+	/**
+	 * Size of the largest buffers pooled, enough for any datagram up to {@link RtpSocket#SIZE_MAX}
+	 */
+	public static final int MAX_SIZE = 64 * 1024;
+	/**
+	 * Free buffers kept of each size by default
+	 */
+	public static final int DEFAULT_KEPT = 512;
+	/**
+	 * System property turning leak detection on for every pool
+	 */
+	public static final String LEAK_DETECTION_PROPERTY = "com.russbucket.networking.rtp.leakDetection";
+	
+	private ArrayBlockingQueue<PooledBuffer>[] free;
+	private volatile boolean leakDetection;
+	private BufferPoolMetrics metrics;
+	
+	/**
+	 * Constructor, keeping {@link #DEFAULT_KEPT} free buffers of each size
+	 */
+	public BufferPool() {
+		this(DEFAULT_KEPT);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param kept Free buffers kept of each size, which is how many can be reused after a burst
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int kept) {
+		if(kept <= 0)
+			throw new IllegalArgumentException("Kept buffers cannot be 0 or negative");
+		
+		this.free = new ArrayBlockingQueue[Integer.numberOfLeadingZeros(MIN_SIZE - 1) - Integer.numberOfLeadingZeros(MAX_SIZE - 1) + 1];
+		for(int i=0; i<this.free.length; i++)
+			this.free[i] = new ArrayBlockingQueue<>(kept);
+		this.leakDetection = Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+		this.metrics = new BufferPoolMetrics();
+	}
+	
+	/**
+	 * Turns recording where buffers were acquired on or off, for buffers acquired after
+	 * 
+	 * @param leakDetection
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+	
+	/**
+	 * Gets the buffers borrowed and returned, see {@link com.russbucket.networking.rtp.metrics.Metrics} to export it
+	 * 
+	 * @return
+	 */
+	public BufferPoolMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Borrows a buffer
+	 * 
+	 * @param size Bytes needed
+	 * @return Buffer with a single reference, cleared with its limit at the size asked for
+	 */
+	public PooledBuffer acquire(int size) {
+		if(size < 0)
+			throw new IllegalArgumentException("Size cannot be negative");
+		
+		int sizeClass = this.sizeClass(size);
+		PooledBuffer buffer = sizeClass < 0 ? null : this.free[sizeClass].poll();
+		boolean allocated = buffer == null;
+		if(allocated)
+			buffer = new PooledBuffer(this, sizeClass, ByteBuffer.allocateDirect(sizeClass < 0 ? size : MIN_SIZE << sizeClass));
+		
+		buffer.acquired(size, this.leakDetection ? this.metrics : null);
+		this.metrics.acquired(allocated);
+		return buffer;
+	}
+	
+	/**
+	 * Borrows a buffer holding a copy of some data
+	 * 
+	 * @param data Data from its position to its limit (position is not changed)
+	 * @return Buffer with a single reference, with its position and limit around the copy
+	 */
+	public PooledBuffer copy(ByteBuffer data) {
+		PooledBuffer buffer = this.acquire(data.remaining());
+		buffer.getBuffer().put(data.duplicate()).flip();
+		return buffer;
+	}
+	
+	/**
+	 * Takes a buffer back once its last reference is released
+	 * 
+	 * @param buffer
+	 */
+	void recycle(PooledBuffer buffer) {
+		this.metrics.released();
+		if(buffer.getSizeClass() >= 0)
+			this.free[buffer.getSizeClass()].offer(buffer);
+	}
+	
+	/**
+	 * Gets the smallest size class a size fits in
+	 * 
+	 * @param size
+	 * @return Index of the size class, or -1 if larger than every size class
+	 */
+	private int sizeClass(int size) {
+		if(size <= MIN_SIZE)
+			return 0;
+		
+		int sizeClass = Integer.numberOfLeadingZeros(MIN_SIZE - 1) - Integer.numberOfLeadingZeros(size - 1);
+		return sizeClass < this.free.length ? sizeClass : -1;
+	}
+	
+	/**
+	 * Reports a buffer if it is unreachable before being released
+	 * 
+	 * @param buffer
+	 * @param leak Action run once the buffer is unreachable
+	 */
+	static void track(PooledBuffer buffer, PooledBuffer.Leak leak) {
+		LeakCleaner.CLEANER.register(buffer, leak);
+	}
+	
+	/**
+	 * Holds the cleaner, so its thread is only started once leak detection is used
+	 * 
+	 * @author Rusty
+	 */
+	private static class LeakCleaner {
+		private static final Cleaner CLEANER = Cleaner.create();
+	}
+}
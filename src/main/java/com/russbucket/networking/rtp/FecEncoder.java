@@ -0,0 +1,185 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Creates forward error correction (repair) packets for the fragments of a frame, so a receiver can
+ * rebuild lost fragments without waiting for a retransmit.
+ *
+ * The fragments are split into groups of a fixed size and repair packets are created for each group.
+ * In XOR mode each group gets a single parity packet, which can rebuild any one lost fragment of the
+ * group. In Reed-Solomon mode each group gets the configured amount of repair packets, built from a
+ * Cauchy matrix over GF(256), and any combination of lost fragments up to that amount can be rebuilt.
+ *
+ * Repair packets use {@link RtpHeader.PayloadType#FEC} and the frame number of the fragments they
+ * protect. Their payload starts with a {@link #HEADER_SIZE} byte header describing the group, followed
+ * by parity the size of a full fragment, so the fragments should leave room for this header within the
+ * MTU (see {@link ImageProcessor#setFec(FecEncoder)}).
+ *
+ * Repair payload header:
+ * Protected payload type (8 bits)
+ * Mode (8 bits)
+ * First sequence number of the group (16 bits)
+ * Fragments in the group (8 bits)
+ * Repair packets for the group (8 bits)
+ * Index of this repair packet in the group (8 bits)
+ * Sequence length of the frame (16 bits)
+ * Length of the frame's last fragment (16 bits)
+ *
+ * @author Rusty
+ */
+public class FecEncoder {
+	
+	public enum Mode {
+		XOR, REED_SOLOMON
+	}
+	
+	public static final int HEADER_SIZE = 11;
+	
+	static final int PROTECTED_TYPE = 0;
+	static final int MODE = 1;
+	static final int GROUP_START = 2;
+	static final int GROUP_SIZE = 4;
+	static final int REPAIR_COUNT = 5;
+	static final int REPAIR_INDEX = 6;
+	static final int SEQUENCE_LENGTH = 7;
+	static final int LAST_LENGTH = 9;
+	
+	private Mode mode;
+	private int groupSize;
+	private int repairCount;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param mode
+	 * @param groupSize Fragments protected by each group of repair packets
+	 * @param repairCount Repair packets for each group (1 for XOR)
+	 */
+	public FecEncoder(Mode mode, int groupSize, int repairCount) {
+		if(groupSize <= 0 || groupSize > 0xFF)
+			throw new IllegalArgumentException("Group size must be between 1 and 255");
+		else if(repairCount <= 0 || repairCount > 0xFF)
+			throw new IllegalArgumentException("Repair count must be between 1 and 255");
+		else if(mode == Mode.XOR && repairCount != 1)
+			throw new IllegalArgumentException("XOR can only create a single repair packet per group");
+		else if(groupSize + repairCount > 256)
+			throw new IllegalArgumentException("Group size and repair count cannot add up to more than 256");
+		
+		this.mode = mode;
+		this.groupSize = groupSize;
+		this.repairCount = repairCount;
+	}
+	
+	/**
+	 * Single XOR parity packet for every group of fragments
+	 *
+	 * @param groupSize
+	 * @return
+	 */
+	public static FecEncoder xor(int groupSize) {
+		return new FecEncoder(Mode.XOR, groupSize, 1);
+	}
+	
+	/**
+	 * Reed-Solomon repair packets for every group of fragments
+	 *
+	 * @param groupSize
+	 * @param repairCount
+	 * @return
+	 */
+	public static FecEncoder reedSolomon(int groupSize, int repairCount) {
+		return new FecEncoder(Mode.REED_SOLOMON, groupSize, repairCount);
+	}
+	
+	public Mode getMode() {
+		return this.mode;
+	}
+	
+	public int getGroupSize() {
+		return this.groupSize;
+	}
+	
+	public int getRepairCount() {
+		return this.repairCount;
+	}
+	
+	/**
+	 * Gets the extra bandwidth used by repair packets
+	 *
+	 * @return Repair packets sent per fragment
+	 */
+	public double getOverhead() {
+		return (double)this.repairCount / this.groupSize;
+	}
+	
+	/**
+	 * Creates the repair packets for a frame
+	 *
+	 * @param fragments Every fragment of a single frame, in sequence order and all the same size apart from the last
+	 * @return Repair packets to send after the fragments
+	 */
+	public List<RtpPacket> protect(List<RtpPacket> fragments) {
+		List<RtpPacket> repairs = new ArrayList<>();
+		if(fragments.isEmpty())
+			return repairs;
+		
+		RtpHeader first = fragments.get(0).getHeader();
+		int sequenceLength = fragments.size();
+		int shardSize = fragments.get(0).getPayload().length;
+		int lastLength = fragments.get(sequenceLength - 1).getPayload().length;
+		
+		int groups = (sequenceLength + this.groupSize - 1) / this.groupSize;
+		int total = groups * this.repairCount;
+		for(int group=0; group<groups; group++) {
+			int groupStart = group * this.groupSize;
+			int size = Math.min(this.groupSize, sequenceLength - groupStart);
+			
+			for(int index=0; index<this.repairCount; index++) {
+				byte[] payload = new byte[HEADER_SIZE + shardSize];
+				ByteBuffer header = ByteBuffer.wrap(payload);
+				header.put(first.getType().toByte());
+				header.put((byte)this.mode.ordinal());
+				header.putShort((short)groupStart);
+				header.put((byte)size);
+				header.put((byte)this.repairCount);
+				header.put((byte)index);
+				header.putShort((short)sequenceLength);
+				header.putShort((short)lastLength);
+				
+				//Shorter fragments are treated as padded with zeros
+				for(int i=0; i<size; i++) {
+					byte[] shard = fragments.get(groupStart + i).getPayload();
+					GaloisField.multiplyAdd(coefficient(this.mode.ordinal(), this.repairCount, index, i), shard, 0, payload, HEADER_SIZE, shard.length);
+				}
+				
+				repairs.add(new RtpPacket(payload, first.fragment(RtpHeader.PayloadType.FEC, group * this.repairCount + index, total)));
+			}
+		}
+		
+		return repairs;
+	}
+	
+	/**
+	 * Gets the coefficient of a fragment in a repair packet.
+	 *
+	 * Reed-Solomon uses the Cauchy matrix 1 / (x + y) with x the repair index and y the repair count plus
+	 * the fragment index, every square sub matrix of which can be inverted.
+	 *
+	 * @param mode Ordinal of the {@link Mode}
+	 * @param repairCount Repair packets in the group
+	 * @param repairIndex
+	 * @param fragmentIndex Index of the fragment within the group
+	 * @return
+	 */
+	static int coefficient(int mode, int repairCount, int repairIndex, int fragmentIndex) {
+		if(mode == Mode.XOR.ordinal())
+			return 1;
+		return GaloisField.inverse(repairIndex ^ (repairCount + fragmentIndex));
+	}
+}
@@ -0,0 +1,175 @@
+package com.russbucket.networking.rtp;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Membership table for fanning packets out to many endpoints.
+ * 
+ * Endpoints are keyed by a packed primitive (IPv4 address and port in a long) and hold a pre-built
+ * target address, so a lookup never builds strings or addresses. The table is published as an
+ * immutable array snapshot on every change, letting the per-packet path scan it without locking.
+ * 
+ * IPv6 endpoints cannot be packed into a long, so their key is derived from the address hash and
+ * a match is confirmed against the full address.
+ * 
+ * @author Rusty
+ * 
+ * @param <T> Per endpoint data held alongside the target
+ */
+public class ForwardingTable<T> {
+	
+	private static final long IPV6_FLAG = 1L << 63;
+	
+	@SuppressWarnings("rawtypes")
+	private static final Entry[] EMPTY = new Entry[0];
+	
+	@SuppressWarnings("unchecked")
+	private volatile Entry<T>[] entries = EMPTY;
+	
+	/**
+	 * Packs an address and port into a key
+	 * 
+	 * @param address
+	 * @param port
+	 * @return Key for the endpoint
+	 */
+	public static long key(InetAddress address, int port) {
+		//The hash code of an Inet4Address is its address, which avoids the array copy of getAddress()
+		if(address instanceof Inet4Address)
+			return ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+		
+		return IPV6_FLAG | ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+	}
+	
+	/**
+	 * Adds or replaces an endpoint
+	 * 
+	 * @param target Address of the endpoint
+	 * @param value Data for the endpoint
+	 * @return The previous data for the endpoint, or null if it was not present
+	 */
+	public synchronized T put(InetSocketAddress target, T value) {
+		Entry<T> entry = new Entry<T>(key(target.getAddress(), target.getPort()), target, value);
+		Entry<T>[] current = this.entries;
+		
+		int index = this.indexOf(current, entry.key, target.getAddress());
+		if(index >= 0) {
+			Entry<T>[] updated = current.clone();
+			updated[index] = entry;
+			this.entries = updated;
+			return current[index].value;
+		}
+		
+		Entry<T>[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = entry;
+		this.entries = updated;
+		return null;
+	}
+	
+	/**
+	 * Removes an endpoint
+	 * 
+	 * @param address
+	 * @param port
+	 * @return The data for the endpoint, or null if it was not present
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public synchronized T remove(InetAddress address, int port) {
+		Entry<T>[] current = this.entries;
+		int index = this.indexOf(current, key(address, port), address);
+		if(index < 0)
+			return null;
+		
+		Entry<T>[] updated = current.length == 1 ? EMPTY : new Entry[current.length - 1];
+		System.arraycopy(current, 0, updated, 0, index);
+		System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+		this.entries = updated;
+		return current[index].value;
+	}
+	
+	/**
+	 * Finds the data for an endpoint
+	 * 
+	 * @param address
+	 * @param port
+	 * @return The data for the endpoint, or null if it is not present
+	 */
+	public T get(InetAddress address, int port) {
+		Entry<T>[] current = this.entries;
+		int index = this.indexOf(current, key(address, port), address);
+		return index < 0 ? null : current[index].value;
+	}
+	
+	/**
+	 * Gets the current entries. The array must not be modified.
+	 * 
+	 * @return Immutable snapshot of the table
+	 */
+	public Entry<T>[] snapshot() {
+		return this.entries;
+	}
+	
+	/**
+	 * Gets the amount of endpoints in the table
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return this.entries.length;
+	}
+	
+	private int indexOf(Entry<T>[] current, long key, InetAddress address) {
+		for(int i=0; i<current.length; i++) {
+			if(current[i].matches(key, address))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Single endpoint in the table
+	 * 
+	 * @author Rusty
+	 * 
+	 * @param <T> Per endpoint data
+	 */
+	public static final class Entry<T> {
+		private final long key;
+		private final InetSocketAddress target;
+		private final T value;
+		
+		private Entry(long key, InetSocketAddress target, T value) {
+			this.key = key;
+			this.target = target;
+			this.value = value;
+		}
+		
+		/**
+		 * Checks whether this entry is the endpoint with the given key
+		 * 
+		 * @param key Key from {@link ForwardingTable#key(InetAddress, int)}
+		 * @param address Address the key was built from, only compared for IPv6 endpoints
+		 * @return True if the entry is for the endpoint
+		 */
+		public boolean matches(long key, InetAddress address) {
+			if(this.key != key)
+				return false;
+			return (key & IPV6_FLAG) == 0 || this.target.getAddress().equals(address);
+		}
+		
+		public long getKey() {
+			return this.key;
+		}
+		
+		public InetSocketAddress getTarget() {
+			return this.target;
+		}
+		
+		public T getValue() {
+			return this.value;
+		}
+	}
+}
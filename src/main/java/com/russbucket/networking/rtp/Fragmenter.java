@@ -0,0 +1,177 @@
+package com.russbucket.networking.rtp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Splits encoded data into packets that fit in a single datagram of the MTU.
+ * 
+ * Keeping every datagram within the path MTU avoids IP fragmentation, where losing any one of the
+ * IP fragments loses the whole datagram. Every fragment is exactly the payload size apart from the
+ * last, which holds the remainder, so a fragment's offset is its sequence number multiplied by the
+ * payload size and does not need to be sent (see {@link FrameReassembler}).
+ * 
+ * Fragments carry version 1 headers, or version 2 headers naming the stream when given an SSRC.
+ * 
+ * @author Rusty
+ */
+public class Fragmenter {
+	
+	/**
+	 * Datagram size that fits within the MTU of almost any path, including tunnels and Wi-Fi
+	 */
+	public static final int DEFAULT_MTU = 1200;
+	/**
+	 * Datagram size for a standard 1500 byte Ethernet MTU, with room for IP options and tunnels
+	 */
+	public static final int ETHERNET_MTU = 1400;
+	/**
+	 * Datagram size for a 9000 byte jumbo frame (less the IPv4 and UDP headers)
+	 */
+	public static final int JUMBO_MTU = 8972;
+	
+	/**
+	 * Most fragments a frame can be split into, limited by the 16 bit sequence number
+	 */
+	public static final int MAX_FRAGMENTS = 0xFFFF;
+	
+	private int mtu;
+	private int payloadSize;
+	/**
+	 * Stream id sent in version 2 headers, 0 to send version 1 headers
+	 */
+	private int ssrc;
+	
+	/**
+	 * Constructor using {@link #DEFAULT_MTU}
+	 */
+	public Fragmenter() {
+		this(DEFAULT_MTU);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param mtu Largest datagram to send in bytes, including the RTP header
+	 */
+	public Fragmenter(int mtu) {
+		this(mtu, 0);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param mtu Largest datagram to send in bytes, including the RTP header
+	 * @param ssrc Id of the stream to send version 2 headers for, or 0 to send version 1 headers
+	 */
+	public Fragmenter(int mtu, int ssrc) {
+		int headerSize = ssrc == 0 ? RtpHeader.SIZE : RtpHeader.SIZE_V2;
+		if(mtu <= headerSize)
+			throw new IllegalArgumentException("MTU must be larger than the header");
+		else if(mtu > RtpSocket.SIZE_MAX)
+			throw new IllegalArgumentException("MTU cannot be larger than " + RtpSocket.SIZE_MAX);
+		
+		this.mtu = mtu;
+		this.ssrc = ssrc;
+		this.payloadSize = mtu - headerSize;
+	}
+	
+	public int getMtu() {
+		return this.mtu;
+	}
+	
+	/**
+	 * Gets the id of the stream sent
+	 * 
+	 * @return SSRC, or 0 if version 1 headers are sent
+	 */
+	public int getSsrc() {
+		return this.ssrc;
+	}
+	
+	/**
+	 * Gets the size of every fragment apart from the last
+	 * 
+	 * @return
+	 */
+	public int getPayloadSize() {
+		return this.payloadSize;
+	}
+	
+	/**
+	 * Gets the amount of fragments data will be split into
+	 * 
+	 * @param length Length of the data in bytes
+	 * @return At least 1, so empty data is still sent
+	 */
+	public int count(int length) {
+		return Math.max(1, (length + this.payloadSize - 1) / this.payloadSize);
+	}
+	
+	/**
+	 * Splits data into packets
+	 * 
+	 * @param data
+	 * @param length Length of the data in the array
+	 * @param type
+	 * @param frameNumber
+	 * @return Packets in sequence order
+	 * @throws IOException If the data needs more than {@link #MAX_FRAGMENTS} fragments
+	 */
+	public ArrayList<RtpPacket> fragment(byte[] data, int length, RtpHeader.PayloadType type, int frameNumber) throws IOException {
+		ArrayList<RtpPacket> packets = new ArrayList<>(this.count(length));
+		this.fragment(packets, data, 0, length, type, frameNumber);
+		return packets;
+	}
+	
+	/**
+	 * Splits data into packets
+	 * 
+	 * @param packets List to add the packets to, in sequence order
+	 * @param data
+	 * @param offset Offset of the data in the array
+	 * @param length Length of the data
+	 * @param type
+	 * @param frameNumber
+	 * @throws IOException If the data needs more than {@link #MAX_FRAGMENTS} fragments
+	 */
+	public void fragment(List<RtpPacket> packets, byte[] data, int offset, int length, RtpHeader.PayloadType type, int frameNumber) throws IOException {
+		this.fragment(packets, data, offset, length, type, frameNumber, RtpHeader.timestamp(System.nanoTime()));
+	}
+	
+	/**
+	 * Splits data into packets.
+	 * 
+	 * Each fragment's payload is its own array rather than a pooled buffer, as RtpPacket exposes its payload as
+	 * a byte[] and the packets are handed to callers of {@link IProcessor#encode}, which keep them for as long as
+	 * they like with no point at which they could be released. They are written into pooled buffers when queued
+	 * on a {@link PacedRtpSocket}.
+	 * 
+	 * @param packets List to add the packets to, in sequence order
+	 * @param data
+	 * @param offset Offset of the data in the array
+	 * @param length Length of the data
+	 * @param type
+	 * @param frameNumber
+	 * @param timestamp Capture time of the frame, only sent in version 2 headers
+	 * @throws IOException If the data needs more than {@link #MAX_FRAGMENTS} fragments
+	 */
+	public void fragment(List<RtpPacket> packets, byte[] data, int offset, int length, RtpHeader.PayloadType type, int frameNumber, int timestamp) throws IOException {
+		int amount = this.count(length);
+		if(amount > MAX_FRAGMENTS)
+			throw new IOException("Data of " + length + " bytes needs more than " + MAX_FRAGMENTS + " fragments");
+		
+		RtpHeader frame = this.ssrc == 0 ? new RtpHeader(type, frameNumber, 0, amount)
+				: new RtpHeader(type, this.ssrc, frameNumber, 0, amount, timestamp);
+		for(int sequenceNumber=0; sequenceNumber<amount; sequenceNumber++) {
+			int start = offset + sequenceNumber * this.payloadSize;
+			int end = Math.min(offset + length, start + this.payloadSize);
+			packets.add(new RtpPacket(Arrays.copyOfRange(data, start, end), frame.fragment(type, sequenceNumber, amount)));
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.russbucket.networking.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed rate scheduler for producing frames.
+ * 
+ * Deadlines are kept on a fixed grid from the start time using System.nanoTime, so time spent
+ * working or oversleeping does not drift the rate. If the caller falls more than a frame behind,
+ * the missed frames are skipped rather than run back to back.
+ * 
+ * @author Rusty
+ */
+public class FrameClock {
+	
+	private long period;
+	private long next;
+	private long skipped;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param fps Frames per second
+	 */
+	public FrameClock(double fps) {
+		if(fps <= 0)
+			throw new IllegalArgumentException("Frame rate cannot be 0 or negative");
+		
+		this.period = (long)(1_000_000_000L / fps);
+		this.start();
+	}
+	
+	/**
+	 * Starts the grid from now
+	 */
+	public void start() {
+		this.next = System.nanoTime();
+	}
+	
+	/**
+	 * Waits until the next frame is due
+	 * 
+	 * @return Amount of frames that were skipped because the caller was behind
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public int await() throws InterruptedException {
+		this.next += this.period;
+		
+		long late = System.nanoTime() - this.next;
+		int missed = 0;
+		if(late > this.period) {
+			missed = (int)(late / this.period);
+			this.next += missed * this.period;
+			this.skipped += missed;
+		}
+		
+		long wait;
+		while((wait = this.next - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, wait);
+			if(Thread.interrupted())
+				throw new InterruptedException();
+		}
+		
+		return missed;
+	}
+	
+	/**
+	 * Gets the time between frames
+	 * 
+	 * @return Period in nanoseconds
+	 */
+	public long getPeriod() {
+		return this.period;
+	}
+	
+	/**
+	 * Gets the total amount of frames skipped
+	 * 
+	 * @return
+	 */
+	public long getSkipped() {
+		return this.skipped;
+	}
+}
@@ -0,0 +1,688 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.russbucket.networking.rtp.metrics.ProcessorMetrics;
+
+/**
+ * Rebuilds frames that have been split across multiple packets.
+ * 
+ * Frames are held in a fixed ring of slots indexed by frame number. Each slot keeps a bitmap of the
+ * fragments received and writes every fragment straight into one reusable contiguous buffer at its
+ * offset, so completing a frame needs no copying or searching and memory use is bounded by the
+ * amount of slots and the maximum frame size.
+ * 
+ * Every fragment apart from the last is expected to be the same size (the last may be shorter),
+ * which lets the offset be worked out from the sequence number.
+ * 
+ * Incomplete frames are evicted when they time out, when a newer frame needs their slot or, by
+ * default, when a newer frame completes. Frame numbers are compared with wraparound in mind.
+ * 
+ * Repair packets from a {@link FecEncoder} are kept with the frame's fragments, and lost fragments are
+ * rebuilt as soon as a group has as many repair packets as missing fragments.
+ * 
+ * This class is not thread safe, a reassembler should be used by a single receiving thread.
+ * 
+ * @author Rusty
+ */
+public class FrameReassembler {
+	
+	private Slot[] slots;
+	private int maxFrameSize;
+	private long timeoutNanos;
+	private boolean evictOlderOnComplete;
+	private boolean dropCompleted;
+	
+	/**
+	 * Counts completed and evicted frames, null when not counted
+	 */
+	private ProcessorMetrics metrics;
+	
+	/**
+	 * Mask of the bits used by frame numbers, they wrap around past this value
+	 */
+	private static final int FRAME_MASK = 0xFFFF;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param slotCount Amount of frames that can be reassembled at once
+	 * @param maxFrameSize Largest frame (in bytes) that can be reassembled, larger frames are dropped
+	 * @param timeoutMillis Time after the first fragment arrives before an incomplete frame is evicted
+	 */
+	public FrameReassembler(int slotCount, int maxFrameSize, long timeoutMillis) {
+		if(slotCount <= 0)
+			throw new IllegalArgumentException("Slot count cannot be 0 or negative");
+		
+		this.slots = new Slot[slotCount];
+		for(int i=0; i<slotCount; i++)
+			this.slots[i] = new Slot();
+		this.maxFrameSize = maxFrameSize;
+		this.timeoutNanos = timeoutMillis * 1_000_000L;
+		this.evictOlderOnComplete = true;
+		this.dropCompleted = true;
+	}
+	
+	/**
+	 * Sets whether completing a frame evicts all older incomplete frames (enabled by default).
+	 * 
+	 * When disabled, older frames are kept until they time out or their slot is needed,
+	 * and may complete after a newer frame.
+	 * 
+	 * @param evictOlderOnComplete
+	 */
+	public void setEvictOlderOnComplete(boolean evictOlderOnComplete) {
+		this.evictOlderOnComplete = evictOlderOnComplete;
+	}
+	
+	/**
+	 * Sets whether fragments of a frame that has already completed are dropped (enabled by default).
+	 * 
+	 * Disable when frame numbers are reused for unrelated frames, such as text messages, so a completed
+	 * frame does not block a later one with the same number.
+	 * 
+	 * @param dropCompleted
+	 */
+	public void setDropCompleted(boolean dropCompleted) {
+		this.dropCompleted = dropCompleted;
+	}
+	
+	/**
+	 * Sets where completed and evicted frames are counted
+	 * 
+	 * @param metrics Metrics of the processor using this reassembler, null to not count
+	 */
+	public void setMetrics(ProcessorMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Add a fragment held in an array
+	 * 
+	 * @param frameNumber
+	 * @param sequenceNumber
+	 * @param sequenceLength
+	 * @param data Array holding the fragment
+	 * @param offset Offset of the fragment in the array
+	 * @param length Length of the fragment
+	 * @return The completed frame (valid until the next fragment is added) or null
+	 */
+	public Frame add(int frameNumber, int sequenceNumber, int sequenceLength, byte[] data, int offset, int length) {
+		Slot slot = this.prepare(frameNumber, sequenceNumber, sequenceLength, length);
+		if(slot == null)
+			return null;
+		
+		System.arraycopy(data, offset, slot.target(sequenceNumber), slot.targetOffset(sequenceNumber), length);
+		return this.received(slot, sequenceNumber);
+	}
+	
+	/**
+	 * Add a fragment held in a buffer
+	 * 
+	 * @param frameNumber
+	 * @param sequenceNumber
+	 * @param sequenceLength
+	 * @param payload Fragment from its position to its limit (position is not changed)
+	 * @return The completed frame (valid until the next fragment is added) or null
+	 */
+	public Frame add(int frameNumber, int sequenceNumber, int sequenceLength, ByteBuffer payload) {
+		int length = payload.remaining();
+		Slot slot = this.prepare(frameNumber, sequenceNumber, sequenceLength, length);
+		if(slot == null)
+			return null;
+		
+		payload.get(payload.position(), slot.target(sequenceNumber), slot.targetOffset(sequenceNumber), length);
+		return this.received(slot, sequenceNumber);
+	}
+	
+	/**
+	 * Add a repair packet held in an array
+	 * 
+	 * @param frameNumber
+	 * @param data Array holding the repair payload (see {@link FecEncoder})
+	 * @param offset Offset of the payload in the array
+	 * @param length Length of the payload
+	 * @return The completed frame if lost fragments could be rebuilt (valid until the next fragment is added) or null
+	 */
+	public Frame addRepair(int frameNumber, byte[] data, int offset, int length) {
+		return this.addRepair(frameNumber, ByteBuffer.wrap(data, offset, length));
+	}
+	
+	/**
+	 * Add a repair packet held in a buffer
+	 * 
+	 * @param frameNumber
+	 * @param payload Repair payload from its position to its limit (see {@link FecEncoder}, position is not changed)
+	 * @return The completed frame if lost fragments could be rebuilt (valid until the next fragment is added) or null
+	 */
+	public Frame addRepair(int frameNumber, ByteBuffer payload) {
+		if(payload.remaining() <= FecEncoder.HEADER_SIZE)
+			return null;
+		
+		int position = payload.position();
+		int sequenceLength = payload.getShort(position + FecEncoder.SEQUENCE_LENGTH) & 0xFFFF;
+		int groupStart = payload.getShort(position + FecEncoder.GROUP_START) & 0xFFFF;
+		int groupSize = payload.get(position + FecEncoder.GROUP_SIZE) & 0xFF;
+		if(sequenceLength <= 0 || groupSize == 0 || groupStart + groupSize > sequenceLength)
+			return null;
+		
+		long now = System.nanoTime();
+		this.expire(now);
+		
+		Slot slot = this.claim(frameNumber, sequenceLength, now);
+		if(slot == null || !slot.storeRepair(payload, this.maxFrameSize))
+			return null;
+		
+		return this.recover(slot, groupStart);
+	}
+	
+	/**
+	 * Adds the missing fragments of incomplete frames to a NACK, once no fragment of the frame has arrived for
+	 * the delay. Each frame is requested again at most every delay, up to a limit. Collecting stops once the
+	 * NACK is full.
+	 * 
+	 * @param delayMillis Time without fragments before a frame's missing fragments are requested
+	 * @param maxRequests Times a frame's missing fragments are requested before waiting for it to time out
+	 * @param nack Message to add the missing ranges to
+	 */
+	public void collectMissing(long delayMillis, int maxRequests, NackMessage nack) {
+		long now = System.nanoTime();
+		this.expire(now);
+		
+		long delay = delayMillis * 1_000_000L;
+		for(Slot slot : this.slots) {
+			if(!slot.active || slot.requests >= maxRequests || now - slot.lastArrival < delay
+					|| (slot.requests > 0 && now - slot.lastRequest < delay))
+				continue;
+			
+			slot.requests++;
+			slot.lastRequest = now;
+			
+			int runStart = -1;
+			for(int sequence=0; sequence<=slot.sequenceLength; sequence++) {
+				boolean missing = sequence < slot.sequenceLength && !slot.has(sequence);
+				if(missing && runStart < 0) {
+					runStart = sequence;
+				}else if(!missing && runStart >= 0) {
+					//The rest of this frame is requested next time
+					if(!nack.add(slot.frameNumber, runStart, sequence - runStart))
+						return;
+					runStart = -1;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether frame a is newer than frame b, taking wraparound into account
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public boolean isNewer(int a, int b) {
+		int difference = (a - b) & FRAME_MASK;
+		return difference != 0 && difference <= (FRAME_MASK >>> 1);
+	}
+	
+	/**
+	 * Finds the slot for the fragment and makes room for it
+	 * 
+	 * @return The slot to write the fragment into, or null if the fragment should be dropped
+	 */
+	private Slot prepare(int frameNumber, int sequenceNumber, int sequenceLength, int length) {
+		if(sequenceLength <= 0 || sequenceNumber < 0 || sequenceNumber >= sequenceLength)
+			return null;
+		
+		long now = System.nanoTime();
+		this.expire(now);
+		
+		Slot slot = this.claim(frameNumber, sequenceLength, now);
+		if(slot == null || slot.has(sequenceNumber))
+			return null;
+		
+		if(!slot.fit(sequenceNumber, length, this.maxFrameSize)) {
+			this.evict(slot);
+			return null;
+		}
+		
+		return slot;
+	}
+	
+	/**
+	 * Finds the slot for a frame, starting it if needed.
+	 * 
+	 * Fragments of a frame that has already completed are dropped, as duplicates and late repair packets are
+	 * normal with FEC and retransmits and must not start the frame again, unless frame numbers are reused.
+	 * 
+	 * @return The slot or null if the frame is too old or already completed
+	 */
+	private Slot claim(int frameNumber, int sequenceLength, long now) {
+		Slot slot = this.slots[(frameNumber & FRAME_MASK) % this.slots.length];
+		if(slot.active && slot.frameNumber != frameNumber) {
+			if(!this.isNewer(frameNumber, slot.frameNumber))
+				return null;
+			this.evict(slot);
+		}
+		
+		if(!slot.active) {
+			if(this.dropCompleted && slot.completed && slot.frameNumber == frameNumber)
+				return null;
+			slot.start(frameNumber, sequenceLength, now);
+		}else if(slot.sequenceLength != sequenceLength) {
+			return null;
+		}
+		
+		slot.lastArrival = now;
+		return slot;
+	}
+	
+	private Frame received(Slot slot, int sequenceNumber) {
+		slot.mark(sequenceNumber);
+		if(slot.received < slot.sequenceLength)
+			return this.recover(slot, sequenceNumber);
+		
+		return this.finish(slot);
+	}
+	
+	/**
+	 * Rebuilds the lost fragments of a group if enough repair packets have arrived
+	 * 
+	 * @param slot
+	 * @param sequenceNumber Any sequence number in the group
+	 * @return The completed frame or null
+	 */
+	private Frame recover(Slot slot, int sequenceNumber) {
+		//Find the group from any of its repair packets
+		byte[] first = null;
+		for(int i=0; i<slot.repairCount && first == null; i++) {
+			byte[] repair = slot.repairs[i];
+			int start = ((repair[FecEncoder.GROUP_START] & 0xFF) << 8) | (repair[FecEncoder.GROUP_START + 1] & 0xFF);
+			if(sequenceNumber >= start && sequenceNumber < start + (repair[FecEncoder.GROUP_SIZE] & 0xFF))
+				first = repair;
+		}
+		if(first == null)
+			return null;
+		
+		int mode = first[FecEncoder.MODE];
+		int groupStart = ((first[FecEncoder.GROUP_START] & 0xFF) << 8) | (first[FecEncoder.GROUP_START + 1] & 0xFF);
+		int groupSize = first[FecEncoder.GROUP_SIZE] & 0xFF;
+		int repairCount = first[FecEncoder.REPAIR_COUNT] & 0xFF;
+		int lastLength = ((first[FecEncoder.LAST_LENGTH] & 0xFF) << 8) | (first[FecEncoder.LAST_LENGTH + 1] & 0xFF);
+		
+		int[] missing = new int[groupSize];
+		int missingCount = 0;
+		for(int i=groupStart; i<groupStart+groupSize; i++) {
+			if(!slot.has(i))
+				missing[missingCount++] = i;
+		}
+		if(missingCount == 0)
+			return null;
+		
+		//Pick a distinct repair packet of the group for every missing fragment
+		byte[][] chosen = new byte[missingCount][];
+		int[] chosenLengths = new int[missingCount];
+		int chosenCount = 0;
+		for(int i=0; i<slot.repairCount && chosenCount < missingCount; i++) {
+			byte[] repair = slot.repairs[i];
+			int index = repair[FecEncoder.REPAIR_INDEX] & 0xFF;
+			if(repair[FecEncoder.GROUP_START] != first[FecEncoder.GROUP_START]
+					|| repair[FecEncoder.GROUP_START + 1] != first[FecEncoder.GROUP_START + 1]
+					|| this.contains(chosen, chosenCount, index))
+				continue;
+			chosenLengths[chosenCount] = slot.repairLengths[i];
+			chosen[chosenCount++] = repair;
+		}
+		if(chosenCount < missingCount)
+			return null;
+		
+		int shardSize = chosenLengths[0] - FecEncoder.HEADER_SIZE;
+		if(!slot.prepareRecovery(shardSize, lastLength, this.maxFrameSize)) {
+			this.evict(slot);
+			return null;
+		}
+		
+		//Move the known fragments over to the parity side, leaving a square system for the missing ones
+		int[][] matrix = new int[missingCount][missingCount];
+		byte[][] shards = new byte[missingCount][shardSize];
+		for(int row=0; row<missingCount; row++) {
+			int index = chosen[row][FecEncoder.REPAIR_INDEX] & 0xFF;
+			System.arraycopy(chosen[row], FecEncoder.HEADER_SIZE, shards[row], 0, Math.min(shardSize, chosenLengths[row] - FecEncoder.HEADER_SIZE));
+			
+			int column = 0;
+			for(int i=0; i<groupSize; i++) {
+				int coefficient = FecEncoder.coefficient(mode, repairCount, index, i);
+				int sequence = groupStart + i;
+				if(column < missingCount && missing[column] == sequence)
+					matrix[row][column++] = coefficient;
+				else
+					GaloisField.multiplyAdd(coefficient, slot.data, slot.offset(sequence), shards[row], 0, slot.size(sequence));
+			}
+		}
+		
+		//Gauss-Jordan elimination
+		for(int column=0; column<missingCount; column++) {
+			int pivot = column;
+			while(pivot < missingCount && matrix[pivot][column] == 0)
+				pivot++;
+			if(pivot == missingCount)
+				return null;
+			
+			int[] swapRow = matrix[pivot];
+			matrix[pivot] = matrix[column];
+			matrix[column] = swapRow;
+			byte[] swapShard = shards[pivot];
+			shards[pivot] = shards[column];
+			shards[column] = swapShard;
+			
+			int scale = GaloisField.inverse(matrix[column][column]);
+			for(int i=0; i<missingCount; i++)
+				matrix[column][i] = GaloisField.multiply(matrix[column][i], scale);
+			GaloisField.multiply(scale, shards[column], 0, shardSize);
+			
+			for(int row=0; row<missingCount; row++) {
+				int factor = matrix[row][column];
+				if(row == column || factor == 0)
+					continue;
+				for(int i=0; i<missingCount; i++)
+					matrix[row][i] ^= GaloisField.multiply(factor, matrix[column][i]);
+				GaloisField.multiplyAdd(factor, shards[column], 0, shards[row], 0, shardSize);
+			}
+		}
+		
+		for(int i=0; i<missingCount; i++) {
+			int sequence = missing[i];
+			if(slot.isLast(sequence))
+				slot.lastSize = lastLength;
+			System.arraycopy(shards[i], 0, slot.data, slot.offset(sequence), slot.size(sequence));
+			slot.mark(sequence);
+		}
+		
+		if(slot.received < slot.sequenceLength)
+			return null;
+		return this.finish(slot);
+	}
+	
+	private boolean contains(byte[][] repairs, int count, int index) {
+		for(int i=0; i<count; i++) {
+			if((repairs[i][FecEncoder.REPAIR_INDEX] & 0xFF) == index)
+				return true;
+		}
+		return false;
+	}
+	
+	private Frame finish(Slot slot) {
+		slot.complete();
+		if(this.metrics != null)
+			this.metrics.completed();
+		
+		if(this.evictOlderOnComplete) {
+			for(Slot other : this.slots) {
+				if(other.active && this.isNewer(slot.frameNumber, other.frameNumber))
+					this.evict(other);
+			}
+		}
+		
+		return slot;
+	}
+	
+	private void expire(long now) {
+		for(Slot slot : this.slots) {
+			if(slot.active && now - slot.started > this.timeoutNanos)
+				this.evict(slot);
+		}
+	}
+	
+	/**
+	 * Drops an incomplete frame
+	 * 
+	 * @param slot
+	 */
+	private void evict(Slot slot) {
+		slot.active = false;
+		if(this.metrics != null)
+			this.metrics.evicted();
+	}
+	
+	/**
+	 * A completed frame
+	 * 
+	 * @author Rusty
+	 */
+	public interface Frame {
+		
+		public int getFrameNumber();
+		
+		/**
+		 * Gets the array holding the frame, starting at index 0
+		 * 
+		 * @return
+		 */
+		public byte[] getData();
+		
+		/**
+		 * Gets the length of the frame in the array
+		 * 
+		 * @return
+		 */
+		public int getLength();
+	}
+	
+	/**
+	 * Storage for a single frame, reused for later frames
+	 * 
+	 * @author Rusty
+	 */
+	private static class Slot implements Frame {
+		private boolean active;
+		private int frameNumber;
+		private int sequenceLength;
+		private int received;
+		private long started;
+		private long lastArrival;
+		/**
+		 * Times missing fragments have been requested, and when they were last requested
+		 */
+		private int requests;
+		private long lastRequest;
+		
+		private long[] bitmap = new long[1];
+		private byte[] data = new byte[0];
+		private int length;
+		
+		/**
+		 * Size of every fragment apart from the last, 0 until one has been received
+		 */
+		private int fragmentSize;
+		/**
+		 * Size of the last fragment, -1 until it has been received
+		 */
+		private int lastSize;
+		/**
+		 * Holds the last fragment if it arrives before the fragment size is known
+		 */
+		private byte[] tail = new byte[0];
+		/**
+		 * Whether the frame completed, so late fragments and repair packets for it can be dropped
+		 */
+		private boolean completed;
+		
+		/**
+		 * Repair packets received for the frame (header and parity)
+		 */
+		private byte[][] repairs = new byte[0][];
+		private int[] repairLengths = new int[0];
+		private int repairCount;
+		private long repairBytes;
+		
+		private void start(int frameNumber, int sequenceLength, long now) {
+			this.active = true;
+			this.frameNumber = frameNumber;
+			this.sequenceLength = sequenceLength;
+			this.received = 0;
+			this.started = now;
+			this.fragmentSize = 0;
+			this.lastSize = -1;
+			this.length = 0;
+			this.completed = false;
+			this.requests = 0;
+			this.repairCount = 0;
+			this.repairBytes = 0;
+			
+			int words = (sequenceLength + 63) >>> 6;
+			if(this.bitmap.length < words)
+				this.bitmap = new long[words];
+			else
+				Arrays.fill(this.bitmap, 0, words, 0L);
+		}
+		
+		private boolean has(int sequenceNumber) {
+			return (this.bitmap[sequenceNumber >>> 6] & (1L << sequenceNumber)) != 0;
+		}
+		
+		private void mark(int sequenceNumber) {
+			this.bitmap[sequenceNumber >>> 6] |= 1L << sequenceNumber;
+			this.received++;
+		}
+		
+		private boolean isLast(int sequenceNumber) {
+			return sequenceNumber == this.sequenceLength - 1;
+		}
+		
+		/**
+		 * Checks the fragment is consistent with the frame and makes sure there is room for it
+		 * 
+		 * @return False if the frame can no longer be reassembled
+		 */
+		private boolean fit(int sequenceNumber, int length, int maxFrameSize) {
+			if(this.isLast(sequenceNumber)) {
+				if(this.sequenceLength == 1) {
+					if(!this.ensureCapacity(length, maxFrameSize))
+						return false;
+				}else if(this.fragmentSize != 0) {
+					if(length > this.fragmentSize)
+						return false;
+				}else if(this.tail.length < length) {
+					this.tail = new byte[length];
+				}
+				this.lastSize = length;
+				return true;
+			}
+			
+			if(this.fragmentSize == 0)
+				return this.setFragmentSize(length, maxFrameSize);
+			
+			return length == this.fragmentSize;
+		}
+		
+		private boolean setFragmentSize(int size, int maxFrameSize) {
+			if(size == 0 || (this.lastSize > size))
+				return false;
+			if(!this.ensureCapacity((long)this.sequenceLength * size, maxFrameSize))
+				return false;
+			this.fragmentSize = size;
+			
+			//Move the last fragment into place now its offset is known
+			if(this.lastSize >= 0)
+				System.arraycopy(this.tail, 0, this.data, (this.sequenceLength - 1) * this.fragmentSize, this.lastSize);
+			return true;
+		}
+		
+		/**
+		 * Keeps a copy of a repair packet
+		 * 
+		 * @return False if the repair packets would take more than the largest frame
+		 */
+		private boolean storeRepair(ByteBuffer payload, int maxFrameSize) {
+			int length = payload.remaining();
+			if(this.repairBytes + length > maxFrameSize)
+				return false;
+			
+			if(this.repairCount == this.repairs.length) {
+				int capacity = Math.max(4, this.repairs.length * 2);
+				this.repairs = Arrays.copyOf(this.repairs, capacity);
+				this.repairLengths = Arrays.copyOf(this.repairLengths, capacity);
+			}
+			if(this.repairs[this.repairCount] == null || this.repairs[this.repairCount].length < length)
+				this.repairs[this.repairCount] = new byte[length];
+			
+			payload.get(payload.position(), this.repairs[this.repairCount], 0, length);
+			this.repairLengths[this.repairCount++] = length;
+			this.repairBytes += length;
+			return true;
+		}
+		
+		/**
+		 * Makes sure the fragment size and last fragment agree with the repair packets, and there is room to rebuild into
+		 * 
+		 * @return False if the frame can no longer be reassembled
+		 */
+		private boolean prepareRecovery(int shardSize, int lastLength, int maxFrameSize) {
+			if(shardSize <= 0 || lastLength > shardSize || (this.lastSize >= 0 && this.lastSize != lastLength))
+				return false;
+			
+			if(this.sequenceLength == 1)
+				return shardSize == lastLength && this.ensureCapacity(lastLength, maxFrameSize);
+			else if(this.fragmentSize == 0)
+				return this.setFragmentSize(shardSize, maxFrameSize);
+			
+			return this.fragmentSize == shardSize;
+		}
+		
+		/**
+		 * Gets the offset of a fragment in the frame, once the fragment size is known
+		 */
+		private int offset(int sequenceNumber) {
+			return sequenceNumber * this.fragmentSize;
+		}
+		
+		/**
+		 * Gets the size of a received fragment
+		 */
+		private int size(int sequenceNumber) {
+			return this.isLast(sequenceNumber) ? this.lastSize : this.fragmentSize;
+		}
+		
+		private boolean ensureCapacity(long size, int maxFrameSize) {
+			if(size > maxFrameSize)
+				return false;
+			if(this.data.length < size)
+				this.data = new byte[(int)size];
+			return true;
+		}
+		
+		private byte[] target(int sequenceNumber) {
+			if(this.isLast(sequenceNumber) && this.fragmentSize == 0 && this.sequenceLength > 1)
+				return this.tail;
+			return this.data;
+		}
+		
+		private int targetOffset(int sequenceNumber) {
+			if(this.isLast(sequenceNumber) && this.fragmentSize == 0)
+				return 0;
+			return sequenceNumber * this.fragmentSize;
+		}
+		
+		private void complete() {
+			this.active = false;
+			this.completed = true;
+			this.length = (this.sequenceLength - 1) * this.fragmentSize + this.lastSize;
+		}
+		
+		@Override
+		public int getFrameNumber() {
+			return this.frameNumber;
+		}
+		
+		@Override
+		public byte[] getData() {
+			return this.data;
+		}
+		
+		@Override
+		public int getLength() {
+			return this.length;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.russbucket.networking.rtp.metrics.ProcessorMetrics;
+
+/**
+ * Decodes completed frames on its own thread, so the thread receiving them never waits on a decode, and hands
+ * the decoded image to whatever paints it.
+ * 
+ * Only the newest complete JPEG image is kept waiting to be decoded, any older one it replaces is dropped without
+ * being decoded. An image is only decoded once the last one has been painted, so no decode is wasted on an image
+ * that is never shown and what is shown is never more than one image behind. Tile messages are deltas, so every
+ * one is composited in order, but the canvas is only copied out to be painted when the painter is ready for it.
+ * 
+ * Three images are passed between the decoding thread and the painter: the one being painted, the one waiting to
+ * be painted and the one being decoded into. Painting swaps the waiting image in atomically, so an image is never
+ * written to while it is painted.
+ * 
+ * @author Rusty
+ */
+public class FrameRenderer implements Runnable {
+	
+	/**
+	 * Tile messages that can wait to be composited, when full the oldest is dropped and the decoder asks for a keyframe
+	 */
+	public static final int TILE_BACKLOG = 64;
+	
+	private JpegCodec jpeg;
+	private TileCodec tiles;
+	private ProcessorMetrics metrics;
+	/**
+	 * Called on the decoding thread once an image is waiting to be painted
+	 */
+	private Runnable onFrame;
+	
+	/**
+	 * Encoded frames handed from the receiving thread, and copies no longer in use
+	 */
+	private AtomicReference<Encoded> latestImage;
+	private ArrayBlockingQueue<Encoded> tileMessages;
+	private ArrayBlockingQueue<Encoded> free;
+	
+	/**
+	 * Image waiting to be painted, and the last image painted once the painter has moved on from it
+	 */
+	private AtomicReference<BufferedImage> ready;
+	private AtomicReference<BufferedImage> spare;
+	/**
+	 * Image being painted, only used by the painter
+	 */
+	private BufferedImage front;
+	/**
+	 * Image to decode into next, only used by the decoding thread
+	 */
+	private BufferedImage back;
+	private BufferedImage canvas;
+	/**
+	 * Whether the canvas has changed since it was last copied out
+	 */
+	private boolean canvasChanged;
+	private boolean canvasShownLast;
+	
+	private volatile Thread worker;
+	private volatile boolean running;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param jpeg Codec to decode JPEG images with
+	 * @param tiles Codec to composite tile messages with, only used by the decoding thread once started
+	 * @param metrics Metrics to count decode time and skipped frames in, may be null
+	 * @param onFrame Called whenever an image is waiting to be painted, such as to schedule a repaint
+	 */
+	public FrameRenderer(JpegCodec jpeg, TileCodec tiles, ProcessorMetrics metrics, Runnable onFrame) {
+		this.jpeg = jpeg;
+		this.tiles = tiles;
+		this.metrics = metrics;
+		this.onFrame = onFrame;
+		this.latestImage = new AtomicReference<>();
+		this.tileMessages = new ArrayBlockingQueue<>(TILE_BACKLOG);
+		this.free = new ArrayBlockingQueue<>(TILE_BACKLOG + 2);
+		this.ready = new AtomicReference<>();
+		this.spare = new AtomicReference<>();
+		this.running = true;
+	}
+	
+	/**
+	 * Hands over a complete JPEG image to decode, replacing any image still waiting to be decoded.
+	 * 
+	 * Only called by a single receiving thread.
+	 * 
+	 * @param frame Completed frame, copied so its slot can be reused straight away
+	 */
+	public void submitImage(FrameReassembler.Frame frame) {
+		Encoded superseded = this.latestImage.getAndSet(this.copy(frame));
+		if(superseded != null) {
+			this.free.offer(superseded);
+			if(this.metrics != null)
+				this.metrics.skipped();
+		}
+		LockSupport.unpark(this.worker);
+	}
+	
+	/**
+	 * Hands over a complete tile message to composite after those already waiting.
+	 * 
+	 * Only called by a single receiving thread.
+	 * 
+	 * @param frame Completed frame, copied so its slot can be reused straight away
+	 */
+	public void submitTiles(FrameReassembler.Frame frame) {
+		Encoded message = this.copy(frame);
+		if(!this.tileMessages.offer(message)) {
+			//The decoder sees the gap and asks for a keyframe
+			Encoded dropped = this.tileMessages.poll();
+			if(dropped != null) {
+				this.free.offer(dropped);
+				if(this.metrics != null)
+					this.metrics.skipped();
+			}
+			this.tileMessages.offer(message);
+		}
+		LockSupport.unpark(this.worker);
+	}
+	
+	private Encoded copy(FrameReassembler.Frame frame) {
+		Encoded encoded = this.free.poll();
+		if(encoded == null)
+			encoded = new Encoded();
+		if(encoded.data.length < frame.getLength())
+			encoded.data = new byte[frame.getLength()];
+		System.arraycopy(frame.getData(), 0, encoded.data, 0, frame.getLength());
+		encoded.length = frame.getLength();
+		encoded.frameNumber = frame.getFrameNumber();
+		return encoded;
+	}
+	
+	/**
+	 * Gets the image to paint, swapping in the newest decoded image if there is one. The image returned is not
+	 * written to until the next call.
+	 * 
+	 * Only called by a single painting thread.
+	 * 
+	 * @return The image, or null if none has been decoded yet
+	 */
+	public BufferedImage acquire() {
+		BufferedImage next = this.ready.getAndSet(null);
+		if(next != null) {
+			if(this.front != null)
+				this.spare.set(this.front);
+			this.front = next;
+			//Ready for another image
+			LockSupport.unpark(this.worker);
+		}
+		return this.front;
+	}
+	
+	@Override
+	public void run() {
+		this.worker = Thread.currentThread();
+		while(this.running) {
+			Encoded message;
+			while((message = this.tileMessages.poll()) != null) {
+				long start = System.nanoTime();
+				BufferedImage composited = this.tiles.decode(message.data, message.length, message.frameNumber);
+				if(this.metrics != null)
+					this.metrics.decoded(System.nanoTime() - start);
+				this.free.offer(message);
+				if(composited != null) {
+					this.canvas = composited;
+					this.canvasChanged = true;
+				}
+			}
+			
+			//Nothing more is decoded until the painter has taken the last image
+			if(this.ready.get() != null) {
+				LockSupport.park(this);
+				continue;
+			}
+			
+			boolean imageWaiting = this.latestImage.get() != null;
+			if(this.canvasChanged && (!imageWaiting || !this.canvasShownLast)) {
+				this.publish(this.copyCanvas());
+				this.canvasChanged = false;
+				this.canvasShownLast = true;
+			}else if(imageWaiting) {
+				Encoded image = this.latestImage.getAndSet(null);
+				BufferedImage decoded = this.decode(image);
+				this.free.offer(image);
+				if(decoded != null) {
+					this.publish(decoded);
+					this.canvasShownLast = false;
+				}
+			}else {
+				LockSupport.park(this);
+			}
+		}
+	}
+	
+	private BufferedImage decode(Encoded image) {
+		long start = System.nanoTime();
+		try {
+			return this.jpeg.read(image.data, 0, image.length, this.back);
+		}catch(IOException e) {
+			return null;
+		}finally {
+			if(this.metrics != null)
+				this.metrics.decoded(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Copies the canvas into the image to decode into, as compositing carries on while it is painted
+	 * 
+	 * @return
+	 */
+	private BufferedImage copyCanvas() {
+		BufferedImage copy = this.back;
+		if(copy == null || copy.getWidth() != this.canvas.getWidth() || copy.getHeight() != this.canvas.getHeight()
+				|| copy.getType() != this.canvas.getType())
+			copy = new BufferedImage(this.canvas.getWidth(), this.canvas.getHeight(), this.canvas.getType());
+		
+		Graphics2D g = copy.createGraphics();
+		try {
+			g.drawImage(this.canvas, 0, 0, null);
+		}finally {
+			g.dispose();
+		}
+		return copy;
+	}
+	
+	private void publish(BufferedImage image) {
+		this.ready.set(image);
+		this.back = this.spare.getAndSet(null);
+		this.onFrame.run();
+	}
+	
+	/**
+	 * Stops the decoding thread once it finishes what it is decoding
+	 */
+	public void close() {
+		this.running = false;
+		LockSupport.unpark(this.worker);
+	}
+	
+	/**
+	 * Copy of a completed frame's data
+	 * 
+	 * @author Rusty
+	 */
+	private static class Encoded {
+		private byte[] data = new byte[0];
+		private int length;
+		private int frameNumber;
+	}
+}
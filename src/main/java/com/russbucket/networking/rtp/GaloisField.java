@@ -0,0 +1,87 @@
+package com.russbucket.networking.rtp;
+
+/**
+ * Arithmetic over GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1 (0x11D), as used by Reed-Solomon codes.
+ * 
+ * Addition and subtraction are both XOR. Multiplication uses a full 256x256 table so the inner loops
+ * over shards are a single lookup per byte.
+ * 
+ * @author Rusty
+ */
+final class GaloisField {
+	
+	private static final int POLYNOMIAL = 0x11D;
+	
+	private static final int[] EXP = new int[512];
+	private static final int[] LOG = new int[256];
+	private static final byte[][] MUL = new byte[256][256];
+	
+	static {
+		int x = 1;
+		for(int i=0; i<255; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= 256)
+				x ^= POLYNOMIAL;
+		}
+		for(int i=255; i<EXP.length; i++)
+			EXP[i] = EXP[i - 255];
+		
+		for(int a=1; a<256; a++) {
+			for(int b=1; b<256; b++)
+				MUL[a][b] = (byte)EXP[LOG[a] + LOG[b]];
+		}
+	}
+	
+	private GaloisField() {}
+	
+	static int multiply(int a, int b) {
+		return MUL[a][b] & 0xFF;
+	}
+	
+	static int inverse(int a) {
+		if(a == 0)
+			throw new ArithmeticException("0 has no inverse");
+		return EXP[255 - LOG[a]];
+	}
+	
+	/**
+	 * Adds a multiple of one shard to another (target += coefficient * source)
+	 * 
+	 * @param coefficient
+	 * @param source
+	 * @param sourceOffset
+	 * @param target
+	 * @param targetOffset
+	 * @param length
+	 */
+	static void multiplyAdd(int coefficient, byte[] source, int sourceOffset, byte[] target, int targetOffset, int length) {
+		if(coefficient == 0)
+			return;
+		
+		if(coefficient == 1) {
+			for(int i=0; i<length; i++)
+				target[targetOffset + i] ^= source[sourceOffset + i];
+			return;
+		}
+		
+		byte[] row = MUL[coefficient];
+		for(int i=0; i<length; i++)
+			target[targetOffset + i] ^= row[source[sourceOffset + i] & 0xFF];
+	}
+	
+	/**
+	 * Multiplies a shard in place
+	 * 
+	 * @param coefficient
+	 * @param target
+	 * @param offset
+	 * @param length
+	 */
+	static void multiply(int coefficient, byte[] target, int offset, int length) {
+		byte[] row = MUL[coefficient];
+		for(int i=0; i<length; i++)
+			target[offset + i] = row[target[offset + i] & 0xFF];
+	}
+}
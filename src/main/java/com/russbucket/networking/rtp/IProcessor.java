@@ -3,7 +3,9 @@ package com.russbucket.networking.rtp;
 import java.io.IOException;
 import java.util.List;
 
+import com.russbucket.networking.rtp.metrics.ProcessorMetrics;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 /**
  * Template processor for encoding and decoding from a type and RtpPackets
@@ -27,6 +29,25 @@ public interface IProcessor<T> {
 	 */
 	public List<RtpPacket> encode(T dataIn, int frameNumber) throws IOException;
 	
+	/**
+	 * Sets how encoded data is split into packets, by default {@link Fragmenter#DEFAULT_MTU} is used.
+	 * 
+	 * Processors that split data their own way ignore this, check {@link #getFragmenter()} to see whether it was used.
+	 * 
+	 * @param fragmenter
+	 */
+	public default void setFragmenter(Fragmenter fragmenter) {
+	}
+	
+	/**
+	 * Gets how encoded data is split into packets
+	 * 
+	 * @return The fragmenter, or null if the processor splits data its own way
+	 */
+	public default Fragmenter getFragmenter() {
+		return null;
+	}
+	
 	/**
 	 * Decodes the RtpPacket into data
 	 * 
@@ -34,4 +55,23 @@ public interface IProcessor<T> {
 	 * @return Data or null (implementation dependent, but null may occur if data is stored in Processor class)
 	 */
 	public T decode(RtpPacket packet);
+	
+	/**
+	 * Decodes a received packet view into data, without requiring an RtpPacket copy
+	 * 
+	 * @param view A single packet that may or may not contain all the necessary data (only valid until the next receive)
+	 * @return Data or null (implementation dependent, but null may occur if data is stored in Processor class)
+	 */
+	public default T decode(RtpPacketView view) {
+		return this.decode(view.toPacket());
+	}
+	
+	/**
+	 * Gets the frames completed and evicted while decoding and the time taken to decode each
+	 * 
+	 * @return Metrics, or null if the processor is not measured
+	 */
+	public default ProcessorMetrics getMetrics() {
+		return null;
+	}
 }
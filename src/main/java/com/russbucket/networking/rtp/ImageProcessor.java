@@ -1,17 +1,17 @@
 package com.russbucket.networking.rtp;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-
-import javax.imageio.ImageIO;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
+import com.russbucket.networking.rtp.metrics.ProcessorMetrics;
 import com.russbucket.networking.rtp.packet.RtpHeader;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 /**
  * Encodes images to RtpPackets and vice versa across multiple packets
@@ -22,112 +22,461 @@ import com.russbucket.networking.rtp.packet.RtpPacket;
  */
 public class ImageProcessor implements IProcessor<BufferedImage>{
 	
-	private ByteArrayOutputStream baos;
+	/**
+	 * Output buffer of each encoding thread, so JPEG encoding can be shared between threads
+	 */
+	private static final ThreadLocal<EncodeBuffer> ENCODE_BUFFER = ThreadLocal.withInitial(EncodeBuffer::new);
+	
 	/**
 	 * Keeps track of all potential image messages
 	 */
-	private ConcurrentSkipListMap<Integer, ImageProcessor.ImageData> potentialImages;
+	private FrameReassembler reassembler;
+	/**
+	 * Codec for whole images and tiles
+	 */
+	private JpegCodec jpeg;
+	/**
+	 * Last JPEG decoded, reused for the next image of the same size
+	 */
+	private BufferedImage decoded;
+	private Fragmenter fragmenter;
+	/**
+	 * Repair packets sent with every frame, null when disabled
+	 */
+	private FecEncoder fec;
+	/**
+	 * Fragments frames leaving room for the repair header, so repair packets fit within the MTU
+	 */
+	private Fragmenter dataFragmenter;
+	
+	/**
+	 * Amount of frames that can be reassembled at once
+	 */
+	public static final int REASSEMBLY_SLOTS = 8;
+	/**
+	 * Largest encoded image that can be reassembled
+	 */
+	public static final int REASSEMBLY_MAX_SIZE = 16 * 1024 * 1024;
+	/**
+	 * Time before an incomplete image is dropped
+	 */
+	public static final long REASSEMBLY_TIMEOUT = 1000;
+	
+	/**
+	 * Tile delta encoding, null when disabled
+	 */
+	private TileCodec tileEncoder;
+	/**
+	 * Tile compositing, always available so any sender's tiles can be shown
+	 */
+	private TileCodec tileDecoder;
+	private FrameReassembler tileReassembler;
+	private ForkJoinPool pool;
+	
+	/**
+	 * Whether missing fragments are requested again instead of dropping the frame
+	 */
+	private boolean retransmit;
+	/**
+	 * Frame number of the last JPEG image shown, so an older frame completing late is not shown after it
+	 */
+	private int lastImageFrame;
+	private boolean hasLastImageFrame;
+	/**
+	 * Decodes completed frames on a thread of its own, null when they are decoded as they complete
+	 */
+	private FrameRenderer renderer;
+	/**
+	 * Stream sent or received, 0 for version 1 headers without one
+	 */
+	private int ssrc;
+	
+	/**
+	 * Frames completed and evicted by both reassemblers, and the time taken to decode them
+	 */
+	private ProcessorMetrics metrics;
+	
+	/**
+	 * Amount of tile messages that can be reassembled at once, several are sent for each image
+	 */
+	public static final int TILE_REASSEMBLY_SLOTS = 32;
+	
+	/**
+	 * Time without fragments before a frame's missing fragments are requested
+	 */
+	public static final long NACK_DELAY = 10;
+	/**
+	 * Times a frame's missing fragments are requested before giving up on it
+	 */
+	public static final int NACK_MAX_REQUESTS = 3;
+	/**
+	 * Later tile messages that may arrive while a missing one is requested again, before a keyframe is needed
+	 */
+	public static final int NACK_LOSS_WAIT = 16;
 	
 	public ImageProcessor() {
-		this.baos = new ByteArrayOutputStream();
-		this.potentialImages = new ConcurrentSkipListMap<Integer, ImageProcessor.ImageData>();
+		this.jpeg = new JpegCodec();
+		this.fragmenter = new Fragmenter();
+		this.dataFragmenter = this.fragmenter;
+		this.reassembler = new FrameReassembler(REASSEMBLY_SLOTS, REASSEMBLY_MAX_SIZE, REASSEMBLY_TIMEOUT);
+		//Messages of the same image may complete out of order, so older ones are kept until they time out
+		this.tileReassembler = new FrameReassembler(TILE_REASSEMBLY_SLOTS, REASSEMBLY_MAX_SIZE, REASSEMBLY_TIMEOUT);
+		this.tileReassembler.setEvictOlderOnComplete(false);
+		this.metrics = new ProcessorMetrics();
+		this.reassembler.setMetrics(this.metrics);
+		this.tileReassembler.setMetrics(this.metrics);
+		this.tileDecoder = new TileCodec(TileCodec.DEFAULT_TILE_SIZE, TileCodec.DEFAULT_KEYFRAME_INTERVAL);
+		this.tileDecoder.setJpegCodec(this.jpeg);
 	}
 	
 	@Override
-	public ArrayList<RtpPacket> encode(BufferedImage image, int frameNumber) throws IOException{
-		baos.reset();
-		ImageIO.write(image, "jpg", baos);
+	public ProcessorMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Gets the JPEG codec, whose quality and chroma subsampling can be changed while encoding
+	 * 
+	 * @return
+	 */
+	public JpegCodec getJpegCodec() {
+		return this.jpeg;
+	}
+	
+	@Override
+	public void setFragmenter(Fragmenter fragmenter) {
+		this.fragmenter = fragmenter;
+		this.setFec(this.fec);
+	}
+	
+	@Override
+	public Fragmenter getFragmenter() {
+		return this.fragmenter;
+	}
+	
+	/**
+	 * Send repair packets with every frame so receivers can rebuild lost fragments without a retransmit
+	 * 
+	 * Fragments are made smaller by the repair header, so repair packets still fit within the MTU.
+	 * Repair packets are always used when received, regardless of this setting.
+	 * 
+	 * @param fec Encoder for the repair packets, or null to disable
+	 */
+	public void setFec(FecEncoder fec) {
+		this.fec = fec;
+		this.dataFragmenter = fec == null ? this.fragmenter : new Fragmenter(this.fragmenter.getMtu() - FecEncoder.HEADER_SIZE, this.fragmenter.getSsrc());
+	}
+	
+	/**
+	 * Sets the stream this processor sends or receives.
+	 * 
+	 * Frames encoded are sent with version 2 headers carrying the SSRC and the time each image was encoded.
+	 * NACKs for frames received name the stream, so they can be routed straight to its sender.
+	 * 
+	 * @param ssrc Id of the stream, random and not 0, or 0 to go back to version 1 headers
+	 */
+	public void setSsrc(int ssrc) {
+		this.ssrc = ssrc;
+		this.setFragmenter(new Fragmenter(this.fragmenter.getMtu(), ssrc));
+	}
+	
+	public int getSsrc() {
+		return this.ssrc;
+	}
+	
+	/**
+	 * Request missing fragments from the sender (see {@link NackMessage}) instead of dropping incomplete frames.
+	 * 
+	 * Incomplete images are kept until they time out so they can still complete after a newer image,
+	 * but an image is never shown after a newer one. Tile messages may arrive out of order, a keyframe
+	 * is only needed once a message has not arrived within {@link #NACK_LOSS_WAIT} later messages.
+	 * 
+	 * @param retransmit
+	 */
+	public void setRetransmit(boolean retransmit) {
+		this.retransmit = retransmit;
+		this.reassembler.setEvictOlderOnComplete(!retransmit);
+		this.tileDecoder.setLossWait(retransmit ? NACK_LOSS_WAIT : 0);
+	}
+	
+	/**
+	 * Creates NACKs for the fragments of incomplete frames that have stopped arriving.
+	 * 
+	 * Should be called regularly (every few milliseconds) while retransmits are enabled.
+	 * 
+	 * @return Packets to send to the sender of the frames, empty if nothing is missing
+	 */
+	public List<RtpPacket> getNacks() {
+		List<RtpPacket> packets = new ArrayList<>();
+		if(!this.retransmit)
+			return packets;
 		
+		this.collectNacks(packets, this.reassembler, RtpHeader.PayloadType.JPEG);
+		this.collectNacks(packets, this.tileReassembler, RtpHeader.PayloadType.TILE);
+		return packets;
+	}
+	
+	private void collectNacks(List<RtpPacket> packets, FrameReassembler reassembler, RtpHeader.PayloadType type) {
+		//A full NACK stops collecting, so keep going with a new one until nothing more is added
+		while(true) {
+			NackMessage nack = new NackMessage(type, this.ssrc);
+			reassembler.collectMissing(NACK_DELAY, NACK_MAX_REQUESTS, nack);
+			if(nack.isEmpty())
+				return;
+			packets.add(nack.toPacket());
+			if(!nack.isFull())
+				return;
+		}
+	}
+	
+	/**
+	 * Encode only the tiles that changed since the previous image, see {@link TileCodec}
+	 * 
+	 * Tiles are always decoded when received, regardless of this setting.
+	 * 
+	 * @param tileSize Width and height of the tiles in pixels
+	 * @param keyframeInterval Amount of frames between keyframes
+	 */
+	public void setTileMode(int tileSize, int keyframeInterval) {
+		this.tileEncoder = new TileCodec(tileSize, keyframeInterval);
+		this.tileEncoder.setPool(this.pool);
+		this.tileEncoder.setJpegCodec(this.jpeg);
+	}
+	
+	/**
+	 * Encode every image in full as horizontal strips that can be decoded on their own,
+	 * so a lost packet only costs one strip
+	 * 
+	 * @param stripHeight Height of the strips in pixels
+	 */
+	public void setStripMode(int stripHeight) {
+		this.tileEncoder = new TileCodec(TileCodec.FULL_WIDTH, stripHeight, 1);
+		this.tileEncoder.setPool(this.pool);
+		this.tileEncoder.setJpegCodec(this.jpeg);
+	}
+	
+	/**
+	 * Encode the strips or rows of tiles in parallel, when tile or strip mode is used
+	 * 
+	 * @param pool Pool to encode on (such as {@link ForkJoinPool#commonPool()}), or null to encode on the calling thread
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		if(this.tileEncoder != null)
+			this.tileEncoder.setPool(pool);
+	}
+	
+	/**
+	 * Decodes completed frames on a thread of their own, so decode returns null instead of the image and the
+	 * thread receiving fragments never waits on a decode. See {@link FrameRenderer}.
+	 * 
+	 * @param onFrame Called on the decoding thread whenever an image is waiting to be painted
+	 * @return The renderer to start on its own thread, which the painter takes images from
+	 */
+	public FrameRenderer enableRenderer(Runnable onFrame) {
+		this.renderer = new FrameRenderer(this.jpeg, this.tileDecoder, this.metrics, onFrame);
+		return this.renderer;
+	}
+	
+	/**
+	 * Makes the next tile encoded frame a keyframe (if tile mode is enabled)
+	 */
+	public void requestKeyframe() {
+		if(this.tileEncoder != null)
+			this.tileEncoder.requestKeyframe();
+	}
+	
+	/**
+	 * Checks whether tiles have been missed and a keyframe should be requested from the sender
+	 * 
+	 * @return True if a keyframe is needed, this is only reported once
+	 */
+	public boolean pollKeyframeNeeded() {
+		return this.tileDecoder.pollKeyframeNeeded();
+	}
+	
+	/**
+	 * Encodes an image into packets. In tile mode the image may take more than one frame number, see
+	 * {@link #encode(BufferedImage, int, List)} for the number to encode the next image with.
+	 */
+	@Override
+	public ArrayList<RtpPacket> encode(BufferedImage image, int frameNumber) throws IOException{
 		ArrayList<RtpPacket> packets = new ArrayList<>();
+		this.encode(image, frameNumber, packets);
+		return packets;
+	}
+	
+	/**
+	 * Encodes an image into packets.
+	 * 
+	 * A JPEG image takes a single frame number. In tile mode every message is numbered separately from the frame
+	 * number given, so each can be reassembled on its own, and the image takes a frame number per message.
+	 * 
+	 * @param image
+	 * @param frameNumber Number of the image's first frame, only the low 16 bits are sent in version 1 headers
+	 * @param packets List to add the packets to
+	 * @return The frame number to encode the next image with
+	 * @throws IOException
+	 */
+	public int encode(BufferedImage image, int frameNumber, List<RtpPacket> packets) throws IOException{
+		return this.encode(image, frameNumber, System.nanoTime(), packets);
+	}
+	
+	/**
+	 * Encodes an image into packets, timestamped with when it was captured rather than when it was encoded, so
+	 * receivers can tell how long after capture it arrived however long it waited to be encoded.
+	 * 
+	 * @param image
+	 * @param frameNumber Number of the image's first frame, only the low 16 bits are sent in version 1 headers
+	 * @param captured When the image was captured, from System.nanoTime
+	 * @param packets List to add the packets to
+	 * @return The frame number to encode the next image with
+	 * @throws IOException
+	 * @see #encode(BufferedImage, int, List)
+	 */
+	public int encode(BufferedImage image, int frameNumber, long captured, List<RtpPacket> packets) throws IOException{
+		int timestamp = RtpHeader.timestamp(captured);
 		
-		int amount = (int) Math.ceil((double)(baos.size())/(double)(RtpSocket.SIZE_MAX));
-		ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-		byte[] buffer;
-		for(int sequenceNumber=0; sequenceNumber<amount; sequenceNumber++) {
-			buffer = new byte[baos.size()/amount];
-			bais.read(buffer);
-			packets.add(new RtpPacket(buffer, RtpHeader.PayloadType.JPEG, frameNumber, sequenceNumber, amount));
+		if(this.tileEncoder != null) {
+			for(byte[] message : this.tileEncoder.encode(image)) {
+				this.fragment(packets, message, message.length, RtpHeader.PayloadType.TILE, frameNumber, timestamp);
+				frameNumber++;
+			}
+			return frameNumber;
 		}
 		
-		return packets;
+		EncodeBuffer baos = ENCODE_BUFFER.get();
+		baos.reset();
+		this.jpeg.write(image, baos);
+		//Fragments are copied straight out of the stream's own array, rather than a copy of the whole image
+		this.fragment(packets, baos.getData(), baos.size(), RtpHeader.PayloadType.JPEG, frameNumber, timestamp);
+		
+		return frameNumber + 1;
+	}
+	
+	/**
+	 * Splits encoded data into packets, followed by its repair packets if enabled
+	 */
+	private void fragment(List<RtpPacket> packets, byte[] data, int length, RtpHeader.PayloadType type, int frameNumber, int timestamp) throws IOException {
+		List<RtpPacket> fragments = new ArrayList<>(this.dataFragmenter.count(length));
+		this.dataFragmenter.fragment(fragments, data, 0, length, type, frameNumber, timestamp);
+		packets.addAll(fragments);
+		if(this.fec != null)
+			packets.addAll(this.fec.protect(fragments));
 	}
 	
 	@Override
 	public BufferedImage decode(RtpPacket packet) {
-		int frameNumber = packet.getHeader().getFrameNumber();
-		if(!this.potentialImages.containsKey(frameNumber))
-			this.potentialImages.put(frameNumber, new ImageProcessor.ImageData(packet.getHeader().getSequenceLength()));
+		RtpHeader header = packet.getHeader();
+		byte[] payload = packet.getPayload();
 		
-		ImageProcessor.ImageData imageData = this.potentialImages.get(frameNumber);
-		imageData.add(packet.getHeader().getSequenceNumber(), packet.getPayload());
+		if(header.getType().equals(RtpHeader.PayloadType.TILE))
+			return this.composite(this.tileReassembler.add(header.getFrameNumber(), header.getSequenceNumber(), header.getSequenceLength(), payload, 0, payload.length));
+		else if(header.getType().equals(RtpHeader.PayloadType.JPEG))
+			return this.read(this.reassembler.add(header.getFrameNumber(), header.getSequenceNumber(), header.getSequenceLength(), payload, 0, payload.length));
+		else if(header.getType().equals(RtpHeader.PayloadType.FEC) && payload.length > 0)
+			return this.repair(header.getFrameNumber(), payload[0], ByteBuffer.wrap(payload));
 		
-		BufferedImage image = imageData.recreate();
+		return null;
+	}
+	
+	@Override
+	public BufferedImage decode(RtpPacketView view) {
+		RtpHeader.PayloadType type = view.getType();
 		
-		if(image != null) {
-			this.potentialImages.remove(frameNumber);
-			for(Integer otherFrame : this.potentialImages.keySet()) {
-				if(otherFrame < frameNumber)
-					this.potentialImages.remove(otherFrame);
-			}
+		if(type.equals(RtpHeader.PayloadType.TILE))
+			return this.composite(this.tileReassembler.add(view.getFrameNumber(), view.getSequenceNumber(), view.getSequenceLength(), view.getPayload()));
+		else if(type.equals(RtpHeader.PayloadType.JPEG))
+			return this.read(this.reassembler.add(view.getFrameNumber(), view.getSequenceNumber(), view.getSequenceLength(), view.getPayload()));
+		else if(type.equals(RtpHeader.PayloadType.FEC) && view.getPayloadLength() > 0) {
+			ByteBuffer payload = view.getPayload();
+			return this.repair(view.getFrameNumber(), payload.get(payload.position()), payload);
 		}
 		
-		return image;
+		return null;
 	}
 	
 	/**
-	 * Mapping to reconstruct the image from multiple packets
+	 * Passes a repair packet to the reassembler of the type it protects
 	 * 
-	 * @author Rusty
+	 * @param frameNumber
+	 * @param protectedType Type of the fragments the repair packet protects
+	 * @param payload
+	 * @return The image if lost fragments were rebuilt, otherwise null
 	 */
-	public class ImageData {
-		private HashMap<Integer, byte[]> list;
-		private int length;
+	private BufferedImage repair(int frameNumber, byte protectedType, ByteBuffer payload) {
+		RtpHeader.PayloadType type = RtpHeader.PayloadType.toType(protectedType);
+		if(type.equals(RtpHeader.PayloadType.TILE))
+			return this.composite(this.tileReassembler.addRepair(frameNumber, payload));
+		else if(type.equals(RtpHeader.PayloadType.JPEG))
+			return this.read(this.reassembler.addRepair(frameNumber, payload));
 		
-		/**
-		 * Constructor
-		 * 
-		 * @param length Total size of the image data (split between packets)
-		 */
-		public ImageData(int length) {
-			this.length = length;
-			list = new HashMap<Integer, byte[]>(0);
+		return null;
+	}
+	
+	/**
+	 * Composites a reassembled tile frame onto the canvas
+	 * 
+	 * @param frame Completed frame or null
+	 * @return The canvas if successful otherwise null
+	 */
+	private BufferedImage composite(FrameReassembler.Frame frame) {
+		if(frame == null)
+			return null;
+		if(this.renderer != null) {
+			this.renderer.submitTiles(frame);
+			return null;
 		}
 		
-		/**
-		 * Add data to the frame
-		 * 
-		 * @param sequenceNumber
-		 * @param array
-		 */
-		public void add(int sequenceNumber, byte[] array) {
-			if(sequenceNumber > length)
-				throw new RuntimeException("Frame size changed mid frame");
-			
-			this.list.put(sequenceNumber, array);
+		long start = System.nanoTime();
+		BufferedImage canvas = this.tileDecoder.decode(frame.getData(), frame.getLength(), frame.getFrameNumber());
+		this.metrics.decoded(System.nanoTime() - start);
+		return canvas;
+	}
+	
+	/**
+	 * Attempts to create the image from a reassembled frame
+	 * 
+	 * @param frame Completed frame or null
+	 * @return Image if successful otherwise null
+	 */
+	private BufferedImage read(FrameReassembler.Frame frame) {
+		if(frame == null)
+			return null;
+		if(this.hasLastImageFrame && !this.reassembler.isNewer(frame.getFrameNumber(), this.lastImageFrame))
+			return null;
+		this.hasLastImageFrame = true;
+		this.lastImageFrame = frame.getFrameNumber();
+		if(this.renderer != null) {
+			this.renderer.submitImage(frame);
+			return null;
 		}
 		
+		long start = System.nanoTime();
+		try {
+			this.decoded = this.jpeg.read(frame.getData(), 0, frame.getLength(), this.decoded);
+			return this.decoded;
+		}catch(IOException e) {
+			return null;
+		}finally {
+			this.metrics.decoded(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Output stream that can be fragmented without copying its data out first
+	 * 
+	 * @author Rusty
+	 */
+	private static class EncodeBuffer extends ByteArrayOutputStream {
+		
 		/**
-		 * Attempts to create the current item.
+		 * Gets the stream's own array, only valid up to {@link #size()} and until the stream is written to again
 		 * 
-		 * @return Image if successful otherwise null
+		 * @return
 		 */
-		public BufferedImage recreate() {
-			if(this.list.size() < length)
-				return null;
-			
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			int i=0;
-			for(;i<this.list.size();i++) {
-				baos.writeBytes(this.list.get(i));
-			}
-			try {
-				ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-				BufferedImage img = ImageIO.read(bais);
-				return img;
-			}catch(IOException e) {
-				return null;
-			}
+		private byte[] getData() {
+			return this.buf;
 		}
 	}
-
 }
@@ -0,0 +1,341 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStreamImpl;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+import org.w3c.dom.Node;
+
+/**
+ * Encodes and decodes JPEG images without the per image cost of ImageIO.write and ImageIO.read.
+ * 
+ * Each thread keeps its own ImageWriter, ImageReader and in memory streams, so nothing is looked up
+ * or allocated per image apart from the encoded data. Decoding can also draw into an existing image.
+ * 
+ * Quality and chroma subsampling can be changed at any time and apply from the next image encoded,
+ * trading bandwidth for CPU and image quality.
+ * 
+ * @author Rusty
+ */
+public class JpegCodec {
+	
+	public static final float DEFAULT_QUALITY = 0.75f;
+	
+	private static final String NATIVE_FORMAT = "javax_imageio_jpeg_image_1.0";
+	
+	private static final ThreadLocal<Context> CONTEXT = ThreadLocal.withInitial(Context::new);
+	
+	private volatile float quality;
+	private volatile boolean chromaSubsampling;
+	
+	/**
+	 * Constructor, using the default quality and 4:2:0 chroma subsampling
+	 */
+	public JpegCodec() {
+		this.quality = DEFAULT_QUALITY;
+		this.chromaSubsampling = true;
+	}
+	
+	/**
+	 * Sets the compression quality of the images encoded
+	 * 
+	 * @param quality Between 0 (smallest) and 1 (best)
+	 */
+	public void setQuality(float quality) {
+		if(quality < 0 || quality > 1)
+			throw new IllegalArgumentException("Quality must be between 0 and 1");
+		this.quality = quality;
+	}
+	
+	public float getQuality() {
+		return this.quality;
+	}
+	
+	/**
+	 * Sets whether colour is stored at half resolution (4:2:0, the default) or full resolution (4:4:4)
+	 * 
+	 * @param chromaSubsampling
+	 */
+	public void setChromaSubsampling(boolean chromaSubsampling) {
+		this.chromaSubsampling = chromaSubsampling;
+	}
+	
+	public boolean isChromaSubsampling() {
+		return this.chromaSubsampling;
+	}
+	
+	/**
+	 * Encodes an image
+	 * 
+	 * @param image Image to encode
+	 * @param out Stream the JPEG is written to
+	 * @throws IOException
+	 */
+	public void write(RenderedImage image, OutputStream out) throws IOException {
+		Context context = CONTEXT.get();
+		ImageWriter writer = context.writer();
+		
+		ImageWriteParam param = context.writeParam;
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(this.quality);
+		
+		context.output.clear();
+		writer.setOutput(context.output);
+		try {
+			writer.write(null, new IIOImage(image, null, context.metadata(image, this.chromaSubsampling)), param);
+		}finally {
+			writer.setOutput(null);
+		}
+		context.output.writeTo(out);
+	}
+	
+	/**
+	 * Decodes an image
+	 * 
+	 * @param data Array holding the JPEG
+	 * @param offset Offset of the JPEG in the array
+	 * @param length Length of the JPEG
+	 * @param destination Image to decode into if it is the same size and a suitable type, may be null
+	 * @return The destination if it was used, otherwise a new image
+	 * @throws IOException If the data is not a valid JPEG
+	 */
+	public BufferedImage read(byte[] data, int offset, int length, BufferedImage destination) throws IOException {
+		Context context = CONTEXT.get();
+		ImageReader reader = context.reader();
+		
+		context.input.set(data, offset, length);
+		reader.setInput(context.input, true, true);
+		try {
+			ImageReadParam param = reader.getDefaultReadParam();
+			if(destination != null && destination.getWidth() == reader.getWidth(0) && destination.getHeight() == reader.getHeight(0)
+					&& this.accepts(reader, destination))
+				param.setDestination(destination);
+			
+			return reader.read(0, param);
+		}finally {
+			reader.setInput(null);
+		}
+	}
+	
+	private boolean accepts(ImageReader reader, BufferedImage destination) throws IOException {
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		while(types.hasNext()) {
+			if(types.next().getBufferedImageType() == destination.getType())
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Writer, reader and streams belonging to a single thread
+	 * 
+	 * @author Rusty
+	 */
+	private static class Context {
+		private ImageWriter writer;
+		private ImageWriteParam writeParam;
+		private ImageReader reader;
+		private ByteArrayImageOutputStream output = new ByteArrayImageOutputStream();
+		private ByteArrayImageInputStream input = new ByteArrayImageInputStream();
+		
+		/**
+		 * Metadata without chroma subsampling for the last image type encoded
+		 */
+		private ImageTypeSpecifier metadataType;
+		private IIOMetadata fullChroma;
+		
+		private ImageWriter writer() throws IOException {
+			if(this.writer == null) {
+				Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+				if(!writers.hasNext())
+					throw new IOException("No JPEG writer available");
+				this.writer = writers.next();
+				this.writeParam = this.writer.getDefaultWriteParam();
+			}
+			return this.writer;
+		}
+		
+		private ImageReader reader() throws IOException {
+			if(this.reader == null) {
+				Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+				if(!readers.hasNext())
+					throw new IOException("No JPEG reader available");
+				this.reader = readers.next();
+			}
+			return this.reader;
+		}
+		
+		/**
+		 * Gets the metadata that sets the chroma subsampling, or null to let the writer decide
+		 */
+		private IIOMetadata metadata(RenderedImage image, boolean chromaSubsampling) throws IIOInvalidTreeException {
+			//Subsampled is the writer's default
+			if(chromaSubsampling)
+				return null;
+			
+			ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(image);
+			if(!type.equals(this.metadataType)) {
+				this.metadataType = type;
+				this.fullChroma = null;
+			}
+			
+			if(this.fullChroma == null) {
+				IIOMetadata metadata = this.writer.getDefaultImageMetadata(type, this.writeParam);
+				Node tree = metadata.getAsTree(NATIVE_FORMAT);
+				Node sof = this.find(tree, "sof");
+				if(sof != null) {
+					for(Node component = sof.getFirstChild(); component != null; component = component.getNextSibling()) {
+						Node h = component.getAttributes().getNamedItem("HsamplingFactor");
+						Node v = component.getAttributes().getNamedItem("VsamplingFactor");
+						if(h != null)
+							h.setNodeValue("1");
+						if(v != null)
+							v.setNodeValue("1");
+					}
+					metadata.setFromTree(NATIVE_FORMAT, tree);
+				}
+				this.fullChroma = metadata;
+			}
+			return this.fullChroma;
+		}
+		
+		private Node find(Node node, String name) {
+			if(name.equals(node.getNodeName()))
+				return node;
+			for(Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				Node found = this.find(child, name);
+				if(found != null)
+					return found;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Output stream into a reusable array
+	 * 
+	 * @author Rusty
+	 */
+	private static class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+		private byte[] data = new byte[64 * 1024];
+		private int length;
+		
+		private void clear() {
+			this.length = 0;
+			this.streamPos = 0;
+			this.flushedPos = 0;
+			this.bitOffset = 0;
+		}
+		
+		private void writeTo(OutputStream out) throws IOException {
+			out.write(this.data, 0, this.length);
+		}
+		
+		private void ensureCapacity(long size) throws IOException {
+			if(size > Integer.MAX_VALUE - 8)
+				throw new IOException("Image is too large");
+			if(size > this.data.length)
+				this.data = Arrays.copyOf(this.data, (int)Math.max(size, this.data.length * 2L));
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			this.flushBits();
+			this.ensureCapacity(this.streamPos + 1);
+			this.data[(int)this.streamPos++] = (byte)b;
+			this.length = (int)Math.max(this.length, this.streamPos);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.flushBits();
+			this.ensureCapacity(this.streamPos + len);
+			System.arraycopy(b, off, this.data, (int)this.streamPos, len);
+			this.streamPos += len;
+			this.length = (int)Math.max(this.length, this.streamPos);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			this.bitOffset = 0;
+			if(this.streamPos >= this.length)
+				return -1;
+			return this.data[(int)this.streamPos++] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			this.bitOffset = 0;
+			if(this.streamPos >= this.length)
+				return -1;
+			int amount = (int)Math.min(len, this.length - this.streamPos);
+			System.arraycopy(this.data, (int)this.streamPos, b, off, amount);
+			this.streamPos += amount;
+			return amount;
+		}
+		
+		@Override
+		public long length() {
+			return this.length;
+		}
+	}
+	
+	/**
+	 * Input stream over part of an array, pointed at a new array for each image
+	 * 
+	 * @author Rusty
+	 */
+	private static class ByteArrayImageInputStream extends ImageInputStreamImpl {
+		private byte[] data;
+		private int offset;
+		private int length;
+		
+		private void set(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.streamPos = 0;
+			this.flushedPos = 0;
+			this.bitOffset = 0;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			this.bitOffset = 0;
+			if(this.streamPos >= this.length)
+				return -1;
+			return this.data[this.offset + (int)this.streamPos++] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			this.bitOffset = 0;
+			if(this.streamPos >= this.length)
+				return -1;
+			int amount = (int)Math.min(len, this.length - this.streamPos);
+			System.arraycopy(this.data, this.offset + (int)this.streamPos, b, off, amount);
+			this.streamPos += amount;
+			return amount;
+		}
+		
+		@Override
+		public long length() {
+			return this.length;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+
+/**
+ * Keeps the datagrams of the last complete keyframe a single sender sent, so a new receiver can be started
+ * on it straight away instead of waiting for the sender's next keyframe.
+ * 
+ * Every JPEG frame stands on its own, so only the last complete one is kept. In tile mode a keyframe is every
+ * message flagged with {@link TileCodec#FLAG_KEYFRAME}, and the deltas after it are kept too, so a receiver
+ * given the whole cache ends up at the same picture as everyone else and carries on from there without a gap.
+ * 
+ * A keyframe only replaces the cached one once every fragment of it has arrived, resent duplicates of a
+ * fragment being kept and counted once. Datagrams are pooled and not
+ * copied, the cache holds a reference to each one it keeps. What is kept is bounded in bytes; a keyframe larger
+ * than the bound is never cached, and deltas that would take the cache over it drop the cache until the
+ * next keyframe.
+ * 
+ * @author Rusty
+ */
+public class KeyframeCache {
+	
+	/**
+	 * Most messages in a tile keyframe, as the part count is a single byte
+	 */
+	private static final int MAX_PARTS = 0xFF;
+	
+	/**
+	 * Offsets into a tile message's header of its flags, part and part count
+	 */
+	private static final int TILE_FLAGS = 0;
+	private static final int TILE_PART = 5;
+	private static final int TILE_PARTS = 6;
+	
+	private long maxBytes;
+	
+	/**
+	 * Datagrams from the last complete keyframe on
+	 */
+	private List<PooledBuffer> cached;
+	private long cachedBytes;
+	private byte cachedType;
+	
+	/**
+	 * Keyframe being received, and any deltas after it
+	 */
+	private List<PooledBuffer> pending;
+	private long pendingBytes;
+	private boolean receiving;
+	private byte pendingType;
+	private int first;
+	private int parts;
+	private int[] expected;
+	private int[] received;
+	/**
+	 * Bitmap per part of the fragments received, so resent duplicates are not counted twice
+	 */
+	private long[][] seen;
+	private int partsComplete;
+	
+	private boolean started;
+	private int latest;
+	private volatile long lastAdded;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param maxBytes Most bytes of datagrams kept
+	 */
+	public KeyframeCache(long maxBytes) {
+		if(maxBytes <= 0)
+			throw new IllegalArgumentException("Max bytes cannot be 0 or negative");
+		
+		this.maxBytes = maxBytes;
+		this.cached = new ArrayList<>();
+		this.pending = new ArrayList<>();
+		this.expected = new int[MAX_PARTS];
+		this.received = new int[MAX_PARTS];
+		this.seen = new long[MAX_PARTS][1];
+	}
+	
+	/**
+	 * Looks at a datagram from the sender, keeping it if it belongs to a keyframe or follows one
+	 * 
+	 * @param datagram Buffer holding an encoded datagram from its position to its limit, retained if kept
+	 */
+	public synchronized void add(PooledBuffer datagram) {
+		ByteBuffer buffer = datagram.getBuffer();
+		int position = buffer.position();
+		int length = buffer.remaining();
+		if(!RtpHeader.isValid(buffer, position, length))
+			return;
+		
+		byte type = RtpHeader.type(buffer, position);
+		int frameNumber = RtpHeader.frameNumber(buffer, position) & 0xFFFF;
+		int sequenceNumber = RtpHeader.sequenceNumber(buffer, position);
+		int sequenceLength = RtpHeader.sequenceLength(buffer, position);
+		int headerSize = RtpHeader.size(buffer, position);
+		boolean tile = type == RtpHeader.PayloadType.TILE.toByte();
+		if(!tile && type != RtpHeader.PayloadType.JPEG.toByte())
+			return;
+		this.lastAdded = System.nanoTime();
+		
+		//Every JPEG frame is a keyframe, tile keyframes start with the first fragment of their first message
+		if(!tile && this.isNew(frameNumber)) {
+			this.start(type, frameNumber, 1);
+		}else if(tile && sequenceNumber == 0 && length > headerSize + TILE_PARTS && this.isNew(frameNumber)) {
+			int payload = position + headerSize;
+			if((buffer.get(payload + TILE_FLAGS) & TileCodec.FLAG_KEYFRAME) != 0 && buffer.get(payload + TILE_PART) == 0)
+				this.start(type, frameNumber, Math.max(1, buffer.get(payload + TILE_PARTS) & 0xFF));
+		}
+		
+		//Deltas carry on from the cached keyframe, even while a newer one is arriving
+		if(tile && this.cachedType == type && !this.cached.isEmpty()) {
+			if(this.cachedBytes + length > this.maxBytes) {
+				release(this.cached);
+				this.cachedBytes = 0;
+			}else {
+				this.cached.add(datagram.retain());
+				this.cachedBytes += length;
+			}
+		}
+		
+		if(!this.receiving || type != this.pendingType)
+			return;
+		int part = (frameNumber - this.first) & 0xFFFF;
+		if(part >= this.parts && !tile)
+			return;
+		if(part < this.parts && !this.mark(part, sequenceNumber, sequenceLength))
+			return;
+		if(this.pendingBytes + length > this.maxBytes) {
+			//Too large to ever cache
+			this.receiving = false;
+			release(this.pending);
+			this.pendingBytes = 0;
+			return;
+		}
+		this.pending.add(datagram.retain());
+		this.pendingBytes += length;
+		
+		if(part < this.parts && ++this.received[part] == this.expected[part] && ++this.partsComplete == this.parts)
+			this.complete();
+	}
+	
+	/**
+	 * Marks a fragment of a keyframe part as received
+	 * 
+	 * @param part
+	 * @param sequenceNumber
+	 * @param sequenceLength
+	 * @return False if the fragment was already received or is outside the part
+	 */
+	private boolean mark(int part, int sequenceNumber, int sequenceLength) {
+		if(this.expected[part] == 0) {
+			this.expected[part] = Math.max(1, sequenceLength);
+			int words = (this.expected[part] + 63) >>> 6;
+			if(this.seen[part].length < words)
+				this.seen[part] = new long[words];
+			else
+				Arrays.fill(this.seen[part], 0, words, 0L);
+		}
+		if(sequenceNumber < 0 || sequenceNumber >= this.expected[part])
+			return false;
+		long bit = 1L << sequenceNumber;
+		if((this.seen[part][sequenceNumber >>> 6] & bit) != 0)
+			return false;
+		this.seen[part][sequenceNumber >>> 6] |= bit;
+		return true;
+	}
+	
+	/**
+	 * Checks whether a frame number is newer than any keyframe started so far, so late or retransmitted
+	 * fragments of older frames do not restart the keyframe being received
+	 * 
+	 * @param frameNumber
+	 * @return
+	 */
+	private boolean isNew(int frameNumber) {
+		if(!this.started)
+			return true;
+		int ahead = (frameNumber - this.latest) & 0xFFFF;
+		return ahead != 0 && ahead <= 0x7FFF;
+	}
+	
+	private void start(byte type, int frameNumber, int parts) {
+		release(this.pending);
+		this.pendingBytes = 0;
+		this.receiving = true;
+		this.pendingType = type;
+		this.first = frameNumber;
+		this.parts = parts;
+		this.partsComplete = 0;
+		for(int i=0; i<parts; i++) {
+			this.expected[i] = 0;
+			this.received[i] = 0;
+		}
+		this.started = true;
+		this.latest = frameNumber;
+	}
+	
+	/**
+	 * Replaces the cached keyframe with the one just completed
+	 */
+	private void complete() {
+		List<PooledBuffer> old = this.cached;
+		release(old);
+		this.cached = this.pending;
+		this.cachedBytes = this.pendingBytes;
+		this.cachedType = this.pendingType;
+		this.pending = old;
+		this.pendingBytes = 0;
+		this.receiving = false;
+	}
+	
+	/**
+	 * Gets the cached datagrams in the order they arrived
+	 * 
+	 * @return Datagrams each retained for the caller, who releases them once sent
+	 */
+	public synchronized List<PooledBuffer> snapshot() {
+		List<PooledBuffer> snapshot = new ArrayList<>(this.cached.size());
+		for(PooledBuffer datagram : this.cached)
+			snapshot.add(datagram.retain());
+		return snapshot;
+	}
+	
+	/**
+	 * Drops everything cached
+	 */
+	public synchronized void clear() {
+		release(this.cached);
+		release(this.pending);
+		this.cachedBytes = 0;
+		this.pendingBytes = 0;
+		this.receiving = false;
+		this.started = false;
+	}
+	
+	/**
+	 * Drops everything cached if the sender has been quiet for a while
+	 * 
+	 * @param now System.nanoTime
+	 * @param idle Nanoseconds without datagrams after which the cache is dropped
+	 * @return True if the cache was dropped
+	 */
+	public boolean expire(long now, long idle) {
+		if(now - this.lastAdded < idle)
+			return false;
+		
+		synchronized(this) {
+			if(this.cached.isEmpty() && this.pending.isEmpty())
+				return false;
+			this.clear();
+			return true;
+		}
+	}
+	
+	/**
+	 * Gets the amount of bytes of datagrams cached, not counting a keyframe still arriving
+	 * 
+	 * @return
+	 */
+	public synchronized long getBytes() {
+		return this.cachedBytes;
+	}
+	
+	private static void release(List<PooledBuffer> datagrams) {
+		for(PooledBuffer datagram : datagrams)
+			datagram.release();
+		datagrams.clear();
+	}
+}
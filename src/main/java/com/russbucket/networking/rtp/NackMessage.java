@@ -0,0 +1,171 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Request for fragments to be sent again, as ranges of sequence numbers within frames.
+ * 
+ * Payload:
+ * Kind, {@link StatMessage#NACK} (8 bits)
+ * Payload type of the fragments (8 bits)
+ * Amount of ranges (8 bits)
+ * Then for each range, frame number (16 bits), first sequence number (16 bits) and amount (16 bits)
+ * 
+ * Fragments of a stream sent with version 2 headers are requested with kind {@link StatMessage#STREAM_NACK},
+ * which has the stream's SSRC (32 bits) after the payload type. Only the low 16 bits of frame numbers are sent.
+ * 
+ * @author Rusty
+ */
+public class NackMessage {
+	
+	/**
+	 * Most ranges in one message, which keeps it within {@link Fragmenter#DEFAULT_MTU}
+	 */
+	public static final int MAX_RANGES = 0x7F;
+	
+	private static final int HEADER = 3;
+	private static final int SSRC = 4;
+	private static final int RANGE = 6;
+	
+	private RtpHeader.PayloadType type;
+	private int ssrc;
+	private int[] ranges;
+	private int rangeCount;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param type Payload type of the fragments requested
+	 */
+	public NackMessage(RtpHeader.PayloadType type) {
+		this(type, 0);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param type Payload type of the fragments requested
+	 * @param ssrc Stream the fragments belong to, or 0 if not known
+	 */
+	public NackMessage(RtpHeader.PayloadType type, int ssrc) {
+		this.type = type;
+		this.ssrc = ssrc;
+		this.ranges = new int[8 * 3];
+	}
+	
+	/**
+	 * Adds a range of fragments to request
+	 * 
+	 * @param frameNumber
+	 * @param firstSequence
+	 * @param count
+	 * @return False if the message is full
+	 */
+	public boolean add(int frameNumber, int firstSequence, int count) {
+		if(this.rangeCount == MAX_RANGES)
+			return false;
+		
+		if(this.ranges.length < (this.rangeCount + 1) * 3)
+			this.ranges = Arrays.copyOf(this.ranges, this.ranges.length * 2);
+		this.ranges[this.rangeCount * 3] = frameNumber & 0xFFFF;
+		this.ranges[this.rangeCount * 3 + 1] = firstSequence & 0xFFFF;
+		this.ranges[this.rangeCount * 3 + 2] = count & 0xFFFF;
+		this.rangeCount++;
+		return true;
+	}
+	
+	public RtpHeader.PayloadType getType() {
+		return this.type;
+	}
+	
+	/**
+	 * Gets the stream the fragments belong to
+	 * 
+	 * @return SSRC, or 0 if not known
+	 */
+	public int getSsrc() {
+		return this.ssrc;
+	}
+	
+	public int getRangeCount() {
+		return this.rangeCount;
+	}
+	
+	public boolean isEmpty() {
+		return this.rangeCount == 0;
+	}
+	
+	public boolean isFull() {
+		return this.rangeCount == MAX_RANGES;
+	}
+	
+	public int getFrameNumber(int range) {
+		return this.ranges[range * 3];
+	}
+	
+	public int getFirstSequence(int range) {
+		return this.ranges[range * 3 + 1];
+	}
+	
+	public int getCount(int range) {
+		return this.ranges[range * 3 + 2];
+	}
+	
+	/**
+	 * Encodes the message as a STAT packet
+	 * 
+	 * @return
+	 */
+	public RtpPacket toPacket() {
+		ByteBuffer payload = ByteBuffer.allocate(HEADER + (this.ssrc == 0 ? 0 : SSRC) + this.rangeCount * RANGE);
+		payload.put((byte)(this.ssrc == 0 ? StatMessage.NACK : StatMessage.STREAM_NACK));
+		payload.put(this.type.toByte());
+		if(this.ssrc != 0)
+			payload.putInt(this.ssrc);
+		payload.put((byte)this.rangeCount);
+		for(int i=0; i<this.rangeCount * 3; i++)
+			payload.putShort((short)this.ranges[i]);
+		return StatMessage.toPacket(payload.array());
+	}
+	
+	/**
+	 * Decodes a message from a STAT payload
+	 * 
+	 * @param payload
+	 * @return The message or null if the payload is not a valid NACK
+	 */
+	public static NackMessage decode(byte[] payload) {
+		if(!isNack(payload))
+			return null;
+		boolean stream = StatMessage.getKind(payload) == StatMessage.STREAM_NACK;
+		if(payload.length < HEADER + (stream ? SSRC : 0))
+			return null;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		buffer.get();
+		RtpHeader.PayloadType type = RtpHeader.PayloadType.toType(buffer.get());
+		NackMessage nack = new NackMessage(type, stream ? buffer.getInt() : 0);
+		int count = Math.min(buffer.get() & 0xFF, MAX_RANGES);
+		if(buffer.remaining() < count * RANGE)
+			return null;
+		
+		for(int i=0; i<count; i++)
+			nack.add(buffer.getShort() & 0xFFFF, buffer.getShort() & 0xFFFF, buffer.getShort() & 0xFFFF);
+		return nack;
+	}
+	
+	/**
+	 * Checks whether a binary STAT payload is a NACK of either kind
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public static boolean isNack(byte[] payload) {
+		int kind = StatMessage.getKind(payload);
+		return kind == StatMessage.NACK || kind == StatMessage.STREAM_NACK;
+	}
+}
@@ -0,0 +1,519 @@
+package com.russbucket.networking.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Spreads sending over time instead of sending every packet of a frame back to back.
+ * 
+ * Every destination has its own queue and token bucket. Tokens (bytes) are added at the destination's
+ * rate up to the burst size, and a datagram is sent whenever the bucket is not empty, which may take
+ * it below zero so datagrams larger than the burst are still sent. A single timer thread sleeps until
+ * the next destination has tokens, so a frame is sent across the frame interval rather than as one
+ * burst that overflows switch buffers and receiver socket queues.
+ * 
+ * Destinations are added with {@link #add(SocketAddress)} and removed with {@link #remove(SocketAddress)}, and datagrams
+ * for any other destination are refused, so a send racing a removal can never bring the destination back. The
+ * endpoint a connected socket is connected to is added when first sent to.
+ * 
+ * Datagrams are copied into pooled buffers when queued, so buffers may be reused as soon as a send method
+ * returns, and the copies are returned to the pool once sent or dropped. Datagrams already in a pooled buffer
+ * are retained rather than copied, so one buffer can be queued to every destination. Once closed nothing more is queued.
+ * Failed sends are counted for each destination (see {@link #getErrors(SocketAddress)}) and by the socket's metrics.
+ * 
+ * @author Rusty
+ */
+public class PacedRtpSocket {
+	
+	private RtpSocket socket;
+	private BufferPool buffers;
+	private volatile long defaultRate;
+	private int burst;
+	private int queueCapacity;
+	
+	private ConcurrentHashMap<SocketAddress, Destination> destinations;
+	private Thread pacer;
+	private volatile boolean running;
+	
+	/**
+	 * Constructor, starting the sending thread
+	 * 
+	 * @param socket Socket to send on
+	 * @param bytesPerSecond Rate each destination is sent at, unless changed with {@link #setRate(SocketAddress, long)}
+	 * @param burst Bytes that may be sent at once after a destination has been idle
+	 * @param queueCapacity Datagrams that can wait for each destination
+	 */
+	public PacedRtpSocket(RtpSocket socket, long bytesPerSecond, int burst, int queueCapacity) {
+		if(bytesPerSecond <= 0)
+			throw new IllegalArgumentException("Rate cannot be 0 or negative");
+		else if(burst <= 0)
+			throw new IllegalArgumentException("Burst cannot be 0 or negative");
+		else if(queueCapacity <= 0)
+			throw new IllegalArgumentException("Queue capacity cannot be 0 or negative");
+		
+		this.socket = socket;
+		this.buffers = new BufferPool();
+		this.defaultRate = bytesPerSecond;
+		this.burst = burst;
+		this.queueCapacity = queueCapacity;
+		this.destinations = new ConcurrentHashMap<>();
+		
+		this.running = true;
+		this.pacer = new Thread(this::pace, "rtp-pacer");
+		this.pacer.setDaemon(true);
+		this.pacer.start();
+	}
+	
+	/**
+	 * Works out the rate needed to send a frame within a frame interval
+	 * 
+	 * @param frameBytes Largest expected frame in bytes
+	 * @param fps Frames per second
+	 * @return Rate in bytes per second
+	 */
+	public static long rateFor(int frameBytes, double fps) {
+		return (long)Math.ceil(frameBytes * fps);
+	}
+	
+	/**
+	 * Sets the pool queued datagrams are copied into, to share one with the rest of the application
+	 * 
+	 * @param buffers
+	 */
+	public void setBufferPool(BufferPool buffers) {
+		this.buffers = buffers;
+	}
+	
+	/**
+	 * Sets the rate of destinations without their own rate
+	 * 
+	 * @param bytesPerSecond
+	 */
+	public void setRate(long bytesPerSecond) {
+		if(bytesPerSecond <= 0)
+			throw new IllegalArgumentException("Rate cannot be 0 or negative");
+		this.defaultRate = bytesPerSecond;
+	}
+	
+	/**
+	 * Sets the rate of a single destination, adding it if it has not been added
+	 * 
+	 * @param target
+	 * @param bytesPerSecond Rate in bytes per second, or 0 to use the default rate
+	 */
+	public void setRate(SocketAddress target, long bytesPerSecond) {
+		if(bytesPerSecond < 0)
+			throw new IllegalArgumentException("Rate cannot be negative");
+		this.destination(target).rate = bytesPerSecond;
+	}
+	
+	/**
+	 * Queues a packet for the remote endpoint the socket is connected to
+	 * 
+	 * @param packet
+	 * @return False if the destination's queue is full or the pacer is closed and the packet was dropped
+	 */
+	public boolean send(RtpPacket packet) {
+		if(!this.running)
+			return false;
+		return this.destination(this.remote()).offer(this.encode(packet));
+	}
+	
+	/**
+	 * Queues a packet for another endpoint
+	 * 
+	 * @param packet
+	 * @param address Address of the endpoint
+	 * @param port Port of the endpoint
+	 * @return False if the destination's queue is full, it has not been added or the pacer is closed and the packet
+	 * was dropped
+	 */
+	public boolean send(RtpPacket packet, InetAddress address, int port) {
+		return this.send(packet, new InetSocketAddress(address, port));
+	}
+	
+	/**
+	 * Queues a packet for another endpoint
+	 * 
+	 * @param packet
+	 * @param target Address of the endpoint
+	 * @return False if the destination's queue is full, it has not been added or the pacer is closed and the packet
+	 * was dropped
+	 */
+	public boolean send(RtpPacket packet, SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		if(!this.running || destination == null)
+			return false;
+		return destination.offer(this.encode(packet));
+	}
+	
+	/**
+	 * Queues an already encoded datagram for another endpoint
+	 * 
+	 * @param datagram Datagram from its position to its limit (position is not changed)
+	 * @param target Address of the endpoint
+	 * @return False if the destination's queue is full, it has not been added or the pacer is closed and the datagram
+	 * was dropped
+	 */
+	public boolean send(ByteBuffer datagram, SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		if(!this.running || destination == null)
+			return false;
+		return destination.offer(this.buffers.copy(datagram));
+	}
+	
+	/**
+	 * Queues a pooled datagram for another endpoint without copying it, retaining it until sent or dropped
+	 * 
+	 * @param datagram Datagram from its position to its limit, which must not be changed afterwards
+	 * @param target Address of the endpoint
+	 * @return False if the destination's queue is full, it has not been added or the pacer is closed and the datagram
+	 * was dropped
+	 */
+	public boolean send(PooledBuffer datagram, SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		if(!this.running || destination == null)
+			return false;
+		return destination.offer(datagram.retain());
+	}
+	
+	/**
+	 * Queues a packet for the remote endpoint the socket is connected to, waiting for room in the queue
+	 * 
+	 * @param packet
+	 * @return False if the pacer is closed, the packet is not queued
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean put(RtpPacket packet) throws InterruptedException {
+		if(!this.running)
+			return false;
+		return this.destination(this.remote()).put(this.encode(packet));
+	}
+	
+	/**
+	 * Queues a packet for the remote endpoint the socket is connected to, waiting up to a timeout for room in the queue
+	 * 
+	 * @param packet
+	 * @param timeout
+	 * @param unit
+	 * @return False if there was no room before the timeout or the pacer is closed, the packet is not queued
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean put(RtpPacket packet, long timeout, TimeUnit unit) throws InterruptedException {
+		if(!this.running)
+			return false;
+		return this.destination(this.remote()).put(this.encode(packet), unit.toNanos(timeout));
+	}
+	
+	private PooledBuffer encode(RtpPacket packet) {
+		PooledBuffer buffer = this.buffers.acquire(packet.getHeader().getSize() + packet.getPayload().length);
+		packet.writeTo(buffer.getBuffer());
+		buffer.getBuffer().flip();
+		return buffer;
+	}
+	
+	/**
+	 * Starts pacing a destination, so datagrams can be queued for it
+	 * 
+	 * @param target
+	 */
+	public void add(SocketAddress target) {
+		this.destination(target);
+	}
+	
+	/**
+	 * Stops pacing a destination, dropping anything queued for it and refusing anything more until it is added again
+	 * 
+	 * @param target
+	 */
+	public void remove(SocketAddress target) {
+		Destination destination = this.destinations.remove(target);
+		if(destination != null)
+			destination.close();
+	}
+	
+	/**
+	 * Gets the amount of datagrams waiting for a destination
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public int getQueueDepth(SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		return destination == null ? 0 : destination.queue.size();
+	}
+	
+	/**
+	 * Gets the amount of bytes waiting for a destination
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public long getQueuedBytes(SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		return destination == null ? 0 : destination.queuedBytes.get();
+	}
+	
+	/**
+	 * Gets the most datagrams that have waited for a destination at once
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public int getMaxQueueDepth(SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		return destination == null ? 0 : destination.maxDepth;
+	}
+	
+	/**
+	 * Gets the amount of datagrams dropped because a destination's queue was full
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public long getDropped(SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		return destination == null ? 0 : destination.dropped.get();
+	}
+	
+	/**
+	 * Gets the amount of datagrams to a destination that failed to send
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public long getErrors(SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		return destination == null ? 0 : destination.errors;
+	}
+	
+	/**
+	 * Gets the amount of datagrams sent to a destination
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public long getSent(SocketAddress target) {
+		Destination destination = this.destinations.get(target);
+		return destination == null ? 0 : destination.sent;
+	}
+	
+	/**
+	 * Stops the sending thread, anything still queued is not sent. The socket is not closed.
+	 */
+	public void close() {
+		this.running = false;
+		LockSupport.unpark(this.pacer);
+	}
+	
+	private SocketAddress remote() {
+		SocketAddress remote = this.socket.getRemoteSocketAddress();
+		if(remote == null)
+			throw new IllegalStateException("Socket is not connected");
+		return remote;
+	}
+	
+	private Destination destination(SocketAddress target) {
+		return this.destinations.computeIfAbsent(target, Destination::new);
+	}
+	
+	/**
+	 * Sends whatever each destination has tokens for, then sleeps until the next destination has tokens
+	 */
+	private void pace() {
+		try {
+			while(this.running) {
+				long now = System.nanoTime();
+				long wait = Long.MAX_VALUE;
+				
+				for(Destination destination : this.destinations.values()) {
+					destination.refill(now);
+					while(destination.tokens > 0) {
+						PooledBuffer buffer = destination.queue.poll();
+						if(buffer == null)
+							break;
+						//Read through a duplicate as the buffer may be queued to other destinations
+						ByteBuffer datagram = buffer.getBuffer().duplicate();
+						destination.queuedBytes.addAndGet(-datagram.remaining());
+						destination.tokens -= datagram.remaining();
+						destination.sent++;
+						try {
+							this.socket.send(datagram, destination.target);
+						}catch(IOException e) {
+							if(this.socket.isClosed()) {
+								this.running = false;
+								return;
+							}
+							destination.errors++;
+						}finally {
+							buffer.release();
+						}
+					}
+					
+					if(!destination.queue.isEmpty())
+						wait = Math.min(wait, destination.untilTokens());
+				}
+				
+				if(wait == Long.MAX_VALUE)
+					LockSupport.park(this);
+				else
+					LockSupport.parkNanos(this, Math.max(wait, 1));
+			}
+		}finally {
+			//Whatever is left is never sent, so goes back to the pool
+			for(Destination destination : this.destinations.values())
+				destination.clear();
+		}
+	}
+	
+	/**
+	 * Queue and token bucket of a single destination
+	 * 
+	 * @author Rusty
+	 */
+	private class Destination {
+		private SocketAddress target;
+		private ArrayBlockingQueue<PooledBuffer> queue;
+		private AtomicLong queuedBytes = new AtomicLong();
+		private AtomicLong dropped = new AtomicLong();
+		private volatile int maxDepth;
+		private volatile long rate;
+		
+		/**
+		 * Only used by the sending thread
+		 */
+		private double tokens;
+		private long refilled;
+		private volatile long sent;
+		private volatile long errors;
+		/**
+		 * Set once removed, anything queued after is dropped
+		 */
+		private volatile boolean closed;
+		
+		private Destination(SocketAddress target) {
+			this.target = target;
+			this.queue = new ArrayBlockingQueue<>(queueCapacity);
+			this.tokens = burst;
+			this.refilled = System.nanoTime();
+		}
+		
+		private long rate() {
+			long rate = this.rate;
+			return rate == 0 ? defaultRate : rate;
+		}
+		
+		private void refill(long now) {
+			this.tokens = Math.min(burst, this.tokens + (now - this.refilled) * this.rate() / 1e9);
+			this.refilled = now;
+		}
+		
+		/**
+		 * Gets the time until the bucket is no longer empty
+		 * 
+		 * @return Nanoseconds
+		 */
+		private long untilTokens() {
+			if(this.tokens > 0)
+				return 0;
+			return (long)Math.ceil((1 - this.tokens) * 1e9 / this.rate());
+		}
+		
+		/**
+		 * Queues a datagram, handing over its reference
+		 */
+		private boolean offer(PooledBuffer datagram) {
+			if(this.closed) {
+				datagram.release();
+				return false;
+			}
+			int length = datagram.getBuffer().remaining();
+			//Counted before queueing so the sending thread never takes the count below zero
+			this.queuedBytes.addAndGet(length);
+			if(!this.queue.offer(datagram)) {
+				this.queuedBytes.addAndGet(-length);
+				this.dropped.incrementAndGet();
+				datagram.release();
+				return false;
+			}
+			return this.queued();
+		}
+		
+		private boolean put(PooledBuffer datagram) throws InterruptedException {
+			if(this.closed) {
+				datagram.release();
+				return false;
+			}
+			int length = datagram.getBuffer().remaining();
+			this.queuedBytes.addAndGet(length);
+			try {
+				this.queue.put(datagram);
+			}catch(InterruptedException e) {
+				this.queuedBytes.addAndGet(-length);
+				datagram.release();
+				throw e;
+			}
+			return this.queued();
+		}
+		
+		private boolean put(PooledBuffer datagram, long timeoutNanos) throws InterruptedException {
+			if(this.closed) {
+				datagram.release();
+				return false;
+			}
+			int length = datagram.getBuffer().remaining();
+			this.queuedBytes.addAndGet(length);
+			boolean queued = false;
+			try {
+				queued = this.queue.offer(datagram, timeoutNanos, TimeUnit.NANOSECONDS);
+			}finally {
+				if(!queued) {
+					this.queuedBytes.addAndGet(-length);
+					datagram.release();
+				}
+			}
+			return queued && this.queued();
+		}
+		
+		/**
+		 * Wakes the sending thread for a datagram just queued
+		 * 
+		 * @return False if the pacer was closed or the destination removed meanwhile, in which case the queue is dropped
+		 * as nothing will send it
+		 */
+		private boolean queued() {
+			int depth = this.queue.size();
+			if(depth > this.maxDepth)
+				this.maxDepth = depth;
+			if(!running || this.closed) {
+				this.clear();
+				return false;
+			}
+			LockSupport.unpark(pacer);
+			return true;
+		}
+		
+		private void close() {
+			this.closed = true;
+			this.clear();
+		}
+		
+		private void clear() {
+			PooledBuffer datagram;
+			while((datagram = this.queue.poll()) != null)
+				datagram.release();
+			this.queuedBytes.set(0);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.russbucket.networking.rtp.metrics.BufferPoolMetrics;
+
+/**
+ * Reference counted buffer borrowed from a {@link BufferPool}.
+ * 
+ * A buffer starts with a single reference held by whoever acquired it. Anything keeping the buffer past the
+ * call it was handed over in (such as a queue) retains it and releases it when done, and the buffer goes back
+ * to its pool once the last reference is released. The buffer must not be used after releasing it.
+ * 
+ * @author Rusty
+ */
+public final class PooledBuffer {
+	
+	private BufferPool pool;
+	private int sizeClass;
+	private ByteBuffer buffer;
+	private AtomicInteger references;
+	
+	/**
+	 * Where the buffer was acquired, only tracked with leak detection on
+	 */
+	private Leak leak;
+	
+	PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.buffer = buffer;
+		this.references = new AtomicInteger();
+	}
+	
+	/**
+	 * Wraps a buffer that is not from a pool, so it can be handed to anything expecting a pooled buffer
+	 * 
+	 * @param buffer Data from its position to its limit, not copied
+	 * @return Buffer with a single reference, releasing it does nothing but count
+	 */
+	public static PooledBuffer wrap(ByteBuffer buffer) {
+		PooledBuffer wrapped = new PooledBuffer(null, -1, buffer);
+		wrapped.references.set(1);
+		return wrapped;
+	}
+	
+	/**
+	 * Gets the buffer. When acquired it is cleared with its limit at the size asked for,
+	 * and whoever fills it sets the position and limit around the data (usually by flipping it).
+	 * 
+	 * Once handed to others, read it through a duplicate so its position is left as is for the others.
+	 * 
+	 * @return
+	 */
+	public ByteBuffer getBuffer() {
+		return this.buffer;
+	}
+	
+	/**
+	 * Takes another reference, to be released separately
+	 * 
+	 * @return This buffer
+	 * @throws IllegalStateException If the buffer has already been released
+	 */
+	public PooledBuffer retain() {
+		if(this.references.getAndIncrement() <= 0) {
+			this.references.decrementAndGet();
+			throw new IllegalStateException("Buffer has already been released");
+		}
+		return this;
+	}
+	
+	/**
+	 * Gives up a reference, returning the buffer to its pool if it was the last
+	 * 
+	 * @throws IllegalStateException If the buffer was released more times than it was retained
+	 */
+	public void release() {
+		int references = this.references.decrementAndGet();
+		if(references < 0) {
+			this.references.incrementAndGet();
+			throw new IllegalStateException("Buffer was released more times than it was retained");
+		}else if(references == 0 && this.pool != null) {
+			if(this.leak != null)
+				this.leak.site = null;
+			this.pool.recycle(this);
+		}
+	}
+	
+	/**
+	 * Gets the amount of references held
+	 * 
+	 * @return 0 once released
+	 */
+	public int getReferences() {
+		return this.references.get();
+	}
+	
+	int getSizeClass() {
+		return this.sizeClass;
+	}
+	
+	/**
+	 * Hands the buffer out with a single reference
+	 * 
+	 * @param size Size asked for
+	 * @param metrics Where leaks are counted, null to not track leaks
+	 */
+	void acquired(int size, BufferPoolMetrics metrics) {
+		this.buffer.clear().limit(size);
+		this.references.set(1);
+		if(metrics != null) {
+			if(this.leak == null) {
+				this.leak = new Leak(metrics);
+				BufferPool.track(this, this.leak);
+			}
+			this.leak.site = new Throwable("Pooled buffer was never released, it was acquired here");
+		}else if(this.leak != null) {
+			this.leak.site = null;
+		}
+	}
+	
+	/**
+	 * Runs once a tracked buffer is unreachable, reporting it if it was never released.
+	 * It must not refer to the buffer, or the buffer would never become unreachable.
+	 * 
+	 * @author Rusty
+	 */
+	static class Leak implements Runnable {
+		private BufferPoolMetrics metrics;
+		private volatile Throwable site;
+		
+		private Leak(BufferPoolMetrics metrics) {
+			this.metrics = metrics;
+		}
+		
+		@Override
+		public void run() {
+			Throwable site = this.site;
+			if(site != null) {
+				this.metrics.leaked();
+				site.printStackTrace();
+			}
+		}
+	}
+}
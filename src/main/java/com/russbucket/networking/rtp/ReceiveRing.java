@@ -0,0 +1,164 @@
+package com.russbucket.networking.rtp;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.russbucket.networking.rtp.packet.RtpPacketView;
+
+/**
+ * Preallocated ring of receive buffers handing datagrams from a single receiving thread to processing threads.
+ * 
+ * Every slot is a view with its own direct buffer, allocated once. The receiving thread takes a free slot,
+ * receives into it and publishes it; processing threads take published slots in batches and free them once
+ * processed, so nothing is copied or allocated per datagram. What happens when every slot is taken is set by
+ * the {@link FullPolicy}.
+ * 
+ * @author Rusty
+ */
+public class ReceiveRing {
+	
+	/**
+	 * What the receiving thread does when no slot is free
+	 * 
+	 * @author Rusty
+	 */
+	public enum FullPolicy {
+		/**
+		 * Wait for processing to free a slot, leaving datagrams in the kernel's receive queue meanwhile.
+		 * The only policy where receiving waits on processing.
+		 */
+		BLOCK,
+		/**
+		 * Receive the datagram and drop it, keeping what is waiting to be processed
+		 */
+		DROP_NEWEST,
+		/**
+		 * Drop the oldest datagram not yet taken for processing and receive into its slot, so processing
+		 * always works on the most recent data. Falls back to dropping the newest if every slot is being processed.
+		 */
+		DROP_OLDEST
+	}
+	
+	private FullPolicy policy;
+	private ArrayBlockingQueue<RtpPacketView> free;
+	private ArrayBlockingQueue<RtpPacketView> published;
+	
+	/**
+	 * Slot for datagrams that are dropped on arrival, only used by the receiving thread
+	 */
+	private RtpPacketView discard;
+	
+	/**
+	 * Datagrams dropped because no slot was free, only written by the receiving thread
+	 */
+	private volatile long dropped;
+	
+	/**
+	 * Constructor, allocating every slot
+	 * 
+	 * @param capacity Amount of slots
+	 * @param bufferSize Largest datagram each slot can hold
+	 * @param policy What to do when no slot is free
+	 */
+	public ReceiveRing(int capacity, int bufferSize, FullPolicy policy) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Capacity cannot be 0 or negative");
+		
+		this.policy = policy;
+		this.free = new ArrayBlockingQueue<>(capacity);
+		this.published = new ArrayBlockingQueue<>(capacity);
+		for(int i=0; i<capacity; i++)
+			this.free.add(new RtpPacketView(bufferSize));
+		this.discard = new RtpPacketView(bufferSize);
+	}
+	
+	/**
+	 * Takes a slot to receive into, called by the receiving thread
+	 * 
+	 * @return A free slot, or the discard slot if the datagram is to be dropped (see {@link #isDiscard(RtpPacketView)})
+	 * @throws InterruptedException If interrupted while waiting for a slot
+	 */
+	public RtpPacketView claim() throws InterruptedException {
+		RtpPacketView slot = this.free.poll();
+		if(slot != null)
+			return slot;
+		
+		if(this.policy == FullPolicy.BLOCK)
+			return this.free.take();
+		
+		this.dropped++;
+		if(this.policy == FullPolicy.DROP_OLDEST && (slot = this.published.poll()) != null)
+			return slot;
+		return this.discard;
+	}
+	
+	/**
+	 * Checks whether a slot is the discard slot, so the datagram received into it should be dropped
+	 * 
+	 * @param slot
+	 * @return
+	 */
+	public boolean isDiscard(RtpPacketView slot) {
+		return slot == this.discard;
+	}
+	
+	/**
+	 * Hands a received slot to the processing threads, called by the receiving thread
+	 * 
+	 * @param slot Slot returned by {@link #claim()}
+	 */
+	public void publish(RtpPacketView slot) {
+		if(slot != this.discard)
+			this.published.add(slot);
+	}
+	
+	/**
+	 * Returns a slot that was claimed but not published
+	 * 
+	 * @param slot
+	 */
+	public void release(RtpPacketView slot) {
+		if(slot != this.discard)
+			this.free.add(slot);
+	}
+	
+	/**
+	 * Waits for published slots and takes as many as are ready, in the order they were received
+	 * 
+	 * @param batch List to add the slots to
+	 * @param max Most slots to take
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void take(List<RtpPacketView> batch, int max) throws InterruptedException {
+		batch.add(this.published.take());
+		this.published.drainTo(batch, max - 1);
+	}
+	
+	/**
+	 * Frees slots once they have been processed
+	 * 
+	 * @param batch Slots taken with {@link #take(List, int)}, the list is cleared
+	 */
+	public void free(List<RtpPacketView> batch) {
+		this.free.addAll(batch);
+		batch.clear();
+	}
+	
+	/**
+	 * Gets the amount of datagrams dropped because no slot was free
+	 * 
+	 * @return
+	 */
+	public long getDropped() {
+		return this.dropped;
+	}
+	
+	/**
+	 * Gets the amount of datagrams waiting to be processed
+	 * 
+	 * @return
+	 */
+	public int getDepth() {
+		return this.published.size();
+	}
+}
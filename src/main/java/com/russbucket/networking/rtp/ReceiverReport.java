@@ -0,0 +1,195 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Reception quality of a stream, sent regularly by its receiver (see {@link ReceptionStats}).
+ * 
+ * Payload:
+ * Kind, {@link StatMessage#RECEIVER_REPORT} (8 bits)
+ * Fraction of packets lost since the last report, out of 256 (8 bits)
+ * Packets lost in total (32 bits)
+ * Highest frame number received, counting wraparounds (32 bits)
+ * Interarrival jitter in microseconds (32 bits)
+ * Bitrate received since the last report in bits per second (32 bits)
+ * Timestamp of the last {@link SenderReport} received, 0 if none (32 bits)
+ * Delay since that sender report was received in 1/65536 seconds (32 bits)
+ * 
+ * Reports on a stream sent with version 2 headers have kind {@link StatMessage#STREAM_RECEIVER_REPORT},
+ * which has the stream's SSRC (32 bits) after the kind, so a receiver reports each sender separately.
+ * 
+ * @author Rusty
+ */
+public class ReceiverReport {
+	
+	private static final int SIZE = 26;
+	private static final int SSRC = 4;
+	
+	private int ssrc;
+	private int fractionLost;
+	private long cumulativeLost;
+	private long highestFrame;
+	private long jitter;
+	private long bitrate;
+	private int lastSenderReport;
+	private int delaySinceSenderReport;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param fractionLost Fraction lost since the last report, out of 256
+	 * @param cumulativeLost Packets lost in total
+	 * @param highestFrame Highest frame number received, counting wraparounds
+	 * @param jitter Interarrival jitter in microseconds
+	 * @param bitrate Bits per second received since the last report
+	 * @param lastSenderReport Timestamp of the last sender report received, 0 if none
+	 * @param delaySinceSenderReport Time since the sender report was received in 1/65536 seconds
+	 */
+	public ReceiverReport(int fractionLost, long cumulativeLost, long highestFrame, long jitter, long bitrate, int lastSenderReport, int delaySinceSenderReport) {
+		this(0, fractionLost, cumulativeLost, highestFrame, jitter, bitrate, lastSenderReport, delaySinceSenderReport);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param ssrc Stream reported on, or 0 for a stream sent with version 1 headers
+	 * @param fractionLost Fraction lost since the last report, out of 256
+	 * @param cumulativeLost Packets lost in total
+	 * @param highestFrame Highest frame number received, counting wraparounds
+	 * @param jitter Interarrival jitter in microseconds
+	 * @param bitrate Bits per second received since the last report
+	 * @param lastSenderReport Timestamp of the last sender report received, 0 if none
+	 * @param delaySinceSenderReport Time since the sender report was received in 1/65536 seconds
+	 */
+	public ReceiverReport(int ssrc, int fractionLost, long cumulativeLost, long highestFrame, long jitter, long bitrate, int lastSenderReport, int delaySinceSenderReport) {
+		this.ssrc = ssrc;
+		this.fractionLost = fractionLost & 0xFF;
+		this.cumulativeLost = cumulativeLost & 0xFFFFFFFFL;
+		this.highestFrame = highestFrame & 0xFFFFFFFFL;
+		this.jitter = Math.min(jitter, 0xFFFFFFFFL);
+		this.bitrate = Math.min(bitrate, 0xFFFFFFFFL);
+		this.lastSenderReport = lastSenderReport;
+		this.delaySinceSenderReport = delaySinceSenderReport;
+	}
+	
+	/**
+	 * Gets the stream reported on
+	 * 
+	 * @return SSRC, or 0 for a stream sent with version 1 headers
+	 */
+	public int getSsrc() {
+		return this.ssrc;
+	}
+	
+	/**
+	 * Gets the fraction of packets lost since the last report
+	 * 
+	 * @return Out of 256
+	 */
+	public int getFractionLost() {
+		return this.fractionLost;
+	}
+	
+	public long getCumulativeLost() {
+		return this.cumulativeLost;
+	}
+	
+	public long getHighestFrame() {
+		return this.highestFrame;
+	}
+	
+	/**
+	 * Gets the interarrival jitter
+	 * 
+	 * @return Microseconds
+	 */
+	public long getJitter() {
+		return this.jitter;
+	}
+	
+	/**
+	 * Gets the bitrate received since the last report
+	 * 
+	 * @return Bits per second
+	 */
+	public long getBitrate() {
+		return this.bitrate;
+	}
+	
+	public int getLastSenderReport() {
+		return this.lastSenderReport;
+	}
+	
+	public int getDelaySinceSenderReport() {
+		return this.delaySinceSenderReport;
+	}
+	
+	/**
+	 * Works out the round trip time from the sender report this report answers
+	 * 
+	 * @param now Timestamp of when this report arrived on the sender's clock, see {@link SenderReport#timestamp(long)}
+	 * @return Microseconds, or -1 if the receiver has not had a sender report
+	 */
+	public long getRoundTripTime(int now) {
+		if(this.lastSenderReport == 0)
+			return -1;
+		return SenderReport.toMicros(now - this.lastSenderReport - this.delaySinceSenderReport);
+	}
+	
+	/**
+	 * Encodes the report as a STAT packet
+	 * 
+	 * @return
+	 */
+	public RtpPacket toPacket() {
+		ByteBuffer payload = ByteBuffer.allocate(SIZE + (this.ssrc == 0 ? 0 : SSRC));
+		payload.put((byte)(this.ssrc == 0 ? StatMessage.RECEIVER_REPORT : StatMessage.STREAM_RECEIVER_REPORT));
+		if(this.ssrc != 0)
+			payload.putInt(this.ssrc);
+		payload.put((byte)this.fractionLost);
+		payload.putInt((int)this.cumulativeLost);
+		payload.putInt((int)this.highestFrame);
+		payload.putInt((int)this.jitter);
+		payload.putInt((int)this.bitrate);
+		payload.putInt(this.lastSenderReport);
+		payload.putInt(this.delaySinceSenderReport);
+		return StatMessage.toPacket(payload.array());
+	}
+	
+	/**
+	 * Decodes a report from a STAT payload
+	 * 
+	 * @param payload
+	 * @return The report or null if the payload is not a valid receiver report
+	 */
+	public static ReceiverReport decode(byte[] payload) {
+		if(!isReport(payload))
+			return null;
+		boolean stream = StatMessage.getKind(payload) == StatMessage.STREAM_RECEIVER_REPORT;
+		if(payload.length < SIZE + (stream ? SSRC : 0))
+			return null;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		buffer.get();
+		int ssrc = stream ? buffer.getInt() : 0;
+		return new ReceiverReport(ssrc, buffer.get() & 0xFF, buffer.getInt() & 0xFFFFFFFFL, buffer.getInt() & 0xFFFFFFFFL,
+				buffer.getInt() & 0xFFFFFFFFL, buffer.getInt() & 0xFFFFFFFFL, buffer.getInt(), buffer.getInt());
+	}
+	
+	/**
+	 * Checks whether a binary STAT payload is a receiver report of either kind
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public static boolean isReport(byte[] payload) {
+		int kind = StatMessage.getKind(payload);
+		return kind == StatMessage.RECEIVER_REPORT || kind == StatMessage.STREAM_RECEIVER_REPORT;
+	}
+	
+	public String toString() {
+		return String.format("lost %.1f%% (%d total), jitter %dus, %d kbit/s", this.fractionLost * 100 / 256.0, this.cumulativeLost, this.jitter, this.bitrate / 1000);
+	}
+}
@@ -0,0 +1,186 @@
+package com.russbucket.networking.rtp;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+
+/**
+ * Keeps the reception statistics of one sender's stream, for sending as {@link ReceiverReport}s.
+ * 
+ * Packets expected are counted from the sequence length of every new frame, and frames skipped over
+ * entirely are counted as the length of the frame before them. Each payload type numbers its frames
+ * separately, so each is followed on its own. Retransmits and duplicates can make more packets arrive
+ * than were expected, in which case no loss is reported.
+ * 
+ * Jitter follows RFC 3550, smoothing the difference in transit time between consecutive packets by 1/16.
+ * Transit time is the arrival time less the capture timestamp of a version 2 header, both in
+ * {@link RtpHeader#CLOCK_RATE} units. Version 1 headers carry no timestamp, so they are left out of jitter.
+ * 
+ * This class is not thread safe, statistics should be kept by the thread receiving the stream.
+ * 
+ * @author Rusty
+ */
+public class ReceptionStats {
+	
+	/**
+	 * Time between reports in milliseconds
+	 */
+	public static final long REPORT_INTERVAL = 1000;
+	
+	private int ssrc;
+	private Stream[] streams;
+	
+	private long expected;
+	private long received;
+	private long bytes;
+	private long highestFrame;
+	
+	/**
+	 * Jitter in {@link RtpHeader#CLOCK_RATE} units, scaled by 16 as in RFC 3550
+	 */
+	private long jitter;
+	private boolean hasTransit;
+	private int lastTransit;
+	
+	private long reportExpected;
+	private long reportReceived;
+	private long reportBytes;
+	private long reportTime;
+	
+	private int lastSenderReport;
+	private long senderReportArrival;
+	
+	public ReceptionStats() {
+		this(0);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param ssrc Stream the statistics are kept for, named in its reports, or 0 for a stream sent with version 1 headers
+	 */
+	public ReceptionStats(int ssrc) {
+		this.ssrc = ssrc;
+		this.streams = new Stream[RtpHeader.PayloadType.values().length];
+		for(int i=0; i<this.streams.length; i++)
+			this.streams[i] = new Stream();
+		this.reportTime = System.nanoTime();
+	}
+	
+	/**
+	 * Counts a received packet
+	 * 
+	 * @param type
+	 * @param frameNumber
+	 * @param sequenceLength
+	 * @param length Length of the datagram in bytes
+	 * @param timestamp Capture timestamp from the header, 0 for a version 1 header
+	 * @param nanos Arrival time from System.nanoTime
+	 */
+	public void received(RtpHeader.PayloadType type, int frameNumber, int sequenceLength, int length, int timestamp, long nanos) {
+		this.received++;
+		this.bytes += length;
+		
+		Stream stream = this.streams[type.ordinal()];
+		if(!stream.started) {
+			stream.started = true;
+			stream.frame = frameNumber;
+			stream.extendedFrame = frameNumber;
+			stream.sequenceLength = sequenceLength;
+			this.expected += sequenceLength;
+		}else {
+			int ahead = (frameNumber - stream.frame) & 0xFFFF;
+			if(ahead != 0 && ahead <= 0x7FFF) {
+				this.expected += (ahead - 1) * (long)stream.sequenceLength + sequenceLength;
+				stream.frame = frameNumber;
+				stream.extendedFrame += ahead;
+				stream.sequenceLength = sequenceLength;
+			}
+		}
+		if(type != RtpHeader.PayloadType.FEC)
+			this.highestFrame = Math.max(this.highestFrame, stream.extendedFrame);
+		
+		if(timestamp == 0)
+			return;
+		
+		//Both clocks wrap around, so only the difference between transits is meaningful
+		int transit = RtpHeader.timestamp(nanos) - timestamp;
+		if(this.hasTransit) {
+			long difference = Math.abs((long)(transit - this.lastTransit));
+			this.jitter += difference - ((this.jitter + 8) >> 4);
+		}
+		this.hasTransit = true;
+		this.lastTransit = transit;
+	}
+	
+	/**
+	 * Keeps the timestamp of a sender report, to be echoed in the next receiver report
+	 * 
+	 * @param report
+	 * @param nanos Arrival time from System.nanoTime
+	 */
+	public void senderReport(SenderReport report, long nanos) {
+		this.lastSenderReport = report.getTimestamp();
+		this.senderReportArrival = nanos;
+	}
+	
+	/**
+	 * Creates a report covering everything received since the previous report
+	 * 
+	 * @param nanos Time of the report from System.nanoTime
+	 * @return
+	 */
+	public ReceiverReport report(long nanos) {
+		long intervalExpected = this.expected - this.reportExpected;
+		long intervalLost = intervalExpected - (this.received - this.reportReceived);
+		int fraction = intervalExpected <= 0 || intervalLost <= 0 ? 0 : (int)Math.min(255, (intervalLost << 8) / intervalExpected);
+		
+		long elapsed = nanos - this.reportTime;
+		long bitrate = elapsed <= 0 ? 0 : (this.bytes - this.reportBytes) * 8 * 1_000_000_000L / elapsed;
+		
+		int delay = this.lastSenderReport == 0 ? 0 : SenderReport.timestamp(nanos - this.senderReportArrival);
+		
+		this.reportExpected = this.expected;
+		this.reportReceived = this.received;
+		this.reportBytes = this.bytes;
+		this.reportTime = nanos;
+		
+		return new ReceiverReport(this.ssrc, fraction, this.getCumulativeLost(), this.highestFrame, this.getJitter(), bitrate, this.lastSenderReport, delay);
+	}
+	
+	public long getExpected() {
+		return this.expected;
+	}
+	
+	public long getReceived() {
+		return this.received;
+	}
+	
+	/**
+	 * Gets the packets lost in total
+	 * 
+	 * @return 0 if more packets arrived than were expected
+	 */
+	public long getCumulativeLost() {
+		return Math.max(0, this.expected - this.received);
+	}
+	
+	/**
+	 * Gets the interarrival jitter
+	 * 
+	 * @return Microseconds
+	 */
+	public long getJitter() {
+		return (this.jitter >> 4) * 1_000_000 / RtpHeader.CLOCK_RATE;
+	}
+	
+	/**
+	 * Frame numbering of a single payload type
+	 * 
+	 * @author Rusty
+	 */
+	private static class Stream {
+		private boolean started;
+		private int frame;
+		private long extendedFrame;
+		private int sequenceLength;
+	}
+}
@@ -0,0 +1,148 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Bounded store of recently sent datagrams, so fragments can be sent again when a {@link NackMessage} asks for them.
+ * 
+ * Datagrams are kept in a fixed ring (the oldest is overwritten) and found through a direct mapped index by
+ * payload type, frame number and sequence number. A datagram whose index entry has been taken by another is
+ * simply not found, which costs a retransmit rather than memory or time. The arrays holding datagrams are
+ * reused once the ring has wrapped.
+ * 
+ * @author Rusty
+ */
+public class RetransmitRing {
+	
+	private long[] keys;
+	private byte[][] datagrams;
+	private int[] lengths;
+	private int next;
+	
+	private int[] index;
+	private int indexMask;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity Amount of datagrams kept
+	 */
+	public RetransmitRing(int capacity) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Capacity cannot be 0 or negative");
+		
+		this.keys = new long[capacity];
+		this.datagrams = new byte[capacity][];
+		this.lengths = new int[capacity];
+		
+		int indexSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+		this.index = new int[indexSize];
+		this.indexMask = indexSize - 1;
+	}
+	
+	private static long key(int type, int frameNumber, int sequenceNumber) {
+		return ((long)(type & 0xFF) << 32) | ((long)(frameNumber & 0xFFFF) << 16) | (sequenceNumber & 0xFFFF);
+	}
+	
+	private int slot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int)(hash >>> 40) & this.indexMask;
+	}
+	
+	/**
+	 * Keeps a copy of an encoded datagram
+	 * 
+	 * @param datagram Datagram from its position to its limit (position is not changed)
+	 */
+	public synchronized void add(ByteBuffer datagram) {
+		int length = datagram.remaining();
+		int position = datagram.position();
+		if(!RtpHeader.isValid(datagram, position, length))
+			return;
+		
+		long key = key(RtpHeader.type(datagram, position), RtpHeader.frameNumber(datagram, position), RtpHeader.sequenceNumber(datagram, position));
+		byte[] target = this.store(key, length);
+		datagram.get(position, target, 0, length);
+	}
+	
+	/**
+	 * Keeps a copy of a packet as it is sent
+	 * 
+	 * @param packet
+	 */
+	public synchronized void add(RtpPacket packet) {
+		RtpHeader header = packet.getHeader();
+		byte[] payload = packet.getPayload();
+		byte[] target = this.store(key(header.getType().toByte(), header.getFrameNumber(), header.getSequenceNumber()), header.getSize() + payload.length);
+		ByteBuffer buffer = ByteBuffer.wrap(target);
+		header.encodeInto(buffer);
+		buffer.put(payload);
+	}
+	
+	private byte[] store(long key, int length) {
+		int position = this.next;
+		this.next = (this.next + 1) % this.keys.length;
+		
+		if(this.datagrams[position] == null || this.datagrams[position].length < length)
+			this.datagrams[position] = new byte[length];
+		this.keys[position] = key;
+		this.lengths[position] = length;
+		this.index[this.slot(key)] = position + 1;
+		return this.datagrams[position];
+	}
+	
+	/**
+	 * Finds a datagram that was sent
+	 * 
+	 * @param type
+	 * @param frameNumber
+	 * @param sequenceNumber
+	 * @return A copy of the whole datagram or null if it is no longer kept
+	 */
+	public synchronized ByteBuffer get(RtpHeader.PayloadType type, int frameNumber, int sequenceNumber) {
+		long key = key(type.toByte(), frameNumber, sequenceNumber);
+		int position = this.index[this.slot(key)] - 1;
+		if(position < 0 || this.keys[position] != key || this.datagrams[position] == null)
+			return null;
+		
+		byte[] copy = new byte[this.lengths[position]];
+		System.arraycopy(this.datagrams[position], 0, copy, 0, copy.length);
+		return ByteBuffer.wrap(copy);
+	}
+	
+	/**
+	 * Finds every datagram a NACK asks for
+	 * 
+	 * @param nack
+	 * @param found Receives each datagram found
+	 * @return A NACK of the fragments that were not found, empty if all were
+	 */
+	public NackMessage get(NackMessage nack, Consumer<ByteBuffer> found) {
+		NackMessage missing = new NackMessage(nack.getType(), nack.getSsrc());
+		for(int range=0; range<nack.getRangeCount(); range++) {
+			int frameNumber = nack.getFrameNumber(range);
+			int first = nack.getFirstSequence(range);
+			int runStart = -1;
+			for(int i=0; i<nack.getCount(range); i++) {
+				int sequence = first + i;
+				ByteBuffer datagram = this.get(nack.getType(), frameNumber, sequence);
+				if(datagram != null) {
+					found.accept(datagram);
+					if(runStart >= 0) {
+						missing.add(frameNumber, runStart, sequence - runStart);
+						runStart = -1;
+					}
+				}else if(runStart < 0) {
+					runStart = sequence;
+				}
+			}
+			if(runStart >= 0)
+				missing.add(frameNumber, runStart, first + nack.getCount(range) - runStart);
+		}
+		return missing;
+	}
+}
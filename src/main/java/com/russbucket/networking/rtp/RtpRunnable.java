@@ -2,12 +2,22 @@ package com.russbucket.networking.rtp;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.russbucket.networking.rtp.metrics.ReceiveMetrics;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 /**
  * Runnable to handle the RTP continuous receiving, and passes packets out for processing.
  * 
+ * By default packets are processed on the receiving thread between receives. With a ring enabled
+ * (see {@link #enableRing(int, int, ReceiveRing.FullPolicy)}) the receiving thread only receives into
+ * the ring, and separate threads process what it holds in batches, so slow processing no longer
+ * slows how fast the socket is drained.
+ * 
  * Values cannot be changed after being assigned.
  * 
  * @author Rusty
@@ -16,6 +26,18 @@ public abstract class RtpRunnable implements Runnable{
 	
 	private int bufferSize;
 	private RtpSocket socket;
+	private boolean directReceive;
+	private ReceiveMetrics metrics = new ReceiveMetrics();
+	
+	private int ringCapacity;
+	private int ringConsumers;
+	private ReceiveRing.FullPolicy ringPolicy;
+	private volatile ReceiveRing ring;
+	
+	/**
+	 * Most datagrams passed to {@link #process(List)} at once
+	 */
+	public static final int MAX_BATCH = 64;
 	
 	/**
 	 * Processes the RTP packets
@@ -24,6 +46,31 @@ public abstract class RtpRunnable implements Runnable{
 	 */
 	public abstract void process(RtpPacket packet);
 	
+	/**
+	 * Processes a received datagram when direct receive is enabled.
+	 * 
+	 * By default this copies the view into an RtpPacket, override to read the view in place.
+	 * The view is reused for the next receive, so nothing from it should be kept.
+	 * 
+	 * @param view
+	 */
+	public void process(RtpPacketView view) {
+		this.process(view.toPacket());
+	}
+	
+	/**
+	 * Processes a batch of received datagrams when a ring is enabled, in the order they were received.
+	 * 
+	 * By default each view is passed to {@link #process(RtpPacketView)}, override to handle a batch at once
+	 * (such as only decoding the newest frame). The views are reused once this returns.
+	 * 
+	 * @param batch
+	 */
+	public void process(List<RtpPacketView> batch) {
+		for(RtpPacketView view : batch)
+			this.process(view);
+	}
+	
 	/**
 	 * Set the socket for the runnable to use.
 	 * 
@@ -40,6 +87,24 @@ public abstract class RtpRunnable implements Runnable{
 		this.socket = socket;
 	}
 	
+	/**
+	 * Gets the socket the runnable receives on
+	 * 
+	 * @return
+	 */
+	protected final RtpSocket getSocket() {
+		return this.socket;
+	}
+	
+	/**
+	 * Gets the amount of datagrams processed and the time from receiving to processing each
+	 * 
+	 * @return
+	 */
+	public final ReceiveMetrics getMetrics() {
+		return this.metrics;
+	}
+	
 	/**
 	 * Set the buffer size of the RtpPackets
 	 * 
@@ -56,19 +121,61 @@ public abstract class RtpRunnable implements Runnable{
 		this.bufferSize = bufferSize;
 	}
 	
+	/**
+	 * Receive into a preallocated ring and process from it on separate threads, see {@link #process(List)}.
+	 * 
+	 * Datagrams are passed out as views whether or not direct receive is enabled. With more than one
+	 * consumer, batches are processed at the same time and processing must be thread safe.
+	 * 
+	 * Once enabled, this cannot be changed
+	 * 
+	 * @param capacity Datagrams the ring can hold
+	 * @param consumers Amount of threads processing from the ring
+	 * @param policy What receiving does when the ring is full
+	 */
+	public final void enableRing(int capacity, int consumers, ReceiveRing.FullPolicy policy) {
+		if(capacity <= 0 || consumers <= 0)
+			throw new IllegalArgumentException("Capacity and consumers cannot be 0 or negative");
+		else if(this.ringCapacity != 0)
+			throw new RuntimeException("Cannot change ring once enabled");
+		
+		this.ringCapacity = capacity;
+		this.ringConsumers = consumers;
+		this.ringPolicy = policy;
+	}
+	
+	/**
+	 * Gets the ring being received into
+	 * 
+	 * @return The ring, or null if not enabled or not yet receiving
+	 */
+	public final ReceiveRing getRing() {
+		return this.ring;
+	}
+	
+	/**
+	 * Receive into a reusable direct buffer and pass packets out as views, see {@link #process(RtpPacketView)}
+	 * 
+	 * Once enabled, this cannot be disabled
+	 */
+	public final void enableDirectReceive() {
+		this.directReceive = true;
+	}
+	
 	@Override
 	public void run() {
 		if(this.bufferSize == 0 || this.socket == null)
 			throw new IllegalStateException("Unable to receive without socket and buffer size");
 		
-		byte[] buffer = new byte[this.bufferSize];
 		try {
-			while(!this.socket.isClosed()) {
-				RtpPacket packet = this.socket.receive(buffer);
-				this.process(packet);
-			}
+			if(this.ringCapacity != 0)
+				this.receiveRing();
+			else if(this.directReceive)
+				this.receiveDirect();
+			else
+				this.receive();
 		}catch(IOException e) {
-			if(e instanceof SocketException && this.socket.isClosed()) {
+			if((e instanceof SocketException || e instanceof ClosedChannelException) && this.socket.isClosed()) {
 				System.out.println("Socket has closed");
 			}else {
 				System.out.println("Unknown error occurred");
@@ -76,4 +183,102 @@ public abstract class RtpRunnable implements Runnable{
 			}
 		}
 	}
+	
+	private void receive() throws IOException {
+		byte[] buffer = new byte[this.bufferSize];
+		while(!this.socket.isClosed()) {
+			RtpPacket packet = this.socket.receive(buffer);
+			long received = System.nanoTime();
+			if(packet != null) {
+				this.process(packet);
+				this.metrics.processed(System.nanoTime() - received);
+			}else {
+				this.metrics.invalid();
+			}
+		}
+	}
+	
+	private void receiveDirect() throws IOException {
+		RtpPacketView view = new RtpPacketView(this.bufferSize);
+		while(!this.socket.isClosed()) {
+			this.socket.receive(view);
+			long received = System.nanoTime();
+			if(view.isValid()) {
+				this.process(view);
+				this.metrics.processed(System.nanoTime() - received);
+			}else {
+				this.metrics.invalid();
+			}
+		}
+	}
+	
+	private void receiveRing() throws IOException {
+		ReceiveRing ring = new ReceiveRing(this.ringCapacity, this.bufferSize, this.ringPolicy);
+		this.ring = ring;
+		this.metrics.setRing(ring);
+		Thread[] consumers = new Thread[this.ringConsumers];
+		for(int i=0; i<consumers.length; i++) {
+			consumers[i] = new Thread(()->this.consume(ring), Thread.currentThread().getName() + "-process-" + i);
+			consumers[i].setDaemon(true);
+			consumers[i].start();
+		}
+		
+		try {
+			while(!this.socket.isClosed()) {
+				RtpPacketView view = ring.claim();
+				try {
+					this.socket.receive(view);
+				}catch(IOException e) {
+					ring.release(view);
+					throw e;
+				}
+				view.setReceivedTime(System.nanoTime());
+				
+				//The ring was full, so the datagram is dropped (and counted by the ring)
+				if(ring.isDiscard(view))
+					continue;
+				
+				if(view.isValid()) {
+					ring.publish(view);
+				}else {
+					this.metrics.invalid();
+					ring.release(view);
+				}
+			}
+		}catch(InterruptedException e) {
+			//Stopped while waiting for a slot
+		}finally {
+			for(Thread consumer : consumers)
+				consumer.interrupt();
+		}
+	}
+	
+	/**
+	 * Processes batches from the ring until interrupted.
+	 * 
+	 * A batch whose processing throws is counted as failed and its slots are still freed, so one bad datagram
+	 * cannot stop the ring being drained.
+	 * 
+	 * @param ring
+	 */
+	private void consume(ReceiveRing ring) {
+		List<RtpPacketView> batch = new ArrayList<>(MAX_BATCH);
+		try {
+			while(true) {
+				ring.take(batch, MAX_BATCH);
+				try {
+					this.process(batch);
+					long now = System.nanoTime();
+					for(RtpPacketView view : batch)
+						this.metrics.processed(now - view.getReceivedTime());
+				}catch(RuntimeException e) {
+					this.metrics.failed();
+				}finally {
+					ring.free(batch);
+				}
+			}
+		}catch(InterruptedException e) {
+			//Receiving has stopped
+		}
+	}
 }
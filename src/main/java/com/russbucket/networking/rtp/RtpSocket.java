@@ -4,11 +4,19 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 
+import com.russbucket.networking.rtp.metrics.SocketMetrics;
 import com.russbucket.networking.rtp.packet.RtpHeader;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 /**
  * Socket implementation for RTP connections. This can be used to send and receive data.
@@ -19,13 +27,23 @@ import com.russbucket.networking.rtp.packet.RtpPacket;
  */
 public class RtpSocket {
 	
+	private DatagramChannel channel;
 	private DatagramSocket socket;
 	
+	private ByteBuffer headerBuffer = ByteBuffer.allocateDirect(RtpHeader.MAX_SIZE);
+	private ByteBuffer[] gather = new ByteBuffer[] {this.headerBuffer, null};
+	private ByteBuffer sendBuffer;
+	
+	/**
+	 * Datagrams and bytes through the socket, always counted
+	 */
+	private SocketMetrics metrics = new SocketMetrics();
+	
 	/**
 	 * This size is not imposed anywhere in the code,
 	 * but should be used in implementation for best results
 	 */
-	public static final int SIZE_MAX = 65000 + RtpHeader.SIZE;
+	public static final int SIZE_MAX = 65000 + RtpHeader.MAX_SIZE;
 	
 	/**
 	 * Create a socket
@@ -44,23 +62,111 @@ public class RtpSocket {
 	 * @throws SocketException If the socket could not be opened or binded to the specific port
 	 */
 	public RtpSocket(int port) throws SocketException {
-		this.socket = new DatagramSocket(port);
+		this(port, false);
+	}
+	
+	/**
+	 * Create a socket to accept data on, optionally sharing the port with other sockets
+	 * 
+	 * With SO_REUSEPORT the kernel spreads datagrams between every socket bound to the port,
+	 * always sending a given sender's datagrams to the same socket.
+	 * 
+	 * @param port Port to bind the socket to (0 for any available port)
+	 * @param reusePort Whether to set SO_REUSEPORT, see {@link #isReusePortSupported()}
+	 * 
+	 * @throws SocketException If the socket could not be opened or binded to the specific port
+	 */
+	public RtpSocket(int port, boolean reusePort) throws SocketException {
+		try {
+			this.channel = DatagramChannel.open();
+			if(reusePort)
+				this.channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			this.channel.bind(new InetSocketAddress(port));
+		}catch(SocketException e) {
+			this.closeQuietly();
+			throw e;
+		}catch(IOException e) {
+			this.closeQuietly();
+			throw (SocketException) new SocketException("Unable to open channel").initCause(e);
+		}catch(UnsupportedOperationException e) {
+			this.closeQuietly();
+			throw (SocketException) new SocketException("SO_REUSEPORT is not supported").initCause(e);
+		}
+		
+		this.socket = this.channel.socket();
 		this.socket.setTrafficClass(0x02 | 0x04 | 0x08 | 0x10);
 	}
 	
+	/**
+	 * Checks whether SO_REUSEPORT can be used on this platform
+	 * 
+	 * @return True if multiple sockets can share a port
+	 */
+	public static boolean isReusePortSupported() {
+		try(DatagramChannel channel = DatagramChannel.open()) {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}catch(IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Gets the local port the socket is bound to
+	 * 
+	 * @return
+	 */
+	public int getLocalPort() {
+		return this.socket.getLocalPort();
+	}
+	
+	/**
+	 * Gets the traffic through the socket, see {@link com.russbucket.networking.rtp.metrics.Metrics} to export it
+	 * 
+	 * @return
+	 */
+	public SocketMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Gets the remote endpoint the socket is connected to
+	 * 
+	 * @return The address or null if not connected
+	 */
+	public SocketAddress getRemoteSocketAddress() {
+		return this.socket.getRemoteSocketAddress();
+	}
+	
 	/**
 	 * Receives a packet
 	 * 
 	 * @param receiveBuffer
-	 * @return
+	 * @return The packet, or null if the datagram does not hold a whole header of a known version
 	 * @throws IOException
 	 */
 	public RtpPacket receive(byte[] receiveBuffer) throws IOException {
 		DatagramPacket udp = new DatagramPacket(receiveBuffer, receiveBuffer.length);
 		this.socket.receive(udp);
+		this.metrics.received(udp.getLength());
 		return RtpPacket.createPacket(udp.getData(), udp.getLength(), udp.getAddress(), udp.getPort());
 	}
 	
+	/**
+	 * Receives a packet directly into the view's buffer, without copying or allocating
+	 * 
+	 * @param view Reusable view to receive into (its previous contents are overwritten)
+	 * @return The same view, now holding the received datagram
+	 * @throws IOException
+	 */
+	public RtpPacketView receive(RtpPacketView view) throws IOException {
+		ByteBuffer buffer = view.getBuffer();
+		buffer.clear();
+		SocketAddress sender = this.channel.receive(buffer);
+		view.setReceived(buffer.position(), sender);
+		this.metrics.received(buffer.position());
+		return view;
+	}
+	
 	/**
 	 * Returns whether the socket is clsoed
 	 * 
@@ -78,6 +184,14 @@ public class RtpSocket {
 		this.socket.close();
 	}
 	
+	private void closeQuietly() {
+		if(this.channel == null)
+			return;
+		try {
+			this.channel.close();
+		}catch(IOException e) {}
+	}
+	
 	/**
 	 * Connects to the remote address and port
 	 * 
@@ -111,7 +225,7 @@ public class RtpSocket {
 	 * @throws IOException If an IO error occurs
 	 */
 	public void send(RtpPacket packet) throws IOException {
-		this.send(packet, this.socket.getInetAddress(), this.socket.getPort());
+		this.send(packet.getHeader(), ByteBuffer.wrap(packet.getPayload()));
 	}
 	
 	/**
@@ -124,7 +238,111 @@ public class RtpSocket {
 	 * @throws IOException If an IO error occurs
 	 */
 	public void send(RtpPacket packet, InetAddress address, int port) throws IOException {
-		DatagramPacket udp = new DatagramPacket(packet.getPacketAsBytes(), packet.getPacketAsBytes().length, address, port);
-		this.socket.send(udp);
+		this.send(packet.getHeader(), ByteBuffer.wrap(packet.getPayload()), new InetSocketAddress(address, port));
+	}
+	
+	/**
+	 * Send a header and payload to the remote endpoint (if connected) as one datagram.
+	 * 
+	 * The header is encoded into a reusable buffer and gathered with the payload in a single write,
+	 * so the datagram is never assembled in a byte array.
+	 * 
+	 * @param header
+	 * @param payload Payload from its position to its limit (position is advanced)
+	 * 
+	 * @throws IOException If an IO error occurs
+	 */
+	public void send(RtpHeader header, ByteBuffer payload) throws IOException {
+		synchronized(this.headerBuffer) {
+			this.headerBuffer.clear();
+			header.encodeInto(this.headerBuffer);
+			this.headerBuffer.flip();
+			this.gather[1] = payload;
+			try {
+				this.metrics.sent(this.channel.write(this.gather));
+			}catch(IOException e) {
+				this.metrics.sendFailed();
+				throw e;
+			}finally {
+				this.gather[1] = null;
+			}
+		}
+	}
+	
+	/**
+	 * Send a header and payload to another endpoint as one datagram.
+	 * 
+	 * Unconnected channels cannot gather, so the header and payload are written into a reusable
+	 * direct buffer which is handed to the kernel without any further copy.
+	 * 
+	 * @param header
+	 * @param payload Payload from its position to its limit (position is advanced)
+	 * @param target Address of the endpoint
+	 * 
+	 * @throws IOException If an IO error occurs
+	 */
+	public void send(RtpHeader header, ByteBuffer payload, SocketAddress target) throws IOException {
+		synchronized(this.headerBuffer) {
+			if(this.sendBuffer == null || this.sendBuffer.capacity() < header.getSize() + payload.remaining())
+				this.sendBuffer = ByteBuffer.allocateDirect(Math.max(SIZE_MAX, header.getSize() + payload.remaining()));
+			
+			this.sendBuffer.clear();
+			header.encodeInto(this.sendBuffer);
+			this.sendBuffer.put(payload);
+			this.sendBuffer.flip();
+			this.send(this.sendBuffer, target);
+		}
+	}
+	
+	/**
+	 * Send an already encoded datagram to another endpoint, as received or built elsewhere
+	 * 
+	 * @param datagram Datagram from its position to its limit (position is advanced)
+	 * @param target Address of the endpoint
+	 * 
+	 * @throws IOException If an IO error occurs
+	 */
+	public void send(ByteBuffer datagram, SocketAddress target) throws IOException {
+		try {
+			this.metrics.sent(this.channel.send(datagram, target));
+		}catch(IOException e) {
+			this.metrics.sendFailed();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Send several already encoded datagrams to another endpoint one after another, such as everything queued for it.
+	 * 
+	 * This is a loop over {@link DatagramChannel#send}, one system call per datagram, as the JDK has no
+	 * multi-datagram send. It only saves counting the traffic per datagram, and a datagram that fails (for
+	 * example when the endpoint has gone) does not stop the rest being sent.
+	 * 
+	 * @param datagrams Datagrams from their positions to their limits (positions are advanced)
+	 * @param count Amount of datagrams to send from the start of the array
+	 * @param target Address of the endpoint
+	 * @return Amount of datagrams sent, the rest failed and were counted as send errors
+	 * 
+	 * @throws ClosedChannelException If the socket is closed, nothing after is sent
+	 */
+	public int sendEach(ByteBuffer[] datagrams, int count, SocketAddress target) throws ClosedChannelException {
+		int sent = 0;
+		long bytes = 0;
+		try {
+			for(int i=0; i<count; i++) {
+				try {
+					bytes += this.channel.send(datagrams[i], target);
+					sent++;
+				}catch(ClosedChannelException e) {
+					this.metrics.sendFailed();
+					throw e;
+				}catch(IOException e) {
+					this.metrics.sendFailed();
+				}
+			}
+		}finally {
+			this.metrics.sent(sent, bytes);
+		}
+		return sent;
 	}
 }
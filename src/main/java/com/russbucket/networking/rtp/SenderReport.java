@@ -0,0 +1,102 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Sent regularly by a sender, so receivers can compare what was sent with what arrived and echo the
+ * timestamp back in their {@link ReceiverReport} for the sender to measure the round trip time.
+ * 
+ * Payload:
+ * Kind, {@link StatMessage#SENDER_REPORT} (8 bits)
+ * Timestamp of the sender's clock in 1/65536 seconds (32 bits), see {@link #timestamp(long)}
+ * Packets sent (32 bits)
+ * Bytes sent (32 bits, wraps around)
+ * 
+ * @author Rusty
+ */
+public class SenderReport {
+	
+	private static final int SIZE = 13;
+	
+	private int timestamp;
+	private long packetsSent;
+	private long bytesSent;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param timestamp Timestamp of the sender's clock, see {@link #timestamp(long)}
+	 * @param packetsSent
+	 * @param bytesSent
+	 */
+	public SenderReport(int timestamp, long packetsSent, long bytesSent) {
+		this.timestamp = timestamp;
+		this.packetsSent = packetsSent & 0xFFFFFFFFL;
+		this.bytesSent = bytesSent & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * Converts System.nanoTime to the 32 bit clock used by reports, in 1/65536 seconds.
+	 * 
+	 * This wraps around every 18 hours, which is plenty for measuring round trips.
+	 * 
+	 * @param nanos
+	 * @return
+	 */
+	public static int timestamp(long nanos) {
+		return (int)((nanos / 1000) * 65536 / 1_000_000);
+	}
+	
+	/**
+	 * Converts a difference between report timestamps to microseconds
+	 * 
+	 * @param difference
+	 * @return
+	 */
+	public static long toMicros(int difference) {
+		return (difference & 0xFFFFFFFFL) * 1_000_000 / 65536;
+	}
+	
+	public int getTimestamp() {
+		return this.timestamp;
+	}
+	
+	public long getPacketsSent() {
+		return this.packetsSent;
+	}
+	
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+	
+	/**
+	 * Encodes the report as a STAT packet
+	 * 
+	 * @return
+	 */
+	public RtpPacket toPacket() {
+		ByteBuffer payload = ByteBuffer.allocate(SIZE);
+		payload.put((byte)StatMessage.SENDER_REPORT);
+		payload.putInt(this.timestamp);
+		payload.putInt((int)this.packetsSent);
+		payload.putInt((int)this.bytesSent);
+		return StatMessage.toPacket(payload.array());
+	}
+	
+	/**
+	 * Decodes a report from a STAT payload
+	 * 
+	 * @param payload
+	 * @return The report or null if the payload is not a valid sender report
+	 */
+	public static SenderReport decode(byte[] payload) {
+		if(payload.length < SIZE || StatMessage.getKind(payload) != StatMessage.SENDER_REPORT)
+			return null;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		buffer.get();
+		return new SenderReport(buffer.getInt(), buffer.getInt() & 0xFFFFFFFFL, buffer.getInt() & 0xFFFFFFFFL);
+	}
+}
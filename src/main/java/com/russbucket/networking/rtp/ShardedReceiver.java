@@ -0,0 +1,123 @@
+package com.russbucket.networking.rtp;
+
+import java.net.SocketException;
+import java.util.function.IntFunction;
+
+/**
+ * Spreads receiving on one port across several threads.
+ * 
+ * Each shard is its own socket bound to the port with SO_REUSEPORT and its own RtpRunnable, so
+ * receiving and processing scale with the amount of cores. The kernel hashes each sender to a
+ * single socket, which keeps every sender's packets in order on one shard.
+ * 
+ * When SO_REUSEPORT is not available only a single shard is created.
+ * 
+ * @author Rusty
+ */
+public class ShardedReceiver {
+	
+	private RtpSocket[] sockets;
+	private RtpRunnable[] shards;
+	private Thread[] threads;
+	
+	/**
+	 * Create the sockets and runnables for each shard
+	 * 
+	 * @param port Port to share between the shards (0 for any available port)
+	 * @param shardCount Amount of shards to create
+	 * @param bufferSize Buffer size of the RtpPackets for each shard
+	 * @param shardFactory Creates the runnable (and its processors) for a shard index
+	 * 
+	 * @throws SocketException If a socket could not be opened or binded to the port
+	 */
+	public ShardedReceiver(int port, int shardCount, int bufferSize, IntFunction<? extends RtpRunnable> shardFactory) throws SocketException {
+		if(shardCount <= 0)
+			throw new IllegalArgumentException("Shard count cannot be 0 or negative");
+		
+		boolean reusePort = shardCount > 1 && RtpSocket.isReusePortSupported();
+		if(shardCount > 1 && !reusePort) {
+			System.out.println("SO_REUSEPORT is not supported, receiving on a single shard");
+			shardCount = 1;
+		}
+		
+		this.sockets = new RtpSocket[shardCount];
+		this.shards = new RtpRunnable[shardCount];
+		this.threads = new Thread[shardCount];
+		
+		try {
+			for(int i=0; i<shardCount; i++) {
+				this.sockets[i] = new RtpSocket(port, reusePort);
+				//The first socket decides the port if any was allowed
+				port = this.sockets[i].getLocalPort();
+				
+				this.shards[i] = shardFactory.apply(i);
+				this.shards[i].setSocket(this.sockets[i]);
+				this.shards[i].setBufferSize(bufferSize);
+			}
+		}catch(SocketException e) {
+			this.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Starts a receiving thread per shard
+	 */
+	public void start() {
+		for(int i=0; i<this.shards.length; i++) {
+			if(this.threads[i] != null)
+				throw new IllegalStateException("Shards have already been started");
+			
+			this.threads[i] = new Thread(this.shards[i], "rtp-shard-" + i);
+			this.threads[i].start();
+		}
+	}
+	
+	/**
+	 * Gets the amount of shards receiving
+	 * 
+	 * @return
+	 */
+	public int getShardCount() {
+		return this.shards.length;
+	}
+	
+	/**
+	 * Gets the runnable of a shard
+	 * 
+	 * @param shard Index of the shard
+	 * @return
+	 */
+	public RtpRunnable getShard(int shard) {
+		return this.shards[shard];
+	}
+	
+	/**
+	 * Gets the socket of a shard
+	 * 
+	 * @param shard Index of the shard
+	 * @return
+	 */
+	public RtpSocket getSocket(int shard) {
+		return this.sockets[shard];
+	}
+	
+	/**
+	 * Gets the port all shards are bound to
+	 * 
+	 * @return
+	 */
+	public int getLocalPort() {
+		return this.sockets[0].getLocalPort();
+	}
+	
+	/**
+	 * Closes every shard's socket, which stops the receiving threads
+	 */
+	public void close() {
+		for(RtpSocket socket : this.sockets) {
+			if(socket != null)
+				socket.close();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+/**
+ * Binary control messages sent as STAT packets alongside the text messages (JOIN, LEAVE and KEYFRAME).
+ * 
+ * The first payload byte tells them apart, text is ASCII so always below 0x80, while binary messages start
+ * with their kind which has the top bit set. Binary messages always fit in a single datagram and are sent
+ * as sequence 0 of 1, so they never go through a {@link TextProcessor}.
+ * 
+ * @author Rusty
+ */
+public final class StatMessage {
+	
+	/**
+	 * Request to send fragments again, see {@link NackMessage}
+	 */
+	public static final int NACK = 0x80;
+	/**
+	 * Reception quality of a stream, see {@link ReceiverReport}
+	 */
+	public static final int RECEIVER_REPORT = 0x81;
+	/**
+	 * Sender's clock and counts, see {@link SenderReport}
+	 */
+	public static final int SENDER_REPORT = 0x82;
+	/**
+	 * Request to send fragments of a single stream again, see {@link NackMessage}
+	 */
+	public static final int STREAM_NACK = 0x83;
+	/**
+	 * Reception quality of a single stream, see {@link ReceiverReport}
+	 */
+	public static final int STREAM_RECEIVER_REPORT = 0x84;
+	
+	private StatMessage() {}
+	
+	/**
+	 * Checks whether a STAT payload is a binary message rather than text
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public static boolean isBinary(byte[] payload) {
+		return payload.length > 0 && (payload[0] & 0x80) != 0;
+	}
+	
+	/**
+	 * Checks whether a STAT payload is a binary message rather than text
+	 * 
+	 * @param payload Payload from its position to its limit
+	 * @return
+	 */
+	public static boolean isBinary(ByteBuffer payload) {
+		return payload.hasRemaining() && (payload.get(payload.position()) & 0x80) != 0;
+	}
+	
+	/**
+	 * Gets the kind of a binary message
+	 * 
+	 * @param payload
+	 * @return Kind such as {@link #NACK}
+	 */
+	public static int getKind(byte[] payload) {
+		return payload[0] & 0xFF;
+	}
+	
+	/**
+	 * Wraps a binary message in a STAT packet
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	static RtpPacket toPacket(byte[] payload) {
+		return new RtpPacket(payload, RtpHeader.PayloadType.STAT, 0, 0, 1);
+	}
+}
@@ -0,0 +1,191 @@
+package com.russbucket.networking.rtp;
+
+import java.util.function.Consumer;
+
+/**
+ * Table of streams keyed by SSRC, for routing a packet to whatever handles its stream.
+ * 
+ * The table is an open addressing hash table published as an immutable snapshot on every change, so a lookup on
+ * the per-packet path is a hash and a probe or two without locking, however many streams there are. Changes copy
+ * the table, which is fine as streams are only added and removed as senders join and leave.
+ * 
+ * Any SSRC can be a key, including 0 which is used for streams sent with version 1 headers.
+ * 
+ * @author Rusty
+ * 
+ * @param <T> Data held for each stream
+ */
+public class StreamTable<T> {
+	
+	private static final int MIN_CAPACITY = 8;
+	
+	private volatile Table table = new Table(MIN_CAPACITY);
+	
+	/**
+	 * Finds the data for a stream
+	 * 
+	 * @param ssrc
+	 * @return The data for the stream, or null if it is not present
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int ssrc) {
+		Table current = this.table;
+		int index = current.indexOf(ssrc);
+		return index < 0 ? null : (T)current.values[index];
+	}
+	
+	/**
+	 * Adds or replaces a stream
+	 * 
+	 * @param ssrc
+	 * @param value Data for the stream
+	 * @return The previous data for the stream, or null if it was not present
+	 */
+	public synchronized T put(int ssrc, T value) {
+		if(value == null)
+			throw new IllegalArgumentException("Value cannot be null");
+		
+		Table current = this.table;
+		T previous = this.get(ssrc);
+		int size = current.size + (previous == null ? 1 : 0);
+		Table updated = new Table(capacity(size));
+		current.copyTo(updated, ssrc);
+		updated.insert(ssrc, value);
+		this.table = updated;
+		return previous;
+	}
+	
+	/**
+	 * Removes a stream
+	 * 
+	 * @param ssrc
+	 * @return The data for the stream, or null if it was not present
+	 */
+	public synchronized T remove(int ssrc) {
+		Table current = this.table;
+		T previous = this.get(ssrc);
+		if(previous == null)
+			return null;
+		
+		Table updated = new Table(capacity(current.size - 1));
+		current.copyTo(updated, ssrc);
+		this.table = updated;
+		return previous;
+	}
+	
+	/**
+	 * Removes a stream only if it still has the data given
+	 * 
+	 * @param ssrc
+	 * @param value
+	 * @return True if the stream was removed
+	 */
+	public synchronized boolean remove(int ssrc, T value) {
+		if(this.get(ssrc) != value)
+			return false;
+		this.remove(ssrc);
+		return true;
+	}
+	
+	/**
+	 * Removes every stream
+	 */
+	public synchronized void clear() {
+		this.table = new Table(MIN_CAPACITY);
+	}
+	
+	/**
+	 * Passes the data for every stream to an action, from a snapshot of the table
+	 * 
+	 * @param action
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Consumer<? super T> action) {
+		Table current = this.table;
+		for(int i=0; i<current.values.length; i++) {
+			if(current.values[i] != null)
+				action.accept((T)current.values[i]);
+		}
+	}
+	
+	/**
+	 * Gets the amount of streams in the table
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return this.table.size;
+	}
+	
+	/**
+	 * Gets a capacity keeping the table at most half full
+	 * 
+	 * @param size
+	 * @return Power of two
+	 */
+	private static int capacity(int size) {
+		int capacity = MIN_CAPACITY;
+		while(capacity < size * 2)
+			capacity <<= 1;
+		return capacity;
+	}
+	
+	/**
+	 * Spreads the SSRC over the table, as senders are free to pick SSRCs that differ in only a few bits
+	 * 
+	 * @param ssrc
+	 * @param mask
+	 * @return
+	 */
+	private static int slot(int ssrc, int mask) {
+		return (int)((ssrc * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+	}
+	
+	/**
+	 * Immutable once published, a slot is empty when its value is null
+	 * 
+	 * @author Rusty
+	 */
+	private static final class Table {
+		private final int[] keys;
+		private final Object[] values;
+		private int size;
+		
+		private Table(int capacity) {
+			this.keys = new int[capacity];
+			this.values = new Object[capacity];
+		}
+		
+		private int indexOf(int ssrc) {
+			int mask = this.keys.length - 1;
+			for(int index = slot(ssrc, mask); this.values[index] != null; index = (index + 1) & mask) {
+				if(this.keys[index] == ssrc)
+					return index;
+			}
+			return -1;
+		}
+		
+		private void insert(int ssrc, Object value) {
+			int mask = this.keys.length - 1;
+			int index = slot(ssrc, mask);
+			while(this.values[index] != null)
+				index = (index + 1) & mask;
+			this.keys[index] = ssrc;
+			this.values[index] = value;
+			this.size++;
+		}
+		
+		/**
+		 * Copies every stream into another table, leaving one out
+		 * 
+		 * @param other
+		 * @param skip SSRC to leave out
+		 */
+		private void copyTo(Table other, int skip) {
+			for(int i=0; i<this.keys.length; i++) {
+				if(this.values[i] != null && this.keys[i] != skip)
+					other.insert(this.keys[i], this.values[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package com.russbucket.networking.rtp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+
+/**
+ * Bounded queue of datagrams waiting to be sent to a single destination, drained by a shared pool of carrier threads.
+ * 
+ * Queueing never blocks, so the thread receiving and forwarding media is never held up by a destination that
+ * is slow to send to or failing. At most one carrier drains a queue at a time (keeping datagrams in order). It
+ * takes up to {@link #DRAIN_BATCH} datagrams at once, sends them and then hands the carrier back,
+ * so one busy destination cannot hold a carrier while others wait.
+ * 
+ * When the queue is full, whole frames are dropped rather than single fragments: every queued fragment of the
+ * oldest media frame is removed, and any later fragments of a dropped frame are dropped as they arrive, so the
+ * destination only receives frames it can complete. Control datagrams are never removed to make room.
+ * 
+ * Pooled datagrams are not copied, the queue holds a reference to each until it has been sent or dropped,
+ * so a single buffer can be queued to every destination.
+ * 
+ * @author Rusty
+ */
+public class SubscriberQueue {
+	
+	/**
+	 * Datagrams a carrier sends from one queue before moving on to the next
+	 */
+	public static final int DRAIN_BATCH = 64;
+	
+	/**
+	 * Frames whose remaining fragments are dropped as they arrive, after the rest of the frame was dropped
+	 */
+	private static final int DROPPED_FRAMES_KEPT = 8;
+	/**
+	 * Time after a frame is dropped that its remaining fragments are still dropped, long after they would have
+	 * arrived but well before frame numbers wrap around
+	 */
+	private static final long DROPPED_FRAME_TIMEOUT = 1_000_000_000L;
+	
+	private SocketAddress target;
+	private RtpSocket socket;
+	private Executor carriers;
+	private int capacity;
+	
+	private ArrayDeque<PooledBuffer> queue;
+	/**
+	 * Datagrams taken from the queue to send and the buffers holding them, only used by the carrier draining the queue
+	 */
+	private ByteBuffer[] batch;
+	private PooledBuffer[] batchBuffers;
+	private AtomicBoolean scheduled;
+	private volatile boolean paused;
+	private volatile boolean closed;
+	
+	/**
+	 * Frame keys recently dropped, written in a ring
+	 */
+	private long[] droppedFrames;
+	private long[] droppedTimes;
+	private int droppedFramesNext;
+	
+	private volatile int depth;
+	private volatile int maxDepth;
+	private LongAdder dropped;
+	private LongAdder framesDropped;
+	private LongAdder sent;
+	private LongAdder errors;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param target Destination of every datagram queued
+	 * @param socket Socket to send on, shared with other queues
+	 * @param capacity Datagrams that can wait to be sent
+	 * @param carriers Threads draining the queue, see {@link #newCarrierPool(int)}
+	 */
+	public SubscriberQueue(SocketAddress target, RtpSocket socket, int capacity, Executor carriers) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Capacity cannot be 0 or negative");
+		
+		this.target = target;
+		this.socket = socket;
+		this.capacity = capacity;
+		this.carriers = carriers;
+		this.queue = new ArrayDeque<>(capacity);
+		this.batch = new ByteBuffer[DRAIN_BATCH];
+		this.batchBuffers = new PooledBuffer[DRAIN_BATCH];
+		this.scheduled = new AtomicBoolean();
+		this.droppedFrames = new long[DROPPED_FRAMES_KEPT];
+		Arrays.fill(this.droppedFrames, -1);
+		this.droppedTimes = new long[DROPPED_FRAMES_KEPT];
+		this.dropped = new LongAdder();
+		this.framesDropped = new LongAdder();
+		this.sent = new LongAdder();
+		this.errors = new LongAdder();
+	}
+	
+	/**
+	 * Creates a pool of daemon carrier threads to share between queues
+	 * 
+	 * @param threads Amount of carriers, a few are enough as sends do not block for long
+	 * @return
+	 */
+	public static ExecutorService newCarrierPool(int threads) {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, (runnable)->{
+			Thread thread = new Thread(runnable, "rtp-send-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Gets the frame a datagram belongs to
+	 * 
+	 * @param datagram
+	 * @return Stream, payload type and frame number, or -1 for control datagrams which are never dropped by frame
+	 */
+	private static long frameKey(PooledBuffer buffer) {
+		ByteBuffer datagram = buffer.getBuffer();
+		int position = datagram.position();
+		if(!RtpHeader.isValid(datagram, position, datagram.remaining()))
+			return -1;
+		byte type = RtpHeader.type(datagram, position);
+		if(type == RtpHeader.PayloadType.STAT.toByte())
+			return -1;
+		long stream = ((RtpHeader.ssrc(datagram, position) & 0x7FFFFFL) << 8) | (type & 0xFF);
+		return (stream << 32) | (RtpHeader.frameNumber(datagram, position) & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Queues a datagram to be sent
+	 * 
+	 * The datagram is not copied, so the same buffer can be queued to many destinations but must not be
+	 * changed afterwards. Its position is not changed.
+	 * 
+	 * @param datagram Encoded datagram from its position to its limit
+	 * @return False if the datagram was dropped
+	 */
+	public boolean offer(ByteBuffer datagram) {
+		return this.offer(PooledBuffer.wrap(datagram));
+	}
+	
+	/**
+	 * Queues a pooled datagram to be sent, retaining it until sent or dropped
+	 * 
+	 * The caller keeps its own reference to release. The datagram must not be changed afterwards, and its
+	 * position is not changed.
+	 * 
+	 * @param datagram Buffer holding an encoded datagram from its position to its limit
+	 * @return False if the datagram was dropped
+	 */
+	public boolean offer(PooledBuffer datagram) {
+		if(this.closed || datagram.getBuffer().remaining() == 0)
+			return false;
+		
+		long key = frameKey(datagram);
+		synchronized(this) {
+			//Closing drops everything queued, so nothing can be queued after
+			if(this.closed)
+				return false;
+			if(key >= 0 && this.wasDropped(key)) {
+				this.dropped.increment();
+				return false;
+			}
+			if(this.queue.size() >= this.capacity) {
+				//A frame filling the whole queue can never be sent whole, so it is dropped along with the datagram
+				long oldest = this.oldestFrame();
+				if(oldest >= 0)
+					this.dropFrame(oldest);
+				if(oldest < 0 || oldest == key) {
+					if(key >= 0 && oldest != key)
+						this.frameDropped(key);
+					this.dropped.increment();
+					return false;
+				}
+			}
+			
+			this.queue.add(datagram.retain());
+			this.depth = this.queue.size();
+			if(this.depth > this.maxDepth)
+				this.maxDepth = this.depth;
+		}
+		
+		if(!this.paused)
+			this.schedule();
+		return true;
+	}
+	
+	/**
+	 * Gets the oldest queued media frame
+	 * 
+	 * @return Frame key, or -1 if only control datagrams are queued
+	 */
+	private long oldestFrame() {
+		for(PooledBuffer queued : this.queue) {
+			long key = frameKey(queued);
+			if(key >= 0)
+				return key;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Removes every queued fragment of a frame
+	 * 
+	 * @param key
+	 */
+	private void dropFrame(long key) {
+		for(Iterator<PooledBuffer> iterator = this.queue.iterator(); iterator.hasNext();) {
+			PooledBuffer queued = iterator.next();
+			if(frameKey(queued) == key) {
+				iterator.remove();
+				queued.release();
+				this.dropped.increment();
+			}
+		}
+		this.depth = this.queue.size();
+		this.frameDropped(key);
+	}
+	
+	private void frameDropped(long key) {
+		this.framesDropped.increment();
+		this.droppedFrames[this.droppedFramesNext] = key;
+		this.droppedTimes[this.droppedFramesNext] = System.nanoTime();
+		this.droppedFramesNext = (this.droppedFramesNext + 1) % this.droppedFrames.length;
+	}
+	
+	private boolean wasDropped(long key) {
+		for(int i=0; i<this.droppedFrames.length; i++) {
+			if(this.droppedFrames[i] == key)
+				return System.nanoTime() - this.droppedTimes[i] < DROPPED_FRAME_TIMEOUT;
+		}
+		return false;
+	}
+	
+	private void schedule() {
+		if(!this.scheduled.compareAndSet(false, true))
+			return;
+		
+		try {
+			this.carriers.execute(this::drain);
+		}catch(RejectedExecutionException e) {
+			//Carriers have been shut down
+			this.close();
+		}
+	}
+	
+	/**
+	 * Sends up to a batch of datagrams, then hands the carrier back
+	 */
+	private void drain() {
+		int count = 0;
+		synchronized(this) {
+			PooledBuffer datagram;
+			while(count < this.batch.length && !this.closed && (datagram = this.queue.poll()) != null) {
+				//Read through a duplicate as the buffer may be queued to other destinations
+				this.batchBuffers[count] = datagram;
+				this.batch[count++] = datagram.getBuffer().duplicate();
+			}
+			this.depth = this.queue.size();
+		}
+		
+		if(count > 0) {
+			try {
+				int sent = this.socket.sendEach(this.batch, count, this.target);
+				this.sent.add(sent);
+				this.errors.add(count - sent);
+			}catch(ClosedChannelException e) {
+				this.close();
+			}
+			for(int i=0; i<count; i++)
+				this.batchBuffers[i].release();
+			Arrays.fill(this.batch, 0, count, null);
+			Arrays.fill(this.batchBuffers, 0, count, null);
+		}
+		
+		//Anything queued after the last poll but before this is drained by another run
+		this.scheduled.set(false);
+		if(!this.closed && !this.paused && this.depth > 0)
+			this.schedule();
+	}
+	
+	/**
+	 * Stops sending, queueing whatever is offered until resumed, such as while something else is sent to the
+	 * destination first. Datagrams already taken by a carrier are still sent.
+	 */
+	public void pause() {
+		this.paused = true;
+	}
+	
+	/**
+	 * Starts sending again, beginning with whatever was queued while paused
+	 */
+	public void resume() {
+		this.paused = false;
+		if(this.depth > 0)
+			this.schedule();
+	}
+	
+	/**
+	 * Drops everything queued and stops queueing
+	 */
+	public void close() {
+		this.closed = true;
+		synchronized(this) {
+			PooledBuffer queued;
+			while((queued = this.queue.poll()) != null)
+				queued.release();
+			this.depth = 0;
+		}
+	}
+	
+	public boolean isClosed() {
+		return this.closed;
+	}
+	
+	public SocketAddress getTarget() {
+		return this.target;
+	}
+	
+	/**
+	 * Gets the amount of datagrams waiting to be sent
+	 * 
+	 * @return
+	 */
+	public int getDepth() {
+		return this.depth;
+	}
+	
+	/**
+	 * Gets the most datagrams that have waited at once
+	 * 
+	 * @return
+	 */
+	public int getMaxDepth() {
+		return this.maxDepth;
+	}
+	
+	/**
+	 * Gets the amount of datagrams dropped, either queued or as they arrived
+	 * 
+	 * @return
+	 */
+	public long getDropped() {
+		return this.dropped.sum();
+	}
+	
+	/**
+	 * Gets the amount of frames that were dropped
+	 * 
+	 * @return
+	 */
+	public long getFramesDropped() {
+		return this.framesDropped.sum();
+	}
+	
+	public long getSent() {
+		return this.sent.sum();
+	}
+	
+	/**
+	 * Gets the amount of sends that failed
+	 * 
+	 * @return
+	 */
+	public long getErrors() {
+		return this.errors.sum();
+	}
+}
@@ -1,7 +1,5 @@
 package com.russbucket.networking.rtp;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -10,13 +8,12 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListMap;
 
+import com.russbucket.networking.rtp.metrics.ProcessorMetrics;
 import com.russbucket.networking.rtp.packet.RtpHeader;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 /**
  * Simple text processor, data may be split across multiple packets.
@@ -30,110 +27,95 @@ public class TextProcessor implements IProcessor<String>{
 	/**
 	 * Keeps track of all potential text messages
 	 */
-	private ConcurrentSkipListMap<Integer, TextProcessor.TextData> potentialText;
+	private FrameReassembler reassembler;
+	
+	/**
+	 * Amount of messages that can be reassembled at once
+	 */
+	public static final int REASSEMBLY_SLOTS = 4;
+	/**
+	 * Largest encoded message that can be reassembled
+	 */
+	public static final int REASSEMBLY_MAX_SIZE = 1024 * 1024;
+	/**
+	 * Time before an incomplete message is dropped
+	 */
+	public static final long REASSEMBLY_TIMEOUT = 5000;
+	
+	private Fragmenter fragmenter;
+	private ProcessorMetrics metrics;
 	
 	public TextProcessor() {
-		this.potentialText = new ConcurrentSkipListMap<Integer, TextProcessor.TextData>();
+		this.fragmenter = new Fragmenter();
+		this.metrics = new ProcessorMetrics();
+		//Messages such as JOIN and LEAVE reuse frame numbers, so completed messages must not block later ones
+		this.reassembler = new FrameReassembler(REASSEMBLY_SLOTS, REASSEMBLY_MAX_SIZE, REASSEMBLY_TIMEOUT);
+		this.reassembler.setEvictOlderOnComplete(false);
+		this.reassembler.setDropCompleted(false);
+		this.reassembler.setMetrics(this.metrics);
+	}
+	
+	@Override
+	public ProcessorMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	@Override
+	public void setFragmenter(Fragmenter fragmenter) {
+		this.fragmenter = fragmenter;
+	}
+	
+	@Override
+	public Fragmenter getFragmenter() {
+		return this.fragmenter;
 	}
 	
 	@Override
 	public List<RtpPacket> encode(String text, int frameNumber) throws IOException{
-		ArrayList<RtpPacket> packets = new ArrayList<>();
-		
 		CharsetEncoder encoder = StandardCharsets.US_ASCII.newEncoder();
 		encoder.onMalformedInput(CodingErrorAction.IGNORE)
 				.onUnmappableCharacter(CodingErrorAction.REPLACE)
 				.replaceWith(new byte[] {0});
-		byte[] data = encoder.encode(CharBuffer.wrap(text)).array();
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		
-		int amount = (int) Math.ceil((double)(data.length)/(double)(RtpSocket.SIZE_MAX));
-		byte[] buffer;
-		for(int sequenceNumber=0; sequenceNumber<amount; sequenceNumber++) {
-			buffer = new byte[data.length/amount];
-			bais.read(buffer);
-			packets.add(new RtpPacket(buffer, RtpHeader.PayloadType.STAT, frameNumber, sequenceNumber, amount));
-		}
+		//The encoder's array may be larger than the text
+		ByteBuffer data = encoder.encode(CharBuffer.wrap(text));
 		
-		return packets;
+		return this.fragmenter.fragment(data.array(), data.limit(), RtpHeader.PayloadType.STAT, frameNumber);
 	}
 	
 	@Override
 	public String decode(RtpPacket packet) {
-		int frameNumber = packet.getHeader().getFrameNumber();
-		if(!this.potentialText.containsKey(frameNumber))
-			this.potentialText.put(frameNumber, new TextProcessor.TextData(packet.getHeader().getSequenceLength()));
-		
-		TextProcessor.TextData textData = this.potentialText.get(frameNumber);
-		textData.add(packet.getHeader().getSequenceNumber(), packet.getPayload());
-		
-		String str = textData.recreate();
-		
-		if(str != null) {
-			this.potentialText.remove(frameNumber);
-			for(Integer otherFrame : this.potentialText.keySet()) {
-				if(otherFrame < frameNumber)
-					this.potentialText.remove(otherFrame);
-			}
-		}
-		
-		return str;
+		RtpHeader header = packet.getHeader();
+		byte[] payload = packet.getPayload();
+		return this.read(this.reassembler.add(header.getFrameNumber(), header.getSequenceNumber(), header.getSequenceLength(), payload, 0, payload.length));
+	}
+	
+	@Override
+	public String decode(RtpPacketView view) {
+		return this.read(this.reassembler.add(view.getFrameNumber(), view.getSequenceNumber(), view.getSequenceLength(), view.getPayload()));
 	}
 	
 	/**
-	 * Mapping to reconstruct the text from multiple packets
+	 * Attempts to create the text from a reassembled frame
 	 * 
-	 * @author Rusty
+	 * @param frame Completed frame or null
+	 * @return String containing the text if successful, an empty string if it could not be decoded, otherwise null
 	 */
-	public class TextData {
-		private HashMap<Integer, byte[]> list;
-		
-		/**
-		 * Constructor
-		 * 
-		 * @param length Total size of the text data (split between packets)
-		 */
-		public TextData(int length) {
-			list = new HashMap<Integer, byte[]>(length);
-		}
-		
-		/**
-		 * Add data to the frame
-		 * 
-		 * @param sequenceNumber
-		 * @param array
-		 */
-		public void add(int sequenceNumber, byte[] array) {
-			if(sequenceNumber > list.size())
-				throw new RuntimeException("Frame size changed mid frame");
-			
-			this.list.put(sequenceNumber, array);
-		}
+	private String read(FrameReassembler.Frame frame) {
+		if(frame == null)
+			return null;
 		
-		/**
-		 * Attempts to create the current item.
-		 * 
-		 * @return String containing the text if successful otherwise an empty string
-		 */
-		public String recreate() {
-			if(this.list.size() < list.size())
-				return null;
-			
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			for(int sequenceNumber=0; sequenceNumber<this.list.size();sequenceNumber++) {
-				baos.writeBytes(this.list.get(sequenceNumber));
-			}
-			
-			CharsetDecoder decoder = StandardCharsets.US_ASCII.newDecoder();
-			decoder.onMalformedInput(CodingErrorAction.REPLACE)
-					.onUnmappableCharacter(CodingErrorAction.REPLACE)
-					.replaceWith("?");
-			try {
-				return decoder.decode(ByteBuffer.wrap(baos.toByteArray())).toString();
-			}catch(CharacterCodingException e) {
-				e.printStackTrace();
-				return "";
-			}
+		long start = System.nanoTime();
+		CharsetDecoder decoder = StandardCharsets.US_ASCII.newDecoder();
+		decoder.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.replaceWith("?");
+		try {
+			return decoder.decode(ByteBuffer.wrap(frame.getData(), 0, frame.getLength())).toString();
+		}catch(CharacterCodingException e) {
+			e.printStackTrace();
+			return "";
+		}finally {
+			this.metrics.decoded(System.nanoTime() - start);
 		}
 	}
 }
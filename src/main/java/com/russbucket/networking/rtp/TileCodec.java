@@ -0,0 +1,480 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delta encoding of images split into tiles.
+ * 
+ * The encoder compares each tile against the previous image and only encodes the tiles that
+ * changed, sending every tile in a keyframe periodically or when one is requested. The decoder
+ * composites the tiles onto a persistent canvas.
+ * 
+ * Each row of tiles is written as its own message, so rows can be encoded in parallel and a lost
+ * packet only costs the row it belongs to. Full width tiles turn this into strip encoding.
+ * 
+ * Message layout:
+ * Flags (8 bits), Width (16 bits), Height (16 bits), Part (8 bits), Parts (8 bits), Tile count (16 bits)
+ * Then per tile: X, Y, Width, Height (16 bits each), Length (32 bits) and the JPEG data
+ * 
+ * @author Rusty
+ */
+public class TileCodec {
+	
+	/**
+	 * Flag set on messages that are part of a keyframe
+	 */
+	public static final int FLAG_KEYFRAME = 1;
+	
+	public static final int DEFAULT_TILE_SIZE = 128;
+	/**
+	 * Default amount of frames between keyframes (5 seconds at 30fps)
+	 */
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 150;
+	/**
+	 * Tile width that covers the whole image, for strip encoding
+	 */
+	public static final int FULL_WIDTH = 0xFFFF;
+	
+	private static final int MESSAGE_HEADER = 9;
+	private static final int TILE_HEADER = 12;
+	private static final int MAX_PARTS = 0xFF;
+	
+	/**
+	 * Output buffer of each encoding thread
+	 */
+	private static final ThreadLocal<ByteArrayOutputStream> TILE_BUFFER = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+	
+	private int tileWidth, tileHeight;
+	private int keyframeInterval;
+	private ForkJoinPool pool;
+	private JpegCodec jpeg;
+	
+	//Encoder state
+	private int[] previous;
+	private int width, height;
+	private int sinceKeyframe;
+	private final AtomicBoolean keyframeRequested = new AtomicBoolean();
+	private BufferedImage staging;
+	
+	//Decoder state
+	private BufferedImage canvas;
+	/**
+	 * Last tile decoded, reused for the next tile of the same size
+	 */
+	private BufferedImage tile;
+	private boolean hasLastFrame;
+	private int lastFrame;
+	private boolean keyframeClean;
+	private final AtomicBoolean keyframeNeeded = new AtomicBoolean();
+	/**
+	 * Messages that may still arrive late, bit i is the message i+1 before the last
+	 */
+	private long awaited;
+	private int lossWait;
+	/**
+	 * Frame number of the message that last drew each tile, by the tile's origin rounded down to 8 pixels across
+	 */
+	private int[] drawn;
+	private int drawnColumns;
+	
+	/**
+	 * Constructor for square tiles
+	 * 
+	 * @param tileSize Width and height of the tiles in pixels
+	 * @param keyframeInterval Amount of frames between keyframes
+	 */
+	public TileCodec(int tileSize, int keyframeInterval) {
+		this(tileSize, tileSize, keyframeInterval);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param tileWidth Width of the tiles in pixels ({@link #FULL_WIDTH} for strips)
+	 * @param tileHeight Height of the tiles in pixels
+	 * @param keyframeInterval Amount of frames between keyframes (1 to always send every tile)
+	 */
+	public TileCodec(int tileWidth, int tileHeight, int keyframeInterval) {
+		if(tileWidth <= 0 || tileHeight <= 0)
+			throw new IllegalArgumentException("Tile size cannot be 0 or negative");
+		else if(keyframeInterval <= 0)
+			throw new IllegalArgumentException("Keyframe interval cannot be 0 or negative");
+		
+		this.tileWidth = Math.min(tileWidth, FULL_WIDTH);
+		this.tileHeight = tileHeight;
+		this.keyframeInterval = keyframeInterval;
+		this.jpeg = new JpegCodec();
+	}
+	
+	/**
+	 * Encode the rows of tiles in parallel
+	 * 
+	 * @param pool Pool to encode on, or null to encode on the calling thread
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Sets the codec used for the tiles, so its quality can be shared and tuned
+	 * 
+	 * @param jpeg
+	 */
+	public void setJpegCodec(JpegCodec jpeg) {
+		this.jpeg = jpeg;
+	}
+	
+	/**
+	 * Sets how many later messages may arrive while waiting for a missing message to be sent again,
+	 * before a keyframe is needed. By default a keyframe is needed as soon as a message is missed.
+	 * 
+	 * Late messages only draw tiles that no later message has drawn.
+	 * 
+	 * @param messages Between 0 and 64
+	 */
+	public void setLossWait(int messages) {
+		if(messages < 0 || messages > Long.SIZE)
+			throw new IllegalArgumentException("Loss wait must be between 0 and " + Long.SIZE);
+		this.lossWait = messages;
+	}
+	
+	/**
+	 * Makes the next encoded frame a keyframe
+	 */
+	public void requestKeyframe() {
+		this.keyframeRequested.set(true);
+	}
+	
+	/**
+	 * Encodes the tiles that changed since the previous image.
+	 * 
+	 * At least one message is always returned (even with no tiles) so the decoder can spot missing frames.
+	 * 
+	 * @param image Image to encode
+	 * @return Messages to send, each with its own frame number and in order
+	 * @throws IOException
+	 */
+	public List<byte[]> encode(BufferedImage image) throws IOException {
+		int[] pixels = this.pixels(image);
+		int w = image.getWidth();
+		int h = image.getHeight();
+		
+		//Cleared whether or not it caused this keyframe, as any keyframe answers the request
+		boolean keyframe = this.keyframeRequested.getAndSet(false) | this.previous == null || w != this.width || h != this.height
+				|| this.sinceKeyframe >= this.keyframeInterval;
+		if(keyframe) {
+			this.sinceKeyframe = 0;
+			this.width = w;
+			this.height = h;
+			if(this.previous == null || this.previous.length != pixels.length)
+				this.previous = new int[pixels.length];
+		}
+		this.sinceKeyframe++;
+		
+		//Find the dirty tiles of each row
+		int columns = (w + this.tileWidth - 1) / this.tileWidth;
+		int rows = (h + this.tileHeight - 1) / this.tileHeight;
+		List<DirtyRow> dirtyRows = new ArrayList<>();
+		for(int row=0; row<rows; row++) {
+			DirtyRow dirty = new DirtyRow(row, columns);
+			for(int column=0; column<columns; column++) {
+				if(keyframe || this.changed(pixels, column * this.tileWidth, row * this.tileHeight))
+					dirty.columns[dirty.count++] = column;
+			}
+			if(dirty.count > 0)
+				dirtyRows.add(dirty);
+		}
+		
+		//Rows are merged when there are more than a message can number
+		int perPart = Math.max(1, (dirtyRows.size() + MAX_PARTS - 1) / MAX_PARTS);
+		int parts = Math.max(1, (dirtyRows.size() + perPart - 1) / perPart);
+		BufferedImage source = this.staging == null ? image : this.staging;
+		List<Callable<byte[]>> tasks = new ArrayList<>(parts);
+		for(int part=0; part<parts; part++) {
+			List<DirtyRow> group = dirtyRows.subList(Math.min(dirtyRows.size(), part * perPart), Math.min(dirtyRows.size(), (part + 1) * perPart));
+			int index = part;
+			tasks.add(()->this.encodeMessage(source, group, keyframe, index, parts));
+		}
+		
+		List<byte[]> messages = new ArrayList<>(parts);
+		if(this.pool == null || parts == 1) {
+			for(Callable<byte[]> task : tasks)
+				messages.add(this.call(task));
+		}else {
+			for(Future<byte[]> future : this.pool.invokeAll(tasks))
+				messages.add(this.get(future));
+		}
+		
+		for(DirtyRow dirty : dirtyRows) {
+			for(int i=0; i<dirty.count; i++)
+				this.remember(pixels, dirty.columns[i] * this.tileWidth, dirty.row * this.tileHeight);
+		}
+		
+		return messages;
+	}
+	
+	/**
+	 * Encodes a single message from rows of tiles, using the calling thread's tile buffer
+	 */
+	private byte[] encodeMessage(BufferedImage source, List<DirtyRow> rows, boolean keyframe, int part, int parts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeByte(keyframe ? FLAG_KEYFRAME : 0);
+		data.writeShort(this.width);
+		data.writeShort(this.height);
+		data.writeByte(part);
+		data.writeByte(parts);
+		
+		int count = 0;
+		for(DirtyRow dirty : rows)
+			count += dirty.count;
+		data.writeShort(count);
+		
+		ByteArrayOutputStream tileBuffer = TILE_BUFFER.get();
+		for(DirtyRow dirty : rows) {
+			int y = dirty.row * this.tileHeight;
+			int th = Math.min(this.tileHeight, this.height - y);
+			for(int i=0; i<dirty.count; i++) {
+				int x = dirty.columns[i] * this.tileWidth;
+				int tw = Math.min(this.tileWidth, this.width - x);
+				
+				tileBuffer.reset();
+				this.jpeg.write(source.getSubimage(x, y, tw, th), tileBuffer);
+				data.writeShort(x);
+				data.writeShort(y);
+				data.writeShort(tw);
+				data.writeShort(th);
+				data.writeInt(tileBuffer.size());
+				tileBuffer.writeTo(data);
+			}
+		}
+		data.flush();
+		return out.toByteArray();
+	}
+	
+	private byte[] call(Callable<byte[]> task) throws IOException {
+		try {
+			return task.call();
+		}catch(IOException | RuntimeException e) {
+			throw e;
+		}catch(Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private byte[] get(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		}catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Gets the pixels of the image as packed RGB, copying only if the image is not already stored that way
+	 */
+	private int[] pixels(BufferedImage image) {
+		if(image.getType() == BufferedImage.TYPE_INT_RGB
+				&& image.getRaster().getParent() == null
+				&& image.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& ((SinglePixelPackedSampleModel)image.getSampleModel()).getScanlineStride() == image.getWidth()) {
+			this.staging = null;
+			return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		}
+		
+		if(this.staging == null || this.staging.getWidth() != image.getWidth() || this.staging.getHeight() != image.getHeight())
+			this.staging = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = this.staging.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return ((DataBufferInt)this.staging.getRaster().getDataBuffer()).getData();
+	}
+	
+	private boolean changed(int[] pixels, int x, int y) {
+		int w = Math.min(this.tileWidth, this.width - x);
+		int h = Math.min(this.tileHeight, this.height - y);
+		for(int row=y; row<y+h; row++) {
+			int from = row * this.width + x;
+			if(!Arrays.equals(pixels, from, from + w, this.previous, from, from + w))
+				return true;
+		}
+		return false;
+	}
+	
+	private void remember(int[] pixels, int x, int y) {
+		int w = Math.min(this.tileWidth, this.width - x);
+		int h = Math.min(this.tileHeight, this.height - y);
+		for(int row=y; row<y+h; row++) {
+			int from = row * this.width + x;
+			System.arraycopy(pixels, from, this.previous, from, w);
+		}
+	}
+	
+	/**
+	 * Decodes a message and composites its tiles onto the canvas
+	 * 
+	 * @param data Array holding the message
+	 * @param length Length of the message
+	 * @param frameNumber Frame number of the message, used to spot missing messages
+	 * @return The canvas, or null if there is nothing to show yet
+	 */
+	public BufferedImage decode(byte[] data, int length, int frameNumber) {
+		ByteBuffer message = ByteBuffer.wrap(data, 0, length);
+		if(message.remaining() < MESSAGE_HEADER)
+			return null;
+		
+		boolean keyframe = (message.get() & FLAG_KEYFRAME) != 0;
+		int w = message.getShort() & 0xFFFF;
+		int h = message.getShort() & 0xFFFF;
+		int part = message.get() & 0xFF;
+		int parts = message.get() & 0xFF;
+		int count = message.getShort() & 0xFFFF;
+		
+		boolean late = false;
+		if(this.hasLastFrame) {
+			int ahead = (frameNumber - this.lastFrame) & 0xFFFF;
+			if(ahead == 0 || ahead > 0x7FFF) {
+				//Older than the last message, only used if it was missed and is still awaited
+				int behind = (this.lastFrame - frameNumber) & 0xFFFF;
+				if(behind == 0 || behind > this.lossWait || (this.awaited & (1L << (behind - 1))) == 0)
+					return this.canvas;
+				this.awaited &= ~(1L << (behind - 1));
+				late = true;
+			}else {
+				this.advance(ahead);
+			}
+		}
+		if(!late) {
+			this.hasLastFrame = true;
+			this.lastFrame = frameNumber;
+		}
+		
+		if(this.canvas == null || this.canvas.getWidth() != w || this.canvas.getHeight() != h) {
+			if(!keyframe || late) {
+				//Deltas cannot be shown without the rest of the image
+				this.keyframeNeeded.set(true);
+				return null;
+			}
+			this.canvas = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			this.drawnColumns = (w + 7) >>> 3;
+			this.drawn = new int[this.drawnColumns * h];
+			Arrays.fill(this.drawn, -1);
+		}
+		
+		if(keyframe && !late) {
+			if(part == 0)
+				this.keyframeClean = true;
+			if(part == parts - 1 && this.keyframeClean)
+				this.keyframeNeeded.set(false);
+		}
+		
+		Graphics2D g = this.canvas.createGraphics();
+		try {
+			for(int i=0; i<count && message.remaining() >= TILE_HEADER; i++) {
+				int x = message.getShort() & 0xFFFF;
+				int y = message.getShort() & 0xFFFF;
+				message.getShort();
+				message.getShort();
+				int tileLength = message.getInt();
+				if(tileLength < 0 || tileLength > message.remaining())
+					break;
+				
+				int cell = y * this.drawnColumns + (x >>> 3);
+				if(x >= w || y >= h || (late && this.drawn[cell] >= 0 && this.isNewer(this.drawn[cell], frameNumber))) {
+					message.position(message.position() + tileLength);
+					continue;
+				}
+				
+				this.tile = this.jpeg.read(data, message.position(), tileLength, this.tile);
+				message.position(message.position() + tileLength);
+				g.drawImage(this.tile, x, y, null);
+				this.drawn[cell] = frameNumber;
+			}
+		}catch(IOException e) {
+			this.keyframeNeeded.set(true);
+		}finally {
+			g.dispose();
+		}
+		
+		return this.canvas;
+	}
+	
+	/**
+	 * Moves the last message forward, marking the messages skipped over as missed
+	 * 
+	 * @param ahead Amount the frame number moved forward by
+	 */
+	private void advance(int ahead) {
+		int gap = ahead - 1;
+		if(this.lossWait == 0) {
+			if(gap > 0)
+				this.lost();
+			return;
+		}
+		
+		//Anything shifted past the wait is lost for good
+		long kept = this.lossWait == Long.SIZE ? -1L : (1L << this.lossWait) - 1;
+		long shifted = ahead >= Long.SIZE ? 0 : this.awaited << ahead;
+		long dropped = ahead >= Long.SIZE ? this.awaited : this.awaited & ~(-1L >>> ahead);
+		long missed = gap >= Long.SIZE ? -1L : (1L << gap) - 1;
+		if(dropped != 0 || ((shifted | missed) & ~kept) != 0)
+			this.lost();
+		this.awaited = (shifted | missed) & kept;
+	}
+	
+	private void lost() {
+		this.keyframeNeeded.set(true);
+		this.keyframeClean = false;
+	}
+	
+	private boolean isNewer(int a, int b) {
+		int difference = (a - b) & 0xFFFF;
+		return difference != 0 && difference <= 0x7FFF;
+	}
+	
+	/**
+	 * Checks whether the decoder has missed tiles and needs a keyframe, clearing the flag
+	 * 
+	 * @return True if a keyframe should be requested from the sender
+	 */
+	public boolean pollKeyframeNeeded() {
+		//Swapped atomically so a request raised between reading and clearing is not lost
+		return this.keyframeNeeded.getAndSet(false);
+	}
+	
+	/**
+	 * Columns of the tiles that changed in a row
+	 * 
+	 * @author Rusty
+	 */
+	private static class DirtyRow {
+		private int row;
+		private int[] columns;
+		private int count;
+		
+		private DirtyRow(int row, int columns) {
+			this.row = row;
+			this.columns = new int[columns];
+		}
+	}
+}
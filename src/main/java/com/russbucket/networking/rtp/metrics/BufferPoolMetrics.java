@@ -0,0 +1,61 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the buffers borrowed from and returned to a buffer pool
+ * 
+ * @author Rusty
+ */
+public class BufferPoolMetrics implements BufferPoolMetricsMXBean {
+	
+	private LongAdder acquired = new LongAdder();
+	private LongAdder allocated = new LongAdder();
+	private LongAdder released = new LongAdder();
+	private LongAdder leaks = new LongAdder();
+	
+	/**
+	 * Counts a buffer being borrowed
+	 * 
+	 * @param allocated Whether a new buffer had to be allocated
+	 */
+	public void acquired(boolean allocated) {
+		this.acquired.increment();
+		if(allocated)
+			this.allocated.increment();
+	}
+	
+	/**
+	 * Counts a buffer being returned
+	 */
+	public void released() {
+		this.released.increment();
+	}
+	
+	/**
+	 * Counts a buffer that was never returned
+	 */
+	public void leaked() {
+		this.leaks.increment();
+	}
+	
+	@Override
+	public long getAcquired() {
+		return this.acquired.sum();
+	}
+	
+	@Override
+	public long getAllocated() {
+		return this.allocated.sum();
+	}
+	
+	@Override
+	public long getOutstanding() {
+		return this.acquired.sum() - this.released.sum();
+	}
+	
+	@Override
+	public long getLeaks() {
+		return this.leaks.sum();
+	}
+}
@@ -0,0 +1,37 @@
+package com.russbucket.networking.rtp.metrics;
+
+/**
+ * Buffers borrowed from and returned to a buffer pool
+ * 
+ * @author Rusty
+ */
+public interface BufferPoolMetricsMXBean {
+	
+	/**
+	 * Gets the amount of buffers borrowed from the pool
+	 * 
+	 * @return
+	 */
+	public long getAcquired();
+	
+	/**
+	 * Gets the amount of buffers the pool had to allocate because none were free, which should stop rising once warmed up
+	 * 
+	 * @return
+	 */
+	public long getAllocated();
+	
+	/**
+	 * Gets the amount of buffers borrowed and not yet returned
+	 * 
+	 * @return
+	 */
+	public long getOutstanding();
+	
+	/**
+	 * Gets the amount of buffers found unreachable without having been returned, only counted with leak detection on
+	 * 
+	 * @return
+	 */
+	public long getLeaks();
+}
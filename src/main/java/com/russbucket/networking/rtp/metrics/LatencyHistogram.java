@@ -0,0 +1,161 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of latencies (or any other positive values) for working out percentiles.
+ * 
+ * Values are counted in log-linear buckets: every power of two is split into {@link #SUB_BUCKETS}
+ * linear buckets, so a percentile is within about 3% of the real value however large it is. Recording
+ * increments the value's bucket and adds to striped count, sum and max cells, so threads recording at
+ * the same time rarely touch the same memory. Any amount of threads can record at full packet rate
+ * without locking or allocating, and reading may happen at the same time (seeing a close but not exact
+ * snapshot).
+ * 
+ * @author Rusty
+ */
+public class LatencyHistogram {
+	
+	/**
+	 * Linear buckets each power of two is split into
+	 */
+	public static final int SUB_BUCKETS = 32;
+	
+	private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private LongAccumulator max;
+	
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new LongAccumulator(Math::max, 0);
+	}
+	
+	/**
+	 * Gets the bucket of a value
+	 * 
+	 * @param value At least 0
+	 * @return
+	 */
+	static int bucket(long value) {
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	/**
+	 * Gets the smallest value counted in a bucket
+	 * 
+	 * @param bucket
+	 * @return
+	 */
+	static long lowest(int bucket) {
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+	}
+	
+	/**
+	 * Counts a value
+	 * 
+	 * @param value Value such as nanoseconds, negative values are counted as 0
+	 */
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		
+		this.counts.incrementAndGet(bucket(value));
+		this.count.increment();
+		this.sum.add(value);
+		this.max.accumulate(value);
+	}
+	
+	/**
+	 * Gets the amount of values counted
+	 * 
+	 * @return
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+	
+	public long getMax() {
+		return this.max.get();
+	}
+	
+	/**
+	 * Gets the mean of the values counted
+	 * 
+	 * @return 0 if nothing has been counted
+	 */
+	public double getMean() {
+		long count = this.count.sum();
+		return count == 0 ? 0 : (double)this.sum.sum() / count;
+	}
+	
+	/**
+	 * Gets the value below which a percentage of the values fall
+	 * 
+	 * @param percentile Between 0 and 100, such as 99.9
+	 * @return The middle of the bucket holding the percentile (never above the max), or 0 if nothing has been counted
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for(int i=0; i<BUCKETS; i++)
+			total += this.counts.get(i);
+		if(total == 0)
+			return 0;
+		
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if(seen >= rank) {
+				long low = lowest(i);
+				long high = i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(low + (high - low) / 2, this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+	
+	/**
+	 * Adds every value counted by another histogram
+	 * 
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		for(int i=0; i<BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if(count != 0)
+				this.counts.addAndGet(i, count);
+		}
+		this.count.add(other.count.sum());
+		this.sum.add(other.sum.sum());
+		this.max.accumulate(other.max.get());
+	}
+	
+	/**
+	 * Clears every count. Values recorded at the same time may be partly kept.
+	 */
+	public void reset() {
+		for(int i=0; i<BUCKETS; i++)
+			this.counts.set(i, 0);
+		this.count.reset();
+		this.sum.reset();
+		this.max.reset();
+	}
+}
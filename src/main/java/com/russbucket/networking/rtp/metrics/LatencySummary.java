@@ -0,0 +1,60 @@
+package com.russbucket.networking.rtp.metrics;
+
+/**
+ * Snapshot of a latency histogram, shown over JMX as a single composite attribute.
+ * 
+ * Every time is in microseconds.
+ * 
+ * @author Rusty
+ */
+public class LatencySummary {
+	
+	private long count;
+	private double mean;
+	private double p50;
+	private double p99;
+	private double p999;
+	private double max;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param histogram Histogram of nanoseconds
+	 */
+	public LatencySummary(LatencyHistogram histogram) {
+		this.count = histogram.getCount();
+		this.mean = histogram.getMean() / 1000;
+		this.p50 = histogram.getPercentile(50) / 1000.0;
+		this.p99 = histogram.getPercentile(99) / 1000.0;
+		this.p999 = histogram.getPercentile(99.9) / 1000.0;
+		this.max = histogram.getMax() / 1000.0;
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public double getMean() {
+		return mean;
+	}
+	
+	public double getP50() {
+		return p50;
+	}
+	
+	public double getP99() {
+		return p99;
+	}
+	
+	public double getP999() {
+		return p999;
+	}
+	
+	public double getMax() {
+		return max;
+	}
+	
+	public String toString() {
+		return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", this.count, this.mean, this.p50, this.p99, this.p999, this.max);
+	}
+}
@@ -0,0 +1,65 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers metrics with the platform MBean server, so they can be read with JConsole,
+ * VisualVM or any JMX exporter while the process runs.
+ * 
+ * Beans are named com.russbucket.networking.rtp:type=[type],name=[name].
+ * 
+ * @author Rusty
+ */
+public final class Metrics {
+	
+	/**
+	 * Domain of every registered bean
+	 */
+	public static final String DOMAIN = "com.russbucket.networking.rtp";
+	
+	private Metrics() {}
+	
+	/**
+	 * Registers a bean, replacing any already registered under the same name
+	 * 
+	 * @param bean One of the metrics classes of this package
+	 * @param type Kind of bean, such as Socket
+	 * @param name Name of what is measured, such as server-shard-0
+	 * @return The name registered under, or null if the bean could not be registered
+	 */
+	public static ObjectName register(Object bean, String type, String name) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(bean, objectName);
+			return objectName;
+		}catch(JMException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Unregisters a bean if it is registered
+	 * 
+	 * @param objectName Name returned by {@link #register(Object, String, String)}, null is ignored
+	 */
+	public static void unregister(ObjectName objectName) {
+		if(objectName == null)
+			return;
+		
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		}catch(JMException e) {
+			e.printStackTrace();
+		}
+	}
+}
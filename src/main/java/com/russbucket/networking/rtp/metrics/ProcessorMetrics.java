@@ -0,0 +1,71 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the frames a processor's reassemblers complete and evict, those skipped without being decoded, and times decoding them
+ * 
+ * @author Rusty
+ */
+public class ProcessorMetrics implements ProcessorMetricsMXBean {
+	
+	private LongAdder framesCompleted = new LongAdder();
+	private LongAdder framesEvicted = new LongAdder();
+	private LongAdder framesSkipped = new LongAdder();
+	private LatencyHistogram decodeTime = new LatencyHistogram();
+	
+	/**
+	 * Counts a completed frame
+	 */
+	public void completed() {
+		this.framesCompleted.increment();
+	}
+	
+	/**
+	 * Counts an incomplete frame being dropped
+	 */
+	public void evicted() {
+		this.framesEvicted.increment();
+	}
+	
+	/**
+	 * Counts a completed frame dropped without being decoded, as a newer one replaced it
+	 */
+	public void skipped() {
+		this.framesSkipped.increment();
+	}
+	
+	/**
+	 * Counts the time taken to decode a frame
+	 * 
+	 * @param nanos
+	 */
+	public void decoded(long nanos) {
+		this.decodeTime.record(nanos);
+	}
+	
+	@Override
+	public long getFramesCompleted() {
+		return this.framesCompleted.sum();
+	}
+	
+	@Override
+	public long getFramesEvicted() {
+		return this.framesEvicted.sum();
+	}
+	
+	@Override
+	public long getFramesSkipped() {
+		return this.framesSkipped.sum();
+	}
+	
+	@Override
+	public LatencySummary getDecodeTime() {
+		return new LatencySummary(this.decodeTime);
+	}
+	
+	@Override
+	public void resetDecodeTime() {
+		this.decodeTime.reset();
+	}
+}
@@ -0,0 +1,43 @@
+package com.russbucket.networking.rtp.metrics;
+
+/**
+ * Reassembly and decoding of a processor
+ * 
+ * @author Rusty
+ */
+public interface ProcessorMetricsMXBean {
+	
+	/**
+	 * Gets the amount of frames completed by the processor's reassemblers
+	 * 
+	 * @return
+	 */
+	public long getFramesCompleted();
+	
+	/**
+	 * Gets the amount of incomplete frames the processor's reassemblers gave up on
+	 * 
+	 * @return
+	 */
+	public long getFramesEvicted();
+	
+	/**
+	 * Gets the amount of completed frames dropped without being decoded, because a newer frame replaced them
+	 * before the decoder got to them
+	 * 
+	 * @return
+	 */
+	public long getFramesSkipped();
+	
+	/**
+	 * Gets the time taken to decode each completed frame
+	 * 
+	 * @return
+	 */
+	public LatencySummary getDecodeTime();
+	
+	/**
+	 * Clears the decode time histogram, so the next reading covers only what happens after
+	 */
+	public void resetDecodeTime();
+}
@@ -0,0 +1,89 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.russbucket.networking.rtp.ReceiveRing;
+
+/**
+ * Counts the datagrams an RtpRunnable processes and how long each takes from being received
+ * 
+ * @author Rusty
+ */
+public class ReceiveMetrics implements ReceiveMetricsMXBean {
+	
+	private LongAdder processed = new LongAdder();
+	private LongAdder invalid = new LongAdder();
+	private LongAdder failed = new LongAdder();
+	private LatencyHistogram processLatency = new LatencyHistogram();
+	private volatile ReceiveRing ring;
+	
+	/**
+	 * Sets the ring datagrams wait in before processing, whose depth and drops are read when asked
+	 * 
+	 * @param ring
+	 */
+	public void setRing(ReceiveRing ring) {
+		this.ring = ring;
+	}
+	
+	/**
+	 * Counts a processed datagram
+	 * 
+	 * @param nanos Time since the datagram was received
+	 */
+	public void processed(long nanos) {
+		this.processed.increment();
+		this.processLatency.record(nanos);
+	}
+	
+	/**
+	 * Counts a datagram dropped without processing
+	 */
+	public void invalid() {
+		this.invalid.increment();
+	}
+	
+	/**
+	 * Counts processing that threw an exception
+	 */
+	public void failed() {
+		this.failed.increment();
+	}
+	
+	@Override
+	public long getProcessed() {
+		return this.processed.sum();
+	}
+	
+	@Override
+	public long getInvalid() {
+		return this.invalid.sum();
+	}
+	
+	@Override
+	public long getFailed() {
+		return this.failed.sum();
+	}
+	
+	@Override
+	public long getDropped() {
+		ReceiveRing ring = this.ring;
+		return ring == null ? 0 : ring.getDropped();
+	}
+	
+	@Override
+	public int getRingDepth() {
+		ReceiveRing ring = this.ring;
+		return ring == null ? 0 : ring.getDepth();
+	}
+	
+	@Override
+	public LatencySummary getProcessLatency() {
+		return new LatencySummary(this.processLatency);
+	}
+	
+	@Override
+	public void resetLatency() {
+		this.processLatency.reset();
+	}
+}
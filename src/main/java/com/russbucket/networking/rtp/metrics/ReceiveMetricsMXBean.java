@@ -0,0 +1,56 @@
+package com.russbucket.networking.rtp.metrics;
+
+/**
+ * Processing of the datagrams received by an RtpRunnable
+ * 
+ * @author Rusty
+ */
+public interface ReceiveMetricsMXBean {
+	
+	/**
+	 * Gets the amount of datagrams passed out for processing
+	 * 
+	 * @return
+	 */
+	public long getProcessed();
+	
+	/**
+	 * Gets the amount of datagrams dropped for being too short or of an unknown type
+	 * 
+	 * @return
+	 */
+	public long getInvalid();
+	
+	/**
+	 * Gets the amount of times processing threw an exception, the rest of the datagrams being processed with it are lost
+	 * 
+	 * @return
+	 */
+	public long getFailed();
+	
+	/**
+	 * Gets the amount of datagrams dropped because the receive ring was full
+	 * 
+	 * @return
+	 */
+	public long getDropped();
+	
+	/**
+	 * Gets the amount of datagrams waiting in the receive ring to be processed
+	 * 
+	 * @return 0 when there is no ring
+	 */
+	public int getRingDepth();
+	
+	/**
+	 * Gets the time from a datagram being received to it having been processed
+	 * 
+	 * @return
+	 */
+	public LatencySummary getProcessLatency();
+	
+	/**
+	 * Clears the latency histogram, so the next reading covers only what happens after
+	 */
+	public void resetLatency();
+}
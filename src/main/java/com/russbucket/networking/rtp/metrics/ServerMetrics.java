@@ -0,0 +1,79 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Reads the membership of a server and its clients' reports when asked, so nothing is counted on the forwarding path
+ * 
+ * @author Rusty
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+	
+	private IntSupplier members;
+	private Supplier<Map<String, Long>> subscriberQueueDepths;
+	private Supplier<Map<String, Long>> subscriberDrops;
+	private Supplier<Map<String, Long>> subscriberSendErrors;
+	private Supplier<Map<String, Long>> receiverFractionLost;
+	private Supplier<Map<String, Long>> receiverCumulativeLost;
+	private Supplier<Map<String, Long>> receiverJitter;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param members Gives the amount of clients joined
+	 * @param subscriberQueueDepths Gives the datagrams waiting for each client
+	 * @param subscriberDrops Gives the datagrams dropped for each client
+	 * @param subscriberSendErrors Gives the failed sends of each client
+	 * @param receiverFractionLost Gives the fraction lost each client last reported on each stream
+	 * @param receiverCumulativeLost Gives the packets lost in total each client last reported on each stream
+	 * @param receiverJitter Gives the jitter each client last reported on each stream
+	 */
+	public ServerMetrics(IntSupplier members, Supplier<Map<String, Long>> subscriberQueueDepths, Supplier<Map<String, Long>> subscriberDrops,
+			Supplier<Map<String, Long>> subscriberSendErrors, Supplier<Map<String, Long>> receiverFractionLost,
+			Supplier<Map<String, Long>> receiverCumulativeLost, Supplier<Map<String, Long>> receiverJitter) {
+		this.members = members;
+		this.subscriberQueueDepths = subscriberQueueDepths;
+		this.subscriberDrops = subscriberDrops;
+		this.subscriberSendErrors = subscriberSendErrors;
+		this.receiverFractionLost = receiverFractionLost;
+		this.receiverCumulativeLost = receiverCumulativeLost;
+		this.receiverJitter = receiverJitter;
+	}
+	
+	@Override
+	public int getMembers() {
+		return this.members.getAsInt();
+	}
+	
+	@Override
+	public Map<String, Long> getSubscriberQueueDepths() {
+		return this.subscriberQueueDepths.get();
+	}
+	
+	@Override
+	public Map<String, Long> getSubscriberDrops() {
+		return this.subscriberDrops.get();
+	}
+	
+	@Override
+	public Map<String, Long> getSubscriberSendErrors() {
+		return this.subscriberSendErrors.get();
+	}
+	
+	@Override
+	public Map<String, Long> getReceiverFractionLost() {
+		return this.receiverFractionLost.get();
+	}
+	
+	@Override
+	public Map<String, Long> getReceiverCumulativeLost() {
+		return this.receiverCumulativeLost.get();
+	}
+	
+	@Override
+	public Map<String, Long> getReceiverJitter() {
+		return this.receiverJitter.get();
+	}
+}
@@ -0,0 +1,63 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.util.Map;
+
+/**
+ * Membership of a server, the health of sending to each member and how each member reports media arriving
+ * 
+ * @author Rusty
+ */
+public interface ServerMetricsMXBean {
+	
+	/**
+	 * Gets the amount of clients currently joined
+	 * 
+	 * @return
+	 */
+	public int getMembers();
+	
+	/**
+	 * Gets the amount of datagrams waiting to be sent to each client, by address and port
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getSubscriberQueueDepths();
+	
+	/**
+	 * Gets the amount of datagrams to each client dropped because its queue was full, by address and port
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getSubscriberDrops();
+	
+	/**
+	 * Gets the amount of sends to each client that failed, by address and port
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getSubscriberSendErrors();
+	
+	/**
+	 * Gets the fraction of packets lost in each client's latest report on each stream, out of 256, by address and
+	 * port followed by the stream's SSRC
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getReceiverFractionLost();
+	
+	/**
+	 * Gets the packets lost in total in each client's latest report on each stream, by address and port followed
+	 * by the stream's SSRC
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getReceiverCumulativeLost();
+	
+	/**
+	 * Gets the interarrival jitter in microseconds in each client's latest report on each stream, by address and
+	 * port followed by the stream's SSRC
+	 * 
+	 * @return
+	 */
+	public Map<String, Long> getReceiverJitter();
+}
@@ -0,0 +1,83 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the datagrams and bytes a socket receives and sends.
+ * 
+ * Counters are striped, so the receiving thread and any amount of sending threads can count
+ * at full packet rate without contending with each other.
+ * 
+ * @author Rusty
+ */
+public class SocketMetrics implements SocketMetricsMXBean {
+	
+	private LongAdder packetsIn = new LongAdder();
+	private LongAdder bytesIn = new LongAdder();
+	private LongAdder packetsOut = new LongAdder();
+	private LongAdder bytesOut = new LongAdder();
+	private LongAdder sendErrors = new LongAdder();
+	
+	/**
+	 * Counts a received datagram
+	 * 
+	 * @param bytes Length of the datagram
+	 */
+	public void received(int bytes) {
+		this.packetsIn.increment();
+		this.bytesIn.add(bytes);
+	}
+	
+	/**
+	 * Counts a sent datagram
+	 * 
+	 * @param bytes Length of the datagram
+	 */
+	public void sent(long bytes) {
+		this.packetsOut.increment();
+		this.bytesOut.add(bytes);
+	}
+	
+	/**
+	 * Counts a batch of sent datagrams
+	 * 
+	 * @param packets Amount of datagrams
+	 * @param bytes Length of every datagram together
+	 */
+	public void sent(int packets, long bytes) {
+		this.packetsOut.add(packets);
+		this.bytesOut.add(bytes);
+	}
+	
+	/**
+	 * Counts a send that failed
+	 */
+	public void sendFailed() {
+		this.sendErrors.increment();
+	}
+	
+	@Override
+	public long getPacketsIn() {
+		return this.packetsIn.sum();
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return this.bytesIn.sum();
+	}
+	
+	@Override
+	public long getPacketsOut() {
+		return this.packetsOut.sum();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return this.bytesOut.sum();
+	}
+	
+	@Override
+	public long getSendErrors() {
+		return this.sendErrors.sum();
+	}
+}
@@ -0,0 +1,24 @@
+package com.russbucket.networking.rtp.metrics;
+
+/**
+ * Traffic through a single RtpSocket
+ * 
+ * @author Rusty
+ */
+public interface SocketMetricsMXBean {
+	
+	public long getPacketsIn();
+	
+	public long getBytesIn();
+	
+	public long getPacketsOut();
+	
+	public long getBytesOut();
+	
+	/**
+	 * Gets the amount of sends that failed with an IO error
+	 * 
+	 * @return
+	 */
+	public long getSendErrors();
+}
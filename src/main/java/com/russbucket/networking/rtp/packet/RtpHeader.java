@@ -1,12 +1,28 @@
 package com.russbucket.networking.rtp.packet;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 /**
- * Custom Header containing the following:
+ * Custom Header, in one of two versions.
+ * 
+ * Version 1 contains the following:
  * Payload type (8 bits)
  * Frame Number (16 bits)
  * Sequence Number (16 bits)
+ * Sequence Length (16 bits)
+ * 
+ * Version 2 starts with a version byte, which has its top bit set so it can never be mistaken for a
+ * version 1 payload type, and names the stream so a receiver can tell senders apart:
+ * Version, 0x80 | 2 (8 bits)
+ * Payload type (8 bits)
+ * SSRC, the sender's stream id (32 bits)
+ * Frame Number (32 bits)
+ * Sequence Number (16 bits)
+ * Sequence Length (16 bits)
+ * Timestamp of the frame's capture in {@link #CLOCK_RATE} units (32 bits)
+ * 
+ * Both versions are decoded, a version 1 header has an SSRC and timestamp of 0.
  * 
  * See link for more information on RTP:
  * https://grouper.ieee.org/groups/1722/contributions/2010/1722-gross-rtp-v1.pdf
@@ -17,11 +33,17 @@ import java.net.InetAddress;
 public class RtpHeader {
 	
 	public enum PayloadType {
-		JPEG, INVALID, STAT;
+		JPEG, INVALID, STAT, TILE, FEC;
 		
-		byte toByte() {
+		public byte toByte() {
 			byte b;
 			switch(this) {
+			case FEC:
+				b = 4;
+				break;
+			case TILE:
+				b = 3;
+				break;
 			case STAT:
 				b = 2;
 				break;
@@ -36,32 +58,113 @@ public class RtpHeader {
 			return b;
 		}
 		
-		static PayloadType toType(byte b) {
+		public static PayloadType toType(byte b) {
 			if(b==1)
 				return JPEG;
 			else if(b==2)
 				return STAT;
+			else if(b==3)
+				return TILE;
+			else if(b==4)
+				return FEC;
 			
 			return INVALID;
 		}
 	}
 	
+	private int version;
 	private PayloadType type;
+	private int ssrc;
 	private int frameNumber, sequenceNumber;
 	private int sequenceLength;
+	private int timestamp;
 	
 	private InetAddress senderAddress;
 	private int senderPort;
 	
+	/**
+	 * Size of a version 1 header
+	 */
 	public static final int SIZE = 7;
+	/**
+	 * Size of a version 2 header
+	 */
+	public static final int SIZE_V2 = 18;
+	/**
+	 * Size of the largest header of any version
+	 */
+	public static final int MAX_SIZE = SIZE_V2;
 	
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	/**
+	 * Set in the first byte of headers that start with their version
+	 */
+	private static final int VERSION_FLAG = 0x80;
+	
+	/**
+	 * Ticks per second of version 2 timestamps, the 90kHz clock RTP uses for video
+	 */
+	public static final int CLOCK_RATE = 90_000;
+	
+	/**
+	 * Constructor for a version 1 header
+	 * 
+	 * @param type
+	 * @param frameNumber Frame number, only the low 16 bits are sent
+	 * @param sequenceNumber
+	 * @param sequenceLength
+	 */
 	public RtpHeader(PayloadType type, int frameNumber, int sequenceNumber, int sequenceLength) {
+		this.version = VERSION_1;
 		this.type = type;
 		this.frameNumber = frameNumber;
 		this.sequenceNumber = sequenceNumber;
 		this.sequenceLength = sequenceLength;
 	}
 	
+	/**
+	 * Constructor for a version 2 header
+	 * 
+	 * @param type
+	 * @param ssrc Id of the sender's stream, should be random and not 0
+	 * @param frameNumber
+	 * @param sequenceNumber
+	 * @param sequenceLength
+	 * @param timestamp Capture time of the frame, see {@link #timestamp(long)}
+	 */
+	public RtpHeader(PayloadType type, int ssrc, int frameNumber, int sequenceNumber, int sequenceLength, int timestamp) {
+		this(type, frameNumber, sequenceNumber, sequenceLength);
+		this.version = VERSION_2;
+		this.ssrc = ssrc;
+		this.timestamp = timestamp;
+	}
+	
+	/**
+	 * Creates a header for another fragment of the same frame, keeping the version, stream and timestamp
+	 * 
+	 * @param type
+	 * @param sequenceNumber
+	 * @param sequenceLength
+	 * @return
+	 */
+	public RtpHeader fragment(PayloadType type, int sequenceNumber, int sequenceLength) {
+		if(this.version == VERSION_2)
+			return new RtpHeader(type, this.ssrc, this.frameNumber, sequenceNumber, sequenceLength, this.timestamp);
+		return new RtpHeader(type, this.frameNumber, sequenceNumber, sequenceLength);
+	}
+	
+	/**
+	 * Converts a time to a timestamp
+	 * 
+	 * @param nanos Time such as from System.nanoTime
+	 * @return Time in {@link #CLOCK_RATE} units, wrapping around
+	 */
+	public static int timestamp(long nanos) {
+		//Split so the multiplication cannot overflow
+		return (int)((nanos / 1_000_000_000L) * CLOCK_RATE + (nanos % 1_000_000_000L) * CLOCK_RATE / 1_000_000_000L);
+	}
+	
 	/**
 	 * Set the sender's data. This is not sent, and is only used for processing purposes
 	 * 
@@ -91,6 +194,37 @@ public class RtpHeader {
 		return this.senderPort;
 	}
 	
+	public int getVersion() {
+		return this.version;
+	}
+	
+	/**
+	 * Gets the size of the encoded header
+	 * 
+	 * @return
+	 */
+	public int getSize() {
+		return this.version == VERSION_2 ? SIZE_V2 : SIZE;
+	}
+	
+	/**
+	 * Gets the id of the sender's stream
+	 * 
+	 * @return SSRC, or 0 for a version 1 header
+	 */
+	public int getSsrc() {
+		return this.ssrc;
+	}
+	
+	/**
+	 * Gets the capture time of the frame
+	 * 
+	 * @return Time in {@link #CLOCK_RATE} units, or 0 for a version 1 header
+	 */
+	public int getTimestamp() {
+		return this.timestamp;
+	}
+	
 	public int getSequenceLength() {
 		return this.sequenceLength;
 	}
@@ -107,7 +241,18 @@ public class RtpHeader {
 		return this.type;
 	}
 	
+	/**
+	 * Decodes a header of either version
+	 * 
+	 * @param headerData Array holding at least the whole header, see {@link #size(byte)}
+	 * @return
+	 */
 	public static RtpHeader decode(byte[] headerData) {
+		ByteBuffer buffer = ByteBuffer.wrap(headerData);
+		if(version(buffer, 0) == VERSION_2)
+			return new RtpHeader(PayloadType.toType(type(buffer, 0)), ssrc(buffer, 0), frameNumber(buffer, 0),
+					sequenceNumber(buffer, 0), sequenceLength(buffer, 0), timestamp(buffer, 0));
+		
 		return new RtpHeader(
 				PayloadType.toType(headerData[0]),
 				(headerData[2] & 0xFF) + ((headerData[1] & 0xFF) << 8),
@@ -116,14 +261,99 @@ public class RtpHeader {
 	}
 	
 	public byte[] encode() {
-		byte[] b = new byte[SIZE];
-		b[0] = this.type.toByte();
-		b[1] = (byte)(this.frameNumber >> 8);
-		b[2] = (byte)(this.frameNumber & 0xFF);
-		b[3] = (byte)(this.sequenceNumber >> 8);
-		b[4] = (byte)(this.sequenceNumber & 0xFF);
-		b[5] = (byte)(this.sequenceLength >> 8);
-		b[6] = (byte)(this.sequenceLength & 0xFF);
+		byte[] b = new byte[this.getSize()];
+		this.encodeInto(ByteBuffer.wrap(b));
 		return b;
 	}
+	
+	/**
+	 * Writes the header at the buffer's current position, advancing it by {@link #getSize()}
+	 * 
+	 * @param buffer Buffer with at least {@link #getSize()} bytes remaining
+	 */
+	public void encodeInto(ByteBuffer buffer) {
+		if(this.version == VERSION_2) {
+			buffer.put((byte)(VERSION_FLAG | VERSION_2));
+			buffer.put(this.type.toByte());
+			buffer.putInt(this.ssrc);
+			buffer.putInt(this.frameNumber);
+			buffer.putShort((short)this.sequenceNumber);
+			buffer.putShort((short)this.sequenceLength);
+			buffer.putInt(this.timestamp);
+			return;
+		}
+		
+		buffer.put(this.type.toByte());
+		buffer.putShort((short)this.frameNumber);
+		buffer.putShort((short)this.sequenceNumber);
+		buffer.putShort((short)this.sequenceLength);
+	}
+	
+	/**
+	 * Gets the size of a header from its first byte
+	 * 
+	 * @param first
+	 * @return Size in bytes, or 0 for a version that is not known
+	 */
+	public static int size(byte first) {
+		if((first & VERSION_FLAG) == 0)
+			return SIZE;
+		return (first & 0x7F) == VERSION_2 ? SIZE_V2 : 0;
+	}
+	
+	/**
+	 * Gets the size of an encoded header. This and the methods after it read fields in place, so a datagram
+	 * can be looked at without decoding it.
+	 * 
+	 * @param buffer
+	 * @param position Position of the header in the buffer
+	 * @return Size in bytes, or 0 for a version that is not known
+	 */
+	public static int size(ByteBuffer buffer, int position) {
+		return size(buffer.get(position));
+	}
+	
+	/**
+	 * Checks that a datagram holds a whole header of a known version
+	 * 
+	 * @param buffer
+	 * @param position Position of the datagram in the buffer
+	 * @param length Length of the datagram
+	 * @return
+	 */
+	public static boolean isValid(ByteBuffer buffer, int position, int length) {
+		if(length < SIZE)
+			return false;
+		int size = size(buffer, position);
+		return size > 0 && length >= size;
+	}
+	
+	public static int version(ByteBuffer buffer, int position) {
+		byte first = buffer.get(position);
+		return (first & VERSION_FLAG) == 0 ? VERSION_1 : first & 0x7F;
+	}
+	
+	public static byte type(ByteBuffer buffer, int position) {
+		return version(buffer, position) == VERSION_2 ? buffer.get(position + 1) : buffer.get(position);
+	}
+	
+	public static int ssrc(ByteBuffer buffer, int position) {
+		return version(buffer, position) == VERSION_2 ? buffer.getInt(position + 2) : 0;
+	}
+	
+	public static int frameNumber(ByteBuffer buffer, int position) {
+		return version(buffer, position) == VERSION_2 ? buffer.getInt(position + 6) : buffer.getShort(position + 1) & 0xFFFF;
+	}
+	
+	public static int sequenceNumber(ByteBuffer buffer, int position) {
+		return buffer.getShort(position + (version(buffer, position) == VERSION_2 ? 10 : 3)) & 0xFFFF;
+	}
+	
+	public static int sequenceLength(ByteBuffer buffer, int position) {
+		return buffer.getShort(position + (version(buffer, position) == VERSION_2 ? 12 : 5)) & 0xFFFF;
+	}
+	
+	public static int timestamp(ByteBuffer buffer, int position) {
+		return version(buffer, position) == VERSION_2 ? buffer.getInt(position + 14) : 0;
+	}
 }
@@ -1,8 +1,8 @@
 package com.russbucket.networking.rtp.packet;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class RtpPacket {
 
@@ -33,12 +33,15 @@ public class RtpPacket {
 	 * @param length Length of the data that is readable (not empty)
 	 * @param senderAddress
 	 * @param senderPort
-	 * @return Complete RtpPacket
+	 * @return Complete RtpPacket, or null if the data does not hold a whole header of a known version
 	 */
 	public static RtpPacket createPacket(byte[] packet, int length, InetAddress senderAddress, int senderPort) {
+		if(!RtpHeader.isValid(ByteBuffer.wrap(packet), 0, length))
+			return null;
+		
 		ByteArrayInputStream bais = new ByteArrayInputStream(packet);
 		//Header
-		byte[] headerData = new byte[RtpHeader.SIZE];
+		byte[] headerData = new byte[RtpHeader.size(packet[0])];
 		bais.read(headerData, 0, headerData.length);
 		RtpHeader header = RtpHeader.decode(headerData);
 		header.setSenderData(senderAddress, senderPort);
@@ -56,10 +59,19 @@ public class RtpPacket {
 	 * @return Byte array containing the packet
 	 */
 	public byte[] getPacketAsBytes() {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		baos.writeBytes(header.encode());
-		baos.writeBytes(payload);
-		return baos.toByteArray();
+		byte[] data = new byte[this.header.getSize() + this.payload.length];
+		this.writeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * Writes the header and payload at the buffer's current position
+	 * 
+	 * @param buffer Buffer with room for the whole packet
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		this.header.encodeInto(buffer);
+		buffer.put(this.payload);
 	}
 	
 }
@@ -0,0 +1,209 @@
+package com.russbucket.networking.rtp.packet;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of a received datagram.
+ *
+ * Header fields are read in place from the backing buffer and the payload is exposed as a slice,
+ * so a single view can be reused for every receive without allocating. Headers of either version are read.
+ *
+ * The contents are only valid until the next receive into the same view.
+ *
+ * @author Rusty
+ */
+public class RtpPacketView {
+	
+	private ByteBuffer buffer;
+	private ByteBuffer payload;
+	private int length;
+	private SocketAddress sender;
+	private long receivedTime;
+	
+	/**
+	 * Create a view backed by a direct buffer
+	 *
+	 * @param capacity Largest datagram that can be received into the view
+	 */
+	public RtpPacketView(int capacity) {
+		this(ByteBuffer.allocateDirect(capacity));
+	}
+	
+	/**
+	 * Create a view over an existing buffer
+	 *
+	 * @param buffer Buffer to receive datagrams into
+	 */
+	public RtpPacketView(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.payload = buffer.duplicate();
+	}
+	
+	/**
+	 * Gets the backing buffer, used by the socket to receive into
+	 *
+	 * @return
+	 */
+	public ByteBuffer getBuffer() {
+		return this.buffer;
+	}
+	
+	/**
+	 * Marks the view as holding a newly received datagram
+	 *
+	 * @param length Amount of bytes received
+	 * @param sender Address the datagram came from
+	 */
+	public void setReceived(int length, SocketAddress sender) {
+		this.length = length;
+		this.sender = sender;
+	}
+	
+	/**
+	 * Sets when the datagram was received
+	 *
+	 * @param nanos System.nanoTime when received
+	 */
+	public void setReceivedTime(long nanos) {
+		this.receivedTime = nanos;
+	}
+	
+	/**
+	 * Gets when the datagram was received, if set by the receiver
+	 *
+	 * @return System.nanoTime when received
+	 */
+	public long getReceivedTime() {
+		return this.receivedTime;
+	}
+	
+	/**
+	 * Gets the length of the whole datagram (header and payload)
+	 *
+	 * @return
+	 */
+	public int getLength() {
+		return this.length;
+	}
+	
+	/**
+	 * Checks that the datagram is at least large enough to hold a header
+	 *
+	 * @return True if the header fields can be read
+	 */
+	public boolean isValid() {
+		return RtpHeader.isValid(this.buffer, 0, this.length);
+	}
+	
+	public int getVersion() {
+		return RtpHeader.version(this.buffer, 0);
+	}
+	
+	/**
+	 * Gets the size of the header
+	 *
+	 * @return
+	 */
+	public int getHeaderSize() {
+		return RtpHeader.size(this.buffer, 0);
+	}
+	
+	public RtpHeader.PayloadType getType() {
+		return RtpHeader.PayloadType.toType(RtpHeader.type(this.buffer, 0));
+	}
+	
+	/**
+	 * Gets the id of the sender's stream
+	 *
+	 * @return SSRC, or 0 for a version 1 header
+	 */
+	public int getSsrc() {
+		return RtpHeader.ssrc(this.buffer, 0);
+	}
+	
+	public int getFrameNumber() {
+		return RtpHeader.frameNumber(this.buffer, 0);
+	}
+	
+	public int getSequenceNumber() {
+		return RtpHeader.sequenceNumber(this.buffer, 0);
+	}
+	
+	public int getSequenceLength() {
+		return RtpHeader.sequenceLength(this.buffer, 0);
+	}
+	
+	/**
+	 * Gets the capture time of the frame
+	 *
+	 * @return Time in {@link RtpHeader#CLOCK_RATE} units, or 0 for a version 1 header
+	 */
+	public int getTimestamp() {
+		return RtpHeader.timestamp(this.buffer, 0);
+	}
+	
+	/**
+	 * Gets the sender's address
+	 *
+	 * @return
+	 */
+	public SocketAddress getSenderAddress() {
+		return this.sender;
+	}
+	
+	/**
+	 * Gets the whole datagram (header and payload) as it was received, for forwarding without parsing
+	 *
+	 * @return The backing buffer positioned over the datagram
+	 */
+	public ByteBuffer getDatagram() {
+		this.buffer.limit(this.length).position(0);
+		return this.buffer;
+	}
+	
+	/**
+	 * Gets the payload as a slice of the backing buffer (position to limit).
+	 *
+	 * The same buffer instance is returned on every call, so it must not be held past the next receive.
+	 *
+	 * @return
+	 */
+	public ByteBuffer getPayload() {
+		this.payload.clear();
+		this.payload.limit(this.length).position(this.getHeaderSize());
+		return this.payload;
+	}
+	
+	/**
+	 * Gets the size of the payload
+	 *
+	 * @return
+	 */
+	public int getPayloadLength() {
+		return this.length - this.getHeaderSize();
+	}
+	
+	/**
+	 * Copies the view into a standalone RtpPacket
+	 *
+	 * @return RtpPacket that is independent of the backing buffer
+	 */
+	public RtpPacket toPacket() {
+		RtpHeader header;
+		if(this.getVersion() == RtpHeader.VERSION_2)
+			header = new RtpHeader(this.getType(), this.getSsrc(), this.getFrameNumber(), this.getSequenceNumber(), this.getSequenceLength(), this.getTimestamp());
+		else
+			header = new RtpHeader(this.getType(), this.getFrameNumber(), this.getSequenceNumber(), this.getSequenceLength());
+		if(this.sender instanceof InetSocketAddress) {
+			InetSocketAddress address = (InetSocketAddress)this.sender;
+			header.setSenderData(address.getAddress(), address.getPort());
+		}
+		
+		byte[] data = new byte[this.getPayloadLength()];
+		this.getPayload().get(data);
+		
+		return new RtpPacket(data, header);
+	}
+}
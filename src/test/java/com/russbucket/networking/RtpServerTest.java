@@ -0,0 +1,76 @@
+package com.russbucket.networking;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.TextProcessor;
+import com.russbucket.networking.rtp.metrics.Metrics;
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class RtpServerTest {
+	
+	private static void send(DatagramSocket socket, byte[] datagram, InetSocketAddress target) throws Exception {
+		socket.send(new DatagramPacket(datagram, datagram.length, target));
+	}
+	
+	/**
+	 * Receives the next media datagram, skipping control datagrams
+	 */
+	private static ByteBuffer receive(DatagramSocket socket) throws Exception {
+		while(true) {
+			DatagramPacket udp = new DatagramPacket(new byte[2048], 2048);
+			socket.receive(udp);
+			ByteBuffer datagram = ByteBuffer.wrap(udp.getData(), 0, udp.getLength());
+			if(RtpHeader.type(datagram, 0) != RtpHeader.PayloadType.STAT.toByte())
+				return datagram;
+		}
+	}
+	
+	@Test
+	void testRelay() {
+		try {
+			RtpServer server = new RtpServer(0, true, 1, 0);
+			InetSocketAddress target = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+			DatagramSocket sender = new DatagramSocket(0);
+			DatagramSocket receiver = new DatagramSocket(0);
+			receiver.setSoTimeout(5000);
+			
+			TextProcessor text = new TextProcessor();
+			for(DatagramSocket socket : new DatagramSocket[] {sender, receiver})
+				for(RtpPacket packet : text.encode("JOIN", 1))
+					send(socket, packet.getPacketAsBytes(), target);
+			for(int i=0; i<500 && server.getClientCount() < 2; i++)
+				Thread.sleep(10);
+			Assertions.assertEquals(2, server.getClientCount());
+			
+			//A datagram of an unknown type is dropped, media after it is forwarded to the other client
+			byte[] invalid = new RtpPacket(new byte[] {1}, RtpHeader.PayloadType.JPEG, 6, 0, 1).getPacketAsBytes();
+			invalid[0] = 0x7F;
+			send(sender, invalid, target);
+			send(sender, new RtpPacket(new byte[] {2}, RtpHeader.PayloadType.JPEG, 7, 0, 1).getPacketAsBytes(), target);
+			
+			ByteBuffer datagram = receive(receiver);
+			Assertions.assertEquals(RtpHeader.PayloadType.JPEG.toByte(), RtpHeader.type(datagram, 0));
+			Assertions.assertEquals(7, RtpHeader.frameNumber(datagram, 0));
+			Assertions.assertEquals(2, datagram.get(RtpHeader.SIZE));
+			
+			ObjectName name = new ObjectName(Metrics.DOMAIN + ":type=Receiver,name=" + ObjectName.quote("server-" + server.getLocalPort() + "-shard-0"));
+			Assertions.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Invalid"));
+			
+			sender.close();
+			receiver.close();
+			server.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
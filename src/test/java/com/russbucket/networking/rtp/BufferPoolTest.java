@@ -0,0 +1,123 @@
+package com.russbucket.networking.rtp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
+
+class BufferPoolTest {
+	
+	@Test
+	void testReuse() {
+		try {
+			BufferPool pool = new BufferPool(4);
+			
+			//Sizes are rounded up to their size class
+			PooledBuffer small = pool.acquire(100);
+			Assertions.assertEquals(BufferPool.MIN_SIZE, small.getBuffer().capacity());
+			Assertions.assertEquals(100, small.getBuffer().limit());
+			Assertions.assertTrue(small.getBuffer().isDirect());
+			PooledBuffer large = pool.acquire(BufferPool.MIN_SIZE + 1);
+			Assertions.assertEquals(BufferPool.MIN_SIZE * 2, large.getBuffer().capacity());
+			
+			//A buffer only goes back to the pool once every reference is released
+			small.retain();
+			small.release();
+			Assertions.assertEquals(2, pool.getMetrics().getOutstanding());
+			small.release();
+			Assertions.assertEquals(1, pool.getMetrics().getOutstanding());
+			Assertions.assertThrows(IllegalStateException.class, ()->small.release());
+			Assertions.assertThrows(IllegalStateException.class, ()->small.retain());
+			
+			//And is then handed out again, cleared
+			Assertions.assertSame(small, pool.acquire(200));
+			Assertions.assertEquals(200, small.getBuffer().limit());
+			Assertions.assertEquals(3, pool.getMetrics().getAcquired());
+			Assertions.assertEquals(2, pool.getMetrics().getAllocated());
+			
+			//Larger than any size class is allocated to size and not kept
+			PooledBuffer huge = pool.acquire(BufferPool.MAX_SIZE + 1);
+			Assertions.assertEquals(BufferPool.MAX_SIZE + 1, huge.getBuffer().capacity());
+			huge.release();
+			Assertions.assertNotSame(huge, pool.acquire(BufferPool.MAX_SIZE + 1));
+			
+			PooledBuffer copy = pool.copy(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+			Assertions.assertEquals(3, copy.getBuffer().remaining());
+			Assertions.assertEquals(3, copy.getBuffer().get(2));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testLeakDetection() {
+		try {
+			BufferPool pool = new BufferPool();
+			pool.setLeakDetection(true);
+			
+			pool.acquire(100).release();
+			pool.acquire(100);
+			for(int i=0; i<50 && pool.getMetrics().getLeaks() == 0; i++) {
+				System.gc();
+				Thread.sleep(20);
+			}
+			
+			//Only the buffer that was never released is reported
+			Assertions.assertEquals(1, pool.getMetrics().getLeaks());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testSubscriberQueue() {
+		try {
+			RtpSocket receiver = new RtpSocket();
+			RtpSocket sender = new RtpSocket();
+			BufferPool pool = new BufferPool();
+			List<Runnable> carriers = new ArrayList<>();
+			InetSocketAddress target = new InetSocketAddress("127.0.0.1", receiver.getLocalPort());
+			SubscriberQueue first = new SubscriberQueue(target, sender, 16, carriers::add);
+			SubscriberQueue second = new SubscriberQueue(target, sender, 16, carriers::add);
+			
+			//One copy is queued to both, and goes back to the pool once both have sent it
+			ByteBuffer datagram = ByteBuffer.wrap(new RtpPacket(new byte[] {7}, RtpHeader.PayloadType.JPEG, 5, 0, 1).getPacketAsBytes());
+			PooledBuffer copy = pool.copy(datagram);
+			Assertions.assertTrue(first.offer(copy));
+			Assertions.assertTrue(second.offer(copy));
+			copy.release();
+			Assertions.assertEquals(2, copy.getReferences());
+			
+			carriers.remove(0).run();
+			Assertions.assertEquals(1, pool.getMetrics().getOutstanding());
+			carriers.remove(0).run();
+			Assertions.assertEquals(0, pool.getMetrics().getOutstanding());
+			
+			RtpPacketView view = new RtpPacketView(RtpSocket.SIZE_MAX);
+			for(int i=0; i<2; i++) {
+				receiver.receive(view);
+				Assertions.assertEquals(5, view.getFrameNumber());
+			}
+			
+			//Closing releases whatever is still queued
+			copy = pool.copy(datagram);
+			first.offer(copy);
+			copy.release();
+			first.close();
+			Assertions.assertEquals(0, pool.getMetrics().getOutstanding());
+			
+			second.close();
+			receiver.close();
+			sender.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
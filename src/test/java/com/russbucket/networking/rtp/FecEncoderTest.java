@@ -0,0 +1,115 @@
+package com.russbucket.networking.rtp;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class FecEncoderTest {
+	
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for(int i=0; i<length; i++)
+			data[i] = (byte)(i * 31 + 7);
+		return data;
+	}
+	
+	/**
+	 * Adds every packet apart from the lost fragments, returning the frame if it completed
+	 */
+	private static FrameReassembler.Frame deliver(FrameReassembler reassembler, List<RtpPacket> fragments, List<RtpPacket> repairs, int... lost) {
+		FrameReassembler.Frame frame = null;
+		outer:
+		for(RtpPacket packet : fragments) {
+			RtpHeader header = packet.getHeader();
+			for(int sequence : lost) {
+				if(header.getSequenceNumber() == sequence)
+					continue outer;
+			}
+			frame = reassembler.add(header.getFrameNumber(), header.getSequenceNumber(), header.getSequenceLength(), packet.getPayload(), 0, packet.getPayload().length);
+		}
+		for(RtpPacket packet : repairs) {
+			if(frame != null)
+				break;
+			frame = reassembler.addRepair(packet.getHeader().getFrameNumber(), packet.getPayload(), 0, packet.getPayload().length);
+		}
+		return frame;
+	}
+	
+	private static void assertFrame(byte[] expected, FrameReassembler.Frame frame) {
+		Assertions.assertNotNull(frame);
+		Assertions.assertEquals(expected.length, frame.getLength());
+		for(int i=0; i<expected.length; i++)
+			Assertions.assertEquals(expected[i], frame.getData()[i]);
+	}
+
+	@Test
+	void testXor() {
+		try {
+			Fragmenter fragmenter = new Fragmenter(RtpHeader.SIZE + 100);
+			byte[] data = data(950);
+			List<RtpPacket> fragments = fragmenter.fragment(data, data.length, RtpHeader.PayloadType.JPEG, 3);
+			List<RtpPacket> repairs = FecEncoder.xor(4).protect(fragments);
+			
+			//10 fragments in groups of 4, 4 and 2
+			Assertions.assertEquals(3, repairs.size());
+			Assertions.assertEquals(RtpHeader.PayloadType.FEC, repairs.get(0).getHeader().getType());
+			Assertions.assertEquals(FecEncoder.HEADER_SIZE + 100, repairs.get(0).getPayload().length);
+			
+			//One lost fragment per group, including the short last fragment
+			FrameReassembler reassembler = new FrameReassembler(4, 10000, 1000);
+			assertFrame(data, deliver(reassembler, fragments, repairs, 1, 6, 9));
+			
+			//Two lost in the same group cannot be rebuilt with XOR
+			Assertions.assertNull(deliver(new FrameReassembler(4, 10000, 1000), fragments, repairs, 0, 1));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testReedSolomon() {
+		try {
+			Fragmenter fragmenter = new Fragmenter(RtpHeader.SIZE + 64);
+			byte[] data = data(64 * 11 + 5);
+			List<RtpPacket> fragments = fragmenter.fragment(data, data.length, RtpHeader.PayloadType.TILE, 9);
+			FecEncoder fec = FecEncoder.reedSolomon(6, 3);
+			List<RtpPacket> repairs = fec.protect(fragments);
+			Assertions.assertEquals(6, repairs.size());
+			Assertions.assertEquals(0.5, fec.getOverhead(), 0.0001);
+			
+			//Up to 3 lost in each group
+			assertFrame(data, deliver(new FrameReassembler(4, 10000, 1000), fragments, repairs, 0, 2, 5, 7, 11));
+			assertFrame(data, deliver(new FrameReassembler(4, 10000, 1000), fragments, repairs, 3, 4, 5, 9, 10, 11));
+			Assertions.assertNull(deliver(new FrameReassembler(4, 10000, 1000), fragments, repairs, 0, 1, 2, 3));
+			
+			//Repair packets on their own when the whole frame is lost
+			byte[] small = data(40);
+			List<RtpPacket> single = fragmenter.fragment(small, small.length, RtpHeader.PayloadType.TILE, 10);
+			assertFrame(small, deliver(new FrameReassembler(4, 10000, 1000), single, FecEncoder.reedSolomon(4, 1).protect(single), 0));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testLateRepair() {
+		try {
+			Fragmenter fragmenter = new Fragmenter(RtpHeader.SIZE + 50);
+			byte[] data = data(120);
+			List<RtpPacket> fragments = fragmenter.fragment(data, data.length, RtpHeader.PayloadType.JPEG, 4);
+			List<RtpPacket> repairs = FecEncoder.reedSolomon(3, 3).protect(fragments);
+			
+			//A frame that completed is not rebuilt again by its repair packets
+			FrameReassembler reassembler = new FrameReassembler(4, 10000, 1000);
+			assertFrame(data, deliver(reassembler, fragments, List.of()));
+			for(RtpPacket repair : repairs)
+				Assertions.assertNull(reassembler.addRepair(4, repair.getPayload(), 0, repair.getPayload().length));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.russbucket.networking.rtp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ForwardingTableTest {
+
+	@Test
+	void testPutGetRemove() {
+		try {
+			ForwardingTable<String> table = new ForwardingTable<>();
+			InetAddress local = InetAddress.getByName("127.0.0.1");
+			
+			Assertions.assertNull(table.put(new InetSocketAddress(local, 5000), "first"));
+			Assertions.assertNull(table.put(new InetSocketAddress(local, 5001), "second"));
+			Assertions.assertEquals("first", table.put(new InetSocketAddress(local, 5000), "replaced"));
+			Assertions.assertEquals(2, table.size());
+			
+			Assertions.assertEquals("replaced", table.get(local, 5000));
+			Assertions.assertEquals("second", table.get(local, 5001));
+			Assertions.assertNull(table.get(local, 5002));
+			
+			ForwardingTable.Entry<String>[] before = table.snapshot();
+			Assertions.assertEquals("replaced", table.remove(local, 5000));
+			Assertions.assertNull(table.remove(local, 5000));
+			Assertions.assertEquals(1, table.size());
+			
+			//Snapshots taken before a change are never modified
+			Assertions.assertEquals(2, before.length);
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testKeyMatching() {
+		try {
+			InetAddress v4 = InetAddress.getByName("10.1.2.3");
+			InetAddress v6 = InetAddress.getByName("fe80::1");
+			
+			Assertions.assertNotEquals(ForwardingTable.key(v4, 80), ForwardingTable.key(v4, 81));
+			Assertions.assertNotEquals(ForwardingTable.key(v4, 80), ForwardingTable.key(InetAddress.getByName("10.1.2.4"), 80));
+			
+			ForwardingTable<String> table = new ForwardingTable<>();
+			table.put(new InetSocketAddress(v4, 80), "v4");
+			table.put(new InetSocketAddress(v6, 80), "v6");
+			
+			ForwardingTable.Entry<String>[] entries = table.snapshot();
+			Assertions.assertTrue(entries[0].matches(ForwardingTable.key(v4, 80), v4));
+			Assertions.assertFalse(entries[0].matches(ForwardingTable.key(v6, 80), v6));
+			Assertions.assertTrue(entries[1].matches(ForwardingTable.key(v6, 80), v6));
+			Assertions.assertEquals("v6", table.get(v6, 80));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
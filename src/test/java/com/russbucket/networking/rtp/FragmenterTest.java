@@ -0,0 +1,55 @@
+package com.russbucket.networking.rtp;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class FragmenterTest {
+
+	@Test
+	void test() {
+		try {
+			Fragmenter fragmenter = new Fragmenter(107);
+			Assertions.assertEquals(100, fragmenter.getPayloadSize());
+			
+			byte[] data = new byte[250];
+			for(int i=0; i<data.length; i++)
+				data[i] = (byte)i;
+			
+			//Exact sized fragments with the remainder in the last
+			List<RtpPacket> packets = fragmenter.fragment(data, data.length, RtpHeader.PayloadType.JPEG, 7);
+			Assertions.assertEquals(3, packets.size());
+			Assertions.assertEquals(100, packets.get(0).getPayload().length);
+			Assertions.assertEquals(100, packets.get(1).getPayload().length);
+			Assertions.assertEquals(50, packets.get(2).getPayload().length);
+			for(RtpPacket packet : packets) {
+				Assertions.assertTrue(packet.getPacketAsBytes().length <= fragmenter.getMtu());
+				Assertions.assertEquals(3, packet.getHeader().getSequenceLength());
+			}
+			
+			//No bytes are lost, even out of order
+			FrameReassembler reassembler = new FrameReassembler(2, 1000, 1000);
+			FrameReassembler.Frame frame = null;
+			for(int i : new int[] {2, 0, 1}) {
+				RtpPacket packet = packets.get(i);
+				frame = reassembler.add(7, i, 3, packet.getPayload(), 0, packet.getPayload().length);
+			}
+			Assertions.assertNotNull(frame);
+			Assertions.assertEquals(250, frame.getLength());
+			for(int i=0; i<data.length; i++)
+				Assertions.assertEquals(data[i], frame.getData()[i]);
+			
+			//Empty data is still sent
+			Assertions.assertEquals(1, fragmenter.fragment(new byte[0], 0, RtpHeader.PayloadType.STAT, 1).size());
+			Assertions.assertEquals(2, fragmenter.fragment(data, 200, RtpHeader.PayloadType.STAT, 1).size());
+			
+			Assertions.assertThrows(IllegalArgumentException.class, ()->new Fragmenter(RtpHeader.SIZE));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.russbucket.networking.rtp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class FrameClockTest {
+	
+	@Test
+	void testCatchUp() {
+		try {
+			long start = System.nanoTime();
+			FrameClock clock = new FrameClock(10);
+			long period = clock.getPeriod();
+			Assertions.assertEquals(100_000_000L, period);
+			
+			//Half way through the sixth frame, the first frame is four and a half frames late
+			Thread.sleep(550);
+			Assertions.assertEquals(4, clock.await());
+			Assertions.assertEquals(4, clock.getSkipped());
+			
+			//The frame after lands back on the grid instead of running straight away
+			Assertions.assertEquals(0, clock.await());
+			long elapsed = System.nanoTime() - start;
+			Assertions.assertTrue(elapsed >= 6 * period, "Woke early at " + elapsed);
+			Assertions.assertTrue(elapsed < 6 * period + period / 2, "Woke late at " + elapsed);
+			Assertions.assertEquals(4, clock.getSkipped());
+			
+			Assertions.assertThrows(IllegalArgumentException.class, ()->new FrameClock(0));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
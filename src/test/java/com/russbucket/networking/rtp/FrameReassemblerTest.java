@@ -0,0 +1,109 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+
+class FrameReassemblerTest {
+	
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for(int i=0; i<length; i++)
+			data[i] = (byte)(i * 7);
+		return data;
+	}
+	
+	@Test
+	void testOutOfOrderWithShortLastFragment() {
+		FrameReassembler reassembler = new FrameReassembler(4, 1024, 1000);
+		byte[] data = data(25);
+		
+		//Last fragment first, before the fragment size is known
+		Assertions.assertNull(reassembler.add(7, 2, 3, data, 20, 5));
+		Assertions.assertNull(reassembler.add(7, 0, 3, ByteBuffer.wrap(data, 0, 10)));
+		//Duplicates are ignored
+		Assertions.assertNull(reassembler.add(7, 0, 3, data, 0, 10));
+		FrameReassembler.Frame frame = reassembler.add(7, 1, 3, data, 10, 10);
+		
+		Assertions.assertNotNull(frame);
+		Assertions.assertEquals(7, frame.getFrameNumber());
+		Assertions.assertEquals(data.length, frame.getLength());
+		Assertions.assertArrayEquals(data, Arrays.copyOf(frame.getData(), frame.getLength()));
+	}
+	
+	@Test
+	void testDuplicatesOfCompletedFrame() {
+		FrameReassembler reassembler = new FrameReassembler(4, 1024, 1000);
+		reassembler.setEvictOlderOnComplete(false);
+		byte[] data = data(20);
+		
+		Assertions.assertNull(reassembler.add(3, 0, 2, data, 0, 10));
+		Assertions.assertNotNull(reassembler.add(3, 1, 2, data, 10, 10));
+		//A retransmitted copy arriving after the frame completed neither completes it again nor starts it again
+		Assertions.assertNull(reassembler.add(3, 0, 2, data, 0, 10));
+		Assertions.assertNull(reassembler.add(3, 1, 2, data, 10, 10));
+		
+		NackMessage nack = new NackMessage(RtpHeader.PayloadType.JPEG);
+		reassembler.collectMissing(0, 3, nack);
+		Assertions.assertTrue(nack.isEmpty());
+	}
+	
+	@Test
+	void testReusedFrameNumbers() {
+		FrameReassembler reassembler = new FrameReassembler(4, 1024, 1000);
+		reassembler.setEvictOlderOnComplete(false);
+		reassembler.setDropCompleted(false);
+		byte[] data = data(20);
+		
+		//Messages sent with the same frame number each complete
+		Assertions.assertNotNull(reassembler.add(1, 0, 1, data, 0, 20));
+		Assertions.assertNotNull(reassembler.add(1, 0, 1, data, 0, 20));
+	}
+	
+	@Test
+	void testNewerCompletionEvictsOlder() {
+		FrameReassembler reassembler = new FrameReassembler(4, 1024, 1000);
+		byte[] data = data(20);
+		
+		Assertions.assertNull(reassembler.add(65535, 0, 2, data, 0, 10));
+		//Frame 0 is newer than 65535 once wrapped
+		Assertions.assertNotNull(reassembler.add(0, 0, 1, data, 0, 20));
+		Assertions.assertNull(reassembler.add(65535, 1, 2, data, 10, 10));
+		
+		Assertions.assertTrue(reassembler.isNewer(0, 65535));
+		Assertions.assertFalse(reassembler.isNewer(65535, 0));
+	}
+	
+	@Test
+	void testKeepOlderFrames() {
+		FrameReassembler reassembler = new FrameReassembler(4, 1024, 1000);
+		reassembler.setEvictOlderOnComplete(false);
+		byte[] data = data(20);
+		
+		Assertions.assertNull(reassembler.add(1, 0, 2, data, 0, 10));
+		Assertions.assertNotNull(reassembler.add(2, 0, 1, data, 0, 20));
+		Assertions.assertNotNull(reassembler.add(1, 1, 2, data, 10, 10));
+	}
+	
+	@Test
+	void testTimeoutAndLimits() {
+		FrameReassembler reassembler = new FrameReassembler(2, 16, 0);
+		byte[] data = data(20);
+		
+		//Larger than the maximum frame size
+		Assertions.assertNull(reassembler.add(1, 0, 1, data, 0, 20));
+		//Sequence number outside of the frame
+		Assertions.assertNull(reassembler.add(1, 2, 2, data, 0, 4));
+		
+		Assertions.assertNull(reassembler.add(3, 0, 2, data, 0, 8));
+		try {
+			Thread.sleep(2);
+		}catch(InterruptedException e) {}
+		//The first fragment has timed out, so the frame cannot complete
+		Assertions.assertNull(reassembler.add(3, 1, 2, data, 8, 8));
+	}
+}
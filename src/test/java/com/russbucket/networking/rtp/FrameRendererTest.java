@@ -0,0 +1,114 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class FrameRendererTest {
+	
+	private static BufferedImage image(Color color) {
+		BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(color);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.dispose();
+		return image;
+	}
+	
+	/**
+	 * @return Frame number to send the next image with
+	 */
+	private static int send(ImageProcessor sender, ImageProcessor receiver, Color color, int frameNumber) throws Exception {
+		List<RtpPacket> packets = new ArrayList<>();
+		int next = sender.encode(image(color), frameNumber, packets);
+		for(RtpPacket packet : packets)
+			Assertions.assertNull(receiver.decode(packet));
+		return next;
+	}
+	
+	/**
+	 * Checks the colour of the middle of an image, allowing for JPEG loss
+	 */
+	private static void assertColor(Color expected, BufferedImage image) {
+		Color actual = new Color(image.getRGB(image.getWidth() / 2, image.getHeight() / 2));
+		Assertions.assertTrue(Math.abs(expected.getRed() - actual.getRed()) < 16, actual.toString());
+		Assertions.assertTrue(Math.abs(expected.getGreen() - actual.getGreen()) < 16, actual.toString());
+		Assertions.assertTrue(Math.abs(expected.getBlue() - actual.getBlue()) < 16, actual.toString());
+	}
+	
+	@Test
+	void testLatestImage() {
+		try {
+			ImageProcessor sender = new ImageProcessor();
+			ImageProcessor receiver = new ImageProcessor();
+			Semaphore frames = new Semaphore(0);
+			FrameRenderer renderer = receiver.enableRenderer(frames::release);
+			Thread thread = new Thread(renderer);
+			thread.start();
+			
+			Assertions.assertNull(renderer.acquire());
+			send(sender, receiver, Color.RED, 1);
+			Assertions.assertTrue(frames.tryAcquire(5, TimeUnit.SECONDS));
+			
+			//The first image has not been painted, so the next ones wait and only the newest is decoded
+			send(sender, receiver, Color.GREEN, 2);
+			send(sender, receiver, Color.WHITE, 3);
+			send(sender, receiver, Color.BLUE, 4);
+			Assertions.assertEquals(2, receiver.getMetrics().getFramesSkipped());
+			BufferedImage first = renderer.acquire();
+			assertColor(Color.RED, first);
+			
+			Assertions.assertTrue(frames.tryAcquire(5, TimeUnit.SECONDS));
+			BufferedImage second = renderer.acquire();
+			Assertions.assertNotSame(first, second);
+			assertColor(Color.BLUE, second);
+			//Nothing newer has been received, so the same image is painted again
+			Assertions.assertSame(second, renderer.acquire());
+			Assertions.assertEquals(2, receiver.getMetrics().getDecodeTime().getCount());
+			
+			renderer.close();
+			thread.join(5000);
+			Assertions.assertFalse(thread.isAlive());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testTiles() {
+		try {
+			ImageProcessor sender = new ImageProcessor();
+			sender.setTileMode(32, 100);
+			ImageProcessor receiver = new ImageProcessor();
+			Semaphore frames = new Semaphore(0);
+			FrameRenderer renderer = receiver.enableRenderer(frames::release);
+			Thread thread = new Thread(renderer);
+			thread.start();
+			
+			//Every message is composited even while the painter is behind, the painter then gets the whole picture
+			int frameNumber = send(sender, receiver, Color.RED, 0);
+			Assertions.assertTrue(frameNumber > 0);
+			Assertions.assertTrue(frames.tryAcquire(5, TimeUnit.SECONDS));
+			send(sender, receiver, Color.BLUE, frameNumber);
+			BufferedImage first = renderer.acquire();
+			Assertions.assertTrue(frames.tryAcquire(5, TimeUnit.SECONDS));
+			BufferedImage second = renderer.acquire();
+			Assertions.assertNotSame(first, second);
+			assertColor(Color.BLUE, second);
+			Assertions.assertFalse(receiver.pollKeyframeNeeded());
+			
+			renderer.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class JpegCodecTest {
+	
+	private static BufferedImage pattern() {
+		BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+		for(int y=0; y<image.getHeight(); y++) {
+			for(int x=0; x<image.getWidth(); x++)
+				image.setRGB(x, y, ((x * 4) << 16) | ((y * 5) << 8) | ((x ^ y) * 3));
+		}
+		return image;
+	}
+
+	@Test
+	void testQualityAndSubsampling() {
+		try {
+			JpegCodec codec = new JpegCodec();
+			BufferedImage image = pattern();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			codec.write(image, out);
+			int normal = out.size();
+			
+			codec.setQuality(0.1f);
+			out.reset();
+			codec.write(image, out);
+			int low = out.size();
+			Assertions.assertTrue(low < normal);
+			
+			codec.setQuality(JpegCodec.DEFAULT_QUALITY);
+			codec.setChromaSubsampling(false);
+			out.reset();
+			codec.write(image, out);
+			Assertions.assertTrue(out.size() > normal);
+			
+			Assertions.assertThrows(IllegalArgumentException.class, ()->codec.setQuality(2));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testReuseDestination() {
+		try {
+			JpegCodec codec = new JpegCodec();
+			BufferedImage image = pattern();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			codec.write(image, out);
+			byte[] data = out.toByteArray();
+			
+			BufferedImage decoded = codec.read(data, 0, data.length, null);
+			Assertions.assertEquals(64, decoded.getWidth());
+			Assertions.assertEquals(48, decoded.getHeight());
+			Assertions.assertSame(decoded, codec.read(data, 0, data.length, decoded));
+			
+			//A destination of the wrong size is not used
+			BufferedImage small = new BufferedImage(8, 8, decoded.getType());
+			Assertions.assertNotEquals(small, codec.read(data, 0, data.length, small));
+			
+			//Data after an offset
+			byte[] shifted = new byte[data.length + 10];
+			System.arraycopy(data, 0, shifted, 10, data.length);
+			int expected = image.getRGB(30, 30);
+			int actual = codec.read(shifted, 10, data.length, null).getRGB(30, 30);
+			Assertions.assertEquals((expected >> 16) & 0xFF, (actual >> 16) & 0xFF, 24);
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.russbucket.networking.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class KeyframeCacheTest {
+	
+	private BufferPool pool = new BufferPool();
+	
+	private void add(KeyframeCache cache, byte[] payload, RtpHeader.PayloadType type, int frameNumber, int sequenceNumber, int sequenceLength) {
+		PooledBuffer datagram = this.pool.copy(ByteBuffer.wrap(new RtpPacket(payload, type, frameNumber, sequenceNumber, sequenceLength).getPacketAsBytes()));
+		cache.add(datagram);
+		datagram.release();
+	}
+	
+	/**
+	 * Payload of the first fragment of a tile message
+	 */
+	private static byte[] tileHeader(boolean keyframe, int part, int parts) {
+		return new byte[] {(byte)(keyframe ? TileCodec.FLAG_KEYFRAME : 0), 0, 16, 0, 16, (byte)part, (byte)parts, 0, 0};
+	}
+	
+	private static int[][] frames(List<PooledBuffer> datagrams) {
+		int[][] frames = new int[datagrams.size()][];
+		for(int i=0; i<frames.length; i++) {
+			ByteBuffer buffer = datagrams.get(i).getBuffer();
+			frames[i] = new int[] {buffer.getShort(buffer.position() + 1), buffer.getShort(buffer.position() + 3)};
+			datagrams.get(i).release();
+		}
+		return frames;
+	}
+	
+	private static int size(KeyframeCache cache) {
+		List<PooledBuffer> datagrams = cache.snapshot();
+		for(PooledBuffer datagram : datagrams)
+			datagram.release();
+		return datagrams.size();
+	}
+	
+	@Test
+	void testJpeg() {
+		try {
+			KeyframeCache cache = new KeyframeCache(1024 * 1024);
+			byte[] payload = new byte[100];
+			
+			//Nothing is cached until a frame is complete
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, 1, 2);
+			Assertions.assertEquals(0, size(cache));
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, 0, 2);
+			int[][] frames = frames(cache.snapshot());
+			Assertions.assertEquals(2, frames.length);
+			Assertions.assertEquals(1, frames[0][0]);
+			
+			//An incomplete newer frame leaves the last complete one cached
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 2, 0, 2);
+			Assertions.assertEquals(1, frames(cache.snapshot())[0][0]);
+			
+			//Late fragments of older frames do not restart the frame arriving
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, 1, 2);
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 2, 1, 2);
+			frames = frames(cache.snapshot());
+			Assertions.assertEquals(2, frames.length);
+			Assertions.assertEquals(2, frames[0][0]);
+			Assertions.assertEquals(2 * (RtpHeader.SIZE + payload.length), cache.getBytes());
+			
+			//Control and repair datagrams are never cached
+			this.add(cache, payload, RtpHeader.PayloadType.STAT, 3, 0, 1);
+			this.add(cache, payload, RtpHeader.PayloadType.FEC, 3, 0, 1);
+			Assertions.assertEquals(2, size(cache));
+			
+			cache.clear();
+			Assertions.assertEquals(0, size(cache));
+			Assertions.assertEquals(0, this.pool.getMetrics().getOutstanding());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testTiles() {
+		try {
+			KeyframeCache cache = new KeyframeCache(1024 * 1024);
+			
+			//A delta before any keyframe is not cached
+			this.add(cache, tileHeader(false, 0, 1), RtpHeader.PayloadType.TILE, 9, 0, 1);
+			
+			//Keyframe of two messages, the first in two fragments
+			this.add(cache, tileHeader(true, 0, 2), RtpHeader.PayloadType.TILE, 10, 0, 2);
+			this.add(cache, new byte[10], RtpHeader.PayloadType.TILE, 10, 1, 2);
+			Assertions.assertEquals(0, size(cache));
+			this.add(cache, tileHeader(true, 1, 2), RtpHeader.PayloadType.TILE, 11, 0, 1);
+			
+			//Deltas after it are kept in order, so a receiver catches up to the live stream
+			this.add(cache, tileHeader(false, 0, 1), RtpHeader.PayloadType.TILE, 12, 0, 1);
+			int[][] frames = frames(cache.snapshot());
+			int[][] expected = {{10, 0}, {10, 1}, {11, 0}, {12, 0}};
+			Assertions.assertEquals(expected.length, frames.length);
+			for(int i=0; i<expected.length; i++) {
+				Assertions.assertEquals(expected[i][0], frames[i][0]);
+				Assertions.assertEquals(expected[i][1], frames[i][1]);
+			}
+			
+			//A newer keyframe only replaces it once complete, deltas carrying on meanwhile
+			this.add(cache, tileHeader(true, 0, 1), RtpHeader.PayloadType.TILE, 13, 0, 2);
+			Assertions.assertEquals(5, size(cache));
+			this.add(cache, new byte[10], RtpHeader.PayloadType.TILE, 13, 1, 2);
+			this.add(cache, tileHeader(false, 0, 1), RtpHeader.PayloadType.TILE, 14, 0, 1);
+			frames = frames(cache.snapshot());
+			Assertions.assertEquals(3, frames.length);
+			Assertions.assertEquals(13, frames[0][0]);
+			Assertions.assertEquals(14, frames[2][0]);
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testDuplicates() {
+		try {
+			KeyframeCache cache = new KeyframeCache(1024 * 1024);
+			byte[] payload = new byte[100];
+			
+			//A fragment resent after a NACK does not stand in for one still missing
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, 0, 3);
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, 1, 3);
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, 1, 3);
+			Assertions.assertEquals(0, size(cache));
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, 2, 3);
+			int[][] frames = frames(cache.snapshot());
+			Assertions.assertEquals(3, frames.length);
+			for(int i=0; i<frames.length; i++)
+				Assertions.assertEquals(i, frames[i][1]);
+			
+			//Same for tile keyframe messages
+			this.add(cache, tileHeader(true, 0, 2), RtpHeader.PayloadType.TILE, 5, 0, 1);
+			this.add(cache, tileHeader(true, 0, 2), RtpHeader.PayloadType.TILE, 5, 0, 1);
+			Assertions.assertEquals(3, size(cache));
+			this.add(cache, tileHeader(true, 1, 2), RtpHeader.PayloadType.TILE, 6, 0, 1);
+			Assertions.assertEquals(2, size(cache));
+			
+			cache.clear();
+			Assertions.assertEquals(0, this.pool.getMetrics().getOutstanding());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testBounds() {
+		try {
+			int size = RtpHeader.SIZE + 100;
+			KeyframeCache cache = new KeyframeCache(3 * size);
+			byte[] payload = new byte[100];
+			
+			//A keyframe larger than the bound is never cached
+			for(int i=0; i<4; i++)
+				this.add(cache, payload, RtpHeader.PayloadType.JPEG, 1, i, 4);
+			Assertions.assertEquals(0, size(cache));
+			
+			//Deltas taking the cache over the bound drop it
+			this.add(cache, tileHeader(true, 0, 1), RtpHeader.PayloadType.TILE, 2, 0, 1);
+			this.add(cache, payload, RtpHeader.PayloadType.TILE, 3, 0, 1);
+			Assertions.assertEquals(2, size(cache));
+			this.add(cache, payload, RtpHeader.PayloadType.TILE, 4, 0, 1);
+			this.add(cache, payload, RtpHeader.PayloadType.TILE, 5, 0, 1);
+			Assertions.assertEquals(0, cache.getBytes());
+			
+			//Idle senders are dropped
+			this.add(cache, payload, RtpHeader.PayloadType.JPEG, 6, 0, 1);
+			Assertions.assertEquals(1, size(cache));
+			Assertions.assertFalse(cache.expire(System.nanoTime(), 1_000_000_000L));
+			Assertions.assertTrue(cache.expire(System.nanoTime() + 2_000_000_000L, 1_000_000_000L));
+			Assertions.assertEquals(0, size(cache));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
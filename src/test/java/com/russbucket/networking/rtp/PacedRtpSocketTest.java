@@ -0,0 +1,134 @@
+package com.russbucket.networking.rtp;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class PacedRtpSocketTest {
+
+	@Test
+	void test() {
+		try {
+			RtpSocket server = new RtpSocket();
+			RtpSocket client = new RtpSocket();
+			client.connect("127.0.0.1", server.getLocalPort());
+			SocketAddress target = client.getRemoteSocketAddress();
+			
+			//100KB/s with room for a single packet at once
+			PacedRtpSocket paced = new PacedRtpSocket(client, 100_000, 1000, 8);
+			long start = System.nanoTime();
+			int queued = 0;
+			for(int i=0; i<12; i++) {
+				if(paced.send(new RtpPacket(new byte[1000], RtpHeader.PayloadType.JPEG, 1, i, 12)))
+					queued++;
+			}
+			
+			//Only the queue's capacity (and anything already sent) fits, the rest is dropped
+			Assertions.assertTrue(paced.getDropped(target) > 0);
+			Assertions.assertEquals(12, queued + paced.getDropped(target));
+			Assertions.assertEquals(8, paced.getMaxQueueDepth(target));
+			
+			//The packets after the first are spread out rather than sent at once
+			byte[] buffer = new byte[2000];
+			for(int i=0; i<queued; i++)
+				Assertions.assertEquals(i, server.receive(buffer).getHeader().getSequenceNumber());
+			long elapsed = (System.nanoTime() - start) / 1_000_000;
+			Assertions.assertTrue(elapsed >= 60, "Sent in " + elapsed + "ms");
+			Assertions.assertEquals(0, paced.getQueueDepth(target));
+			Assertions.assertEquals(0, paced.getQueuedBytes(target));
+			Assertions.assertEquals(queued, paced.getSent(target));
+			
+			paced.close();
+			client.close();
+			server.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testTimedPut() {
+		try {
+			RtpSocket server = new RtpSocket();
+			RtpSocket client = new RtpSocket();
+			client.connect("127.0.0.1", server.getLocalPort());
+			SocketAddress target = client.getRemoteSocketAddress();
+			
+			//The first datagram empties the bucket, leaving the rest queued for minutes
+			PacedRtpSocket paced = new PacedRtpSocket(client, 1, 1, 2);
+			Assertions.assertTrue(paced.put(new RtpPacket(new byte[100], RtpHeader.PayloadType.JPEG, 1, 0, 4), 50, TimeUnit.MILLISECONDS));
+			while(paced.getSent(target) == 0)
+				Thread.sleep(1);
+			for(int i=1; i<3; i++)
+				Assertions.assertTrue(paced.put(new RtpPacket(new byte[100], RtpHeader.PayloadType.JPEG, 1, i, 4), 50, TimeUnit.MILLISECONDS));
+			
+			//A full queue times out without counting a drop or the bytes
+			long start = System.nanoTime();
+			Assertions.assertFalse(paced.put(new RtpPacket(new byte[100], RtpHeader.PayloadType.JPEG, 1, 3, 4), 50, TimeUnit.MILLISECONDS));
+			Assertions.assertTrue(System.nanoTime() - start >= 40_000_000);
+			Assertions.assertEquals(0, paced.getDropped(target));
+			Assertions.assertEquals(2, paced.getQueueDepth(target));
+			Assertions.assertEquals(2 * (RtpHeader.SIZE + 100), paced.getQueuedBytes(target));
+			
+			//Once closed nothing more is queued
+			paced.close();
+			Assertions.assertFalse(paced.put(new RtpPacket(new byte[100], RtpHeader.PayloadType.JPEG, 1, 3, 4), 50, TimeUnit.MILLISECONDS));
+			Assertions.assertFalse(paced.send(new RtpPacket(new byte[100], RtpHeader.PayloadType.JPEG, 1, 3, 4)));
+			Assertions.assertFalse(paced.send(ByteBuffer.wrap(new byte[RtpHeader.SIZE]), target));
+			while(paced.getQueueDepth(target) > 0)
+				Thread.sleep(1);
+			client.close();
+			server.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testDestinations() {
+		try {
+			RtpSocket server = new RtpSocket();
+			RtpSocket client = new RtpSocket();
+			SocketAddress target = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+			PacedRtpSocket paced = new PacedRtpSocket(client, 1, 1, 4);
+			ByteBuffer datagram = ByteBuffer.wrap(new RtpPacket(new byte[100], RtpHeader.PayloadType.JPEG, 1, 0, 1).getPacketAsBytes());
+			
+			//Only destinations that have been added are sent to
+			Assertions.assertFalse(paced.send(datagram, target));
+			paced.add(target);
+			Assertions.assertTrue(paced.send(datagram, target));
+			Assertions.assertTrue(paced.send(datagram, target));
+			
+			//A removed destination drops its queue and is not brought back by sending to it
+			paced.remove(target);
+			Assertions.assertFalse(paced.send(datagram, target));
+			Assertions.assertEquals(0, paced.getQueueDepth(target));
+			
+			//Pooled datagrams are retained rather than copied, and released once sent or dropped
+			PooledBuffer pooled = new BufferPool().copy(datagram);
+			paced.add(target);
+			Assertions.assertTrue(paced.send(pooled, target));
+			Assertions.assertTrue(paced.send(pooled, target));
+			Assertions.assertTrue(pooled.getReferences() >= 2);
+			Assertions.assertEquals(datagram.remaining(), pooled.getBuffer().remaining());
+			paced.remove(target);
+			for(int i=0; i<500 && pooled.getReferences() > 1; i++)
+				Thread.sleep(1);
+			Assertions.assertEquals(1, pooled.getReferences());
+			pooled.release();
+			
+			paced.close();
+			client.close();
+			server.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.russbucket.networking.rtp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
+
+class ReceiveRingTest {
+	
+	@Test
+	void testPolicies() {
+		try {
+			ReceiveRing ring = new ReceiveRing(2, RtpSocket.SIZE_MAX, ReceiveRing.FullPolicy.DROP_NEWEST);
+			RtpPacketView first = ring.claim();
+			RtpPacketView second = ring.claim();
+			ring.publish(first);
+			ring.publish(second);
+			Assertions.assertEquals(2, ring.getDepth());
+			
+			//Dropping the newest keeps what is waiting
+			RtpPacketView dropped = ring.claim();
+			Assertions.assertTrue(ring.isDiscard(dropped));
+			ring.publish(dropped);
+			Assertions.assertEquals(2, ring.getDepth());
+			Assertions.assertEquals(1, ring.getDropped());
+			
+			//Processing frees the slots in the order they were published
+			List<RtpPacketView> batch = new ArrayList<>();
+			ring.take(batch, 8);
+			Assertions.assertEquals(2, batch.size());
+			Assertions.assertSame(first, batch.get(0));
+			Assertions.assertSame(second, batch.get(1));
+			ring.free(batch);
+			Assertions.assertEquals(0, batch.size());
+			Assertions.assertFalse(ring.isDiscard(ring.claim()));
+			
+			//Dropping the oldest receives into the slot that has waited longest
+			ring = new ReceiveRing(2, RtpSocket.SIZE_MAX, ReceiveRing.FullPolicy.DROP_OLDEST);
+			first = ring.claim();
+			second = ring.claim();
+			ring.publish(first);
+			ring.publish(second);
+			Assertions.assertSame(first, ring.claim());
+			Assertions.assertEquals(1, ring.getDropped());
+			Assertions.assertEquals(1, ring.getDepth());
+			
+			//Unless every slot is being processed
+			ring.take(batch, 8);
+			Assertions.assertTrue(ring.isDiscard(ring.claim()));
+			Assertions.assertEquals(2, ring.getDropped());
+			
+			//Blocking waits for a slot to be freed
+			ReceiveRing blocking = new ReceiveRing(1, RtpSocket.SIZE_MAX, ReceiveRing.FullPolicy.BLOCK);
+			RtpPacketView only = blocking.claim();
+			blocking.publish(only);
+			Thread processor = new Thread(()->{
+				try {
+					List<RtpPacketView> taken = new ArrayList<>();
+					Thread.sleep(50);
+					blocking.take(taken, 1);
+					blocking.free(taken);
+				}catch(InterruptedException e) {
+					//Test has finished
+				}
+			});
+			processor.start();
+			Assertions.assertSame(only, blocking.claim());
+			Assertions.assertEquals(0, blocking.getDropped());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testRunnable() {
+		try {
+			RtpSocket receiver = new RtpSocket();
+			RtpSocket sender = new RtpSocket();
+			sender.connect("127.0.0.1", receiver.getLocalPort());
+			
+			BlockingQueue<Integer> frames = new ArrayBlockingQueue<>(64);
+			RtpRunnable runnable = new RtpRunnable() {
+				@Override
+				public void process(RtpPacket packet) {
+				}
+				
+				@Override
+				public void process(List<RtpPacketView> batch) {
+					for(RtpPacketView view : batch)
+						frames.add(view.getFrameNumber());
+				}
+			};
+			runnable.setSocket(receiver);
+			runnable.setBufferSize(RtpSocket.SIZE_MAX);
+			runnable.enableRing(16, 1, ReceiveRing.FullPolicy.BLOCK);
+			new Thread(runnable).start();
+			
+			for(int i=0; i<32; i++)
+				sender.send(new RtpPacket(new byte[10], RtpHeader.PayloadType.JPEG, i, 0, 1));
+			
+			//Batches arrive whole and in order
+			for(int i=0; i<32; i++)
+				Assertions.assertEquals(i, (int)frames.poll(5, TimeUnit.SECONDS));
+			//Latencies are recorded once the whole batch has been processed
+			for(int i=0; i<100 && runnable.getMetrics().getProcessed() < 32; i++)
+				Thread.sleep(10);
+			Assertions.assertEquals(32, runnable.getMetrics().getProcessed());
+			Assertions.assertEquals(0, runnable.getMetrics().getDropped());
+			
+			receiver.close();
+			sender.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testProcessingFails() {
+		try {
+			RtpSocket receiver = new RtpSocket();
+			RtpSocket sender = new RtpSocket();
+			sender.connect("127.0.0.1", receiver.getLocalPort());
+			
+			BlockingQueue<Integer> frames = new ArrayBlockingQueue<>(64);
+			RtpRunnable runnable = new RtpRunnable() {
+				@Override
+				public void process(RtpPacket packet) {
+				}
+				
+				@Override
+				public void process(RtpPacketView view) {
+					if(view.getFrameNumber() == 0)
+						throw new IllegalStateException("Bad packet");
+					frames.add(view.getFrameNumber());
+				}
+			};
+			runnable.setSocket(receiver);
+			runnable.setBufferSize(RtpSocket.SIZE_MAX);
+			runnable.enableRing(4, 1, ReceiveRing.FullPolicy.BLOCK);
+			new Thread(runnable).start();
+			
+			sender.send(new RtpPacket(new byte[10], RtpHeader.PayloadType.JPEG, 0, 0, 1));
+			for(int i=0; i<500 && runnable.getMetrics().getFailed() == 0; i++)
+				Thread.sleep(10);
+			Assertions.assertEquals(1, runnable.getMetrics().getFailed());
+			
+			//The consumer carries on and the failed batch's slots are free again
+			for(int i=1; i<16; i++)
+				sender.send(new RtpPacket(new byte[10], RtpHeader.PayloadType.JPEG, i, 0, 1));
+			for(int i=1; i<16; i++)
+				Assertions.assertEquals(i, (int)frames.poll(5, TimeUnit.SECONDS));
+			
+			receiver.close();
+			sender.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
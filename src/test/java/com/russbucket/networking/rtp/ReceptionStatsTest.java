@@ -0,0 +1,112 @@
+package com.russbucket.networking.rtp;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+
+class ReceptionStatsTest {
+	
+	@Test
+	void testLoss() {
+		try {
+			ReceptionStats stats = new ReceptionStats();
+			long now = 1_000_000_000L;
+			
+			//Frame 0 complete, frame 1 missing a fragment, frame 2 lost entirely, frame 3 complete
+			for(int sequence=0; sequence<4; sequence++)
+				stats.received(RtpHeader.PayloadType.JPEG, 0, 4, 100, 0, now);
+			for(int sequence=0; sequence<3; sequence++)
+				stats.received(RtpHeader.PayloadType.JPEG, 1, 4, 100, 0, now);
+			for(int sequence=0; sequence<4; sequence++)
+				stats.received(RtpHeader.PayloadType.JPEG, 3, 4, 100, 0, now);
+			
+			Assertions.assertEquals(16, stats.getExpected());
+			Assertions.assertEquals(11, stats.getReceived());
+			Assertions.assertEquals(5, stats.getCumulativeLost());
+			
+			ReceiverReport report = stats.report(now + 1_000_000_000L);
+			Assertions.assertEquals(5 * 256 / 16, report.getFractionLost());
+			Assertions.assertEquals(3, report.getHighestFrame());
+			
+			//Frame numbers wrap around without counting as lost
+			ReceptionStats wrapped = new ReceptionStats();
+			wrapped.received(RtpHeader.PayloadType.TILE, 0xFFFF, 1, 100, 0, now);
+			wrapped.received(RtpHeader.PayloadType.TILE, 0, 1, 100, 0, now);
+			Assertions.assertEquals(0, wrapped.getCumulativeLost());
+			Assertions.assertEquals(0x10000, wrapped.report(now).getHighestFrame());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testJitter() {
+		try {
+			//Frames captured every 33ms arriving 10ms later have no jitter
+			ReceptionStats stats = new ReceptionStats();
+			long captured = 1_000_000_000L;
+			for(int frame=0; frame<100; frame++) {
+				captured += 33_000_000;
+				stats.received(RtpHeader.PayloadType.TILE, frame, 1, 100, RtpHeader.timestamp(captured), captured + 10_000_000);
+			}
+			Assertions.assertEquals(0, stats.getJitter());
+			
+			//Transit alternating between 10ms and 12ms converges on 2ms of jitter
+			for(int frame=100; frame<300; frame++) {
+				captured += 33_000_000;
+				long transit = frame % 2 == 0 ? 10_000_000 : 12_000_000;
+				stats.received(RtpHeader.PayloadType.TILE, frame, 1, 100, RtpHeader.timestamp(captured), captured + transit);
+			}
+			Assertions.assertTrue(Math.abs(stats.getJitter() - 2000) < 50, "Jitter was " + stats.getJitter());
+			
+			//Version 1 headers have no capture time, so however they arrive they are not jitter
+			ReceptionStats untimed = new ReceptionStats();
+			long now = 0;
+			for(int frame=0; frame<100; frame++) {
+				now += frame % 2 == 0 ? 1_000_000 : 5_000_000;
+				untimed.received(RtpHeader.PayloadType.TILE, frame, 1, 100, 0, now);
+			}
+			Assertions.assertEquals(0, untimed.getJitter());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testReports() {
+		try {
+			long sent = 5_000_000_000L;
+			SenderReport senderReport = SenderReport.decode(new SenderReport(SenderReport.timestamp(sent), 10, 12000).toPacket().getPayload());
+			Assertions.assertEquals(10, senderReport.getPacketsSent());
+			Assertions.assertEquals(12000, senderReport.getBytesSent());
+			
+			//Receiver holds the sender report for 20ms, the report arrives back 50ms after it was sent
+			ReceptionStats stats = new ReceptionStats();
+			stats.senderReport(senderReport, 100_000_000L);
+			stats.received(RtpHeader.PayloadType.TILE, 7, 2, 600, 0, 110_000_000L);
+			ReceiverReport report = ReceiverReport.decode(stats.report(120_000_000L).toPacket().getPayload());
+			
+			Assertions.assertNotNull(report);
+			Assertions.assertEquals(7, report.getHighestFrame());
+			Assertions.assertEquals(1, report.getCumulativeLost());
+			long roundTripTime = report.getRoundTripTime(SenderReport.timestamp(sent + 50_000_000L));
+			Assertions.assertTrue(Math.abs(roundTripTime - 30_000) < 100, "Round trip was " + roundTripTime);
+			
+			Assertions.assertNull(ReceiverReport.decode(senderReport.toPacket().getPayload()));
+			Assertions.assertEquals(0, report.getSsrc());
+			
+			//Statistics kept for a stream name it in their reports
+			ReceptionStats stream = new ReceptionStats(0xCAFEBABE);
+			stream.received(RtpHeader.PayloadType.TILE, 3, 1, 600, 0, 110_000_000L);
+			byte[] payload = stream.report(120_000_000L).toPacket().getPayload();
+			Assertions.assertEquals(StatMessage.STREAM_RECEIVER_REPORT, StatMessage.getKind(payload));
+			Assertions.assertTrue(ReceiverReport.isReport(payload));
+			ReceiverReport streamReport = ReceiverReport.decode(payload);
+			Assertions.assertEquals(0xCAFEBABE, streamReport.getSsrc());
+			Assertions.assertEquals(3, streamReport.getHighestFrame());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class RetransmitRingTest {
+	
+	@Test
+	void testNackEncoding() {
+		try {
+			NackMessage nack = new NackMessage(RtpHeader.PayloadType.TILE);
+			Assertions.assertTrue(nack.add(65535, 3, 2));
+			Assertions.assertTrue(nack.add(7, 0, 1));
+			
+			RtpPacket packet = nack.toPacket();
+			Assertions.assertEquals(RtpHeader.PayloadType.STAT, packet.getHeader().getType());
+			Assertions.assertTrue(StatMessage.isBinary(packet.getPayload()));
+			Assertions.assertFalse(StatMessage.isBinary("KEYFRAME".getBytes()));
+			
+			NackMessage decoded = NackMessage.decode(packet.getPayload());
+			Assertions.assertEquals(RtpHeader.PayloadType.TILE, decoded.getType());
+			Assertions.assertEquals(2, decoded.getRangeCount());
+			Assertions.assertEquals(65535, decoded.getFrameNumber(0));
+			Assertions.assertEquals(3, decoded.getFirstSequence(0));
+			Assertions.assertEquals(2, decoded.getCount(0));
+			Assertions.assertEquals(7, decoded.getFrameNumber(1));
+			
+			for(int i=2; i<NackMessage.MAX_RANGES; i++)
+				Assertions.assertTrue(nack.add(i, 0, 1));
+			Assertions.assertTrue(nack.isFull());
+			Assertions.assertFalse(nack.add(0, 0, 1));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testStreamNack() {
+		try {
+			NackMessage nack = new NackMessage(RtpHeader.PayloadType.JPEG, 0xCAFEBABE);
+			nack.add(0x12345, 0, 3);
+			
+			RtpPacket packet = nack.toPacket();
+			Assertions.assertEquals(StatMessage.STREAM_NACK, StatMessage.getKind(packet.getPayload()));
+			Assertions.assertTrue(NackMessage.isNack(packet.getPayload()));
+			NackMessage decoded = NackMessage.decode(packet.getPayload());
+			Assertions.assertEquals(0xCAFEBABE, decoded.getSsrc());
+			Assertions.assertEquals(RtpHeader.PayloadType.JPEG, decoded.getType());
+			Assertions.assertEquals(0x2345, decoded.getFrameNumber(0));
+			Assertions.assertEquals(0, NackMessage.decode(new NackMessage(RtpHeader.PayloadType.JPEG).toPacket().getPayload()).getSsrc());
+			
+			//Fragments with 32 bit frame numbers are found by the low 16 bits sent in the NACK
+			RetransmitRing ring = new RetransmitRing(8);
+			for(int sequence=0; sequence<2; sequence++)
+				ring.add(new RtpPacket(new byte[] {(byte)sequence}, new RtpHeader(RtpHeader.PayloadType.JPEG, 0xCAFEBABE, 0x12345, sequence, 3, 900)));
+			List<ByteBuffer> found = new ArrayList<>();
+			NackMessage missing = ring.get(decoded, found::add);
+			Assertions.assertEquals(2, found.size());
+			Assertions.assertEquals(RtpHeader.SIZE_V2 + 1, found.get(1).remaining());
+			Assertions.assertEquals(0xCAFEBABE, RtpHeader.ssrc(found.get(1), found.get(1).position()));
+			Assertions.assertEquals(0xCAFEBABE, missing.getSsrc());
+			Assertions.assertEquals(2, missing.getFirstSequence(0));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testLookup() {
+		try {
+			RetransmitRing ring = new RetransmitRing(4);
+			for(int sequence=0; sequence<6; sequence++)
+				ring.add(new RtpPacket(new byte[] {(byte)sequence}, RtpHeader.PayloadType.JPEG, 9, sequence, 6));
+			
+			//Only the last 4 are kept
+			Assertions.assertNull(ring.get(RtpHeader.PayloadType.JPEG, 9, 1));
+			Assertions.assertNull(ring.get(RtpHeader.PayloadType.TILE, 9, 4));
+			ByteBuffer datagram = ring.get(RtpHeader.PayloadType.JPEG, 9, 4);
+			Assertions.assertNotNull(datagram);
+			Assertions.assertEquals(RtpHeader.SIZE + 1, datagram.remaining());
+			Assertions.assertEquals(4, datagram.get(RtpHeader.SIZE));
+			
+			//Fragments found are sent, the rest are passed on
+			NackMessage nack = new NackMessage(RtpHeader.PayloadType.JPEG);
+			nack.add(9, 0, 6);
+			List<ByteBuffer> found = new ArrayList<>();
+			NackMessage missing = ring.get(nack, found::add);
+			Assertions.assertEquals(4, found.size());
+			Assertions.assertEquals(1, missing.getRangeCount());
+			Assertions.assertEquals(0, missing.getFirstSequence(0));
+			Assertions.assertEquals(2, missing.getCount(0));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testHighFrameNumbers() {
+		try {
+			//Frame numbers with the top bit set must not hide the payload type
+			RetransmitRing ring = new RetransmitRing(8);
+			ring.add(new RtpPacket(new byte[] {1}, RtpHeader.PayloadType.TILE, 0x8000, 0, 1));
+			ring.add(new RtpPacket(new byte[] {2}, RtpHeader.PayloadType.FEC, 0x8000, 0, 1));
+			
+			ByteBuffer tile = ring.get(RtpHeader.PayloadType.TILE, 0x8000, 0);
+			ByteBuffer fec = ring.get(RtpHeader.PayloadType.FEC, 0x8000, 0);
+			Assertions.assertNotNull(tile);
+			Assertions.assertNotNull(fec);
+			Assertions.assertEquals(1, tile.get(RtpHeader.SIZE));
+			Assertions.assertEquals(2, fec.get(RtpHeader.SIZE));
+			Assertions.assertNull(ring.get(RtpHeader.PayloadType.JPEG, 0x8000, 0));
+			Assertions.assertNull(ring.get(RtpHeader.PayloadType.TILE, 0xFFFF, 0));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testCollectMissing() {
+		try {
+			FrameReassembler reassembler = new FrameReassembler(4, 1024, 1000);
+			byte[] fragment = new byte[10];
+			reassembler.add(5, 0, 6, fragment, 0, fragment.length);
+			reassembler.add(5, 2, 6, fragment, 0, fragment.length);
+			reassembler.add(5, 3, 6, fragment, 0, fragment.length);
+			
+			//Not requested until fragments have stopped arriving for the delay
+			NackMessage nack = new NackMessage(RtpHeader.PayloadType.JPEG);
+			reassembler.collectMissing(1000, 3, nack);
+			Assertions.assertTrue(nack.isEmpty());
+			
+			Thread.sleep(5);
+			reassembler.collectMissing(1, 3, nack);
+			Assertions.assertEquals(2, nack.getRangeCount());
+			Assertions.assertEquals(1, nack.getFirstSequence(0));
+			Assertions.assertEquals(1, nack.getCount(0));
+			Assertions.assertEquals(4, nack.getFirstSequence(1));
+			Assertions.assertEquals(2, nack.getCount(1));
+			
+			//Requested at most once per delay
+			NackMessage again = new NackMessage(RtpHeader.PayloadType.JPEG);
+			reassembler.collectMissing(1000, 3, again);
+			Assertions.assertTrue(again.isEmpty());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testLateTiles() {
+		try {
+			TileCodec encoder = new TileCodec(32, 2, 30);
+			TileCodec decoder = new TileCodec(TileCodec.DEFAULT_TILE_SIZE, TileCodec.DEFAULT_KEYFRAME_INTERVAL);
+			decoder.setLossWait(4);
+			
+			BufferedImage image = new BufferedImage(32, 4, BufferedImage.TYPE_INT_RGB);
+			List<byte[]> keyframe = encoder.encode(image);
+			Assertions.assertEquals(2, keyframe.size());
+			decoder.decode(keyframe.get(0), keyframe.get(0).length, 0);
+			decoder.decode(keyframe.get(1), keyframe.get(1).length, 1);
+			Assertions.assertFalse(decoder.pollKeyframeNeeded());
+			
+			//The second row arrives before the first, which is still drawn
+			for(int x=0; x<32; x++) {
+				image.setRGB(x, 0, 0xFFFFFF);
+				image.setRGB(x, 3, 0xFFFFFF);
+			}
+			List<byte[]> delta = encoder.encode(image);
+			Assertions.assertEquals(2, delta.size());
+			decoder.decode(delta.get(1), delta.get(1).length, 3);
+			BufferedImage canvas = decoder.decode(delta.get(0), delta.get(0).length, 2);
+			Assertions.assertFalse(decoder.pollKeyframeNeeded());
+			Assertions.assertTrue((canvas.getRGB(8, 0) & 0xFF) > 0xC0);
+			Assertions.assertTrue((canvas.getRGB(8, 3) & 0xFF) > 0xC0);
+			
+			//A message that never arrives needs a keyframe once the wait has passed
+			for(int frame=5; frame<9; frame++)
+				decoder.decode(delta.get(1), delta.get(1).length, frame);
+			Assertions.assertFalse(decoder.pollKeyframeNeeded());
+			decoder.decode(delta.get(1), delta.get(1).length, 9);
+			Assertions.assertTrue(decoder.pollKeyframeNeeded());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
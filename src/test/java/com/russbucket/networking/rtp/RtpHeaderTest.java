@@ -1,12 +1,16 @@
 package com.russbucket.networking.rtp;
 
+import java.nio.ByteBuffer;
+
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 class RtpHeaderTest {
-
+	
 	@Test
 	void testHeaderEncodeDecodeJpeg() {
 		RtpHeader header = new RtpHeader(RtpHeader.PayloadType.JPEG, 1530, 82, 82);
@@ -41,4 +45,96 @@ class RtpHeaderTest {
 		Assertions.assertNull(header.getSenderAddress());
 		Assertions.assertEquals(0, header.getSenderPort());
 	}
+	
+	@Test
+	void testHeaderEncodeInto() {
+		RtpHeader header = new RtpHeader(RtpHeader.PayloadType.JPEG, 65000, 300, 301);
+		ByteBuffer buffer = ByteBuffer.allocate(RtpHeader.SIZE + 2);
+		buffer.put((byte)9);
+		header.encodeInto(buffer);
+		
+		Assertions.assertEquals(RtpHeader.SIZE + 1, buffer.position());
+		
+		byte[] encoded = new byte[RtpHeader.SIZE];
+		buffer.position(1);
+		buffer.get(encoded);
+		Assertions.assertArrayEquals(header.encode(), encoded);
+		
+		RtpHeader h2 = RtpHeader.decode(encoded);
+		Assertions.assertEquals(header.getFrameNumber(), h2.getFrameNumber());
+		Assertions.assertEquals(header.getSequenceNumber(), h2.getSequenceNumber());
+		Assertions.assertEquals(header.getSequenceLength(), h2.getSequenceLength());
+	}
+	
+	@Test
+	void testHeaderEncodeDecodeVersion2() {
+		RtpHeader header = new RtpHeader(RtpHeader.PayloadType.TILE, 0xCAFEBABE, 0x12345678, 82, 83, -5);
+		byte[] encoded = header.encode();
+		Assertions.assertEquals(RtpHeader.SIZE_V2, encoded.length);
+		Assertions.assertEquals(RtpHeader.SIZE_V2, RtpHeader.size(encoded[0]));
+		
+		RtpHeader h2 = RtpHeader.decode(encoded);
+		Assertions.assertEquals(RtpHeader.VERSION_2, h2.getVersion());
+		Assertions.assertEquals(RtpHeader.PayloadType.TILE, h2.getType());
+		Assertions.assertEquals(0xCAFEBABE, h2.getSsrc());
+		Assertions.assertEquals(0x12345678, h2.getFrameNumber());
+		Assertions.assertEquals(82, h2.getSequenceNumber());
+		Assertions.assertEquals(83, h2.getSequenceLength());
+		Assertions.assertEquals(-5, h2.getTimestamp());
+		
+		//Fragments of a frame keep everything but the type, sequence number and length
+		RtpHeader fragment = h2.fragment(RtpHeader.PayloadType.FEC, 3, 4);
+		Assertions.assertEquals(RtpHeader.PayloadType.FEC, fragment.getType());
+		Assertions.assertEquals(0xCAFEBABE, fragment.getSsrc());
+		Assertions.assertEquals(0x12345678, fragment.getFrameNumber());
+		Assertions.assertEquals(-5, fragment.getTimestamp());
+		
+		Assertions.assertEquals(RtpHeader.CLOCK_RATE, RtpHeader.timestamp(1_000_000_000L));
+	}
+	
+	@Test
+	void testHeaderVersion1StillDecoded() {
+		//Version 1 headers start with the payload type, which never has the version flag set
+		byte[] encoded = {RtpHeader.PayloadType.JPEG.toByte(), 0x12, 0x34, 0, 5, 0, 6};
+		Assertions.assertArrayEquals(encoded, new RtpHeader(RtpHeader.PayloadType.JPEG, 0x1234, 5, 6).encode());
+		Assertions.assertEquals(RtpHeader.SIZE, RtpHeader.size(encoded[0]));
+		
+		RtpHeader header = RtpHeader.decode(encoded);
+		Assertions.assertEquals(RtpHeader.VERSION_1, header.getVersion());
+		Assertions.assertEquals(RtpHeader.SIZE, header.getSize());
+		Assertions.assertEquals(0, header.getSsrc());
+		Assertions.assertEquals(0x1234, header.getFrameNumber());
+		Assertions.assertEquals(5, header.getSequenceNumber());
+		Assertions.assertEquals(6, header.getSequenceLength());
+		
+		//Unknown versions are never read
+		Assertions.assertEquals(0, RtpHeader.size((byte)0x83));
+		Assertions.assertFalse(RtpHeader.isValid(ByteBuffer.wrap(new byte[] {(byte)0x83, 0, 0, 0, 0, 0, 0, 0}), 0, 8));
+	}
+	
+	@Test
+	void testViewVersion2() {
+		RtpPacket packet = new RtpPacket(new byte[] {1, 2, 3}, new RtpHeader(RtpHeader.PayloadType.JPEG, 42, 0x10000, 1, 2, 90_000));
+		byte[] datagram = packet.getPacketAsBytes();
+		Assertions.assertEquals(RtpHeader.SIZE_V2 + 3, datagram.length);
+		
+		RtpPacketView view = new RtpPacketView(ByteBuffer.wrap(datagram));
+		view.setReceived(datagram.length, null);
+		Assertions.assertTrue(view.isValid());
+		Assertions.assertEquals(RtpHeader.VERSION_2, view.getVersion());
+		Assertions.assertEquals(42, view.getSsrc());
+		Assertions.assertEquals(0x10000, view.getFrameNumber());
+		Assertions.assertEquals(1, view.getSequenceNumber());
+		Assertions.assertEquals(2, view.getSequenceLength());
+		Assertions.assertEquals(90_000, view.getTimestamp());
+		Assertions.assertEquals(3, view.getPayloadLength());
+		Assertions.assertEquals(1, view.getPayload().get());
+		
+		RtpPacket copy = view.toPacket();
+		Assertions.assertArrayEquals(datagram, copy.getPacketAsBytes());
+		
+		//Too short for the header its first byte announces
+		view.setReceived(RtpHeader.SIZE_V2 - 1, null);
+		Assertions.assertFalse(view.isValid());
+	}
 }
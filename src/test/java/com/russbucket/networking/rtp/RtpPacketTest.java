@@ -25,4 +25,13 @@ class RtpPacketTest {
 		Assertions.assertNull(packetRtp2.getHeader().getSenderAddress());
 		Assertions.assertEquals(0, packetRtp2.getHeader().getSenderPort());
 	}
+	
+	@Test
+	void testInvalid() {
+		//Unknown versions, headers cut short and empty datagrams are not packets
+		Assertions.assertNull(RtpPacket.createPacket(new byte[] {(byte)0x85, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19}, 20, null, 0));
+		Assertions.assertNull(RtpPacket.createPacket(new byte[] {(byte)0x82, 3, 0, 0, 0, 1, 0, 0, 0, 2}, 10, null, 0));
+		Assertions.assertNull(RtpPacket.createPacket(new byte[] {1, 0, 1}, 3, null, 0));
+		Assertions.assertNull(RtpPacket.createPacket(new byte[RtpSocket.SIZE_MAX], 0, null, 0));
+	}
 }
@@ -1,10 +1,15 @@
 package com.russbucket.networking.rtp;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import com.russbucket.networking.rtp.packet.RtpHeader;
 import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
 
 class RtpSocketTest {
 
@@ -37,4 +42,67 @@ class RtpSocketTest {
 			Assertions.fail(e);
 		}
 	}
+	
+	@Test
+	void testDirectReceive() {
+		try {
+			RtpSocket server = new RtpSocket(5557);
+			RtpSocket client = new RtpSocket();
+			client.connect("127.0.0.1", 5557);
+
+			//Send packet from client to server
+			RtpPacket packetRtp = new RtpPacket(new byte[] {5, 6}, RtpHeader.PayloadType.JPEG, 300, 2, 3);
+			client.send(packetRtp);
+
+			//Receive packet on server into a reusable view
+			RtpPacketView view = new RtpPacketView(20);
+			server.receive(view);
+
+			//Success Criteria
+			Assertions.assertTrue(view.isValid());
+			Assertions.assertEquals(packetRtp.getHeader().getType(), view.getType());
+			Assertions.assertEquals(packetRtp.getHeader().getFrameNumber(), view.getFrameNumber());
+			Assertions.assertEquals(packetRtp.getHeader().getSequenceNumber(), view.getSequenceNumber());
+			Assertions.assertEquals(packetRtp.getHeader().getSequenceLength(), view.getSequenceLength());
+			Assertions.assertEquals(packetRtp.getPayload().length, view.getPayloadLength());
+			Assertions.assertEquals(packetRtp.getPayload()[1], view.getPayload().get(RtpHeader.SIZE + 1));
+			Assertions.assertNotNull(view.getSenderAddress());
+
+			client.close();
+			server.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+
+	@Test
+	void testSendEach() {
+		try {
+			RtpSocket server = new RtpSocket();
+			RtpSocket client = new RtpSocket();
+			InetSocketAddress target = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+
+			ByteBuffer[] datagrams = new ByteBuffer[4];
+			for(int i=0; i<datagrams.length; i++)
+				datagrams[i] = ByteBuffer.wrap(new RtpPacket(new byte[] {(byte)i}, RtpHeader.PayloadType.JPEG, i, 0, 1).getPacketAsBytes());
+
+			//Only the requested amount is sent, in order
+			Assertions.assertEquals(3, client.sendEach(datagrams, 3, target));
+			RtpPacketView view = new RtpPacketView(20);
+			for(int i=0; i<3; i++) {
+				server.receive(view);
+				Assertions.assertEquals(i, view.getFrameNumber());
+			}
+			Assertions.assertEquals(3, client.getMetrics().getPacketsOut());
+			Assertions.assertEquals(3 * (RtpHeader.SIZE + 1), client.getMetrics().getBytesOut());
+
+			//A closed socket stops the rest
+			client.close();
+			Assertions.assertThrows(ClosedChannelException.class, ()->client.sendEach(datagrams, 4, target));
+			Assertions.assertEquals(1, client.getMetrics().getSendErrors());
+			server.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
 }
@@ -0,0 +1,44 @@
+package com.russbucket.networking.rtp;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class ShardedReceiverTest {
+
+	@Test
+	void test() {
+		try {
+			LinkedBlockingQueue<RtpPacket> received = new LinkedBlockingQueue<>();
+			ShardedReceiver receiver = new ShardedReceiver(0, 4, 20, (shard)->new RtpRunnable() {
+				@Override
+				public void process(RtpPacket packet) {
+					received.add(packet);
+				}
+			});
+			receiver.start();
+			
+			RtpSocket client = new RtpSocket();
+			client.connect("127.0.0.1", receiver.getLocalPort());
+			for(int i=0; i<10; i++)
+				client.send(new RtpPacket(new byte[] {(byte)i}, RtpHeader.PayloadType.JPEG, 1, i, 10));
+			
+			//A single sender always lands on the same shard, so order is kept
+			for(int i=0; i<10; i++) {
+				RtpPacket packet = received.poll(5, TimeUnit.SECONDS);
+				Assertions.assertNotNull(packet);
+				Assertions.assertEquals(i, packet.getHeader().getSequenceNumber());
+			}
+			
+			client.close();
+			receiver.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.russbucket.networking.rtp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class StreamTableTest {
+	
+	@Test
+	void testPutGetRemove() {
+		try {
+			StreamTable<String> table = new StreamTable<>();
+			
+			Assertions.assertNull(table.put(0, "legacy"));
+			Assertions.assertNull(table.put(0xCAFEBABE, "first"));
+			Assertions.assertEquals("first", table.put(0xCAFEBABE, "replaced"));
+			Assertions.assertEquals(2, table.size());
+			
+			Assertions.assertEquals("legacy", table.get(0));
+			Assertions.assertEquals("replaced", table.get(0xCAFEBABE));
+			Assertions.assertNull(table.get(1));
+			
+			Assertions.assertFalse(table.remove(0xCAFEBABE, "first"));
+			Assertions.assertEquals("replaced", table.get(0xCAFEBABE));
+			Assertions.assertEquals("legacy", table.remove(0));
+			Assertions.assertNull(table.remove(0));
+			Assertions.assertNull(table.get(0));
+			Assertions.assertEquals(1, table.size());
+			
+			table.clear();
+			Assertions.assertEquals(0, table.size());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testManyStreams() {
+		try {
+			StreamTable<Integer> table = new StreamTable<>();
+			//Sequential SSRCs, which would all land in neighbouring slots without spreading
+			for(int i=0; i<1000; i++)
+				table.put(i << 8, i);
+			Assertions.assertEquals(1000, table.size());
+			for(int i=0; i<1000; i++)
+				Assertions.assertEquals(Integer.valueOf(i), table.get(i << 8));
+			
+			for(int i=0; i<1000; i+=2)
+				Assertions.assertEquals(Integer.valueOf(i), table.remove(i << 8));
+			Assertions.assertEquals(500, table.size());
+			for(int i=0; i<1000; i++)
+				Assertions.assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), table.get(i << 8));
+			
+			List<Integer> values = new ArrayList<>();
+			table.forEach(values::add);
+			Assertions.assertEquals(500, values.size());
+			Assertions.assertTrue(values.stream().allMatch((value)->value % 2 == 1));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
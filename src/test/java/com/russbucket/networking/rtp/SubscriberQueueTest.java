@@ -0,0 +1,147 @@
+package com.russbucket.networking.rtp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+import com.russbucket.networking.rtp.packet.RtpPacketView;
+
+class SubscriberQueueTest {
+	
+	private static ByteBuffer datagram(RtpHeader.PayloadType type, int frameNumber, int sequenceNumber, int sequenceLength) {
+		return ByteBuffer.wrap(new RtpPacket(new byte[] {(byte)sequenceNumber}, type, frameNumber, sequenceNumber, sequenceLength).getPacketAsBytes());
+	}
+	
+	@Test
+	void testFrameDrop() {
+		try {
+			RtpSocket receiver = new RtpSocket();
+			RtpSocket sender = new RtpSocket();
+			//Carriers only run when the test asks
+			List<Runnable> carriers = new ArrayList<>();
+			SubscriberQueue queue = new SubscriberQueue(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()), sender, 5, carriers::add);
+			
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 1, 0, 2)));
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.STAT, 9, 0, 1)));
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 1, 1, 2)));
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 2, 0, 2)));
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 2, 1, 2)));
+			Assertions.assertEquals(5, queue.getDepth());
+			Assertions.assertEquals(1, carriers.size());
+			
+			//A full queue drops the whole oldest frame, keeping control datagrams
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 3, 0, 3)));
+			Assertions.assertEquals(4, queue.getDepth());
+			Assertions.assertEquals(2, queue.getDropped());
+			Assertions.assertEquals(1, queue.getFramesDropped());
+			
+			//Fragments of a dropped frame arriving late are dropped too
+			Assertions.assertFalse(queue.offer(datagram(RtpHeader.PayloadType.TILE, 1, 1, 2)));
+			Assertions.assertEquals(3, queue.getDropped());
+			
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 3, 1, 3)));
+			
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 4, 0, 2)));
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 4, 1, 2)));
+			Assertions.assertEquals(5, queue.getDepth());
+			Assertions.assertEquals(5, queue.getDropped());
+			
+			//When the oldest frame is the one arriving, it is dropped whole along with the new fragment
+			Assertions.assertFalse(queue.offer(datagram(RtpHeader.PayloadType.TILE, 3, 2, 3)));
+			Assertions.assertEquals(3, queue.getDepth());
+			Assertions.assertEquals(8, queue.getDropped());
+			Assertions.assertEquals(3, queue.getFramesDropped());
+			
+			//Whatever is left is sent in order
+			carriers.remove(0).run();
+			Assertions.assertEquals(0, queue.getDepth());
+			Assertions.assertEquals(3, queue.getSent());
+			RtpPacketView view = new RtpPacketView(RtpSocket.SIZE_MAX);
+			int[][] expected = {{9, 0}, {4, 0}, {4, 1}};
+			for(int[] frame : expected) {
+				receiver.receive(view);
+				Assertions.assertEquals(frame[0], view.getFrameNumber());
+				Assertions.assertEquals(frame[1], view.getSequenceNumber());
+			}
+			
+			//Queueing again wakes a carrier
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.TILE, 5, 0, 1)));
+			Assertions.assertEquals(1, carriers.size());
+			
+			queue.close();
+			Assertions.assertEquals(0, queue.getDepth());
+			Assertions.assertFalse(queue.offer(datagram(RtpHeader.PayloadType.TILE, 6, 0, 1)));
+			receiver.close();
+			sender.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testCarriers() {
+		try {
+			RtpSocket receiver = new RtpSocket();
+			RtpSocket sender = new RtpSocket();
+			SubscriberQueue queue = new SubscriberQueue(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()), sender, 1024, SubscriberQueue.newCarrierPool(2));
+			
+			//More than a batch, so the carrier has to come back for the rest
+			int count = SubscriberQueue.DRAIN_BATCH * 3;
+			for(int i=0; i<count; i++)
+				queue.offer(datagram(RtpHeader.PayloadType.STAT, i, 0, 1));
+			
+			RtpPacketView view = new RtpPacketView(RtpSocket.SIZE_MAX);
+			for(int i=0; i<count; i++) {
+				receiver.receive(view);
+				Assertions.assertEquals(i, view.getFrameNumber());
+			}
+			Assertions.assertEquals(count, queue.getSent());
+			Assertions.assertEquals(0, queue.getDropped());
+			
+			queue.close();
+			receiver.close();
+			sender.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testPause() {
+		try {
+			RtpSocket receiver = new RtpSocket();
+			RtpSocket sender = new RtpSocket();
+			List<Runnable> carriers = new ArrayList<>();
+			SubscriberQueue queue = new SubscriberQueue(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()), sender, 16, carriers::add);
+			
+			//Nothing is sent while paused, only queued
+			queue.pause();
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.JPEG, 1, 0, 1)));
+			Assertions.assertTrue(queue.offer(datagram(RtpHeader.PayloadType.JPEG, 2, 0, 1)));
+			Assertions.assertEquals(0, carriers.size());
+			
+			//Resuming sends what was queued, in order
+			queue.resume();
+			Assertions.assertEquals(1, carriers.size());
+			carriers.remove(0).run();
+			RtpPacketView view = new RtpPacketView(RtpSocket.SIZE_MAX);
+			for(int i=1; i<=2; i++) {
+				receiver.receive(view);
+				Assertions.assertEquals(i, view.getFrameNumber());
+			}
+			
+			queue.close();
+			Assertions.assertTrue(queue.isClosed());
+			receiver.close();
+			sender.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
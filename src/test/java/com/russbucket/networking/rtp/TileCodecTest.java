@@ -0,0 +1,116 @@
+package com.russbucket.networking.rtp;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TileCodecTest {
+	
+	private static int tileCount(List<byte[]> messages) {
+		int count = 0;
+		for(byte[] data : messages)
+			count += ((data[7] & 0xFF) << 8) | (data[8] & 0xFF);
+		return count;
+	}
+	
+	private static BufferedImage decode(TileCodec decoder, List<byte[]> messages, int firstFrame) {
+		BufferedImage canvas = null;
+		for(byte[] message : messages)
+			canvas = decoder.decode(message, message.length, firstFrame++);
+		return canvas;
+	}
+
+	@Test
+	void testDeltaTiles() {
+		try {
+			TileCodec encoder = new TileCodec(32, 100);
+			TileCodec decoder = new TileCodec(32, 100);
+			BufferedImage image = new BufferedImage(100, 64, BufferedImage.TYPE_INT_RGB);
+			
+			//First frame is a keyframe with every tile (4 columns, 2 rows), a message per row
+			List<byte[]> messages = encoder.encode(image);
+			Assertions.assertEquals(2, messages.size());
+			Assertions.assertEquals(8, tileCount(messages));
+			BufferedImage canvas = decode(decoder, messages, 0);
+			Assertions.assertNotNull(canvas);
+			Assertions.assertEquals(100, canvas.getWidth());
+			
+			//Nothing changed, but a message is still sent
+			messages = encoder.encode(image);
+			Assertions.assertEquals(1, messages.size());
+			Assertions.assertEquals(0, tileCount(messages));
+			Assertions.assertNotNull(decode(decoder, messages, 2));
+			
+			//Only the changed tile is sent
+			Graphics2D g = image.createGraphics();
+			g.setColor(Color.WHITE);
+			g.fillRect(70, 40, 10, 10);
+			g.dispose();
+			messages = encoder.encode(image);
+			Assertions.assertEquals(1, tileCount(messages));
+			canvas = decode(decoder, messages, 3);
+			Assertions.assertTrue((canvas.getRGB(75, 45) & 0xFF) > 200);
+			Assertions.assertFalse(decoder.pollKeyframeNeeded());
+			
+			//A missing message asks for a keyframe
+			decode(decoder, encoder.encode(image), 6);
+			Assertions.assertTrue(decoder.pollKeyframeNeeded());
+			
+			encoder.requestKeyframe();
+			Assertions.assertEquals(8, tileCount(encoder.encode(image)));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testDeltaBeforeKeyframe() {
+		try {
+			TileCodec encoder = new TileCodec(32, 100);
+			BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+			encoder.encode(image);
+			List<byte[]> messages = encoder.encode(image);
+			
+			//A receiver that joins late cannot show deltas until a keyframe arrives
+			TileCodec decoder = new TileCodec(32, 100);
+			Assertions.assertNull(decode(decoder, messages, 2));
+			Assertions.assertTrue(decoder.pollKeyframeNeeded());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testParallelStrips() {
+		try {
+			TileCodec encoder = new TileCodec(TileCodec.FULL_WIDTH, 16, 1);
+			encoder.setPool(ForkJoinPool.commonPool());
+			BufferedImage image = new BufferedImage(80, 64, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = image.createGraphics();
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 48, 80, 16);
+			g.dispose();
+			
+			//Every strip is encoded on its own and comes back in order
+			List<byte[]> messages = encoder.encode(image);
+			Assertions.assertEquals(4, messages.size());
+			for(int i=0; i<messages.size(); i++) {
+				Assertions.assertEquals(i, messages.get(i)[5]);
+				Assertions.assertEquals(4, messages.get(i)[6]);
+			}
+			
+			TileCodec decoder = new TileCodec(TileCodec.FULL_WIDTH, 16, 1);
+			BufferedImage canvas = decode(decoder, messages, 0);
+			Assertions.assertTrue((canvas.getRGB(40, 56) & 0xFF) > 200);
+			Assertions.assertTrue((canvas.getRGB(40, 8) & 0xFF) < 50);
+			Assertions.assertFalse(decoder.pollKeyframeNeeded());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.russbucket.networking.rtp.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+	
+	@Test
+	void testBuckets() {
+		try {
+			//Every value falls in a bucket starting at or below it, and the next bucket starts above it
+			long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 123_456_789L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+			for(long value : values) {
+				int bucket = LatencyHistogram.bucket(value);
+				Assertions.assertTrue(LatencyHistogram.lowest(bucket) <= value, "Bucket of " + value);
+				if(value != Long.MAX_VALUE)
+					Assertions.assertTrue(LatencyHistogram.lowest(bucket + 1) > value, "Bucket after " + value);
+			}
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testPercentiles() {
+		try {
+			LatencyHistogram histogram = new LatencyHistogram();
+			Assertions.assertEquals(0, histogram.getPercentile(99));
+			
+			for(long value=1; value<=10_000; value++)
+				histogram.record(value * 1000);
+			
+			Assertions.assertEquals(10_000, histogram.getCount());
+			Assertions.assertEquals(10_000_000, histogram.getMax());
+			Assertions.assertEquals(5_000_500, histogram.getMean(), 1);
+			
+			//Within the precision of a bucket
+			double[] percentiles = {50, 90, 99, 99.9};
+			for(double percentile : percentiles) {
+				double expected = percentile * 100_000;
+				long actual = histogram.getPercentile(percentile);
+				Assertions.assertTrue(Math.abs(actual - expected) / expected < 0.04, percentile + " was " + actual);
+			}
+			Assertions.assertEquals(10_000_000, histogram.getPercentile(100));
+			
+			histogram.record(-5);
+			Assertions.assertEquals(0, histogram.getPercentile(0));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testAddAndReset() {
+		try {
+			LatencyHistogram a = new LatencyHistogram();
+			LatencyHistogram b = new LatencyHistogram();
+			for(int i=0; i<100; i++) {
+				a.record(10);
+				b.record(1_000_000);
+			}
+			
+			a.add(b);
+			Assertions.assertEquals(200, a.getCount());
+			Assertions.assertEquals(1_000_000, a.getMax());
+			Assertions.assertEquals(10, a.getPercentile(50));
+			Assertions.assertTrue(a.getPercentile(51) > 900_000);
+			
+			a.reset();
+			Assertions.assertEquals(0, a.getCount());
+			Assertions.assertEquals(0, a.getMax());
+			Assertions.assertEquals(0, a.getPercentile(50));
+			Assertions.assertEquals(100, b.getCount());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.russbucket.networking.rtp.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.russbucket.networking.rtp.FrameReassembler;
+import com.russbucket.networking.rtp.RtpSocket;
+import com.russbucket.networking.rtp.packet.RtpHeader;
+import com.russbucket.networking.rtp.packet.RtpPacket;
+
+class MetricsTest {
+	
+	@Test
+	void testSocket() {
+		try {
+			RtpSocket server = new RtpSocket();
+			RtpSocket client = new RtpSocket();
+			client.connect("127.0.0.1", server.getLocalPort());
+			
+			RtpPacket packet = new RtpPacket(new byte[100], RtpHeader.PayloadType.JPEG, 0, 0, 1);
+			for(int i=0; i<3; i++)
+				client.send(packet);
+			for(int i=0; i<3; i++)
+				server.receive(new byte[RtpSocket.SIZE_MAX]);
+			
+			Assertions.assertEquals(3, client.getMetrics().getPacketsOut());
+			Assertions.assertEquals(3 * (RtpHeader.SIZE + 100), client.getMetrics().getBytesOut());
+			Assertions.assertEquals(3, server.getMetrics().getPacketsIn());
+			Assertions.assertEquals(3 * (RtpHeader.SIZE + 100), server.getMetrics().getBytesIn());
+			Assertions.assertEquals(0, server.getMetrics().getPacketsOut());
+			
+			//Sending on a closed socket counts as an error
+			client.close();
+			Assertions.assertThrows(Exception.class, ()->client.send(packet));
+			Assertions.assertEquals(1, client.getMetrics().getSendErrors());
+			server.close();
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testReassembly() {
+		try {
+			ProcessorMetrics metrics = new ProcessorMetrics();
+			FrameReassembler reassembler = new FrameReassembler(4, 1024, 1000);
+			reassembler.setMetrics(metrics);
+			byte[] fragment = new byte[10];
+			
+			//Frame 0 is left incomplete and evicted when frame 1 completes
+			reassembler.add(0, 0, 2, fragment, 0, fragment.length);
+			reassembler.add(1, 0, 2, fragment, 0, fragment.length);
+			Assertions.assertNotNull(reassembler.add(1, 1, 2, fragment, 0, fragment.length));
+			
+			Assertions.assertEquals(1, metrics.getFramesCompleted());
+			Assertions.assertEquals(1, metrics.getFramesEvicted());
+			
+			metrics.decoded(2_000_000);
+			Assertions.assertEquals(1, metrics.getDecodeTime().getCount());
+			Assertions.assertEquals(2000, metrics.getDecodeTime().getMax(), 1);
+			metrics.resetDecodeTime();
+			Assertions.assertEquals(0, metrics.getDecodeTime().getCount());
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+	
+	@Test
+	void testJmx() {
+		try {
+			ReceiveMetrics metrics = new ReceiveMetrics();
+			metrics.processed(50_000);
+			metrics.processed(150_000);
+			metrics.invalid();
+			
+			ObjectName name = Metrics.register(metrics, "Receiver", "test");
+			Assertions.assertNotNull(name);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Assertions.assertEquals(2L, server.getAttribute(name, "Processed"));
+			Assertions.assertEquals(1L, server.getAttribute(name, "Invalid"));
+			
+			//Latencies are read as one composite attribute
+			CompositeData latency = (CompositeData)server.getAttribute(name, "ProcessLatency");
+			Assertions.assertEquals(2L, latency.get("count"));
+			Assertions.assertEquals(150, (Double)latency.get("max"), 1);
+			
+			//Registering again replaces the old bean
+			Assertions.assertEquals(name, Metrics.register(new ReceiveMetrics(), "Receiver", "test"));
+			Assertions.assertEquals(0L, server.getAttribute(name, "Processed"));
+			
+			Metrics.unregister(name);
+			Assertions.assertFalse(server.isRegistered(name));
+		}catch(Exception e) {
+			Assertions.fail(e);
+		}
+	}
+}